@@ -0,0 +1,78 @@
+package edu.seg2105.benchmarks;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.seg2105.client.common.BinaryMessageCodec;
+import edu.seg2105.client.common.ChatFrame;
+import edu.seg2105.client.common.MessageCodec;
+import edu.seg2105.client.common.SerializedMessageCodec;
+
+/**
+ * Encoding and decoding of one chat line by each wire format, as done by
+ * ChatClient.sendToServer, the server engines and the client readers.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+
+    @Param({"binary", "serialized"})
+    public String codec;
+
+    @Param({"16", "256", "4096"})
+    public int payloadBytes;
+
+    private MessageCodec encoder;
+    private MessageCodec decoder;
+    private ChatFrame frame;
+    private ByteBuffer encoded;
+    private final List<Object> decoded = new ArrayList<Object>(1);
+
+    @Setup
+    public void setup() throws IOException {
+        encoder = newCodec();
+        decoder = newCodec();
+        char[] text = new char[payloadBytes];
+        Arrays.fill(text, 'x');
+        frame = new ChatFrame(ChatFrame.CHAT, new String(text));
+        encoded = encoder.encode(frame);
+        // The decoder expects the stream header once, before any message
+        decoder.decode(encoder.streamHeader(), decoded);
+    }
+
+    @Benchmark
+    public ByteBuffer encode() throws IOException {
+        return encoder.encode(frame);
+    }
+
+    @Benchmark
+    public Object decode() throws IOException {
+        decoded.clear();
+        decoder.decode(encoded.duplicate(), decoded);
+        return decoded.get(0);
+    }
+
+    private MessageCodec newCodec() {
+        return "binary".equals(codec) ? new BinaryMessageCodec() : new SerializedMessageCodec();
+    }
+}
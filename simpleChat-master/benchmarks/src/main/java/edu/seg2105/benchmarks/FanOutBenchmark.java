@@ -0,0 +1,76 @@
+package edu.seg2105.benchmarks;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * One chat line broadcast to a room of loopback clients: the time from
+ * the sender's write until every client, the sender included, has
+ * received it, which is the latency of the last recipient.  "serial"
+ * sends the broadcast on the thread that received it; "sharded" splits
+ * it between one shard per core (simplechat.fanout.shards).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FanOutBenchmark {
+
+    @Param({"10", "100", "1000", "10000"})
+    public int clients;
+
+    @Param({"nio", "platform"})
+    public String engine;
+
+    @Param({"serial", "sharded"})
+    public String fanOut;
+
+    @Param({"64"})
+    public int messageBytes;
+
+    private LoopbackChat chat;
+    private ByteBuffer line;
+    private long expected;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        System.setProperty("simplechat.fanout.shards", "serial".equals(fanOut)
+            ? "1" : Integer.toString(Runtime.getRuntime().availableProcessors()));
+        chat = new LoopbackChat(engine, clients);
+        char[] text = new char[messageBytes];
+        Arrays.fill(text, 'x');
+        line = chat.encode(new String(text));
+        expected = chat.received();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        chat.close();
+    }
+
+    @Benchmark
+    public long broadcast() throws IOException {
+        expected += clients;
+        chat.send(0, line);
+        chat.awaitReceived(expected);
+        return expected;
+    }
+}
@@ -0,0 +1,186 @@
+package edu.seg2105.benchmarks;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+import edu.seg2105.client.common.SerializedMessageCodec;
+import edu.seg2105.edu.server.backend.ChatConnection;
+import edu.seg2105.edu.server.backend.EchoServer;
+import edu.seg2105.edu.server.backend.ServerConfig;
+import edu.seg2105.edu.server.backend.ServerEngine;
+
+/**
+ * Measures what idle, logged-in clients cost each server engine.  The
+ * probe starts an EchoServer in-process, opens the requested number of
+ * loopback sockets that send "#login" and then stay silent, and reports
+ * the heap, resident memory and thread count per connection.
+ * <p>
+ * Run one engine per JVM so the figures do not mix:
+ * <pre>
+ *   java -Xss1m -cp target/benchmarks.jar edu.seg2105.benchmarks.IdleCapacityProbe platform 10000
+ *   java -Xss1m -cp target/benchmarks.jar edu.seg2105.benchmarks.IdleCapacityProbe virtual 10000
+ *   java -Xss1m -cp target/benchmarks.jar edu.seg2105.benchmarks.IdleCapacityProbe nio 10000
+ * </pre>
+ * The virtual engine needs Java 21 or later; on an older JVM the probe
+ * stops at once rather than measuring platform threads under its name.
+ * Each connection uses two file descriptors (both ends live in this
+ * process), so raise "ulimit -n" above twice the client count.
+ * <p>
+ * Figures so far, from Java 17 on one core with 6 GB and a hard limit of
+ * 20000 descriptors, which keeps either engine below 10000 clients:
+ * <pre>
+ *   platform  5000 clients  10009 threads  heap  88 KB/client  RSS 206 KB/client
+ *   nio       8000 clients     10 threads  heap  10 KB/client  RSS  13 KB/client
+ * </pre>
+ * The virtual engine, and the 10000-client comparison with platform
+ * threads that it was added for, have not been measured: that needs a
+ * Java 21 JDK and a descriptor limit above 20000.
+ */
+public class IdleCapacityProbe {
+
+    /**
+     * Starts the probe.
+     *
+     * @param args args[0] is the engine name (default "virtual"), args[1]
+     *             the number of idle clients (default 10000) and args[2]
+     *             the port (default 5557).
+     */
+    public static void main(String[] args) throws Exception {
+        String engineName = args.length > 0 ? args[0] : ServerConfig.ENGINE_VIRTUAL;
+        int clients = args.length > 1 ? Integer.parseInt(args[1]) : 10000;
+        int port = args.length > 2 ? Integer.parseInt(args[2]) : 5557;
+
+        EchoServer server = new QuietEchoServer(port, engineName);
+        ServerEngine engine = server.getEngine();
+        engine.listen();
+
+        Snapshot before = Snapshot.take();
+        List<Socket> sockets = new ArrayList<Socket>(clients);
+        long start = System.nanoTime();
+        try {
+            for (int i = 0; i < clients; i++) {
+                sockets.add(openIdleClient(port, "idle-" + i));
+            }
+            long deadline = System.currentTimeMillis() + 60_000;
+            while (engine.getNumberOfClients() < clients && System.currentTimeMillis() < deadline) {
+                Thread.sleep(50);
+            }
+        } catch (IOException e) {
+            System.out.println("Stopped after " + sockets.size() + " clients: " + e.getMessage());
+        }
+        long elapsedMs = (System.nanoTime() - start) / 1_000_000;
+        Snapshot after = Snapshot.take();
+
+        int connected = engine.getNumberOfClients();
+        System.out.println("engine=" + engineName
+            + " connected=" + connected
+            + " setupMs=" + elapsedMs
+            + " threads=" + after.threads
+            + " heapDeltaMB=" + mb(after.heap - before.heap)
+            + " rssDeltaMB=" + mb(after.rss - before.rss)
+            + " heapPerClientB=" + perClient(after.heap - before.heap, connected)
+            + " rssPerClientB=" + perClient(after.rss - before.rss, connected));
+
+        for (Socket socket : sockets) {
+            socket.close();
+        }
+        engine.close();
+    }
+
+    /**
+     * Opens a socket that logs in with the OCSF wire format and then idles.
+     */
+    private static Socket openIdleClient(int port, String loginId) throws IOException {
+        Socket socket = new Socket("localhost", port);
+        SerializedMessageCodec codec = new SerializedMessageCodec();
+        OutputStream out = socket.getOutputStream();
+        write(out, codec.streamHeader());
+        write(out, codec.encode("#login " + loginId));
+        out.flush();
+        return socket;
+    }
+
+    private static void write(OutputStream out, ByteBuffer buffer) throws IOException {
+        out.write(buffer.array(), buffer.position(), buffer.remaining());
+    }
+
+    private static String mb(long bytes) {
+        return String.format("%.1f", bytes / (1024.0 * 1024.0));
+    }
+
+    private static long perClient(long bytes, int clients) {
+        return clients == 0 ? 0 : bytes / clients;
+    }
+
+    /**
+     * Memory and thread figures at one point in time.
+     */
+    private static final class Snapshot {
+        final long heap;
+        final long rss;
+        final int threads;
+
+        private Snapshot(long heap, long rss, int threads) {
+            this.heap = heap;
+            this.rss = rss;
+            this.threads = threads;
+        }
+
+        static Snapshot take() throws InterruptedException {
+            System.gc();
+            Thread.sleep(200);
+            Runtime runtime = Runtime.getRuntime();
+            return new Snapshot(runtime.totalMemory() - runtime.freeMemory(), residentBytes(),
+                ManagementFactory.getThreadMXBean().getThreadCount());
+        }
+
+        /**
+         * Reads the resident set size from /proc on Linux, or 0 elsewhere.
+         */
+        private static long residentBytes() {
+            try {
+                for (String line : Files.readAllLines(Paths.get("/proc/self/status"))) {
+                    if (line.startsWith("VmRSS:")) {
+                        return Long.parseLong(line.replaceAll("[^0-9]", "")) * 1024;
+                    }
+                }
+            } catch (IOException | NumberFormatException e) {
+                // Not on Linux
+            }
+            return 0;
+        }
+    }
+
+    /**
+     * An EchoServer that does not print per-client lines, which would
+     * dominate the run time at 10k clients.
+     */
+    private static final class QuietEchoServer extends EchoServer {
+        QuietEchoServer(int port, String engineName) {
+            super(port, engineName);
+        }
+
+        @Override
+        protected void clientConnected(ChatConnection client) {
+        }
+
+        @Override
+        protected void clientDisconnected(ChatConnection client) {
+        }
+
+        @Override
+        protected void handleMessageFromClient(Object msg, ChatConnection client) {
+            String message = msg.toString();
+            if (message.startsWith("#login ")) {
+                client.setInfo("loginId", message.substring(7).trim());
+            }
+        }
+    }
+}
@@ -0,0 +1,200 @@
+package edu.seg2105.benchmarks;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import edu.seg2105.client.backend.ChatClient;
+import edu.seg2105.edu.server.backend.EchoServer;
+
+/**
+ * A headless load test for a server on this machine.  It opens a number of
+ * ChatClients with distinct login IDs sharing one RecordingChatIF, has
+ * some of them send chat lines of a given size at a fixed total rate, and
+ * reports throughput and the delivery latency from each sender to every
+ * receiver.
+ * <p>
+ * Each line carries the time it was due to be sent rather than the time
+ * it was written, so a send that falls behind schedule shows up as
+ * latency instead of silently lowering the rate.  Sender and receivers
+ * share one clock because they share one process.
+ * <p>
+ * Usage: LoadGenerator [--option value]...
+ * <pre>
+ *   --port 5556        the server's port on localhost
+ *   --server ENGINE    start an EchoServer in this process on that engine
+ *                      (ocsf, nio, virtual or platform) instead of using a
+ *                      running ServerConsole
+ *   --protocol binary  the client protocol: binary or ocsf
+ *   --clients 100      connections, logged in as load-0, load-1, ...
+ *   --senders N        how many of them send (default all)
+ *   --rooms 1          spread the clients over this many rooms
+ *   --rate 1000        lines per second, across all senders
+ *   --size 64          bytes per line
+ *   --threads 1        threads pacing the senders
+ *   --warmup 5         seconds of sending before recording starts
+ *   --duration 30      seconds of recorded sending
+ * </pre>
+ * A ChatClient ends the process if its connection is lost, as it does
+ * for a console user.
+ */
+public final class LoadGenerator {
+
+    private final PrintStream out = System.out;
+    private final Map<String, String> options;
+    private final RecordingChatIF ui = new RecordingChatIF();
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder expected = new LongAdder();
+    private final LongAdder sendErrors = new LongAdder();
+    private ChatClient[] clients;
+    private int[] roomSizes;
+    private int rooms;
+
+    private LoadGenerator(Map<String, String> options) {
+        this.options = options;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<String, String>();
+        for (int i = 0; i < args.length; i++) {
+            if (!args[i].startsWith("--") || i + 1 == args.length) {
+                System.out.println("Usage: LoadGenerator [--option value]... (see the class comment)");
+                System.exit(1);
+            }
+            options.put(args[i].substring(2), args[++i]);
+        }
+        new LoadGenerator(options).run();
+        System.exit(0);
+    }
+
+    private void run() throws Exception {
+        int port = intOption("port", EchoServer.DEFAULT_PORT);
+        int clientCount = intOption("clients", 100);
+        int senders = Math.min(clientCount, intOption("senders", clientCount));
+        rooms = Math.max(1, intOption("rooms", 1));
+        double rate = Double.parseDouble(option("rate", "1000"));
+        int size = intOption("size", 64);
+        int threads = Math.max(1, Math.min(senders, intOption("threads", 1)));
+        long warmupNanos = TimeUnit.SECONDS.toNanos(intOption("warmup", 5));
+        long durationNanos = TimeUnit.SECONDS.toNanos(intOption("duration", 30));
+        String protocol = option("protocol", "binary");
+        System.setProperty("simplechat.protocol", protocol);
+
+        String engine = options.get("server");
+        if (engine != null) {
+            // The server's per-message console output would swamp the report
+            System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+            new EchoServer(port, engine).getEngine().listen();
+        }
+
+        connect(port, clientCount);
+
+        char[] padding = new char[Math.max(0, size - 20)];
+        Arrays.fill(padding, 'x');
+        String text = new String(padding);
+        long start = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100);
+        long recordFrom = start + warmupNanos;
+        long end = recordFrom + durationNanos;
+        ui.startRecording(recordFrom);
+
+        Thread[] pacers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            int first = t;
+            pacers[t] = new Thread(() -> pace(first, threads, senders, rate / threads, text,
+                start + first * (long) (1e9 / rate), recordFrom, end), "load-pacer-" + t);
+            pacers[t].start();
+        }
+        for (Thread pacer : pacers) {
+            pacer.join();
+        }
+        awaitDeliveries();
+
+        double seconds = durationNanos / 1e9;
+        out.printf("Load: clients=%d senders=%d rooms=%d rate=%.0f/s size=%dB duration=%.0fs protocol=%s%n",
+            clientCount, senders, rooms, rate, size, seconds, protocol);
+        out.printf("Sent %d lines (%.1f/s), %d send errors; delivered %d of %d (%.1f/s)%n",
+            sent.sum(), sent.sum() / seconds, sendErrors.sum(),
+            ui.delivered(), expected.sum(), ui.delivered() / seconds);
+        out.println("Delivery latency: " + ui.latency());
+    }
+
+    /**
+     * Opens and logs in the clients and puts them in their rooms.
+     */
+    private void connect(int port, int count) throws IOException, InterruptedException {
+        clients = new ChatClient[count];
+        roomSizes = new int[rooms];
+        for (int i = 0; i < count; i++) {
+            clients[i] = new ChatClient("load-" + i, "localhost", port, ui);
+            roomSizes[i % rooms]++;
+            if (rooms > 1) {
+                clients[i].sendToServer("#join load-" + i % rooms);
+            }
+        }
+        // Let the logins and joins settle before the warm-up starts
+        Thread.sleep(500);
+    }
+
+    /**
+     * Sends from every threads-th sender, starting at first, at a fixed
+     * rate until the end time.
+     */
+    private void pace(int first, int threads, int senders, double rate, String text,
+        long start, long recordFrom, long end) {
+        long interval = (long) (1e9 / rate);
+        int sender = first;
+        for (long due = start; due < end; due += interval) {
+            long wait = due - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            try {
+                clients[sender].sendToServer(RecordingChatIF.stamp(due, text));
+                if (due >= recordFrom) {
+                    sent.increment();
+                    expected.add(roomSizes[sender % rooms]);
+                }
+            } catch (IOException e) {
+                sendErrors.increment();
+            }
+            sender += threads;
+            if (sender >= senders) {
+                sender = first;
+            }
+        }
+    }
+
+    /**
+     * Waits until every recorded line has been delivered, or until
+     * deliveries stop for five seconds.
+     */
+    private void awaitDeliveries() throws InterruptedException {
+        long last = -1;
+        long idleSince = System.nanoTime();
+        while (ui.delivered() < expected.sum()) {
+            long delivered = ui.delivered();
+            if (delivered != last) {
+                last = delivered;
+                idleSince = System.nanoTime();
+            } else if (System.nanoTime() - idleSince > TimeUnit.SECONDS.toNanos(5)) {
+                return;
+            }
+            Thread.sleep(50);
+        }
+    }
+
+    private String option(String name, String defaultValue) {
+        String value = options.get(name);
+        return value != null ? value : defaultValue;
+    }
+
+    private int intOption(String name, int defaultValue) {
+        return Integer.parseInt(option(name, Integer.toString(defaultValue)));
+    }
+}
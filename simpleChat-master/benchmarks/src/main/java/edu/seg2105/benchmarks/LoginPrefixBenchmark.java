@@ -0,0 +1,50 @@
+package edu.seg2105.benchmarks;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.seg2105.client.common.BinaryMessageCodec;
+import edu.seg2105.client.common.ChatFrame;
+
+/**
+ * Building the "loginId: message" line EchoServer.handleMessageFromClient
+ * broadcasts, alone and followed by the one encoding the broadcast needs.
+ * The expression is copied from the server, so keep the two in step.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LoginPrefixBenchmark {
+
+    @Param({"hello", "a chat line of a more typical length, some sixty characters"})
+    public String message;
+
+    public String loginId = "bench-user";
+
+    private final BinaryMessageCodec codec = new BinaryMessageCodec();
+
+    @Benchmark
+    public String prefix() {
+        return loginId + ": " + message;
+    }
+
+    @Benchmark
+    public ByteBuffer prefixAndEncode() throws IOException {
+        return codec.encode(ChatFrame.of(loginId + ": " + message));
+    }
+}
@@ -0,0 +1,205 @@
+package edu.seg2105.benchmarks;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import edu.seg2105.client.common.BinaryMessageCodec;
+import edu.seg2105.client.common.ChatFrame;
+import edu.seg2105.client.common.MessageCodec;
+import edu.seg2105.client.common.SerializedMessageCodec;
+import edu.seg2105.edu.server.backend.EchoServer;
+import edu.seg2105.edu.server.backend.ServerEngine;
+
+/**
+ * An EchoServer on a free loopback port with a number of logged-in
+ * clients in the same room, all in this process.  The clients are raw
+ * sockets read by one selector thread that only counts the messages it
+ * decodes, so that what is measured is the server rather than ChatClient
+ * and its console.
+ * <p>
+ * The NIO engine is driven with binary-protocol clients and the
+ * thread-per-connection engines, which only speak Java serialization,
+ * with serialized ones.  The journal is disabled and the server's
+ * per-message console output is discarded while the fixture is open.
+ * Ten thousand clients need about 20000 file descriptors (ulimit -n).
+ */
+final class LoopbackChat implements Closeable {
+
+    private static final long TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(60);
+
+    private final PrintStream console = System.out;
+    private final ServerEngine engine;
+    private final boolean binary;
+    private final Selector selector;
+    private final List<SocketChannel> channels = new ArrayList<SocketChannel>();
+    private final AtomicLong received = new AtomicLong();
+    private final Thread reader;
+    private volatile boolean closed;
+
+    /**
+     * Starts a server and logs clients in to it.
+     *
+     * @param engineName The engine, as for simplechat.engine.
+     * @param clients The number of clients.
+     * @throws IOException If the server cannot start or a client cannot
+     *         connect.
+     */
+    LoopbackChat(String engineName, int clients) throws IOException {
+        System.setProperty("simplechat.journal.dir", "");
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        binary = "nio".equalsIgnoreCase(engineName);
+        engine = new EchoServer(freePort(), engineName).getEngine();
+        engine.listen();
+        selector = Selector.open();
+
+        InetSocketAddress address = new InetSocketAddress("127.0.0.1", engine.getPort());
+        for (int i = 0; i < clients; i++) {
+            SocketChannel channel = SocketChannel.open(address);
+            channel.socket().setTcpNoDelay(true);
+            MessageCodec codec = newCodec();
+            write(channel, codec.streamHeader());
+            write(channel, codec.encode(ChatFrame.of("#login bench-" + i)));
+            channel.configureBlocking(false);
+            channel.register(selector, SelectionKey.OP_READ, new Reader(codec));
+            channels.add(channel);
+        }
+        reader = new Thread(this::readLoop, "loopback-clients");
+        reader.setDaemon(true);
+        reader.start();
+
+        // Each client is told its login succeeded
+        awaitReceived(clients);
+        received.set(0);
+    }
+
+    /**
+     * Returns the number of messages the clients have received.
+     */
+    long received() {
+        return received.get();
+    }
+
+    /**
+     * Sends a chat line from one client.
+     *
+     * @param client The index of the sending client.
+     * @param encoded The line, encoded by encode(String).
+     */
+    void send(int client, ByteBuffer encoded) throws IOException {
+        write(channels.get(client), encoded.duplicate());
+    }
+
+    /**
+     * Encodes a line the way the clients send it.
+     */
+    ByteBuffer encode(String line) throws IOException {
+        return newCodec().encode(ChatFrame.of(line));
+    }
+
+    /**
+     * Spins until the clients have received a number of messages in
+     * total.
+     *
+     * @throws IOException If they do not within a minute.
+     */
+    void awaitReceived(long count) throws IOException {
+        long deadline = System.nanoTime() + TIMEOUT_NANOS;
+        while (received.get() < count) {
+            if (System.nanoTime() - deadline > 0) {
+                throw new IOException("Only " + received.get() + " of " + count + " messages arrived");
+            }
+            Thread.onSpinWait();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        try {
+            for (SocketChannel channel : channels) {
+                channel.close();
+            }
+            selector.wakeup();
+            engine.close();
+            reader.join();
+            selector.close();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            System.setOut(console);
+        }
+    }
+
+    private MessageCodec newCodec() {
+        return binary ? new BinaryMessageCodec() : new SerializedMessageCodec();
+    }
+
+    private void readLoop() {
+        List<Object> messages = new ArrayList<Object>();
+        try {
+            while (!closed) {
+                selector.select();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    Reader state = (Reader) key.attachment();
+                    SocketChannel channel = (SocketChannel) key.channel();
+                    if (channel.read(state.buffer) < 0) {
+                        key.cancel();
+                        continue;
+                    }
+                    state.buffer.flip();
+                    state.codec.decode(state.buffer, messages);
+                    state.buffer.compact();
+                    received.addAndGet(messages.size());
+                    messages.clear();
+                }
+            }
+        } catch (IOException e) {
+            if (!closed) {
+                e.printStackTrace(console);
+            }
+        }
+    }
+
+    private static void write(SocketChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.write(buffer) == 0) {
+                Thread.onSpinWait();
+            }
+        }
+    }
+
+    static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    /**
+     * The decoding state of one client.  The buffer is kept small for
+     * ten thousand clients, so lines must stay under a few kilobytes.
+     */
+    private static final class Reader {
+        final MessageCodec codec;
+        final ByteBuffer buffer = ByteBuffer.allocate(4 * 1024);
+
+        Reader(MessageCodec codec) {
+            this.codec = codec;
+        }
+    }
+}
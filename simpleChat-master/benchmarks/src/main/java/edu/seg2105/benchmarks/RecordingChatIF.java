@@ -0,0 +1,85 @@
+package edu.seg2105.benchmarks;
+
+import java.util.concurrent.atomic.LongAdder;
+
+import edu.seg2105.client.common.ChatIF;
+import edu.seg2105.client.common.LatencyHistogram;
+
+/**
+ * A ChatIF that prints nothing.  For every chat line stamped by
+ * LoadGenerator it records how long ago the line was meant to be sent;
+ * everything else the server says is only counted.  One instance may be
+ * shared by any number of ChatClients.
+ */
+final class RecordingChatIF implements ChatIF {
+
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final LongAdder delivered = new LongAdder();
+    private final LongAdder other = new LongAdder();
+    private volatile long recordFrom = Long.MAX_VALUE;
+
+    /**
+     * Records the lines sent from now on.  Lines sent before, during a
+     * warm-up, are only counted.
+     *
+     * @param nanoTime The System.nanoTime() from which to record.
+     */
+    void startRecording(long nanoTime) {
+        recordFrom = nanoTime;
+    }
+
+    /**
+     * Stamps a line with its intended send time.
+     *
+     * @param sendNanos The System.nanoTime() the line is due to be sent at.
+     * @param padding Text making up the rest of the line.
+     */
+    static String stamp(long sendNanos, String padding) {
+        return sendNanos + " " + padding;
+    }
+
+    @Override
+    public void display(String message) {
+        long now = System.nanoTime();
+        // Chat lines arrive as "loginId: <send time> <padding>"
+        int start = message.indexOf(": ");
+        int end = start < 0 ? -1 : message.indexOf(' ', start + 2);
+        if (end < 0) {
+            other.increment();
+            return;
+        }
+        long sent;
+        try {
+            sent = Long.parseLong(message, start + 2, end, 10);
+        } catch (NumberFormatException e) {
+            other.increment();
+            return;
+        }
+        if (sent >= recordFrom) {
+            delivered.increment();
+            latency.record(now - sent);
+        }
+    }
+
+    /**
+     * Returns the delivery latencies of the lines recorded.
+     */
+    LatencyHistogram latency() {
+        return latency;
+    }
+
+    /**
+     * Returns the number of recorded lines delivered, counting each
+     * receiver.
+     */
+    long delivered() {
+        return delivered.sum();
+    }
+
+    /**
+     * Returns the number of other messages received.
+     */
+    long otherMessages() {
+        return other.sum();
+    }
+}
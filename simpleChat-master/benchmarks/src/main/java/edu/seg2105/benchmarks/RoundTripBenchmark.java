@@ -0,0 +1,60 @@
+package edu.seg2105.benchmarks;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * End-to-end latency of one client sending a chat line and receiving it
+ * back from the server.  Sample-time mode reports the p50 to p99.99
+ * percentiles.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RoundTripBenchmark {
+
+    @Param({"nio", "platform"})
+    public String engine;
+
+    private LoopbackChat chat;
+    private ByteBuffer line;
+    private long expected;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        chat = new LoopbackChat(engine, 1);
+        line = chat.encode("ping");
+        expected = chat.received();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        chat.close();
+    }
+
+    @Benchmark
+    public long roundTrip() throws IOException {
+        expected++;
+        chat.send(0, line);
+        chat.awaitReceived(expected);
+        return expected;
+    }
+}
@@ -0,0 +1,240 @@
+package edu.seg2105.benchmarks;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import edu.seg2105.client.common.BinaryMessageCodec;
+import edu.seg2105.client.common.ChatFrame;
+import edu.seg2105.client.common.TlsConfig;
+import edu.seg2105.edu.server.backend.EchoServer;
+import edu.seg2105.edu.server.backend.ServerEngine;
+
+/**
+ * The cost of TLS on the NIO engine, against plaintext: how many clients
+ * per second can connect and log in, and how many chat lines per second
+ * one client can send and have echoed back.  "tls-full" forgets every
+ * session so that each connection makes a full handshake; "tls-resumed"
+ * lets reconnects resume, as ChatClient does.  The server's key is a
+ * self-signed certificate made with keytool for the run.
+ * <p>
+ * protocols and cipherSuites narrow what is offered, as
+ * simplechat.tls.protocols and simplechat.tls.cipherSuites do: for
+ * example -p cipherSuites=TLS_CHACHA20_POLY1305_SHA256.  JSSE resumes a
+ * TLS 1.3 session with a fresh key exchange, so resumption saves much
+ * more with -p protocols=TLSv1.2, whose resumed handshake has none.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TlsBenchmark {
+
+    private static final String PASSWORD = "benchmark";
+
+    @Param({"plain", "tls-full", "tls-resumed"})
+    public String transport;
+
+    @Param({""})
+    public String protocols;
+
+    @Param({""})
+    public String cipherSuites;
+
+    private final PrintStream console = System.out;
+    private final BinaryMessageCodec codec = new BinaryMessageCodec();
+    private Path keyDir;
+    private SSLContext context;
+    private ServerEngine engine;
+    private Client client;
+    private ByteBuffer line;
+    private int logins;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException, InterruptedException {
+        System.setProperty("simplechat.journal.dir", "");
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        if (!"plain".equals(transport)) {
+            keyDir = Files.createTempDirectory("simplechat-tls");
+            String keyStore = selfSignedKeyStore(keyDir).toString();
+            System.setProperty("simplechat.tls", "true");
+            System.setProperty("simplechat.tls.keyStore", keyStore);
+            System.setProperty("simplechat.tls.keyStorePassword", PASSWORD);
+            System.setProperty("simplechat.tls.trustStore", keyStore);
+            System.setProperty("simplechat.tls.trustStorePassword", PASSWORD);
+            System.setProperty("simplechat.tls.protocols", protocols);
+            System.setProperty("simplechat.tls.cipherSuites", cipherSuites);
+            context = TlsConfig.clientContext();
+        }
+        engine = new EchoServer(LoopbackChat.freePort(), "nio").getEngine();
+        engine.listen();
+        client = connect();
+        line = codec.encode(ChatFrame.of("ping"));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        try {
+            client.close();
+            engine.close();
+            if (keyDir != null) {
+                for (File file : keyDir.toFile().listFiles()) {
+                    file.delete();
+                }
+                Files.delete(keyDir);
+            }
+        } finally {
+            System.setOut(console);
+        }
+    }
+
+    /**
+     * Connects, logs in, waits for the server's reply and disconnects.
+     */
+    @Benchmark
+    public Object connectAndLogIn() throws IOException {
+        try (Client connected = connect()) {
+            return connected.reply;
+        }
+    }
+
+    /**
+     * Sends a chat line and waits for it to be echoed back.
+     */
+    @Benchmark
+    public Object roundTrip() throws IOException {
+        client.send(line.duplicate());
+        return client.receive();
+    }
+
+    /**
+     * Opens a connection and logs it in under a new ID.
+     */
+    private Client connect() throws IOException {
+        Socket socket;
+        if (context == null) {
+            socket = new Socket("127.0.0.1", engine.getPort());
+        } else {
+            SSLSocket tls = (SSLSocket) context.getSocketFactory().createSocket("127.0.0.1", engine.getPort());
+            tls.setTcpNoDelay(true);
+            tls.setSSLParameters(TlsConfig.parameters(context, true));
+            tls.startHandshake();
+            socket = tls;
+        }
+        socket.setTcpNoDelay(true);
+        Client connected = new Client(socket);
+        connected.send(codec.streamHeader());
+        connected.send(codec.encode(ChatFrame.of("#login tls-" + logins++)));
+        connected.reply = connected.receive();
+        if ("tls-full".equals(transport)) {
+            // The reply came after the session ticket, so it is cached by now
+            forgetSessions(context.getClientSessionContext());
+        }
+        return connected;
+    }
+
+    private static void forgetSessions(SSLSessionContext sessions) {
+        for (byte[] id : Collections.list(sessions.getIds())) {
+            if (sessions.getSession(id) != null) {
+                sessions.getSession(id).invalidate();
+            }
+        }
+    }
+
+    /**
+     * Makes a PKCS12 key store holding a new self-signed certificate for
+     * the loopback address.
+     */
+    private static Path selfSignedKeyStore(Path dir) throws IOException, InterruptedException {
+        Path keyStore = dir.resolve("server.p12");
+        Process keytool = new ProcessBuilder(
+            Paths.get(System.getProperty("java.home"), "bin", "keytool").toString(),
+            "-genkeypair", "-alias", "simplechat", "-keyalg", "EC", "-groupname", "secp256r1",
+            "-dname", "CN=localhost", "-ext", "SAN=dns:localhost,ip:127.0.0.1",
+            "-validity", "1", "-storetype", "PKCS12", "-keystore", keyStore.toString(),
+            "-storepass", PASSWORD)
+            .redirectErrorStream(true)
+            .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+            .start();
+        if (keytool.waitFor() != 0) {
+            throw new IOException("keytool failed with exit code " + keytool.exitValue());
+        }
+        return keyStore;
+    }
+
+    /**
+     * A blocking binary-protocol client.
+     */
+    private static final class Client implements Closeable {
+        final Socket socket;
+        final OutputStream output;
+        final InputStream input;
+        final BinaryMessageCodec codec = new BinaryMessageCodec();
+        final List<Object> messages = new ArrayList<Object>();
+        ByteBuffer buffer = ByteBuffer.allocate(16 * 1024);
+        Object reply;
+
+        Client(Socket socket) throws IOException {
+            this.socket = socket;
+            output = socket.getOutputStream();
+            input = socket.getInputStream();
+        }
+
+        void send(ByteBuffer frame) throws IOException {
+            output.write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+            output.flush();
+        }
+
+        Object receive() throws IOException {
+            while (messages.isEmpty()) {
+                int read = input.read(buffer.array(), buffer.position(), buffer.remaining());
+                if (read < 0) {
+                    throw new EOFException("Connection closed by server");
+                }
+                buffer.position(buffer.position() + read);
+                buffer.flip();
+                codec.decode(buffer, messages);
+                buffer.compact();
+            }
+            return messages.remove(0);
+        }
+
+        @Override
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+}
@@ -0,0 +1,242 @@
+package edu.seg2105.client.backend;
+
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+
+import edu.seg2105.client.common.BinaryMessageCodec;
+import edu.seg2105.client.common.CompressingMessageCodec;
+import edu.seg2105.client.common.FlushStats;
+import edu.seg2105.client.common.TlsConfig;
+
+/**
+ * The client side of the binary chat protocol.  It replaces the OCSF
+ * object streams when ChatClient runs in binary mode: it owns the socket,
+ * writes frames with BinaryMessageCodec and runs a reader thread that
+ * hands decoded frames back to the ChatClient, reporting closure and
+ * errors through the same hooks AbstractClient uses.
+ * <p>
+ * Frames are written into a buffer and flushed immediately by default.
+ * When simplechat.batch.maxDelayMicros is set, a flush is delayed by up to
+ * that long so that a burst of sends shares one write, unless
+ * simplechat.batch.maxBytes (default 64 KB) are already waiting.
+ * <p>
+ * Large frames are compressed once the server has agreed to it.
+ * <p>
+ * With simplechat.tls the socket is a TLS socket from the client's shared
+ * context, so a reconnect to the same server resumes the last session.
+ */
+final class BinaryClientConnection implements Runnable {
+
+    private final ChatClient client;
+    private final Socket socket;
+    private final OutputStream output;
+    private final BinaryMessageCodec codec = new BinaryMessageCodec();
+    private BinaryMessageCodec encoder = codec;
+    private final FlushStats flushStats = new FlushStats();
+    private final long maxDelayNanos =
+        Math.max(0, Long.getLong("simplechat.batch.maxDelayMicros", 0)) * 1000;
+    private final int maxBytes = Math.max(1, Integer.getInteger("simplechat.batch.maxBytes", 64 * 1024));
+    private int batchFrames;
+    private long batchBytes;
+    private volatile boolean readyToStop;
+
+    /**
+     * Runs the delayed flushes of every binary connection.
+     */
+    private static final class Flusher {
+        static final ScheduledExecutorService INSTANCE = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "binary-client-flusher");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Opens the socket, sends the protocol preamble and starts reading.
+     *
+     * @param client The client that receives messages and events.
+     * @param host The server to connect to.
+     * @param port The port number to connect on.
+     * @throws IOException If the connection cannot be opened.
+     */
+    BinaryClientConnection(ChatClient client, String host, int port) throws IOException {
+        this.client = client;
+        socket = TlsConfig.enabled() ? openTls(host, port) : new Socket(host, port);
+        socket.setTcpNoDelay(true);
+        output = new BufferedOutputStream(socket.getOutputStream(), Math.min(maxBytes, 1 << 20));
+        append(codec.streamHeader());
+        flushBatch();
+
+        Thread reader = new Thread(this, "binary-client-reader");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * Opens a TLS socket and completes its handshake, so that a server
+     * that cannot be trusted fails the connect.
+     */
+    private static SSLSocket openTls(String host, int port) throws IOException {
+        SSLContext context = TlsConfig.clientContext();
+        SSLSocket tls = (SSLSocket) context.getSocketFactory().createSocket(host, port);
+        try {
+            tls.setTcpNoDelay(true);
+            tls.setSSLParameters(TlsConfig.parameters(context, true));
+            tls.startHandshake();
+        } catch (IOException | RuntimeException e) {
+            tls.close();
+            throw e;
+        }
+        return tls;
+    }
+
+    /**
+     * Sends one message as a binary frame, flushing it now or within the
+     * batching delay.
+     *
+     * @param msg The message to send.
+     * @throws IOException If the write fails.
+     */
+    synchronized void send(Object msg) throws IOException {
+        append(encoder.encode(msg));
+        if (maxDelayNanos == 0 || batchBytes >= maxBytes) {
+            flushBatch();
+        } else if (batchFrames == 1) {
+            Flusher.INSTANCE.schedule(this::delayedFlush, maxDelayNanos, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * Reads compressed frames from now on.  Called when asking the server
+     * for compression: its first compressed frames may arrive in the same
+     * read as its reply.
+     */
+    void acceptCompressed() {
+        codec.acceptCompressed();
+    }
+
+    /**
+     * Compresses the large messages sent from now on, once the server has
+     * agreed to a mode.
+     *
+     * @param mode The agreed mode.
+     */
+    synchronized void compress(CompressingMessageCodec.Mode mode) {
+        encoder = new CompressingMessageCodec(mode);
+    }
+
+    /**
+     * Returns the counters of this connection's socket writes.
+     */
+    FlushStats flushStats() {
+        return flushStats;
+    }
+
+    /**
+     * Returns true while the socket is open.
+     */
+    boolean isConnected() {
+        return !socket.isClosed();
+    }
+
+    /**
+     * Flushes any batched frames and closes the socket.  As with AbstractClient.closeConnection, the
+     * client's connectionClosed hook is called.
+     */
+    void close() throws IOException {
+        readyToStop = true;
+        try {
+            flushBatch();
+        } catch (IOException e) {
+            // Closing anyway
+        }
+        try {
+            socket.close();
+        } finally {
+            client.connectionClosed();
+        }
+    }
+
+    @Override
+    public void run() {
+        ByteBuffer buffer = ByteBuffer.allocate(8 * 1024);
+        List<Object> messages = new ArrayList<Object>();
+        try {
+            InputStream input = socket.getInputStream();
+            while (true) {
+                int read = input.read(buffer.array(), buffer.position(), buffer.remaining());
+                if (read < 0) {
+                    throw new EOFException("Connection closed by server");
+                }
+                buffer.position(buffer.position() + read);
+                buffer.flip();
+                codec.decode(buffer, messages);
+                buffer.compact();
+                if (!buffer.hasRemaining()) {
+                    ByteBuffer larger = ByteBuffer.allocate(buffer.capacity() * 2);
+                    buffer.flip();
+                    larger.put(buffer);
+                    buffer = larger;
+                }
+                for (Object msg : messages) {
+                    client.handleMessageFromServer(msg);
+                }
+                messages.clear();
+            }
+        } catch (IOException e) {
+            if (!readyToStop) {
+                try {
+                    socket.close();
+                } catch (IOException ex) {
+                    // Already failing
+                }
+                client.connectionException(e);
+            }
+        }
+    }
+
+    private void append(ByteBuffer buffer) throws IOException {
+        output.write(buffer.array(), buffer.position(), buffer.remaining());
+        batchFrames++;
+        batchBytes += buffer.remaining();
+    }
+
+    private synchronized void flushBatch() throws IOException {
+        if (batchFrames == 0) {
+            return;
+        }
+        output.flush();
+        flushStats.recordFlush(batchFrames, batchBytes);
+        batchFrames = 0;
+        batchBytes = 0;
+    }
+
+    /**
+     * Flushes a batch whose delay has passed.  A failure closes the socket,
+     * which the reader thread then reports.
+     */
+    private void delayedFlush() {
+        try {
+            flushBatch();
+        } catch (IOException e) {
+            try {
+                socket.close();
+            } catch (IOException ex) {
+                // Already failing
+            }
+        }
+    }
+}
@@ -7,6 +7,8 @@ package edu.seg2105.client.backend;
 import ocsf.client.*;
 
 import java.io.*;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Consumer;
 
 import edu.seg2105.client.common.*;
 
@@ -22,6 +24,30 @@ import edu.seg2105.client.ui.ClientConsole;
  */
 public class ChatClient extends AbstractClient
 {
+  //Class variables *************************************************
+
+  /**
+   * The start of the server's reply to #compress when it agrees.
+   */
+  final private static String COMPRESSION_ENABLED = "Compression enabled: ";
+
+  /**
+   * The start of the server's notice that it is draining, followed by
+   * how long this client should wait before reconnecting.
+   */
+  final private static String RECONNECT_HINT = "Server restarting: reconnect in ";
+
+  /**
+   * The server's reply to #ping, which is not displayed.
+   */
+  final private static String PONG = "#pong";
+
+  /**
+   * The start of the server's notice naming the journal its sequence
+   * numbers come from, which is not displayed.
+   */
+  final private static String JOURNAL_ANNOUNCEMENT = "#journal ";
+
   //Instance variables **********************************************
   
   /**
@@ -35,6 +61,108 @@ public class ChatClient extends AbstractClient
    */
   private String loginId;
 
+  /**
+   * True to speak the compact binary protocol instead of OCSF object
+   * serialization (system property simplechat.protocol=binary).  TLS
+   * (simplechat.tls) is only carried by the binary connection, so it
+   * implies the binary protocol.
+   */
+  private final boolean binaryProtocol =
+    "binary".equalsIgnoreCase(System.getProperty("simplechat.protocol")) || TlsConfig.enabled();
+
+  /**
+   * The open binary-protocol connection, or null in OCSF mode.
+   */
+  private BinaryClientConnection binaryConnection;
+
+  /**
+   * True to reconnect after losing the server instead of terminating
+   * (system property simplechat.reconnect=true).
+   */
+  private final boolean reconnect = Boolean.getBoolean("simplechat.reconnect");
+
+  /**
+   * The longest wait before the first reconnect attempt, in milliseconds
+   * (simplechat.reconnect.baseMillis, default 500).  It doubles with
+   * every failed attempt.
+   */
+  private final long reconnectBaseMillis =
+    Math.max(1, Long.getLong("simplechat.reconnect.baseMillis", 500));
+
+  /**
+   * The cap on the wait between reconnect attempts, in milliseconds
+   * (simplechat.reconnect.maxMillis, default 30 s).
+   */
+  private final long reconnectMaxMillis =
+    Math.max(1, Long.getLong("simplechat.reconnect.maxMillis", 30 * 1000));
+
+  /**
+   * How many attempts are made before giving up, or 0 to keep trying
+   * (simplechat.reconnect.maxAttempts, default 0).
+   */
+  private final int reconnectMaxAttempts =
+    Math.max(0, Integer.getInteger("simplechat.reconnect.maxAttempts", 0));
+
+  /**
+   * The compression to ask the server for after logging in, or null for
+   * none (simplechat.compression: off, deflate or dictionary; default
+   * off).  Only the binary protocol compresses.
+   */
+  private final CompressingMessageCodec.Mode compression = compressionMode();
+
+  /**
+   * How often the server should hear from this client, in milliseconds,
+   * or 0 for no heartbeat (simplechat.heartbeat.intervalMillis, default
+   * 0).  The client pings a quiet server after one interval and gives
+   * the connection up after two.  Only servers that understand
+   * #heartbeat should be given one.
+   */
+  private final long heartbeatMillis =
+    Math.max(0, Long.getLong("simplechat.heartbeat.intervalMillis", 0));
+
+  /**
+   * When anything was last received from the server, by System.nanoTime().
+   */
+  private volatile long lastReceivedNanos = System.nanoTime();
+
+  /**
+   * When anything was last sent to the server, by System.nanoTime().
+   */
+  private volatile long lastSentNanos = System.nanoTime();
+
+  /**
+   * The highest sequence number of the chat lines received, or 0.  Only
+   * the binary protocol carries sequence numbers.
+   */
+  private volatile long lastSequence;
+
+  /**
+   * The ID of the server journal lastSequence belongs to, or null if the
+   * server has not named one.
+   */
+  private volatile String journalId;
+
+  /**
+   * The wait before the next reconnect attempt the server asked for when
+   * it drained, in milliseconds, or -1 to use the usual backoff.
+   */
+  private volatile long reconnectHintMillis = -1;
+
+  /**
+   * True while the user is disconnecting on purpose.
+   */
+  private volatile boolean loggingOff;
+
+  /**
+   * True while the reconnect thread is running.
+   */
+  private boolean reconnecting;
+
+  /**
+   * The console commands, by keyword.
+   */
+  private final CommandTable<Consumer<String>> commands = buildCommands();
+
   
   //Constructors ****************************************************
   
@@ -51,10 +179,16 @@ public class ChatClient extends AbstractClient
     super(host, port); // Call the superclass constructor
     this.clientUI = clientUI;
     this.loginId = loginId; // Store the login ID
-    openConnection();
+    connect();
     
     // Send #login <loginId> to the server after connection is opened
-    sendToServer("#login " + loginId);
+    login();
+    if (heartbeatMillis > 0)
+    {
+      Thread heartbeat = new Thread(this::heartbeatLoop, "chat-client-heartbeat");
+      heartbeat.setDaemon(true);
+      heartbeat.start();
+    }
   }
   
   /**
@@ -109,11 +243,67 @@ public class ChatClient extends AbstractClient
    */
   public void handleMessageFromServer(Object msg) 
   {
-    clientUI.display(msg.toString());
+    lastReceivedNanos = System.nanoTime();
+    if (msg instanceof ChatFrame && ((ChatFrame) msg).getSequence() > lastSequence)
+    {
+      // The highest: a #history reply repeats older lines
+      lastSequence = ((ChatFrame) msg).getSequence();
+    }
+    String text = msg.toString();
+    if (msg instanceof ChatFrame
+      && ((ChatFrame) msg).getType() == ChatFrame.SERVER_MESSAGE
+      && text.startsWith(JOURNAL_ANNOUNCEMENT))
+    {
+      String announced = text.substring(JOURNAL_ANNOUNCEMENT.length());
+      if (journalId != null && !journalId.equals(announced))
+      {
+        // A new journal numbers its lines from 1 again
+        lastSequence = 0;
+      }
+      journalId = announced;
+      return;
+    }
+    BinaryClientConnection connection = binaryConnection;
+    if (connection != null && msg instanceof ChatFrame
+      && ((ChatFrame) msg).getType() == ChatFrame.SERVER_MESSAGE
+      && text.startsWith(COMPRESSION_ENABLED))
+    {
+      // The server will read compressed frames: send them too
+      connection.compress(
+        CompressingMessageCodec.Mode.parse(text.substring(COMPRESSION_ENABLED.length())));
+    }
+    if (msg instanceof ChatFrame
+      && ((ChatFrame) msg).getType() == ChatFrame.SERVER_MESSAGE
+      && text.startsWith(RECONNECT_HINT))
+    {
+      reconnectHintMillis = parseHint(text.substring(RECONNECT_HINT.length()));
+    }
+    if (PONG.equals(text))
+    {
+      return;
+    }
+    clientUI.display(text);
     
     
   }
 
+  /**
+   * Returns the delay in a "reconnect in N ms" hint, or -1 if it is
+   * malformed.
+   */
+  private static long parseHint(String hint)
+  {
+    int space = hint.indexOf(' ');
+    try
+    {
+      return Math.max(0, Long.parseLong(space < 0 ? hint : hint.substring(0, space)));
+    }
+    catch (NumberFormatException e)
+    {
+      return -1;
+    }
+  }
+
   /**
    * This method handles all data coming from the UI            
    *
@@ -134,6 +324,191 @@ public class ChatClient extends AbstractClient
 	}
 
   
+  /**
+   * Sends a message to the server over whichever protocol is in use.
+   *
+   * @param msg The message to send.
+   */
+  @Override
+  public void sendToServer(Object msg) throws IOException
+  {
+    lastSentNanos = System.nanoTime();
+    if (binaryProtocol)
+    {
+      BinaryClientConnection connection = binaryConnection;
+      if (connection == null || !connection.isConnected())
+      {
+        throw new IOException("Not connected");
+      }
+      connection.send(msg);
+    }
+    else
+    {
+      super.sendToServer(msg);
+    }
+  }
+
+  /**
+   * Returns the write-batching counters of the binary connection, or null
+   * when the client uses the OCSF protocol, whose streams are flushed by
+   * the library after every message.
+   */
+  public FlushStats getFlushStats()
+  {
+    BinaryClientConnection connection = binaryConnection;
+    return connection != null ? connection.flushStats() : null;
+  }
+
+  /**
+   * Logs in on a fresh connection.  A client that has received numbered
+   * chat lines asks to resume after the last one, naming the journal it
+   * came from, so that the server sends only what it missed.
+   */
+  private void login() throws IOException
+  {
+    long since = lastSequence;
+    String journal = journalId;
+    sendToServer(since > 0
+      ? "#resume " + since + (journal != null ? "@" + journal : "") + " " + loginId
+      : "#login " + loginId);
+    BinaryClientConnection connection = binaryConnection;
+    if (connection != null && compression != null)
+    {
+      connection.acceptCompressed();
+      sendToServer("#compress " + compression.name().toLowerCase());
+    }
+    if (heartbeatMillis > 0)
+    {
+      sendToServer("#heartbeat " + heartbeatMillis);
+    }
+  }
+
+  /**
+   * Opens the connection to the server using the configured protocol.
+   */
+  private void connect() throws IOException
+  {
+    loggingOff = false;
+    lastReceivedNanos = System.nanoTime();
+    if (binaryProtocol)
+    {
+      binaryConnection = new BinaryClientConnection(this, getHost(), getPort());
+    }
+    else
+    {
+      openConnection();
+    }
+  }
+
+  /**
+   * Closes the connection to the server.
+   */
+  private void disconnect() throws IOException
+  {
+    loggingOff = true;
+    if (binaryProtocol)
+    {
+      // Cleared first: close() calls connectionClosed, which may quit and
+      // come back here
+      BinaryClientConnection connection = binaryConnection;
+      binaryConnection = null;
+      if (connection != null)
+      {
+        connection.close();
+      }
+    }
+    else
+    {
+      closeConnection();
+    }
+  }
+
+  /**
+   * Returns true if the client is connected to the server.
+   */
+  private boolean connected()
+  {
+    if (binaryProtocol)
+    {
+      return binaryConnection != null && binaryConnection.isConnected();
+    }
+    return isConnected();
+  }
+
+  /**
+   * Keeps the connection checked while the client runs.  After an interval
+   * in which nothing was sent or nothing received it sends #ping, which
+   * keeps this client inside the heartbeat it promised the server and
+   * which the server answers.  After two intervals with nothing from the
+   * server it closes the connection as dead, which reconnects if that is
+   * enabled.
+   */
+  private void heartbeatLoop()
+  {
+    try
+    {
+      while (true)
+      {
+        Thread.sleep(Math.max(1, heartbeatMillis / 2));
+        if (loggingOff || !connected())
+        {
+          continue;
+        }
+        long now = System.nanoTime();
+        long silentMillis = (now - lastReceivedNanos) / 1000000;
+        long quietMillis = (now - lastSentNanos) / 1000000;
+        if (silentMillis >= 2 * heartbeatMillis)
+        {
+          clientUI.display("Server stopped responding.");
+          closeDead();
+        }
+        else if (silentMillis >= heartbeatMillis || quietMillis >= heartbeatMillis)
+        {
+          try
+          {
+            sendToServer("#ping");
+          }
+          catch (IOException e)
+          {
+            // The reader reports the broken connection
+          }
+        }
+      }
+    }
+    catch (InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Closes a connection the server has stopped answering on, without
+   * logging off, so that connectionClosed reconnects or terminates as
+   * configured.
+   */
+  private void closeDead()
+  {
+    try
+    {
+      if (binaryProtocol)
+      {
+        BinaryClientConnection connection = binaryConnection;
+        if (connection != null)
+        {
+          connection.close();
+        }
+      }
+      else
+      {
+        closeConnection();
+      }
+    }
+    catch (IOException e)
+    {
+      // Closed regardless
+    }
+  }
+
   /**
    * This method terminates the client.
    */
@@ -142,7 +517,7 @@ public class ChatClient extends AbstractClient
   {
     try
     {
-      closeConnection();
+      disconnect();
     }
     catch(IOException e) {}
     System.exit(0);
@@ -156,6 +531,11 @@ public class ChatClient extends AbstractClient
   
   @Override
   protected void connectionClosed() {
+      if (reconnect && !loggingOff) {
+          clientUI.display("Connection to server closed. Reconnecting...");
+          reconnectLater();
+          return;
+      }
       clientUI.display("Server has shut down."); // Notifies the user that the server is no longer connected
       quit(); // Terminates the client
   }
@@ -171,8 +551,77 @@ public class ChatClient extends AbstractClient
   @Override
   protected void connectionException(Exception exception) {
       clientUI.display("Server connection error: " + exception.getMessage()); // Displays a message specifying the exception that occurred 
+      if (reconnect && !loggingOff) {
+          clientUI.display("Reconnecting...");
+          reconnectLater();
+          return;
+      }
       quit(); // Terminates the client
   }
+
+  /**
+   * Starts the reconnect thread unless it is already running.
+   */
+  private void reconnectLater() {
+      synchronized (this) {
+          if (reconnecting) {
+              return;
+          }
+          reconnecting = true;
+      }
+      Thread thread = new Thread(this::reconnectLoop, "chat-client-reconnect");
+      thread.setDaemon(true);
+      thread.start();
+  }
+
+  /**
+   * Tries to reconnect and resume until it works, the user logs off or
+   * the attempts run out.  Each wait is random between zero and a cap
+   * that doubles per attempt ("full jitter"), so that the clients of a
+   * restarted server spread their reconnects out instead of arriving
+   * together, and a server that stays down costs each client at most one
+   * attempt per maximum delay.  A draining server assigns each client
+   * its own first wait instead, which is used once.
+   */
+  private void reconnectLoop() {
+      try {
+          for (int attempt = 0; reconnectMaxAttempts == 0 || attempt < reconnectMaxAttempts; attempt++) {
+              long hint = reconnectHintMillis;
+              reconnectHintMillis = -1;
+              long cap = Math.min(reconnectMaxMillis, reconnectBaseMillis << Math.min(attempt, 30));
+              Thread.sleep(hint >= 0 ? hint : ThreadLocalRandom.current().nextLong(cap + 1));
+              if (loggingOff) {
+                  break;
+              }
+              try {
+                  if (!connected()) {
+                      connect();
+                  }
+                  login();
+              } catch (IOException e) {
+                  continue;
+              }
+              // Checked under the lock so that a connection lost from here
+              // on starts a new reconnect thread
+              synchronized (this) {
+                  if (connected()) {
+                      reconnecting = false;
+                      clientUI.display("Reconnected to server.");
+                      return;
+                  }
+              }
+          }
+      } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+      }
+      synchronized (this) {
+          reconnecting = false;
+      }
+      if (!loggingOff) {
+          clientUI.display("Could not reconnect to server. Terminating client.");
+          quit();
+      }
+  }
   
   /**
    * This method processes client commands that start with '#'.
@@ -181,76 +630,149 @@ public class ChatClient extends AbstractClient
    * - #logoff: Disconnect from the server without exiting the client
    * - #sethost <host>: Set a new host (only allowed if disconnected)
    * - #setport <port>: Set a new port (only allowed if disconnected)
-   * - #login: Reconnect to the server if currently disconnected
+   * - #login: Reconnect to the server if currently disconnected, resuming
+   *   after the last chat line received
    * - #gethost: Display the current host
    * - #getport: Display the current port
+   * - #join <room>: Move to a chat room (sent to the server)
+   * - #leave: Return to the lobby (sent to the server)
+   * - #who: List the users in the current room (sent to the server)
+   * - #history [<n>]: Show the last n lines of the current room, 20 by
+   *   default (sent to the server)
+   * - #msg <loginId> <message>: Send a private message (sent to the server)
    *
    * @param message The command to process.
    */
   private void processCommand(String message) {
-      // Handle the #quit command to disconnect and exit the client
-      if (message.equalsIgnoreCase("#quit")) {
-          quit(); // Calls quit to close the connection and exit the client
+      Consumer<String> command = commands.lookup(message);
+      if (command == null) {
+          clientUI.display("Unknown command."); // Show message for unknown commands
+          return;
       }
-      // Handle the #logOff command to disconnect from the server without exiting
-      else if (message.equalsIgnoreCase("#logoff")) {
-          try {
-              closeConnection(); // Disconnect from the server
-              clientUI.display("Logged off from the server.");
-          } catch (IOException e) {
-              clientUI.display("Error disconnecting from server."); // Notify the user if disconnect fails
-          }
+      command.accept(message);
+  }
+
+  /**
+   * Builds the table of console commands.  Each handler is given the
+   * whole command, since some are passed on to the server as typed.
+   */
+  private CommandTable<Consumer<String>> buildCommands() {
+      return new CommandTable<Consumer<String>>()
+          .register("#quit", message -> quit())
+          .register("#logoff", message -> logOff())
+          .register("#sethost", this::setHostCommand)
+          .register("#setport", this::setPortCommand)
+          .register("#login", message -> logInAgain())
+          .register("#gethost", message -> clientUI.display("Current host: " + getHost()))
+          .register("#getport", message -> clientUI.display("Current port: " + getPort()))
+          .register("#join", this::forward)
+          .register("#leave", this::forward)
+          .register("#who", this::forward)
+          .register("#history", this::forward)
+          .register("#msg", this::sendPrivate);
+  }
+
+  /**
+   * Handles #logoff: disconnects from the server without exiting.
+   */
+  private void logOff() {
+      try {
+          disconnect(); // Disconnect from the server
+          clientUI.display("Logged off from the server.");
+      } catch (IOException e) {
+          clientUI.display("Error disconnecting from server."); // Notify the user if disconnect fails
       }
-      // Handle the #setHost command to set a new host if disconnected
-      else if (message.startsWith("#sethost ")) {
-          if (!isConnected()) { // Check if disconnected
-              setHost(message.substring(9)); // Update the host address to the specified value
-              clientUI.display("Host set to: " + getHost());
-          } else {
-              clientUI.display("Error: Cannot change host while connected."); // Show error if client is connected
-          }
+  }
+
+  /**
+   * Handles #sethost: sets a new host if disconnected.
+   */
+  private void setHostCommand(String message) {
+      String host = CommandTable.arguments(message);
+      if (host.isEmpty()) {
+          clientUI.display("Usage: #sethost <host>");
+      } else if (!connected()) { // Check if disconnected
+          setHost(host); // Update the host address to the specified value
+          clientUI.display("Host set to: " + getHost());
+      } else {
+          clientUI.display("Error: Cannot change host while connected."); // Show error if client is connected
       }
-      // Handle the #setPort command to set a new port if disconnected
-      else if (message.startsWith("#setport ")) {
-          if (!isConnected()) { // Check if disconnected
-              try {
-                  setPort(Integer.parseInt(message.substring(9))); // Update the port number to the specified value
-                  clientUI.display("Port set to: " + getPort());
-              } catch (NumberFormatException e) {
-                  clientUI.display("Invalid port number.");
-              }
-          } else {
-              clientUI.display("Error: Cannot change port while connected."); // Show error if client is connected
+  }
+
+  /**
+   * Handles #setport: sets a new port if disconnected.
+   */
+  private void setPortCommand(String message) {
+      if (!connected()) { // Check if disconnected
+          try {
+              setPort(Integer.parseInt(CommandTable.arguments(message))); // Update the port number to the specified value
+              clientUI.display("Port set to: " + getPort());
+          } catch (NumberFormatException e) {
+              clientUI.display("Invalid port number.");
           }
+      } else {
+          clientUI.display("Error: Cannot change port while connected."); // Show error if client is connected
       }
-      // Handle the #login command to reconnect to the server if disconnected
-      else if (message.equalsIgnoreCase("#login")) {
-          if (!isConnected()) {
-              try {
-                  openConnection(); // Reconnect to the server
-                  clientUI.display("Logged in to the server.");
-              } catch (IOException e) {
-                  clientUI.display("Error connecting to server."); // Notify the user if connection fails
-              }
-          } else {
-              clientUI.display("Error: Already connected."); // Show error if client is already connected
+  }
+
+  /**
+   * Handles #login: reconnects to the server if disconnected.
+   */
+  private void logInAgain() {
+      if (!connected()) {
+          try {
+              connect(); // Reconnect to the server
+              login();
+              clientUI.display("Logged in to the server.");
+          } catch (IOException e) {
+              clientUI.display("Error connecting to server."); // Notify the user if connection fails
           }
+      } else {
+          clientUI.display("Error: Already connected."); // Show error if client is already connected
       }
-      // Handle the #getHost command to display the current host address
-      else if (message.equalsIgnoreCase("#gethost")) {
-          clientUI.display("Current host: " + getHost()); // Display the current host value
-      }
-      // Handle the #getPort command to display the current port number
-      else if (message.equalsIgnoreCase("#getport")) {
-          clientUI.display("Current port: " + getPort()); // Display the current port value
+  }
+
+  /**
+   * Handles #msg, a private message the server routes to one user.
+   */
+  private void sendPrivate(String message) {
+      String[] parts = CommandTable.arguments(message).split(" ", 2);
+      if (parts.length < 2 || parts[0].isEmpty() || parts[1].trim().isEmpty()) {
+          clientUI.display("Usage: #msg <loginId> <message>");
+      } else {
+          forward(message);
       }
-      // Handle any unrecognized command
-      else {
-          clientUI.display("Unknown command."); // Show message for unknown commands
+  }
+
+  /**
+   * Passes a command the server carries out on to it as typed.
+   */
+  private void forward(String message) {
+      try {
+          sendToServer(message);
+      } catch (IOException e) {
+          clientUI.display("Could not send command to server.");
       }
   }
   
   
+  //Class methods ***************************************************
 
+  /**
+   * Returns the compression mode named by simplechat.compression, or null
+   * if it is unset, "off" or unknown.
+   */
+  private static CompressingMessageCodec.Mode compressionMode()
+  {
+    String name = System.getProperty("simplechat.compression", "off");
+    try
+    {
+      return "off".equalsIgnoreCase(name.trim()) ? null : CompressingMessageCodec.Mode.parse(name);
+    }
+    catch (IllegalArgumentException e)
+    {
+      return null;
+    }
+  }
 }
 //End of ChatClient class
@@ -0,0 +1,247 @@
+package edu.seg2105.client.common;
+
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Console output written by one background thread, so that a slow
+ * terminal or a redirected stdout does not hold up the thread printing.
+ * Lines go into a fixed-size lock-free ring buffer; the writer drains
+ * whatever has accumulated and writes it to System.out as one large write
+ * of up to 64K characters followed by a single flush.
+ * <p>
+ * The ring holds simplechat.console.buffer lines (default 65536, rounded
+ * up to a power of two).  When it is full, simplechat.console.overflow
+ * decides: "block" (the default) waits for room, so no line is lost;
+ * "drop" discards the line and counts it.
+ * <p>
+ * Lines logged before the process exits are written by a shutdown hook
+ * that waits up to a second for the writer to catch up.
+ */
+public final class AsyncConsole
+{
+  //Class variables *************************************************
+
+  /**
+   * What to do with a line when the ring is full.
+   */
+  public enum Overflow
+  {
+    BLOCK, DROP
+  }
+
+  /**
+   * The most characters written to System.out at once.
+   */
+  final private static int BATCH_CHARS = 64 * 1024;
+
+  /**
+   * The process's console, started on first use.
+   */
+  private static final class Shared
+  {
+    static final AsyncConsole INSTANCE = new AsyncConsole(
+      Integer.getInteger("simplechat.console.buffer", 64 * 1024),
+      "drop".equalsIgnoreCase(System.getProperty("simplechat.console.overflow"))
+        ? Overflow.DROP : Overflow.BLOCK);
+
+    static
+    {
+      Runtime.getRuntime().addShutdownHook(
+        new Thread(() -> INSTANCE.flush(1000), "console-flush"));
+    }
+  }
+
+  //Instance variables **********************************************
+
+  private final AtomicReferenceArray<String> slots;
+  private final int mask;
+  private final Overflow overflow;
+
+  /**
+   * The next slot a producer will claim.
+   */
+  private final AtomicLong tail = new AtomicLong();
+
+  /**
+   * The next slot the writer will read; written only by the writer.
+   */
+  private volatile long head;
+
+  /**
+   * Every line before this one has been written to System.out.
+   */
+  private volatile long written;
+
+  /**
+   * True while the writer is parked waiting for lines.
+   */
+  private volatile boolean idle;
+
+  private final LongAdder dropped = new LongAdder();
+  private final Thread writer;
+
+  //Constructors ****************************************************
+
+  /**
+   * Creates a console and starts its writer thread.
+   *
+   * @param capacity The number of lines the ring holds.
+   * @param overflow What to do with a line when the ring is full.
+   */
+  AsyncConsole(int capacity, Overflow overflow)
+  {
+    int size = Integer.highestOneBit(Math.max(2, Math.min(capacity, 1 << 30)) * 2 - 1);
+    this.slots = new AtomicReferenceArray<String>(size);
+    this.mask = size - 1;
+    this.overflow = overflow;
+    writer = new Thread(this::drain, "console-writer");
+    writer.setDaemon(true);
+    writer.start();
+  }
+
+  //Instance methods ************************************************
+
+  /**
+   * Queues a line for System.out.
+   *
+   * @param line The line, without its line separator.
+   * @return false if the line was dropped because the ring was full.
+   */
+  public boolean println(String line)
+  {
+    long slot;
+    int waits = 0;
+    while (true)
+    {
+      slot = tail.get();
+      if (slot - head > mask)
+      {
+        if (overflow == Overflow.DROP)
+        {
+          dropped.increment();
+          return false;
+        }
+        if (idle)
+        {
+          LockSupport.unpark(writer);
+        }
+        if (++waits < 100)
+        {
+          Thread.onSpinWait();
+        }
+        else
+        {
+          LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(100));
+        }
+      }
+      else if (tail.compareAndSet(slot, slot + 1))
+      {
+        break;
+      }
+    }
+    // A volatile store, so that the writer cannot park after missing it
+    slots.set((int) slot & mask, String.valueOf(line));
+    if (idle)
+    {
+      LockSupport.unpark(writer);
+    }
+    return true;
+  }
+
+  /**
+   * Returns the number of lines dropped because the ring was full.
+   */
+  public long dropped()
+  {
+    return dropped.sum();
+  }
+
+  /**
+   * Waits for the lines queued so far to be written.
+   *
+   * @param millis The longest to wait.
+   * @return true if they were all written in time.
+   */
+  public boolean flush(long millis)
+  {
+    long target = tail.get();
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+    while (written < target)
+    {
+      if (System.nanoTime() - deadline >= 0)
+      {
+        return false;
+      }
+      LockSupport.unpark(writer);
+      LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+    }
+    return true;
+  }
+
+  /**
+   * The writer's loop: takes every line published so far, in order, and
+   * writes them in batches, parking when there is nothing to write.
+   */
+  private void drain()
+  {
+    StringBuilder batch = new StringBuilder(BATCH_CHARS + 1024);
+    String separator = System.lineSeparator();
+    long next = head;
+    while (true)
+    {
+      int index = (int) next & mask;
+      String line = slots.get(index);
+      if (line != null)
+      {
+        slots.lazySet(index, null);
+        head = ++next;
+        batch.append(line).append(separator);
+        if (batch.length() < BATCH_CHARS)
+        {
+          continue;
+        }
+      }
+      if (batch.length() > 0)
+      {
+        write(batch);
+        written = next;
+        continue;
+      }
+      // Nothing published: park, unless a line arrived as we went idle
+      idle = true;
+      if (slots.get(index) == null)
+      {
+        LockSupport.park(this);
+      }
+      idle = false;
+    }
+  }
+
+  /**
+   * Writes and clears a batch.  System.out is looked up each time so that
+   * a later System.setOut is honoured.
+   */
+  private static void write(StringBuilder batch)
+  {
+    PrintStream out = System.out;
+    out.print(batch);
+    out.flush();
+    batch.setLength(0);
+  }
+
+  //Class methods ***************************************************
+
+  /**
+   * Returns the process's console.
+   */
+  public static AsyncConsole out()
+  {
+    return Shared.INSTANCE;
+  }
+}
+//End of AsyncConsole class
@@ -0,0 +1,586 @@
+package edu.seg2105.client.common;
+
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * The compact binary chat protocol.  After a four byte preamble sent by
+ * each side, every message is one frame:
+ * <pre>
+ *   [type: 1 byte][length: unsigned varint][payload: UTF-8 text]
+ * </pre>
+ * where type is one of the ChatFrame constants.  A frame that carries a
+ * sequence number has the high bit of its type set and the number, as an
+ * unsigned varint, between the type and the length.  A frame whose
+ * payload is compressed has bit 0x40 of its type set, and its payload is
+ * the text's UTF-8 length as an unsigned varint followed by the text in
+ * zlib format (see CompressingMessageCodec, which writes them once the
+ * peer has asked for it).  A codec only reads compressed frames once
+ * acceptCompressed() has been called for its connection, and only up to
+ * MAX_INFLATED_BYTES of text, so a peer cannot make it inflate a large
+ * buffer before compression was negotiated.  There are no class
+ * descriptors, handles or reflection involved, unlike the serialized
+ * OCSF format.
+ * <p>
+ * decode() turns each frame into a ChatFrame; decodeNext() instead points
+ * a FrameView at the frame where it lies in the buffer, for a server that
+ * routes a line without decoding its text, and chat() turns such a frame
+ * into the line broadcast for it by copying its bytes.
+ * <p>
+ * The first preamble byte differs from the first byte of a Java
+ * serialization stream, which is how a server tells binary clients from
+ * legacy ones at connect time.
+ */
+public class BinaryMessageCodec implements MessageCodec
+{
+  //Class variables *************************************************
+
+  /**
+   * The bytes each side sends before its first frame: "SCB" and the
+   * protocol version.  Version 2 added sequence numbers.
+   */
+  final private static byte[] PREAMBLE = {'S', 'C', 'B', 2};
+
+  /**
+   * The type bit that marks a frame carrying a sequence number.
+   */
+  final private static int SEQUENCED = 0x80;
+
+  /**
+   * The type bit that marks a frame with a compressed payload.
+   */
+  final static int COMPRESSED = 0x40;
+
+  /**
+   * The first byte of the preamble.
+   */
+  final public static byte FIRST_BYTE = PREAMBLE[0];
+
+  /**
+   * The largest payload accepted from a peer, in bytes.
+   */
+  final public static int MAX_PAYLOAD_BYTES = 16 * 1024 * 1024;
+
+  /**
+   * The largest text a compressed payload may inflate to, in bytes.
+   */
+  final public static int MAX_INFLATED_BYTES = 1024 * 1024;
+
+  //Instance variables **********************************************
+
+  /**
+   * Whether the peer's preamble has been consumed.
+   */
+  private boolean preambleRead;
+
+  /**
+   * Whether compressed frames are read, which they are once the
+   * connection has negotiated compression.  Set by the thread handling
+   * #compress, read by the one decoding.
+   */
+  private volatile boolean compressedAccepted;
+
+  /**
+   * Inflates compressed payloads, created on the first one.
+   */
+  private Inflater inflater;
+
+  /**
+   * The view decode() reads each frame into, created on first use.
+   */
+  private FrameView scratch;
+
+  //Instance methods ************************************************
+
+  /**
+   * Reads compressed frames from now on.  Called once this side has
+   * asked for compression, or agreed to it.
+   */
+  public void acceptCompressed()
+  {
+    compressedAccepted = true;
+  }
+
+  @Override
+  public ByteBuffer streamHeader()
+  {
+    return ByteBuffer.wrap(PREAMBLE.clone());
+  }
+
+  @Override
+  public ByteBuffer encode(Object msg) throws IOException
+  {
+    ChatFrame frame = ChatFrame.of(msg);
+    if (frame.encoded() != null && frame.getSequence() == 0)
+    {
+      return ByteBuffer.wrap(frame.encoded());
+    }
+    ByteBuffer buffer = ByteBuffer.allocate(encodedLength(frame));
+    encode(frame, buffer);
+    buffer.flip();
+    return buffer;
+  }
+
+  @Override
+  public void decode(ByteBuffer in, List<Object> out) throws IOException
+  {
+    FrameView view = scratch;
+    if (view == null)
+    {
+      view = new FrameView();
+      scratch = view;
+    }
+    while (decodeNext(in, view))
+    {
+      out.add(view.toFrame());
+    }
+  }
+
+  /**
+   * Decodes the next frame in place: the view is pointed at its text in
+   * the buffer, which is not copied.  Reads the preamble first if it has
+   * not been read yet.  A compressed frame's text is inflated into an
+   * array of its own, which the view points at instead.
+   *
+   * @param in The buffer, positioned at the next frame.
+   * @param view The view to point at the frame.
+   * @return true if a frame was decoded, and the buffer moved past it;
+   *         false if the buffer does not hold a whole one yet, and the
+   *         buffer's position is unchanged.
+   * @throws IOException If the data is not valid protocol.
+   */
+  public boolean decodeNext(ByteBuffer in, FrameView view) throws IOException
+  {
+    if (!preambleRead)
+    {
+      if (in.remaining() < PREAMBLE.length)
+      {
+        return false;
+      }
+      for (byte expected : PREAMBLE)
+      {
+        if (in.get() != expected)
+        {
+          throw new StreamCorruptedException("Invalid binary protocol preamble");
+        }
+      }
+      preambleRead = true;
+    }
+
+    if (!in.hasRemaining())
+    {
+      return false;
+    }
+    int start = in.position();
+    byte type = in.get();
+    boolean compressed = (type & COMPRESSED) != 0;
+    type &= ~COMPRESSED;
+    long sequence = 0;
+    if ((type & SEQUENCED) != 0)
+    {
+      type &= ~SEQUENCED;
+      sequence = getVarlong(in);
+      if (sequence < 0)
+      {
+        in.position(start);
+        return false;
+      }
+    }
+    int length = getVarint(in);
+    if (length < 0 || in.remaining() < length)
+    {
+      in.position(start);
+      return false;
+    }
+    if (type < ChatFrame.LOGIN || type > ChatFrame.SERVER_MESSAGE)
+    {
+      throw new StreamCorruptedException("Unknown frame type: " + type);
+    }
+    if (compressed)
+    {
+      if (!compressedAccepted)
+      {
+        throw new StreamCorruptedException("Compressed frame before compression was negotiated");
+      }
+      byte[] text = inflate(in, length);
+      view.set(type, sequence, ByteBuffer.wrap(text), 0, text.length);
+    }
+    else
+    {
+      view.set(type, sequence, in, in.position(), length);
+      in.position(in.position() + length);
+    }
+    return true;
+  }
+
+  /**
+   * Reads a compressed payload and returns its text as UTF-8.  The text
+   * is inflated into a buffer that grows with what actually comes out,
+   * not one of the size the peer declares.
+   *
+   * @param in The buffer, positioned at the payload.
+   * @param length The payload's length.
+   * @throws StreamCorruptedException If the payload declares more than
+   *         MAX_INFLATED_BYTES, or does not inflate to exactly the length
+   *         it declares.
+   */
+  private byte[] inflate(ByteBuffer in, int length) throws StreamCorruptedException
+  {
+    int end = in.position() + length;
+    int textLength = getVarint(in);
+    if (textLength < 0 || in.position() > end)
+    {
+      throw new StreamCorruptedException("Malformed compressed frame");
+    }
+    if (textLength > MAX_INFLATED_BYTES)
+    {
+      throw new StreamCorruptedException("Compressed frame too large: " + textLength);
+    }
+    long start = System.nanoTime();
+    if (inflater == null)
+    {
+      inflater = new Inflater();
+    }
+    byte[] text = new byte[Math.min(textLength, Math.max(256, 4 * length))];
+    int inflated = 0;
+    try
+    {
+      inflater.setInput(in.slice(in.position(), end - in.position()));
+      while (inflated < textLength)
+      {
+        if (inflated == text.length)
+        {
+          text = Arrays.copyOf(text, (int) Math.min(textLength, 2L * text.length));
+        }
+        int n = inflater.inflate(text, inflated, text.length - inflated);
+        if (n == 0)
+        {
+          if (!inflater.needsDictionary())
+          {
+            break; // Finished early, or out of input
+          }
+          inflater.setDictionary(CompressingMessageCodec.DICTIONARY);
+        }
+        inflated += n;
+      }
+      if (inflated != textLength || !inflater.finished())
+      {
+        throw new StreamCorruptedException("Compressed frame does not match its length");
+      }
+    }
+    catch (DataFormatException | IllegalArgumentException e)
+    {
+      // IllegalArgumentException: the frame names a dictionary we do not have
+      throw new StreamCorruptedException("Corrupt compressed frame: " + e.getMessage());
+    }
+    finally
+    {
+      inflater.reset();
+    }
+    in.position(end);
+    CompressingMessageCodec.stats().recordInflate(System.nanoTime() - start);
+    // Never longer than the text: the buffer only grows up to textLength
+    return text;
+  }
+
+  //Class methods ***************************************************
+
+  /**
+   * Returns the number of bytes encode produces for a frame.
+   *
+   * @param frame The frame.
+   */
+  public static int encodedLength(ChatFrame frame)
+  {
+    int payload = payloadLength(frame);
+    long sequence = frame.getSequence();
+    return 1 + (sequence > 0 ? varintSize(sequence) : 0) + varintSize(payload) + payload;
+  }
+
+  /**
+   * Writes a frame at the buffer's position, encoding its text straight
+   * into the buffer.  The buffer must have encodedLength(frame) bytes
+   * remaining.
+   *
+   * @param frame The frame.
+   * @param out The buffer to write to.
+   */
+  public static void encode(ChatFrame frame, ByteBuffer out)
+  {
+    long sequence = frame.getSequence();
+    if (sequence > 0)
+    {
+      out.put((byte) (frame.getType() | SEQUENCED));
+      putVarint(out, sequence);
+    }
+    else
+    {
+      out.put(frame.getType());
+    }
+    putVarint(out, payloadLength(frame));
+    if (frame.sender() != null)
+    {
+      putUtf8(out, frame.sender());
+      putUtf8(out, ChatFrame.SENDER_SEPARATOR);
+    }
+    byte[] encoded = frame.encoded();
+    if (encoded != null)
+    {
+      out.put(encoded, frame.textOffset(), encoded.length - frame.textOffset());
+    }
+    else
+    {
+      putUtf8(out, frame.text());
+    }
+  }
+
+  /**
+   * Builds the chat line a user said from the frame they sent it in,
+   * encoding it as a binary frame by copying the text's bytes rather
+   * than decoding them.  The line's text is only decoded if something
+   * asks for it, such as a legacy recipient.
+   *
+   * @param sender The sender's login ID.
+   * @param text The frame the sender sent.
+   */
+  public static ChatFrame chat(String sender, FrameView text)
+  {
+    int textLength = text.length();
+    int payload = utf8Length(sender) + ChatFrame.SENDER_SEPARATOR.length() + textLength;
+    byte[] encoded = new byte[1 + varintSize(payload) + payload];
+    ByteBuffer out = ByteBuffer.wrap(encoded);
+    out.put(ChatFrame.CHAT);
+    putVarint(out, payload);
+    putUtf8(out, sender);
+    putUtf8(out, ChatFrame.SENDER_SEPARATOR);
+    text.copyText(encoded, out.position());
+    return ChatFrame.chat(sender, encoded, out.position());
+  }
+
+  /**
+   * Returns the UTF-8 length of a frame's text.
+   */
+  private static int payloadLength(ChatFrame frame)
+  {
+    byte[] encoded = frame.encoded();
+    int length = encoded != null ? encoded.length - frame.textOffset() : utf8Length(frame.text());
+    if (frame.sender() != null)
+    {
+      length += utf8Length(frame.sender()) + ChatFrame.SENDER_SEPARATOR.length();
+    }
+    return length;
+  }
+
+  /**
+   * Returns the number of bytes putUtf8 writes for a string.
+   */
+  public static int utf8Length(String text)
+  {
+    int length = text.length();
+    for (int i = 0; i < text.length(); i++)
+    {
+      char c = text.charAt(i);
+      if (c < 0x80)
+      {
+        continue;
+      }
+      if (c < 0x800)
+      {
+        length++;
+      }
+      else if (!Character.isSurrogate(c))
+      {
+        length += 2;
+      }
+      else if (Character.isHighSurrogate(c) && i + 1 < text.length()
+        && Character.isLowSurrogate(text.charAt(i + 1)))
+      {
+        // Two chars, four bytes
+        length += 2;
+        i++;
+      }
+    }
+    return length;
+  }
+
+  /**
+   * Writes a string as UTF-8 without an intermediate byte array.  As with
+   * String.getBytes, an unpaired surrogate becomes '?'.
+   */
+  public static void putUtf8(ByteBuffer out, String text)
+  {
+    for (int i = 0; i < text.length(); i++)
+    {
+      char c = text.charAt(i);
+      if (c < 0x80)
+      {
+        out.put((byte) c);
+      }
+      else if (c < 0x800)
+      {
+        out.put((byte) (0xC0 | c >> 6));
+        out.put((byte) (0x80 | c & 0x3F));
+      }
+      else if (!Character.isSurrogate(c))
+      {
+        out.put((byte) (0xE0 | c >> 12));
+        out.put((byte) (0x80 | c >> 6 & 0x3F));
+        out.put((byte) (0x80 | c & 0x3F));
+      }
+      else if (Character.isHighSurrogate(c) && i + 1 < text.length()
+        && Character.isLowSurrogate(text.charAt(i + 1)))
+      {
+        int codePoint = Character.toCodePoint(c, text.charAt(++i));
+        out.put((byte) (0xF0 | codePoint >> 18));
+        out.put((byte) (0x80 | codePoint >> 12 & 0x3F));
+        out.put((byte) (0x80 | codePoint >> 6 & 0x3F));
+        out.put((byte) (0x80 | codePoint & 0x3F));
+      }
+      else
+      {
+        out.put((byte) '?');
+      }
+    }
+  }
+
+  /**
+   * Builds a frame around a payload.
+   *
+   * @param type The frame type, with the COMPRESSED bit if it applies.
+   * @param sequence The sequence number, or 0 for none.
+   * @param payload An array holding the payload.
+   * @param length The payload's length, from the start of the array.
+   */
+  static ByteBuffer frame(int type, long sequence, byte[] payload, int length)
+  {
+    int sequenceSize = sequence > 0 ? varintSize(sequence) : 0;
+    ByteBuffer buffer = ByteBuffer.allocate(1 + sequenceSize + varintSize(length) + length);
+    if (sequence > 0)
+    {
+      buffer.put((byte) (type | SEQUENCED));
+      putVarint(buffer, sequence);
+    }
+    else
+    {
+      buffer.put((byte) type);
+    }
+    putVarint(buffer, length);
+    buffer.put(payload, 0, length);
+    buffer.flip();
+    return buffer;
+  }
+
+  /**
+   * Returns the number of bytes the varint encoding of a value takes.
+   */
+  static int varintSize(int value)
+  {
+    int size = 1;
+    while ((value & ~0x7F) != 0)
+    {
+      value >>>= 7;
+      size++;
+    }
+    return size;
+  }
+
+  /**
+   * Returns the number of bytes the varint encoding of a long takes.
+   */
+  static int varintSize(long value)
+  {
+    int size = 1;
+    while ((value & ~0x7FL) != 0)
+    {
+      value >>>= 7;
+      size++;
+    }
+    return size;
+  }
+
+  /**
+   * Writes an unsigned varint: seven bits per byte, low bits first, with
+   * the high bit set on every byte but the last.
+   */
+  static void putVarint(ByteBuffer buffer, int value)
+  {
+    while ((value & ~0x7F) != 0)
+    {
+      buffer.put((byte) ((value & 0x7F) | 0x80));
+      value >>>= 7;
+    }
+    buffer.put((byte) value);
+  }
+
+  /**
+   * Writes a long as an unsigned varint.
+   */
+  static void putVarint(ByteBuffer buffer, long value)
+  {
+    while ((value & ~0x7FL) != 0)
+    {
+      buffer.put((byte) ((value & 0x7F) | 0x80));
+      value >>>= 7;
+    }
+    buffer.put((byte) value);
+  }
+
+  /**
+   * Reads an unsigned varint, or returns -1 if the buffer ends first.
+   *
+   * @throws StreamCorruptedException If the value exceeds the payload limit.
+   */
+  static int getVarint(ByteBuffer buffer) throws StreamCorruptedException
+  {
+    int value = 0;
+    for (int shift = 0; shift < 32; shift += 7)
+    {
+      if (!buffer.hasRemaining())
+      {
+        return -1;
+      }
+      byte b = buffer.get();
+      value |= (b & 0x7F) << shift;
+      if ((b & 0x80) == 0)
+      {
+        if (value < 0 || value > MAX_PAYLOAD_BYTES)
+        {
+          throw new StreamCorruptedException("Frame too large: " + value);
+        }
+        return value;
+      }
+    }
+    throw new StreamCorruptedException("Malformed length");
+  }
+
+  /**
+   * Reads a non-negative long written as an unsigned varint, or returns
+   * -1 if the buffer ends first.
+   *
+   * @throws StreamCorruptedException If the value does not fit.
+   */
+  static long getVarlong(ByteBuffer buffer) throws StreamCorruptedException
+  {
+    long value = 0;
+    for (int shift = 0; shift < 63; shift += 7)
+    {
+      if (!buffer.hasRemaining())
+      {
+        return -1;
+      }
+      byte b = buffer.get();
+      value |= (long) (b & 0x7F) << shift;
+      if ((b & 0x80) == 0)
+      {
+        return value;
+      }
+    }
+    throw new StreamCorruptedException("Malformed sequence number");
+  }
+}
+//End of BinaryMessageCodec class
@@ -0,0 +1,266 @@
+package edu.seg2105.client.common;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * One typed message of the binary chat protocol.  The text is exactly
+ * what the OCSF protocol would carry as a String, so toString() lets the
+ * existing message handlers work on frames unchanged; the type only
+ * tells the receiver what kind of line it is without parsing the text.
+ */
+public final class ChatFrame
+{
+  //Class variables *************************************************
+
+  /**
+   * A "#login &lt;id&gt;" line from a client.
+   */
+  final public static byte LOGIN = 1;
+
+  /**
+   * A chat line, from a client or broadcast by the server.
+   */
+  final public static byte CHAT = 2;
+
+  /**
+   * Any other "#" command from a client.
+   */
+  final public static byte COMMAND = 3;
+
+  /**
+   * A notice from the server itself (login replies, errors, console
+   * messages).
+   */
+  final public static byte SERVER_MESSAGE = 4;
+
+  /**
+   * What separates the sender from the text of a chat line.
+   */
+  final static String SENDER_SEPARATOR = ": ";
+
+  //Instance variables **********************************************
+
+  private final byte type;
+  private final String sender;
+  private final long sequence;
+
+  /**
+   * The binary frame a chat line made by BinaryMessageCodec.chat() was
+   * first encoded as, with the text's UTF-8 bytes at the end; otherwise
+   * null.
+   */
+  private final byte[] encoded;
+  private final int textOffset;
+
+  /**
+   * The text, decoded from the encoded frame on first use if there is one.
+   */
+  private String text;
+
+  /**
+   * The full line of a chat frame with a sender, built on first use.
+   */
+  private String line;
+
+  //Constructors ****************************************************
+
+  /**
+   * Constructs a frame.
+   *
+   * @param type One of the type constants of this class.
+   * @param text The message text.
+   */
+  public ChatFrame(byte type, String text)
+  {
+    this(type, text, 0);
+  }
+
+  /**
+   * Constructs a frame carrying the server's sequence number for it.
+   *
+   * @param type One of the type constants of this class.
+   * @param text The message text.
+   * @param sequence The sequence number, or 0 for none.
+   */
+  public ChatFrame(byte type, String text, long sequence)
+  {
+    this(type, null, text, sequence);
+  }
+
+  private ChatFrame(byte type, String sender, String text, long sequence)
+  {
+    this(type, sender, text, sequence, null, 0);
+  }
+
+  private ChatFrame(byte type, String sender, String text, long sequence, byte[] encoded, int textOffset)
+  {
+    this.type = type;
+    this.sender = sender;
+    this.text = text;
+    this.sequence = sequence;
+    this.encoded = encoded;
+    this.textOffset = textOffset;
+  }
+
+  //Instance methods ************************************************
+
+  /**
+   * Returns the frame type.
+   */
+  public byte getType()
+  {
+    return type;
+  }
+
+  /**
+   * Returns the sequence number the server gave this message, or 0 if it
+   * has none.  Only journaled chat lines are numbered; a client that
+   * reconnects sends back the highest one it received.
+   */
+  public long getSequence()
+  {
+    return sequence;
+  }
+
+  /**
+   * Returns a copy of this frame carrying a sequence number.
+   *
+   * @param sequence The sequence number.
+   */
+  public ChatFrame withSequence(long sequence)
+  {
+    return new ChatFrame(type, sender, text, sequence, encoded, textOffset);
+  }
+
+  /**
+   * Returns the message text.
+   */
+  @Override
+  public String toString()
+  {
+    if (sender == null)
+    {
+      return text();
+    }
+    String joined = line;
+    if (joined == null)
+    {
+      // Racy but safe, like String's hash: every thread builds the same line
+      joined = sender + SENDER_SEPARATOR + text();
+      line = joined;
+    }
+    return joined;
+  }
+
+  /**
+   * Returns the sender of a chat line made by chat(), or null.
+   */
+  String sender()
+  {
+    return sender;
+  }
+
+  /**
+   * Returns the text, without the sender of a chat line made by chat().
+   */
+  String text()
+  {
+    String decoded = text;
+    if (decoded == null)
+    {
+      // Racy but safe, as for the line
+      decoded = new String(encoded, textOffset, encoded.length - textOffset, StandardCharsets.UTF_8);
+      text = decoded;
+    }
+    return decoded;
+  }
+
+  /**
+   * Returns the binary frame this line was built as by
+   * BinaryMessageCodec.chat(), or null.  It carries no sequence number,
+   * whatever this frame's.
+   */
+  byte[] encoded()
+  {
+    return encoded;
+  }
+
+  /**
+   * Returns where the text starts in encoded().
+   */
+  int textOffset()
+  {
+    return textOffset;
+  }
+
+  //Class methods ***************************************************
+
+  /**
+   * Wraps a server notice.
+   *
+   * @param text The notice text.
+   */
+  public static ChatFrame serverMessage(String text)
+  {
+    return new ChatFrame(SERVER_MESSAGE, text);
+  }
+
+  /**
+   * Wraps a chat line said by a user, "sender: text".  The two parts are
+   * kept apart so that the binary codec writes them out without joining
+   * them into a new String first; toString() joins them on first use.
+   *
+   * @param sender The sender's login ID.
+   * @param text What they said.
+   */
+  public static ChatFrame chat(String sender, String text)
+  {
+    return new ChatFrame(CHAT, sender, text, 0);
+  }
+
+  /**
+   * Wraps a chat line already encoded as a binary frame, whose text is
+   * only decoded if something asks for it.
+   *
+   * @param sender The sender's login ID.
+   * @param encoded The frame, with the text's UTF-8 bytes at the end.
+   * @param textOffset Where the text starts in the frame.
+   */
+  static ChatFrame chat(String sender, byte[] encoded, int textOffset)
+  {
+    return new ChatFrame(CHAT, sender, null, 0, encoded, textOffset);
+  }
+
+  /**
+   * Returns the message as a frame, classifying plain objects by their
+   * text: "#login " lines are LOGIN, other "#" lines are COMMAND and
+   * everything else is CHAT.
+   *
+   * @param msg A ChatFrame or any other message object.
+   */
+  public static ChatFrame of(Object msg)
+  {
+    if (msg instanceof ChatFrame)
+    {
+      return (ChatFrame) msg;
+    }
+    String text = String.valueOf(msg);
+    if (text.startsWith("#login "))
+    {
+      return new ChatFrame(LOGIN, text);
+    }
+    return new ChatFrame(text.startsWith("#") ? COMMAND : CHAT, text);
+  }
+
+  /**
+   * Returns the message in the form the OCSF object streams carry: frames
+   * become their text so that legacy clients never see this class.
+   *
+   * @param msg Any message object.
+   */
+  public static Object toLegacy(Object msg)
+  {
+    return msg instanceof ChatFrame ? msg.toString() : msg;
+  }
+}
+//End of ChatFrame class
@@ -0,0 +1,74 @@
+package edu.seg2105.client.common;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The handlers of '#' commands, looked up by keyword: the text up to the
+ * first space, in any case.  Finding a handler is one hash lookup however
+ * many commands are registered, where a chain of startsWith tests grows
+ * with every command added.  Used by the server for client commands and
+ * by both consoles.
+ *
+ * @param <H> The handler type.
+ */
+public final class CommandTable<H>
+{
+  private final Map<String, H> handlers = new HashMap<String, H>();
+
+  /**
+   * Registers the handler of a command.
+   *
+   * @param keyword The command, such as "#join".
+   * @param handler Its handler.
+   * @return This table, for chaining.
+   * @throws IllegalArgumentException If the keyword is already registered.
+   */
+  public CommandTable<H> register(String keyword, H handler)
+  {
+    if (handlers.putIfAbsent(keyword.toLowerCase(), handler) != null)
+    {
+      throw new IllegalArgumentException("Command already registered: " + keyword);
+    }
+    return this;
+  }
+
+  /**
+   * Returns the handler of the command a message starts with, or null if
+   * it is not a registered command.
+   *
+   * @param message The message.
+   */
+  public H lookup(String message)
+  {
+    if (message.isEmpty() || message.charAt(0) != '#')
+    {
+      return null;
+    }
+    return handlers.get(keyword(message).toLowerCase());
+  }
+
+  /**
+   * Returns the keyword of a command: the text up to the first space.
+   *
+   * @param message The command.
+   */
+  public static String keyword(String message)
+  {
+    int space = message.indexOf(' ');
+    return space < 0 ? message : message.substring(0, space);
+  }
+
+  /**
+   * Returns the arguments of a command: the text after the first space,
+   * trimmed, or an empty string if there are none.
+   *
+   * @param message The command.
+   */
+  public static String arguments(String message)
+  {
+    int space = message.indexOf(' ');
+    return space < 0 ? "" : message.substring(space + 1).trim();
+  }
+}
+//End of CommandTable class
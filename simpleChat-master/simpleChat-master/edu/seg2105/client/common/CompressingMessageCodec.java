@@ -0,0 +1,175 @@
+package edu.seg2105.client.common;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.Deflater;
+
+/**
+ * The binary protocol with payload compression, used by each side for
+ * what it sends once the peer has agreed to it with "#compress &lt;mode&gt;".
+ * Payloads of simplechat.compression.threshold bytes or more (default
+ * 512) are compressed, and sent compressed only if that made them
+ * smaller; short chat lines go out exactly as BinaryMessageCodec would
+ * write them.  Decoding is inherited: every binary codec reads both.
+ * <p>
+ * Each message is compressed on its own, with no state carried from one
+ * to the next, so a broadcast is still compressed once for all of its
+ * recipients and a journal frame can be sent to any client.  To make up
+ * for the lost context, the "dictionary" mode primes the compressor with
+ * a preset dictionary of text common in chat, server notices, logs and
+ * Java stack traces, which both sides know in advance.
+ */
+public class CompressingMessageCodec extends BinaryMessageCodec
+{
+  //Class variables *************************************************
+
+  /**
+   * The compression modes.
+   */
+  public enum Mode
+  {
+    /**
+     * Plain zlib compression of each payload.
+     */
+    DEFLATE,
+
+    /**
+     * zlib compression primed with the shared chat dictionary.
+     */
+    DICTIONARY;
+
+    /**
+     * Parses a mode name such as "dictionary" or "DICTIONARY".
+     *
+     * @param name The mode name.
+     * @return The mode.
+     * @throws IllegalArgumentException If the name is unknown.
+     */
+    public static Mode parse(String name)
+    {
+      return valueOf(name.trim().toUpperCase());
+    }
+  }
+
+  /**
+   * The payload size, in bytes, from which compression is tried.
+   */
+  final public static int THRESHOLD =
+    Math.max(1, Integer.getInteger("simplechat.compression.threshold", 512));
+
+  /**
+   * The preset dictionary of the DICTIONARY mode.  zlib finds matches
+   * nearer the end of a dictionary more cheaply, so the most common
+   * strings come last.  Changing it breaks compatibility with peers that
+   * use the old one.
+   */
+  final static byte[] DICTIONARY = (
+    "Exception in thread \"main\" Caused by: ... more\n\tat java.base/java.lang."
+    + "Thread.run(Thread.java:at java.util.concurrent.ThreadPoolExecutor$Worker.run("
+    + "at sun.reflect.java.io.IOException: java.net.SocketException: Connection reset"
+    + "NullPointerException IllegalArgumentException IllegalStateException"
+    + "ERROR WARN INFO DEBUG TRACE 2025-01-01T00:00:00.000Z [main] "
+    + "https://www.github.com/ http://localhost: .com/ .org/ .html .json .xml "
+    + "{\"id\": \"name\": \"type\": \"value\": null, true, false, }, ], "
+    + "Users in room Replaying messages in room  since you left. "
+    + "has logged in. has disconnected. has joined room has left room lobby "
+    + "SERVER MSG> (private): Login successful as Error: "
+    + "Thanks, thank you please sorry okay yes no maybe lol :) :( :D "
+    + "what when where who why how can you could would should will "
+    + "I think I'm not sure that this is it's don't doesn't can't "
+    + "with from about have just there their they them your you're "
+    + "and the for that this with was are but not all any "
+    + "\n\tat edu.seg2105..java:\n\tat ").getBytes(StandardCharsets.UTF_8);
+
+  /**
+   * Compresses for the current thread.  Broadcasts are encoded on the
+   * sending thread and replays on the connection's, so a compressor per
+   * thread needs no locking.
+   */
+  final private static ThreadLocal<Deflater> DEFLATERS =
+    ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_SPEED));
+
+  final private static CompressionStats STATS = new CompressionStats();
+
+  //Instance variables **********************************************
+
+  private final Mode mode;
+
+  //Constructors ****************************************************
+
+  /**
+   * Constructs a codec that compresses in the given mode.
+   *
+   * @param mode The compression mode.
+   */
+  public CompressingMessageCodec(Mode mode)
+  {
+    this.mode = mode;
+  }
+
+  //Instance methods ************************************************
+
+  /**
+   * Returns the compression mode.
+   */
+  public Mode getMode()
+  {
+    return mode;
+  }
+
+  /**
+   * Returns the mode: codecs of the same mode write the same bytes.
+   */
+  @Override
+  public Object formatKey()
+  {
+    return mode;
+  }
+
+  @Override
+  public ByteBuffer encode(Object msg)
+  {
+    ChatFrame frame = ChatFrame.of(msg);
+    byte[] payload = frame.toString().getBytes(StandardCharsets.UTF_8);
+    if (payload.length < THRESHOLD)
+    {
+      STATS.recordSkipped(0);
+      return frame(frame.getType(), frame.getSequence(), payload, payload.length);
+    }
+
+    long start = System.nanoTime();
+    int prefix = varintSize(payload.length);
+    // Only worth sending if it comes out smaller, so no bigger output is needed
+    byte[] compressed = new byte[payload.length];
+    Deflater deflater = DEFLATERS.get();
+    deflater.reset();
+    if (mode == Mode.DICTIONARY)
+    {
+      deflater.setDictionary(DICTIONARY);
+    }
+    deflater.setInput(payload);
+    deflater.finish();
+    ByteBuffer out = ByteBuffer.wrap(compressed);
+    putVarint(out, payload.length);
+    int length = prefix + deflater.deflate(compressed, prefix, compressed.length - prefix);
+    long nanos = System.nanoTime() - start;
+    if (!deflater.finished() || length >= payload.length)
+    {
+      STATS.recordSkipped(nanos);
+      return frame(frame.getType(), frame.getSequence(), payload, payload.length);
+    }
+    STATS.recordCompressed(payload.length, length, nanos);
+    return frame(frame.getType() | COMPRESSED, frame.getSequence(), compressed, length);
+  }
+
+  //Class methods ***************************************************
+
+  /**
+   * Returns the process's compression counters, for both directions.
+   */
+  public static CompressionStats stats()
+  {
+    return STATS;
+  }
+}
+//End of CompressingMessageCodec class
@@ -0,0 +1,132 @@
+package edu.seg2105.client.common;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters for payload compression: how many messages were compressed
+ * and how much smaller they became, how many were sent as they were, and
+ * the CPU time spent deflating and inflating.
+ */
+public final class CompressionStats
+{
+  private final LongAdder compressed = new LongAdder();
+  private final LongAdder skipped = new LongAdder();
+  private final LongAdder bytesBefore = new LongAdder();
+  private final LongAdder bytesAfter = new LongAdder();
+  private final LongAdder deflateNanos = new LongAdder();
+  private final LongAdder inflated = new LongAdder();
+  private final LongAdder inflateNanos = new LongAdder();
+
+  /**
+   * Records a payload sent compressed.
+   *
+   * @param before The payload's size before compression.
+   * @param after Its size after.
+   * @param nanos The time spent compressing it.
+   */
+  void recordCompressed(int before, int after, long nanos)
+  {
+    compressed.increment();
+    bytesBefore.add(before);
+    bytesAfter.add(after);
+    deflateNanos.add(nanos);
+  }
+
+  /**
+   * Records a payload sent uncompressed by a compressing codec, because
+   * it was below the threshold or would not have shrunk.
+   *
+   * @param nanos The time spent trying to compress it, or 0.
+   */
+  void recordSkipped(long nanos)
+  {
+    skipped.increment();
+    deflateNanos.add(nanos);
+  }
+
+  /**
+   * Records a compressed payload received.
+   *
+   * @param nanos The time spent inflating it.
+   */
+  void recordInflate(long nanos)
+  {
+    inflated.increment();
+    inflateNanos.add(nanos);
+  }
+
+  /**
+   * Returns the number of payloads sent compressed.
+   */
+  public long compressed()
+  {
+    return compressed.sum();
+  }
+
+  /**
+   * Returns the number of payloads a compressing codec sent uncompressed.
+   */
+  public long skipped()
+  {
+    return skipped.sum();
+  }
+
+  /**
+   * Returns the total size of the compressed payloads before compression.
+   */
+  public long bytesBefore()
+  {
+    return bytesBefore.sum();
+  }
+
+  /**
+   * Returns the total size of the compressed payloads after compression.
+   */
+  public long bytesAfter()
+  {
+    return bytesAfter.sum();
+  }
+
+  /**
+   * Returns the size before compression divided by the size after, or 0
+   * if nothing was compressed.
+   */
+  public double ratio()
+  {
+    long after = bytesAfter();
+    return after == 0 ? 0 : (double) bytesBefore() / after;
+  }
+
+  /**
+   * Returns the nanoseconds spent compressing, including attempts that
+   * did not shrink the payload.
+   */
+  public long deflateNanos()
+  {
+    return deflateNanos.sum();
+  }
+
+  /**
+   * Returns the number of compressed payloads received.
+   */
+  public long inflated()
+  {
+    return inflated.sum();
+  }
+
+  /**
+   * Returns the nanoseconds spent decompressing.
+   */
+  public long inflateNanos()
+  {
+    return inflateNanos.sum();
+  }
+
+  @Override
+  public String toString()
+  {
+    return String.format("compressed=%d skipped=%d bytes=%d->%d ratio=%.2f deflate=%.1fms inflated=%d inflate=%.1fms",
+      compressed(), skipped(), bytesBefore(), bytesAfter(), ratio(), deflateNanos() / 1e6,
+      inflated(), inflateNanos() / 1e6);
+  }
+}
@@ -0,0 +1,72 @@
+package edu.seg2105.client.common;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters for a batching write path: how many flushes (socket writes)
+ * were made and how many frames and bytes they carried.  Frames per flush
+ * shows how well small messages are being coalesced.
+ */
+public final class FlushStats
+{
+  private final LongAdder flushes = new LongAdder();
+  private final LongAdder frames = new LongAdder();
+  private final LongAdder bytes = new LongAdder();
+
+  /**
+   * Records one flush.
+   *
+   * @param frameCount The number of frames written by the flush.
+   * @param byteCount The number of bytes written by the flush.
+   */
+  public void recordFlush(int frameCount, long byteCount)
+  {
+    flushes.increment();
+    frames.add(frameCount);
+    bytes.add(byteCount);
+  }
+
+  /**
+   * Returns the number of flushes.
+   */
+  public long flushes()
+  {
+    return flushes.sum();
+  }
+
+  /**
+   * Returns the number of frames flushed.
+   */
+  public long frames()
+  {
+    return frames.sum();
+  }
+
+  /**
+   * Returns the number of bytes flushed.
+   */
+  public long bytes()
+  {
+    return bytes.sum();
+  }
+
+  /**
+   * Returns the average number of frames per flush.
+   */
+  public double framesPerFlush()
+  {
+    long count = flushes();
+    return count == 0 ? 0 : (double) frames() / count;
+  }
+
+  /**
+   * Returns the counters as one console line.
+   */
+  @Override
+  public String toString()
+  {
+    return String.format("flushes=%d frames=%d bytes=%d framesPerFlush=%.2f",
+      flushes(), frames(), bytes(), framesPerFlush());
+  }
+}
+//End of FlushStats class
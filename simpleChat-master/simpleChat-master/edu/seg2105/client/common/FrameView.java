@@ -0,0 +1,118 @@
+package edu.seg2105.client.common;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A binary frame read in place: its type, its sequence number and where
+ * its UTF-8 text lies in the buffer it was read from.  The server's NIO
+ * engine decodes each frame a client sends into one of these instead of
+ * a ChatFrame, so that a chat line goes from the read buffer to the
+ * frames broadcast for it without becoming a String on the way.
+ * <p>
+ * A view is reused for every frame of a connection, and the buffer it
+ * points into is reused for the next read: it is only valid until the
+ * call that was handed it returns.  Anything that keeps the message
+ * longer must take toFrame() or toString() first.
+ */
+public final class FrameView
+{
+  //Instance variables **********************************************
+
+  private byte type;
+  private long sequence;
+  private ByteBuffer buffer;
+  private int offset;
+  private int length;
+
+  //Instance methods ************************************************
+
+  /**
+   * Points the view at a frame.
+   *
+   * @param type The frame type.
+   * @param sequence The sequence number, or 0 for none.
+   * @param buffer The buffer holding the text.
+   * @param offset The index of the text in the buffer.
+   * @param length The text's length in bytes.
+   */
+  void set(byte type, long sequence, ByteBuffer buffer, int offset, int length)
+  {
+    this.type = type;
+    this.sequence = sequence;
+    this.buffer = buffer;
+    this.offset = offset;
+    this.length = length;
+  }
+
+  /**
+   * Returns the frame type.
+   */
+  public byte getType()
+  {
+    return type;
+  }
+
+  /**
+   * Returns the sequence number, or 0 if the frame has none.
+   */
+  public long getSequence()
+  {
+    return sequence;
+  }
+
+  /**
+   * Returns the length of the text in UTF-8 bytes.
+   */
+  public int length()
+  {
+    return length;
+  }
+
+  /**
+   * Returns true if the text starts with the given ASCII character, such
+   * as the '#' of a command, without decoding it.
+   *
+   * @param c The character.
+   */
+  public boolean startsWith(char c)
+  {
+    return length > 0 && buffer.get(offset) == (byte) c;
+  }
+
+  /**
+   * Copies the text's UTF-8 bytes into an array.
+   *
+   * @param destination The array.
+   * @param at Where in the array the text goes.
+   */
+  public void copyText(byte[] destination, int at)
+  {
+    buffer.get(offset, destination, at, length);
+  }
+
+  /**
+   * Returns a ChatFrame holding a copy of this one, which stays valid
+   * after the view moves on.
+   */
+  public ChatFrame toFrame()
+  {
+    return new ChatFrame(type, toString(), sequence);
+  }
+
+  /**
+   * Returns the text, decoding it into a new String.
+   */
+  @Override
+  public String toString()
+  {
+    if (buffer.hasArray())
+    {
+      return new String(buffer.array(), buffer.arrayOffset() + offset, length, StandardCharsets.UTF_8);
+    }
+    byte[] text = new byte[length];
+    copyText(text, 0);
+    return new String(text, StandardCharsets.UTF_8);
+  }
+}
+//End of FrameView class
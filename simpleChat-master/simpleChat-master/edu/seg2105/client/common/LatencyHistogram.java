@@ -0,0 +1,179 @@
+package edu.seg2105.client.common;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A fixed-size histogram of durations in nanoseconds, in the style of
+ * HdrHistogram: values below 128 get a bucket each, and every power of
+ * two above that is split into 64 buckets, so any value is reported to
+ * within about 1.6% using 3712 counters however large it is.
+ * <p>
+ * Recording is lock-free and may be done from any number of threads;
+ * percentiles read while recording goes on are approximate.
+ */
+public final class LatencyHistogram
+{
+  //Class variables *************************************************
+
+  /**
+   * log2 of the number of buckets per power of two.
+   */
+  final private static int SUB_BUCKET_BITS = 6;
+
+  final private static int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+  /**
+   * Values below this are counted exactly.
+   */
+  final private static int EXACT_LIMIT = 2 * SUB_BUCKETS;
+
+  final private static int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+  //Instance variables **********************************************
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+  private final LongAdder count = new LongAdder();
+  private final LongAdder sum = new LongAdder();
+  private volatile long max;
+
+  //Instance methods ************************************************
+
+  /**
+   * Records one duration.  Negative values are counted as zero.
+   *
+   * @param nanos The duration in nanoseconds.
+   */
+  public void record(long nanos)
+  {
+    long value = Math.max(0, nanos);
+    counts.incrementAndGet(indexOf(value));
+    count.increment();
+    sum.add(value);
+    if (value > max)
+    {
+      synchronized (this)
+      {
+        if (value > max)
+        {
+          max = value;
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns the number of values recorded.
+   */
+  public long count()
+  {
+    return count.sum();
+  }
+
+  /**
+   * Returns the largest value recorded, or 0.
+   */
+  public long max()
+  {
+    return max;
+  }
+
+  /**
+   * Returns the mean of the values recorded, or 0.
+   */
+  public double mean()
+  {
+    long n = count();
+    return n == 0 ? 0 : (double) sum.sum() / n;
+  }
+
+  /**
+   * Returns the value at a percentile: the highest value that could be
+   * in the bucket holding it, capped at the largest value recorded.
+   *
+   * @param percentile The percentile, from 0 to 100.
+   * @return The value in nanoseconds, or 0 if nothing was recorded.
+   */
+  public long percentile(double percentile)
+  {
+    long total = 0;
+    long[] snapshot = new long[BUCKETS];
+    for (int i = 0; i < BUCKETS; i++)
+    {
+      snapshot[i] = counts.get(i);
+      total += snapshot[i];
+    }
+    if (total == 0)
+    {
+      return 0;
+    }
+    long rank = Math.max(1, (long) Math.ceil(total * Math.min(100, percentile) / 100));
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++)
+    {
+      seen += snapshot[i];
+      if (seen >= rank)
+      {
+        return Math.min(highestValueAt(i), max);
+      }
+    }
+    return max;
+  }
+
+  /**
+   * Clears every count.  Values recorded concurrently may be lost.
+   */
+  public void reset()
+  {
+    for (int i = 0; i < BUCKETS; i++)
+    {
+      counts.set(i, 0);
+    }
+    count.reset();
+    sum.reset();
+    max = 0;
+  }
+
+  /**
+   * Returns the count and the usual percentiles in microseconds, as one
+   * console line.
+   */
+  @Override
+  public String toString()
+  {
+    return String.format("count=%d mean=%.1fus p50=%.1fus p99=%.1fus p999=%.1fus max=%.1fus",
+      count(), mean() / 1000, percentile(50) / 1000.0, percentile(99) / 1000.0,
+      percentile(99.9) / 1000.0, max() / 1000.0);
+  }
+
+  //Class methods ***************************************************
+
+  /**
+   * Returns the bucket of a non-negative value.
+   */
+  static int indexOf(long value)
+  {
+    if (value < EXACT_LIMIT)
+    {
+      return (int) value;
+    }
+    int exponent = 63 - Long.numberOfLeadingZeros(value);
+    int shift = exponent - SUB_BUCKET_BITS;
+    return shift * SUB_BUCKETS + (int) (value >>> shift);
+  }
+
+  /**
+   * Returns the highest value that falls in a bucket.
+   */
+  static long highestValueAt(int index)
+  {
+    if (index < EXACT_LIMIT)
+    {
+      return index;
+    }
+    int shift = index / SUB_BUCKETS - 1;
+    long subBucket = index % SUB_BUCKETS + SUB_BUCKETS;
+    return ((subBucket + 1) << shift) - 1;
+  }
+}
+//End of LatencyHistogram class
@@ -0,0 +1,58 @@
+package edu.seg2105.client.common;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * This interface describes how chat messages are turned into bytes on the
+ * wire and back again.  Transports that do not go through the OCSF object
+ * streams (such as the non-blocking server engine) use a codec to frame
+ * their traffic.
+ * <p>
+ * A codec instance holds the decoding state of exactly one connection and
+ * is not meant to be shared between connections.  Encoding, however, must
+ * not depend on that state: two codecs with the same format key encode a
+ * message to the same bytes, which lets a server encode a broadcast once
+ * and share the result between every connection using that format.
+ */
+public interface MessageCodec
+{
+  /**
+   * Returns the bytes that must be written once, before any message, when
+   * a connection is opened.  Returns an empty buffer if the format has no
+   * stream header.
+   */
+  public abstract ByteBuffer streamHeader();
+
+  /**
+   * Encodes one message into a buffer ready to be written (position 0,
+   * limit at the end of the data).
+   *
+   * @param msg The message to encode.
+   * @return The encoded message.
+   * @throws IOException If the message cannot be represented by this codec.
+   */
+  public abstract ByteBuffer encode(Object msg) throws IOException;
+
+  /**
+   * Decodes as many complete messages as are available in the buffer.
+   * The buffer must be in read mode; on return its position is left at the
+   * first byte of any incomplete message so that the caller can compact it
+   * and read more data.
+   *
+   * @param in The received bytes.
+   * @param out The list that decoded messages are appended to.
+   * @throws IOException If the stream is corrupt.
+   */
+  public abstract void decode(ByteBuffer in, List<Object> out) throws IOException;
+
+  /**
+   * Returns a key that is equal for codecs that encode every message to
+   * the same bytes.  By default that is the codec's class.
+   */
+  public default Object formatKey()
+  {
+    return getClass();
+  }
+}
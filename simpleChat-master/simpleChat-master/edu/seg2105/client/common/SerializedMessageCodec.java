@@ -0,0 +1,258 @@
+package edu.seg2105.client.common;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamConstants;
+import java.io.StreamCorruptedException;
+import java.io.UTFDataFormatException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This codec speaks the Java object serialization format used by the OCSF
+ * ObjectInputStream/ObjectOutputStream pair, so that a transport using it
+ * can talk to an unmodified OCSF client.
+ * <p>
+ * Only the subset of the format that chat clients actually send is
+ * decoded: strings, long strings, back references to strings, nulls and
+ * stream resets.  Any object can be encoded; strings take a fast path that
+ * does not go through an ObjectOutputStream.
+ */
+public class SerializedMessageCodec implements MessageCodec
+{
+  //Class variables *************************************************
+
+  /**
+   * The largest single message accepted from a peer, in bytes.
+   */
+  final public static int MAX_MESSAGE_BYTES = 16 * 1024 * 1024;
+
+  /**
+   * Size of the stream header (magic number and version).
+   */
+  final private static int HEADER_SIZE = 4;
+
+  //Instance variables **********************************************
+
+  /**
+   * Whether the peer's stream header has been consumed.
+   */
+  private boolean headerRead;
+
+  /**
+   * Strings received since the last reset, indexed by wire handle.
+   */
+  private final List<String> handles = new ArrayList<String>();
+
+  //Instance methods ************************************************
+
+  @Override
+  public ByteBuffer streamHeader()
+  {
+    ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+    header.putShort(ObjectStreamConstants.STREAM_MAGIC);
+    header.putShort(ObjectStreamConstants.STREAM_VERSION);
+    header.flip();
+    return header;
+  }
+
+  /**
+   * Encodes a message as a single top-level object followed by a reset,
+   * so the peer never has to keep a handle table for what we send.
+   * ChatFrames are sent as their text, as legacy clients expect.
+   */
+  @Override
+  public ByteBuffer encode(Object msg) throws IOException
+  {
+    msg = ChatFrame.toLegacy(msg);
+    if (msg instanceof String)
+    {
+      return encodeString((String) msg);
+    }
+
+    // Any other object: a fresh stream has an empty handle table, which is
+    // exactly the state the peer is in after our previous reset.
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    ObjectOutputStream output = new ObjectOutputStream(bytes);
+    output.writeObject(msg);
+    output.flush();
+    byte[] data = bytes.toByteArray();
+    ByteBuffer buffer = ByteBuffer.allocate(data.length - HEADER_SIZE + 1);
+    buffer.put(data, HEADER_SIZE, data.length - HEADER_SIZE);
+    buffer.put(ObjectStreamConstants.TC_RESET);
+    buffer.flip();
+    return buffer;
+  }
+
+  @Override
+  public void decode(ByteBuffer in, List<Object> out) throws IOException
+  {
+    if (!headerRead)
+    {
+      if (in.remaining() < HEADER_SIZE)
+      {
+        return;
+      }
+      if (in.getShort() != ObjectStreamConstants.STREAM_MAGIC
+        || in.getShort() != ObjectStreamConstants.STREAM_VERSION)
+      {
+        throw new StreamCorruptedException("Invalid stream header");
+      }
+      headerRead = true;
+    }
+
+    while (in.hasRemaining())
+    {
+      int start = in.position();
+      byte tag = in.get();
+      switch (tag)
+      {
+        case ObjectStreamConstants.TC_RESET:
+          handles.clear();
+          break;
+
+        case ObjectStreamConstants.TC_NULL:
+          break;
+
+        case ObjectStreamConstants.TC_STRING:
+        case ObjectStreamConstants.TC_LONGSTRING:
+        {
+          int lengthSize = tag == ObjectStreamConstants.TC_STRING ? 2 : 8;
+          if (in.remaining() < lengthSize)
+          {
+            in.position(start);
+            return;
+          }
+          long length = lengthSize == 2 ? in.getShort() & 0xFFFF : in.getLong();
+          if (length < 0 || length > MAX_MESSAGE_BYTES)
+          {
+            throw new StreamCorruptedException("Message too large: " + length);
+          }
+          if (in.remaining() < length)
+          {
+            in.position(start);
+            return;
+          }
+          String value = decodeModifiedUtf8(in, (int) length);
+          handles.add(value);
+          out.add(value);
+          break;
+        }
+
+        case ObjectStreamConstants.TC_REFERENCE:
+        {
+          if (in.remaining() < 4)
+          {
+            in.position(start);
+            return;
+          }
+          int index = in.getInt() - ObjectStreamConstants.baseWireHandle;
+          if (index < 0 || index >= handles.size())
+          {
+            throw new StreamCorruptedException("Invalid handle");
+          }
+          out.add(handles.get(index));
+          break;
+        }
+
+        default:
+          throw new StreamCorruptedException(
+            String.format("Unsupported type code: %02X", tag));
+      }
+    }
+  }
+
+  //Class methods ***************************************************
+
+  /**
+   * Writes a string in the TC_STRING / TC_LONGSTRING layout followed by a
+   * reset.
+   */
+  private static ByteBuffer encodeString(String s) throws IOException
+  {
+    int length = s.length();
+    long utfLength = 0;
+    for (int i = 0; i < length; i++)
+    {
+      char c = s.charAt(i);
+      utfLength += (c >= 0x0001 && c <= 0x007F) ? 1 : (c > 0x07FF ? 3 : 2);
+    }
+    if (utfLength > MAX_MESSAGE_BYTES)
+    {
+      throw new UTFDataFormatException("Message too large: " + utfLength);
+    }
+
+    boolean isLong = utfLength > 0xFFFF;
+    ByteBuffer buffer = ByteBuffer.allocate((int) utfLength + (isLong ? 9 : 3) + 1);
+    if (isLong)
+    {
+      buffer.put(ObjectStreamConstants.TC_LONGSTRING);
+      buffer.putLong(utfLength);
+    }
+    else
+    {
+      buffer.put(ObjectStreamConstants.TC_STRING);
+      buffer.putShort((short) utfLength);
+    }
+    for (int i = 0; i < length; i++)
+    {
+      char c = s.charAt(i);
+      if (c >= 0x0001 && c <= 0x007F)
+      {
+        buffer.put((byte) c);
+      }
+      else if (c > 0x07FF)
+      {
+        buffer.put((byte) (0xE0 | ((c >> 12) & 0x0F)));
+        buffer.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+        buffer.put((byte) (0x80 | (c & 0x3F)));
+      }
+      else
+      {
+        buffer.put((byte) (0xC0 | ((c >> 6) & 0x1F)));
+        buffer.put((byte) (0x80 | (c & 0x3F)));
+      }
+    }
+    buffer.put(ObjectStreamConstants.TC_RESET);
+    buffer.flip();
+    return buffer;
+  }
+
+  /**
+   * Reads a string in Java's modified UTF-8 encoding.
+   */
+  private static String decodeModifiedUtf8(ByteBuffer in, int length)
+    throws UTFDataFormatException
+  {
+    char[] chars = new char[length];
+    int count = 0;
+    int end = in.position() + length;
+    while (in.position() < end)
+    {
+      int a = in.get() & 0xFF;
+      if (a < 0x80)
+      {
+        chars[count++] = (char) a;
+      }
+      else if ((a & 0xE0) == 0xC0 && in.position() < end)
+      {
+        int b = in.get() & 0xFF;
+        chars[count++] = (char) (((a & 0x1F) << 6) | (b & 0x3F));
+      }
+      else if ((a & 0xF0) == 0xE0 && in.position() + 1 < end)
+      {
+        int b = in.get() & 0xFF;
+        int c = in.get() & 0xFF;
+        chars[count++] = (char) (((a & 0x0F) << 12) | ((b & 0x3F) << 6) | (c & 0x3F));
+      }
+      else
+      {
+        throw new UTFDataFormatException("Malformed input");
+      }
+    }
+    return new String(chars, 0, count);
+  }
+}
+//End of SerializedMessageCodec class
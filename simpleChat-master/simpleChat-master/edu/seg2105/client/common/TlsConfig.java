@@ -0,0 +1,205 @@
+package edu.seg2105.client.common;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.TrustManagerFactory;
+
+/**
+ * The TLS settings shared by the client and the server, read from system
+ * properties.  TLS is off unless simplechat.tls is true.
+ * <p>
+ * The server presents the key in simplechat.tls.keyStore (a PKCS12 file
+ * by default, with password simplechat.tls.keyStorePassword); a
+ * self-signed one is made with keytool -genkeypair.  The client trusts
+ * the certificates in simplechat.tls.trustStore, or the JDK's own if it
+ * is unset, and checks that the server's certificate names the host it
+ * connected to.  simplechat.tls.protocols and simplechat.tls.cipherSuites
+ * narrow the protocol versions and cipher suites to comma-separated
+ * lists; JSSE's defaults are used otherwise.
+ * <p>
+ * A reconnect resumes the previous session instead of repeating the full
+ * handshake: the client keeps one SSLContext for its lifetime, whose
+ * session cache is keyed by host and port, and the server keeps one for
+ * as long as it listens.  simplechat.tls.sessionCacheSize and
+ * simplechat.tls.sessionTimeoutSeconds bound both caches.
+ */
+public final class TlsConfig
+{
+  //Class variables *************************************************
+
+  /**
+   * The client's context, shared by all of its connections so that they
+   * can resume each other's sessions.
+   */
+  private static SSLContext clientContext;
+
+  //Constructors ****************************************************
+
+  private TlsConfig()
+  {
+  }
+
+  //Class methods ***************************************************
+
+  /**
+   * Returns true if connections are to use TLS (simplechat.tls).
+   */
+  public static boolean enabled()
+  {
+    return Boolean.getBoolean("simplechat.tls");
+  }
+
+  /**
+   * Creates a server context holding the key in simplechat.tls.keyStore.
+   *
+   * @throws IOException If the key store is unset or cannot be read.
+   */
+  public static SSLContext serverContext() throws IOException
+  {
+    String path = System.getProperty("simplechat.tls.keyStore");
+    if (path == null || path.trim().isEmpty())
+    {
+      throw new IOException("TLS needs a key store: set simplechat.tls.keyStore");
+    }
+    char[] password = System.getProperty("simplechat.tls.keyStorePassword", "").toCharArray();
+    try
+    {
+      KeyManagerFactory keys = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+      keys.init(load(path.trim(), password), password);
+      SSLContext context = SSLContext.getInstance("TLS");
+      context.init(keys.getKeyManagers(), null, null);
+      configureSessions(context.getServerSessionContext());
+      return context;
+    }
+    catch (GeneralSecurityException e)
+    {
+      throw new IOException("Could not load the TLS key: " + e.getMessage(), e);
+    }
+  }
+
+  /**
+   * Returns the client context, creating it on first use.
+   *
+   * @throws IOException If the trust store cannot be read.
+   */
+  public static synchronized SSLContext clientContext() throws IOException
+  {
+    if (clientContext != null)
+    {
+      return clientContext;
+    }
+    String path = System.getProperty("simplechat.tls.trustStore");
+    try
+    {
+      TrustManagerFactory trust = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+      trust.init(path == null || path.trim().isEmpty() ? null : load(path.trim(),
+        System.getProperty("simplechat.tls.trustStorePassword", "").toCharArray()));
+      SSLContext context = SSLContext.getInstance("TLS");
+      context.init(null, trust.getTrustManagers(), null);
+      configureSessions(context.getClientSessionContext());
+      clientContext = context;
+      return context;
+    }
+    catch (GeneralSecurityException e)
+    {
+      throw new IOException("Could not load the TLS trust store: " + e.getMessage(), e);
+    }
+  }
+
+  /**
+   * Returns the parameters to give a context's sockets and engines: its
+   * defaults, narrowed to the configured protocols and cipher suites.
+   *
+   * @param context The context.
+   * @param client True for the client side, which also checks the host
+   *               name in the server's certificate.
+   * @throws IllegalArgumentException If none of the configured protocols
+   *         or cipher suites is supported.
+   */
+  public static SSLParameters parameters(SSLContext context, boolean client)
+  {
+    SSLParameters parameters = context.getDefaultSSLParameters();
+    String[] protocols = select("simplechat.tls.protocols",
+      context.getSupportedSSLParameters().getProtocols());
+    if (protocols != null)
+    {
+      parameters.setProtocols(protocols);
+    }
+    String[] suites = select("simplechat.tls.cipherSuites",
+      context.getSupportedSSLParameters().getCipherSuites());
+    if (suites != null)
+    {
+      parameters.setCipherSuites(suites);
+    }
+    if (client)
+    {
+      parameters.setEndpointIdentificationAlgorithm("HTTPS");
+    }
+    return parameters;
+  }
+
+  /**
+   * Returns the supported names listed in a property, or null if it is
+   * unset.
+   */
+  private static String[] select(String property, String[] supported)
+  {
+    String value = System.getProperty(property, "").trim();
+    if (value.isEmpty())
+    {
+      return null;
+    }
+    List<String> selected = new ArrayList<String>();
+    for (String name : value.split(","))
+    {
+      for (String candidate : supported)
+      {
+        if (candidate.equalsIgnoreCase(name.trim()))
+        {
+          selected.add(candidate);
+        }
+      }
+    }
+    if (selected.isEmpty())
+    {
+      throw new IllegalArgumentException("None supported: " + property + "=" + value);
+    }
+    return selected.toArray(new String[0]);
+  }
+
+  private static void configureSessions(SSLSessionContext sessions)
+  {
+    Integer size = Integer.getInteger("simplechat.tls.sessionCacheSize");
+    if (size != null)
+    {
+      sessions.setSessionCacheSize(Math.max(0, size));
+    }
+    Integer timeout = Integer.getInteger("simplechat.tls.sessionTimeoutSeconds");
+    if (timeout != null)
+    {
+      sessions.setSessionTimeout(Math.max(0, timeout));
+    }
+  }
+
+  private static KeyStore load(String path, char[] password)
+    throws IOException, GeneralSecurityException
+  {
+    KeyStore store = KeyStore.getInstance(KeyStore.getDefaultType());
+    try (InputStream in = new FileInputStream(path))
+    {
+      store.load(in, password);
+    }
+    return store;
+  }
+}
+//End of TlsConfig class
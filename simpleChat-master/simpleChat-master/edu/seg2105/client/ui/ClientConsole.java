@@ -56,7 +56,7 @@ public class ClientConsole implements ChatIF
           client = new ChatClient(loginId, host, port, this); // Pass loginId to ChatClient
           fromConsole = new Scanner(System.in); // Initialize fromConsole as Scanner
       } catch (IOException e) {
-          System.out.println("Error: Can't setup connection! Terminating client.");
+          AsyncConsole.out().println("Error: Can't setup connection! Terminating client.");
           System.exit(1);
       }
   }
@@ -84,20 +84,22 @@ public class ClientConsole implements ChatIF
     } 
     catch (Exception ex) 
     {
-      System.out.println
+      AsyncConsole.out().println
         ("Unexpected error while reading from console!");
     }
   }
 
   /**
    * This method overrides the method in the ChatIF interface.  It
-   * displays a message onto the screen.
+   * displays a message onto the screen.  The line is written by the
+   * AsyncConsole's thread, so a slow terminal does not hold up the
+   * thread receiving from the server.
    *
    * @param message The string to be displayed.
    */
   public void display(String message) 
   {
-    System.out.println("> " + message);
+    AsyncConsole.out().println("> " + message);
   }
 
   
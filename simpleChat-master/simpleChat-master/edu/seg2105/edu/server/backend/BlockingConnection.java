@@ -0,0 +1,402 @@
+package edu.seg2105.edu.server.backend;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputFilter;
+import java.io.ObjectInputStream;
+import java.io.OutputStream;
+import java.io.StreamCorruptedException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import edu.seg2105.client.common.ChatFrame;
+import edu.seg2105.client.common.FlushStats;
+import edu.seg2105.client.common.SerializedMessageCodec;
+
+/**
+ * A client connection served by blocking threads, as in OCSF, but running
+ * on whatever threads the BlockingServer's factory produces.  One thread
+ * reads and dispatches messages; a second drains the bounded outbound
+ * queue, so senders only enqueue and a slow reader never blocks them.
+ * Direct sends, replays and closes are handed to the connection's fan-out
+ * worker, so they take their place behind the broadcasts already handed
+ * to it.
+ * <p>
+ * Reading goes through an ObjectInputStream whose filter accepts nothing
+ * but Strings at the top level, and which gives up on a message longer
+ * than ServerConfig.maxMessageBytes(); writing uses
+ * SerializedMessageCodec, which produces the same bytes as an
+ * ObjectOutputStream but lets a broadcast share one encoding.  The writer
+ * only flushes once the queue runs dry, the batching delay has passed or
+ * enough bytes are waiting, so a burst of messages leaves in a few large
+ * writes rather than one small segment each.
+ */
+final class BlockingConnection implements ChatConnection, Runnable {
+
+    private final BlockingServer server;
+    private final Socket socket;
+    private final OutboundQueue<ByteBuffer> outbound;
+    private final Map<String, Object> info = new ConcurrentHashMap<String, Object>();
+    private final AtomicBoolean closed = new AtomicBoolean();
+    private final SerializedMessageCodec codec = new SerializedMessageCodec();
+    private final long maxDelayNanos = ServerConfig.batchMaxDelayNanos();
+    private final int maxBytes = ServerConfig.batchMaxBytes();
+    private final AtomicReference<PendingReplay> requestedReplay = new AtomicReference<PendingReplay>();
+    // Writer thread only
+    private JournalCursor replay;
+    private int queuedBeforeReplay;
+
+    BlockingConnection(BlockingServer server, Socket socket, OutboundQueue<ByteBuffer> outbound) {
+        this.server = server;
+        this.socket = socket;
+        this.outbound = outbound;
+    }
+
+    /**
+     * Starts the writer, then reads messages until the socket closes,
+     * dispatching each one on the current thread.
+     */
+    @Override
+    public void run() {
+        try {
+            OutputStream output = new BufferedOutputStream(socket.getOutputStream(),
+                Math.min(maxBytes, 1 << 20));
+            server.newThread(() -> writeLoop(output)).start();
+
+            BoundedInputStream bounded = new BoundedInputStream(new BufferedInputStream(
+                new CountingInputStream(socket.getInputStream())), ServerConfig.maxMessageBytes());
+            ObjectInputStream input = new ObjectInputStream(bounded);
+            input.setObjectInputFilter(BlockingConnection::filter);
+            server.connectionOpened(this);
+
+            while (!closed.get()) {
+                bounded.startMessage();
+                Object msg = input.readObject();
+                server.messageReceived(msg, this);
+            }
+        } catch (IOException | ClassNotFoundException e) {
+            // Peer went away or sent garbage: fall through to the close
+        } finally {
+            closeQuietly();
+        }
+    }
+
+    @Override
+    public void sendToClient(Object msg) throws IOException {
+        checkOpen();
+        ByteBuffer buffer = codec.encode(msg);
+        server.execute(this, () -> enqueue(buffer));
+    }
+
+    /**
+     * Sends a message whose encoding may be shared with other connections.
+     *
+     * @param message The message to send.
+     * @throws IOException If the connection is closed or encoding fails.
+     */
+    void sendEncoded(EncodedMessage message) throws IOException {
+        checkOpen();
+        enqueue(message.bufferFor(codec).duplicate());
+    }
+
+    /**
+     * Fails if the connection has been closed.
+     */
+    private void checkOpen() throws SocketException {
+        if (closed.get()) {
+            throw new SocketException("socket does not exist");
+        }
+    }
+
+    /**
+     * Queues a buffer for the writer, disconnecting the client if its
+     * queue is full and the slow-consumer policy says so.  The close
+     * reports the departure, so it is left to the server to run off the
+     * fan-out workers.
+     */
+    private void enqueue(ByteBuffer buffer) {
+        if (!outbound.offer(buffer)) {
+            server.closeSlow(this::closeQuietly);
+        }
+    }
+
+    /**
+     * Writes the stream header, then queued messages until the queue is
+     * closed or finished and drained.  Messages accumulate in the output
+     * buffer and are flushed when nothing more is queued (after waiting out
+     * the batching delay, if one is configured), or when the batch reaches
+     * the byte threshold.
+     */
+    private void writeLoop(OutputStream output) {
+        WritableByteChannel channel = Channels.newChannel(output);
+        FlushStats stats = server.getOutboundMetrics().flushStats();
+        int frames = 0;
+        long bytes = 0;
+        long deadline = 0;
+        try {
+            bytes += write(channel, codec.streamHeader());
+            frames++;
+            deadline = System.nanoTime() + maxDelayNanos;
+            while (true) {
+                long skipped = outbound.takeSkipped();
+                if (skipped > 0) {
+                    bytes += write(channel, codec.encode(ChatFrame.serverMessage(
+                        "Skipped " + skipped + " messages: connection too slow.")));
+                    if (frames++ == 0) {
+                        deadline = System.nanoTime() + maxDelayNanos;
+                    }
+                }
+                ByteBuffer buffer = pollNext();
+                if (buffer == null && frames > 0) {
+                    long wait = deadline - System.nanoTime();
+                    if (wait > 0 && bytes < maxBytes) {
+                        buffer = outbound.poll(wait);
+                    }
+                    if (buffer == null) {
+                        output.flush();
+                        stats.recordFlush(frames, bytes);
+                        frames = 0;
+                        bytes = 0;
+                    }
+                }
+                if (buffer == null) {
+                    buffer = pollNext();
+                }
+                if (buffer == null) {
+                    buffer = outbound.take();
+                    if (buffer == null) {
+                        if (requestedReplay.get() != null) {
+                            continue; // Woken to start a replay
+                        }
+                        break;
+                    }
+                }
+                bytes += write(channel, buffer);
+                if (frames++ == 0) {
+                    deadline = System.nanoTime() + maxDelayNanos;
+                }
+                if (bytes >= maxBytes) {
+                    output.flush();
+                    stats.recordFlush(frames, bytes);
+                    frames = 0;
+                    bytes = 0;
+                }
+            }
+            if (frames > 0) {
+                output.flush();
+                stats.recordFlush(frames, bytes);
+            }
+        } catch (IOException e) {
+            // Peer went away: fall through to the close
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            closeQuietly();
+        }
+    }
+
+    /**
+     * Returns the next buffer to write without waiting: messages queued
+     * before a replay started, then the replay, then the queue.
+     */
+    private ByteBuffer pollNext() throws IOException {
+        startRequestedReplay();
+        JournalCursor cursor = replay;
+        if (cursor != null) {
+            if (queuedBeforeReplay > 0) {
+                ByteBuffer buffer = outbound.poll();
+                if (buffer != null) {
+                    queuedBeforeReplay--;
+                    return buffer;
+                }
+                queuedBeforeReplay = 0;
+            }
+            ByteBuffer buffer = cursor.next(codec);
+            if (buffer != null) {
+                return buffer;
+            }
+            replay = null;
+        }
+        return outbound.poll();
+    }
+
+    /**
+     * Hands a replay to the writer, which sends it after the messages
+     * already queued and before any queued later, reading from the
+     * cursor only as fast as the socket drains.
+     */
+    @Override
+    public void replay(JournalCursor cursor) throws IOException {
+        checkOpen();
+        server.execute(this, () -> {
+            requestedReplay.set(new PendingReplay(cursor, outbound.depth()));
+            outbound.wakeup();
+        });
+    }
+
+    /**
+     * Takes over a replay handed to the writer, if there is one.
+     */
+    private void startRequestedReplay() {
+        PendingReplay request = requestedReplay.get() != null ? requestedReplay.getAndSet(null) : null;
+        if (request != null) {
+            replay = request.cursor;
+            queuedBeforeReplay = request.queuedBefore;
+        }
+    }
+
+    private static int write(WritableByteChannel channel, ByteBuffer buffer) throws IOException {
+        int length = buffer.remaining();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        return length;
+    }
+
+    /**
+     * Closes the connection once the messages already queued for it have
+     * been written.
+     */
+    @Override
+    public void close() throws IOException {
+        server.execute(this, outbound::finish);
+    }
+
+    @Override
+    public InetAddress getInetAddress() {
+        return socket.getInetAddress();
+    }
+
+    @Override
+    public void setInfo(String infoType, Object value) {
+        if (value == null) {
+            info.remove(infoType);
+        } else {
+            info.put(infoType, value);
+        }
+    }
+
+    @Override
+    public Object getInfo(String infoType) {
+        return info.get(infoType);
+    }
+
+    /**
+     * Closes the socket and reports the disconnection exactly once.
+     */
+    private void closeQuietly() {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        outbound.close();
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // The connection is going away regardless
+        }
+        server.connectionClosed(this);
+    }
+
+    /**
+     * Lets through Strings and back references at the top level of the
+     * stream, which is all a chat client sends, and rejects any other
+     * class before it is loaded.
+     */
+    private static ObjectInputFilter.Status filter(ObjectInputFilter.FilterInfo info) {
+        Class<?> type = info.serialClass();
+        if (info.depth() > 1 || (type != null && type != String.class)) {
+            return ObjectInputFilter.Status.REJECTED;
+        }
+        return ObjectInputFilter.Status.ALLOWED;
+    }
+
+    /**
+     * Fails a read once a message has taken more than the allowed number
+     * of bytes.  The filter never sees Strings, so this is what bounds
+     * their length.  The count may include the few bytes the object
+     * stream reads ahead of the message.
+     */
+    private static final class BoundedInputStream extends FilterInputStream {
+
+        /**
+         * Bytes of the next message the object stream may have read ahead.
+         */
+        private static final int READ_AHEAD_BYTES = 1024;
+
+        private final int maxBytes;
+        private long read;
+
+        BoundedInputStream(InputStream in, int maxBytes) {
+            super(in);
+            this.maxBytes = maxBytes;
+        }
+
+        void startMessage() {
+            read = 0;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                count(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int n = super.read(buffer, offset, length);
+            if (n > 0) {
+                count(n);
+            }
+            return n;
+        }
+
+        private void count(int n) throws StreamCorruptedException {
+            read += n;
+            if (read > maxBytes + READ_AHEAD_BYTES) {
+                throw new StreamCorruptedException("Message too large");
+            }
+        }
+    }
+
+    /**
+     * Reports the bytes read from the socket to the server's metrics.
+     */
+    private final class CountingInputStream extends FilterInputStream {
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                server.bytesReceived(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int read = super.read(buffer, offset, length);
+            if (read > 0) {
+                server.bytesReceived(read);
+            }
+            return read;
+        }
+    }
+}
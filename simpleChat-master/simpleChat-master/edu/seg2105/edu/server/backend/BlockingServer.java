@@ -0,0 +1,252 @@
+package edu.seg2105.edu.server.backend;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A thread-per-connection server engine whose threads come from a
+ * ThreadFactory.  With platform threads it behaves like OCSF; with JDK
+ * virtual threads (Java 21 or later) every connection and its
+ * handleMessageFromClient dispatch run on a virtual thread, so idle
+ * clients cost a small heap object instead of a kernel thread and stack.
+ * Each connection uses a second thread to drain its outbound queue.
+ */
+public class BlockingServer implements ServerEngine {
+
+    private final EchoServer server;
+    private final ThreadFactory threads;
+    private final Set<BlockingConnection> connections = ConcurrentHashMap.newKeySet();
+    private final OutboundMetrics outboundMetrics = new OutboundMetrics();
+    private final ShardedFanOut fanOut;
+    private int port;
+    private volatile ServerSocket serverSocket;
+
+    /**
+     * Constructs a blocking engine for the given server.
+     *
+     * @param port The port number to listen on.
+     * @param server The server whose hooks receive the engine's events.
+     * @param threads The factory that creates the acceptor and connection threads.
+     */
+    public BlockingServer(int port, EchoServer server, ThreadFactory threads) {
+        this.port = port;
+        this.server = server;
+        this.threads = threads;
+        this.fanOut = ShardedFanOut.withWorkers("fanout", ServerConfig.fanOutShards(),
+            ServerConfig.fanOutQueueSize(), BlockingServer::send, server.getMetrics());
+    }
+
+    /**
+     * Returns a factory for JDK virtual threads, or null if this JVM does
+     * not provide them.  Looked up reflectively so that the project still
+     * compiles and runs on Java 17.
+     */
+    public static ThreadFactory virtualThreadFactory() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderType = Class.forName("java.lang.Thread$Builder");
+            builder = builderType.getMethod("name", String.class, long.class)
+                .invoke(builder, "virtual-client-", 0L);
+            Method factory = builderType.getMethod("factory");
+            return (ThreadFactory) factory.invoke(builder);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns a factory for ordinary platform threads.
+     */
+    public static ThreadFactory platformThreadFactory() {
+        AtomicInteger count = new AtomicInteger();
+        return task -> {
+            Thread thread = new Thread(task, "client-" + count.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    @Override
+    public synchronized void listen() throws IOException {
+        if (isListening()) {
+            return;
+        }
+        ServerSocket socket = new ServerSocket();
+        socket.setReuseAddress(true);
+        if (ServerConfig.reusePort() && socket.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+            socket.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+        }
+        socket.bind(new InetSocketAddress(port), 1024);
+        serverSocket = socket;
+        threads.newThread(this::acceptLoop).start();
+        server.serverStarted();
+    }
+
+    @Override
+    public synchronized void stopListening() {
+        ServerSocket socket = serverSocket;
+        if (socket == null) {
+            return;
+        }
+        serverSocket = null;
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // The acceptor is stopping regardless
+        }
+        server.serverStopped();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        stopListening();
+        for (BlockingConnection connection : new ArrayList<BlockingConnection>(connections)) {
+            connection.close();
+        }
+    }
+
+    @Override
+    public boolean isListening() {
+        return serverSocket != null;
+    }
+
+    @Override
+    public synchronized int getPort() {
+        return port;
+    }
+
+    @Override
+    public synchronized void setPort(int port) {
+        this.port = port;
+    }
+
+    /**
+     * Sends a message to every connected client, serializing it once
+     * rather than once per client.
+     */
+    @Override
+    public void sendToAllClients(Object msg) {
+        sendToClients(connections, msg);
+    }
+
+    /**
+     * Sends a message to the given clients, sharing one encoding between
+     * them.  The message may already be an EncodedMessage.  Unless
+     * simplechat.fanout.shards is 1, the clients are split between the
+     * fan-out workers, which queue the message for them in parallel.
+     */
+    @Override
+    public void sendToClients(Collection<? extends ChatConnection> clients, Object msg) {
+        fanOut.send(clients, msg instanceof EncodedMessage ? (EncodedMessage) msg : new EncodedMessage(msg));
+    }
+
+    /**
+     * Runs a task for a connection after the broadcasts already handed to
+     * its fan-out worker.
+     */
+    void execute(BlockingConnection client, Runnable task) {
+        fanOut.execute(client, task);
+    }
+
+    /**
+     * Runs the close of a connection that fell too far behind, off the
+     * fan-out workers.
+     */
+    void closeSlow(Runnable close) {
+        fanOut.close(close);
+    }
+
+    private static void send(ChatConnection client, EncodedMessage message) throws IOException {
+        if (client instanceof BlockingConnection) {
+            ((BlockingConnection) client).sendEncoded(message);
+        } else {
+            client.sendToClient(message.message());
+        }
+    }
+
+    @Override
+    public int getNumberOfClients() {
+        return connections.size();
+    }
+
+    @Override
+    public OutboundMetrics getOutboundMetrics() {
+        return outboundMetrics;
+    }
+
+    /**
+     * Accepts sockets until the server socket is closed, starting one
+     * connection thread for each.
+     */
+    private void acceptLoop() {
+        ServerSocket socket = serverSocket;
+        while (socket != null && !socket.isClosed()) {
+            try {
+                Socket client = socket.accept();
+                client.setTcpNoDelay(true);
+                OutboundQueue<ByteBuffer> queue = OutboundQueue.configured(outboundMetrics, ByteBuffer::remaining);
+                BlockingConnection connection = new BlockingConnection(this, client, queue);
+                // The login timeout runs from here, so a socket that never
+                // sends its stream header is reaped too
+                server.getWatchdog().accepted(connection);
+                threads.newThread(connection).start();
+            } catch (IOException e) {
+                if (!socket.isClosed()) {
+                    ServerLog.warn("Error: Could not accept connection: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Creates a thread from the engine's factory, used by connections for
+     * their writer.
+     */
+    Thread newThread(Runnable task) {
+        return threads.newThread(task);
+    }
+
+    /**
+     * Called on a connection's thread once its streams are open.
+     */
+    void connectionOpened(BlockingConnection connection) {
+        connections.add(connection);
+        server.clientConnected(connection);
+    }
+
+    /**
+     * Called on a connection's thread with the number of bytes it read.
+     */
+    void bytesReceived(int count) {
+        server.getMetrics().bytesReceived(count);
+    }
+
+    /**
+     * Called on a connection's thread for every message it reads.
+     */
+    void messageReceived(Object msg, BlockingConnection connection) {
+        server.handleMessageFromClient(msg, connection);
+    }
+
+    /**
+     * Called when a connection has been closed.
+     */
+    void connectionClosed(BlockingConnection connection) {
+        if (connections.remove(connection)) {
+            server.clientDisconnected(connection);
+        } else {
+            server.getWatchdog().closed(connection);
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package edu.seg2105.edu.server.backend;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.concurrent.locks.LockSupport;
+
+import edu.seg2105.client.common.CompressingMessageCodec;
+
+/**
+ * This interface describes one client connection as seen by EchoServer,
+ * independently of the engine that carries it.  The methods mirror the
+ * ones EchoServer already used on ocsf.server.ConnectionToClient, so the
+ * message handling code reads the same whichever engine is running.
+ */
+public interface ChatConnection {
+
+    /**
+     * Sends a message to this client.
+     *
+     * @param msg The message to send.
+     * @throws IOException If the connection is closed or the write fails.
+     */
+    void sendToClient(Object msg) throws IOException;
+
+    /**
+     * Closes the connection to this client.
+     *
+     * @throws IOException If an error occurs while closing the socket.
+     */
+    void close() throws IOException;
+
+    /**
+     * Returns the address of the client.
+     */
+    InetAddress getInetAddress();
+
+    /**
+     * Saves information about this client, such as its login ID.
+     *
+     * @param infoType The name of the information.
+     * @param info The information itself, or null to remove it.
+     */
+    void setInfo(String infoType, Object info);
+
+    /**
+     * Returns information previously saved with setInfo.
+     *
+     * @param infoType The name of the information.
+     * @return The information, or null if none was saved.
+     */
+    Object getInfo(String infoType);
+
+    /**
+     * Sends this client the messages a journal cursor yields, in order.
+     * Engines with an outbound queue override this to pull from the cursor
+     * only as fast as the socket drains, after the messages already queued;
+     * this default sends them all at once.
+     *
+     * @param cursor The messages to send.
+     * @throws IOException If the connection is closed or the write fails.
+     */
+    default void replay(JournalCursor cursor) throws IOException {
+        Object msg;
+        while ((msg = cursor.nextMessage()) != null) {
+            sendToClient(msg);
+        }
+    }
+
+    /**
+     * Stops reading from this client for a while, to slow down a client
+     * that sends too fast.  Called while the message that went over the
+     * limit is being handled.  This default waits on the calling thread,
+     * which for thread-per-connection engines is the thread reading the
+     * client; engines whose threads serve many clients override it to
+     * stop reading without blocking and to hand the held-back message to
+     * the server again when the time is up.
+     *
+     * @param nanos How long to stop reading.
+     * @return true if the wait is over and the caller should go on with
+     *         the message, false if the connection will redeliver it.
+     */
+    default boolean delayReading(long nanos) {
+        LockSupport.parkNanos(nanos);
+        return true;
+    }
+
+    /**
+     * Compresses the large messages sent to this client from now on.  The
+     * client must be able to read compressed frames, which every binary
+     * protocol client can.  This default, for engines that do not speak
+     * the binary protocol, refuses.
+     *
+     * @param mode The compression mode the client asked for.
+     * @return true if compression is now on.
+     */
+    default boolean enableCompression(CompressingMessageCodec.Mode mode) {
+        return false;
+    }
+}
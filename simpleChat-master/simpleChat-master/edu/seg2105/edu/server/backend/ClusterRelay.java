@@ -0,0 +1,555 @@
+package edu.seg2105.edu.server.backend;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import edu.seg2105.client.common.BinaryMessageCodec;
+
+/**
+ * Links this server to other EchoServer nodes so that a chat line said on
+ * any node reaches its room's members on every node.  Each node listens
+ * for relay links on its own port and opens one link to each peer it is
+ * configured with; a link carries lines one way, from the node that opened
+ * it, so two nodes that list each other have a link in each direction.
+ * <p>
+ * Every line carries an ID made of the node it was said on and a counter.
+ * A node delivers a line the first time it sees its ID and passes it on
+ * to its other peers, never back to the one it came from or to the node
+ * it was said on, and at most MAX_HOPS times; IDs already seen are
+ * dropped.  A full mesh therefore delivers each line once, directly, and
+ * a partial one (a chain or a ring) still reaches every node exactly once.
+ * <p>
+ * A link's writer sends everything queued for it in one write, so a burst
+ * of lines costs one flush per peer.  While a peer is unreachable its
+ * writer retries with backoff, and up to QUEUE_CAPACITY lines wait for it,
+ * the oldest being dropped first.
+ * <p>
+ * Only room chat lines are relayed; private messages, server console
+ * messages and login state stay on the node they belong to.
+ * <p>
+ * The relay port is bound to ServerConfig.clusterBindAddress(), loopback
+ * unless set.  With a cluster secret, both ends of a link prove they know
+ * it before anything else is read or written: each sends a random nonce
+ * in its hello, then an HMAC of its role, its node ID and both nonces, so
+ * a proof cannot be replayed on another link or reflected back.  Without
+ * a secret the relay refuses to bind anything but a loopback address.
+ */
+public final class ClusterRelay {
+
+    /**
+     * The bytes each side of a link sends first, followed by its node ID.
+     */
+    private static final byte[] MAGIC = {'S', 'C', 'R', 2};
+
+    private static final int NONCE_BYTES = 16;
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+    private static final byte ACCEPTOR = 'A';
+    private static final byte CONNECTOR = 'C';
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    /**
+     * The most times a line is passed from node to node.
+     */
+    static final int MAX_HOPS = 8;
+
+    private static final int QUEUE_CAPACITY = 64 * 1024;
+    private static final int BATCH = 1024;
+    private static final int RECENT_IDS = 64 * 1024;
+    private static final int CONNECT_TIMEOUT_MILLIS = 2000;
+    private static final int HANDSHAKE_TIMEOUT_MILLIS = 5000;
+    private static final long RETRY_MIN_MILLIS = 250;
+    private static final long RETRY_MAX_MILLIS = 5000;
+
+    private final EchoServer server;
+    private final ServerMetrics metrics;
+    private final int port;
+    private final String bindAddress;
+    private final byte[] secret;
+    private final long nodeId = ThreadLocalRandom.current().nextLong();
+    private final AtomicLong lastMessageId = new AtomicLong();
+    private final List<Peer> peers = new ArrayList<Peer>();
+    private final Set<Socket> sockets = ConcurrentHashMap.newKeySet();
+    private final Map<IdKey, Boolean> recent = new LinkedHashMap<IdKey, Boolean>() {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<IdKey, Boolean> eldest) {
+            return size() > RECENT_IDS;
+        }
+    };
+    private volatile ServerSocket serverSocket;
+    private volatile boolean closed;
+
+    /**
+     * A line travelling between nodes.
+     */
+    private static final class Relayed {
+        final long origin;
+        final long id;
+        final int hops;
+        final String room;
+        final String line;
+
+        Relayed(long origin, long id, int hops, String room, String line) {
+            this.origin = origin;
+            this.id = id;
+            this.hops = hops;
+            this.room = room;
+            this.line = line;
+        }
+    }
+
+    /**
+     * The other end's hello: its node ID and the nonce it proves the
+     * secret against.
+     */
+    private static final class Hello {
+        final long node;
+        final byte[] nonce;
+
+        Hello(long node, byte[] nonce) {
+            this.node = node;
+            this.nonce = nonce;
+        }
+    }
+
+    /**
+     * A line's ID, as a key of the recently seen set.
+     */
+    private static final class IdKey {
+        final long origin;
+        final long id;
+
+        IdKey(long origin, long id) {
+            this.origin = origin;
+            this.id = id;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof IdKey && ((IdKey) other).origin == origin && ((IdKey) other).id == id;
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(origin * 31 + id);
+        }
+    }
+
+    /**
+     * Creates a relay.  Nothing is opened until start.
+     *
+     * @param server The server that delivers relayed lines.
+     * @param metrics Where to count relay traffic.
+     * @param bindAddress The address to accept links from other nodes on.
+     * @param port The port to accept links from other nodes on.
+     * @param secret The secret every node shares, or null for none.
+     * @param peerAddresses The relay ports of the nodes to send lines to.
+     */
+    ClusterRelay(EchoServer server, ServerMetrics metrics, String bindAddress, int port, byte[] secret,
+            List<InetSocketAddress> peerAddresses) {
+        this.server = server;
+        this.metrics = metrics;
+        this.bindAddress = bindAddress;
+        this.port = port;
+        this.secret = secret;
+        for (InetSocketAddress address : peerAddresses) {
+            peers.add(new Peer(address));
+        }
+    }
+
+    /**
+     * Starts accepting links and connecting to the peers.
+     *
+     * @throws IOException If the relay port cannot be bound, or there is
+     *         no secret and the bind address is not a loopback one.
+     */
+    void start() throws IOException {
+        InetAddress address = InetAddress.getByName(bindAddress);
+        if (secret == null && !address.isLoopbackAddress()) {
+            throw new IOException("binding " + bindAddress + " needs a cluster secret");
+        }
+        ServerSocket socket = new ServerSocket();
+        try {
+            socket.setReuseAddress(true);
+            socket.bind(new InetSocketAddress(address, port));
+        } catch (IOException e) {
+            closeQuietly(socket);
+            throw e;
+        }
+        serverSocket = socket;
+        daemon(this::acceptLoop, "cluster-accept").start();
+        for (Peer peer : peers) {
+            peer.thread = daemon(peer, "cluster-peer-" + peer.address.getHostString() + ":" + peer.address.getPort());
+            peer.thread.start();
+        }
+    }
+
+    /**
+     * Returns the port this node accepts relay links on.
+     */
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * Sends a line said on this node to every peer.
+     *
+     * @param room The line's room.
+     * @param line The line as delivered, with its sender's prefix.
+     */
+    void publish(String room, String line) {
+        Relayed relayed = new Relayed(nodeId, lastMessageId.incrementAndGet(), 0, room, line);
+        for (Peer peer : peers) {
+            peer.enqueue(relayed);
+        }
+    }
+
+    /**
+     * Closes every link and stops accepting new ones.
+     */
+    void close() {
+        closed = true;
+        ServerSocket socket = serverSocket;
+        if (socket != null) {
+            closeQuietly(socket);
+        }
+        for (Peer peer : peers) {
+            peer.stop();
+        }
+        for (Socket link : sockets) {
+            closeQuietly(link);
+        }
+    }
+
+    /**
+     * Records a line's ID as seen.
+     *
+     * @return false if it had been seen already.
+     */
+    private boolean remember(Relayed relayed) {
+        IdKey key = new IdKey(relayed.origin, relayed.id);
+        synchronized (recent) {
+            return recent.put(key, Boolean.TRUE) == null;
+        }
+    }
+
+    /**
+     * Delivers a line that arrived over a link, unless it is a duplicate,
+     * and passes it on to the other peers.
+     *
+     * @param relayed The line.
+     * @param from The node whose link it arrived on.
+     */
+    private void received(Relayed relayed, long from) {
+        if (relayed.origin == nodeId || !remember(relayed)) {
+            metrics.relayDuplicate();
+            return;
+        }
+        metrics.relayReceived();
+        server.relayed(relayed.room, relayed.line);
+        if (relayed.hops + 1 >= MAX_HOPS) {
+            return;
+        }
+        Relayed next = new Relayed(relayed.origin, relayed.id, relayed.hops + 1, relayed.room, relayed.line);
+        for (Peer peer : peers) {
+            long remote = peer.remoteNode;
+            if (remote != from && remote != relayed.origin) {
+                peer.enqueue(next);
+            }
+        }
+    }
+
+    private void acceptLoop() {
+        ServerSocket socket = serverSocket;
+        while (!closed) {
+            try {
+                Socket link = socket.accept();
+                daemon(() -> readLink(link), "cluster-in-" + link.getRemoteSocketAddress()).start();
+            } catch (IOException e) {
+                if (!closed) {
+                    ServerLog.error("Error: Cluster relay stopped accepting links: " + e.getMessage());
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Reads lines from a link opened by another node until it closes,
+     * once the node has proved it knows the secret.
+     */
+    private void readLink(Socket link) {
+        sockets.add(link);
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(link.getInputStream()));
+            DataOutputStream out = new DataOutputStream(link.getOutputStream());
+            link.setSoTimeout(HANDSHAKE_TIMEOUT_MILLIS);
+            byte[] nonce = writeHello(out);
+            out.flush();
+            Hello hello = readHello(in);
+            if (secret != null) {
+                checkProof(in, proof(CONNECTOR, hello.node, hello.nonce, nonce));
+                out.write(proof(ACCEPTOR, nodeId, nonce, hello.nonce));
+                out.flush();
+            }
+            link.setSoTimeout(0);
+            long remote = hello.node;
+            if (remote == nodeId) {
+                return;
+            }
+            ServerLog.info("Cluster node " + Long.toHexString(remote) + " linked from " + link.getRemoteSocketAddress());
+            while (!closed) {
+                received(read(in), remote);
+            }
+        } catch (StreamCorruptedException e) {
+            ServerLog.warn("Refused cluster link from " + link.getRemoteSocketAddress() + ": " + e.getMessage());
+        } catch (IOException e) {
+            // The peer went away; it reconnects on its own
+        } finally {
+            sockets.remove(link);
+            closeQuietly(link);
+        }
+    }
+
+    /**
+     * Writes this node's hello and returns the nonce it carries.
+     */
+    private byte[] writeHello(DataOutputStream out) throws IOException {
+        byte[] nonce = new byte[NONCE_BYTES];
+        RANDOM.nextBytes(nonce);
+        out.write(MAGIC);
+        out.writeLong(nodeId);
+        out.writeBoolean(secret != null);
+        out.write(nonce);
+        return nonce;
+    }
+
+    private Hello readHello(DataInputStream in) throws IOException {
+        byte[] magic = new byte[MAGIC.length];
+        in.readFully(magic);
+        if (!Arrays.equals(magic, MAGIC)) {
+            throw new StreamCorruptedException("Not a cluster relay link");
+        }
+        long node = in.readLong();
+        if (in.readBoolean() != (secret != null)) {
+            throw new StreamCorruptedException("Cluster secret set on only one end of the link");
+        }
+        byte[] nonce = new byte[NONCE_BYTES];
+        in.readFully(nonce);
+        return new Hello(node, nonce);
+    }
+
+    /**
+     * Returns the proof that a node knows the secret: an HMAC of its role
+     * on the link, its node ID, its own nonce and the other end's.
+     */
+    private byte[] proof(byte role, long node, byte[] senderNonce, byte[] receiverNonce) {
+        try {
+            Mac mac = Mac.getInstance(MAC_ALGORITHM);
+            mac.init(new SecretKeySpec(secret, MAC_ALGORITHM));
+            mac.update(role);
+            mac.update(ByteBuffer.allocate(Long.BYTES).putLong(0, node));
+            mac.update(senderNonce);
+            mac.update(receiverNonce);
+            return mac.doFinal();
+        } catch (GeneralSecurityException e) {
+            // Every JDK has HmacSHA256, and it takes keys of any length
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Reads the other end's proof and fails unless it is the expected one.
+     */
+    private static void checkProof(DataInputStream in, byte[] expected) throws IOException {
+        byte[] proof = new byte[expected.length];
+        in.readFully(proof);
+        if (!MessageDigest.isEqual(proof, expected)) {
+            throw new StreamCorruptedException("Wrong cluster secret");
+        }
+    }
+
+    private static void write(DataOutputStream out, Relayed relayed) throws IOException {
+        byte[] line = relayed.line.getBytes(StandardCharsets.UTF_8);
+        out.writeLong(relayed.origin);
+        out.writeLong(relayed.id);
+        out.writeByte(relayed.hops);
+        out.writeUTF(relayed.room);
+        out.writeInt(line.length);
+        out.write(line);
+    }
+
+    private static Relayed read(DataInputStream in) throws IOException {
+        long origin = in.readLong();
+        long id = in.readLong();
+        int hops = in.readUnsignedByte();
+        String room = in.readUTF();
+        int length = in.readInt();
+        if (length < 0 || length > BinaryMessageCodec.MAX_PAYLOAD_BYTES) {
+            throw new StreamCorruptedException("Relayed line too large: " + length);
+        }
+        byte[] line = new byte[length];
+        in.readFully(line);
+        return new Relayed(origin, id, hops, room, new String(line, StandardCharsets.UTF_8));
+    }
+
+    private static Thread daemon(Runnable task, String name) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // Closing regardless
+        }
+    }
+
+    /**
+     * The link to one peer: a bounded queue of lines and the thread that
+     * connects, reconnects and writes them.
+     */
+    private final class Peer implements Runnable {
+        final InetSocketAddress address;
+        final LinkedBlockingDeque<Relayed> queue = new LinkedBlockingDeque<Relayed>(QUEUE_CAPACITY);
+        volatile long remoteNode;
+        volatile Socket socket;
+        volatile Thread thread;
+
+        Peer(InetSocketAddress address) {
+            this.address = address;
+        }
+
+        /**
+         * Queues a line for the peer, dropping the oldest if the queue is
+         * full.
+         */
+        void enqueue(Relayed relayed) {
+            while (!queue.offerLast(relayed)) {
+                if (queue.pollFirst() != null) {
+                    metrics.relayOverflowed();
+                }
+            }
+        }
+
+        void stop() {
+            Thread writer = thread;
+            if (writer != null) {
+                writer.interrupt();
+            }
+            Socket link = socket;
+            if (link != null) {
+                closeQuietly(link);
+            }
+        }
+
+        @Override
+        public void run() {
+            long retryMillis = RETRY_MIN_MILLIS;
+            boolean warned = false;
+            List<Relayed> batch = new ArrayList<Relayed>(BATCH);
+            while (!closed) {
+                Socket link = new Socket();
+                try {
+                    link.connect(address, CONNECT_TIMEOUT_MILLIS);
+                    link.setTcpNoDelay(true);
+                    socket = link;
+                    link.setSoTimeout(HANDSHAKE_TIMEOUT_MILLIS);
+                    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(link.getOutputStream(), 64 * 1024));
+                    DataInputStream in = new DataInputStream(link.getInputStream());
+                    byte[] nonce = writeHello(out);
+                    out.flush();
+                    Hello hello = readHello(in);
+                    if (secret != null) {
+                        out.write(proof(CONNECTOR, nodeId, nonce, hello.nonce));
+                        out.flush();
+                        checkProof(in, proof(ACCEPTOR, hello.node, hello.nonce, nonce));
+                    }
+                    link.setSoTimeout(0);
+                    remoteNode = hello.node;
+                    if (remoteNode == nodeId) {
+                        ServerLog.warn("Cluster peer " + address + " is this node; not relaying to it.");
+                        return;
+                    }
+                    ServerLog.info("Cluster link to " + address + " is up.");
+                    metrics.relayLinkUp();
+                    retryMillis = RETRY_MIN_MILLIS;
+                    warned = false;
+                    try {
+                        while (!closed) {
+                            batch.add(queue.take());
+                            queue.drainTo(batch, BATCH - 1);
+                            for (Relayed relayed : batch) {
+                                write(out, relayed);
+                            }
+                            out.flush();
+                            metrics.linesRelayed(batch.size());
+                            batch.clear();
+                        }
+                    } finally {
+                        metrics.relayLinkDown();
+                    }
+                } catch (StreamCorruptedException e) {
+                    if (!warned) {
+                        ServerLog.warn("Cluster peer " + address + " refused: " + e.getMessage());
+                        warned = true;
+                    }
+                } catch (IOException e) {
+                    // Lines in a failed write may or may not have arrived: send
+                    // them again first, and let the peer drop the duplicates
+                    for (int i = batch.size() - 1; i >= 0; i--) {
+                        if (!queue.offerFirst(batch.get(i))) {
+                            metrics.relayOverflowed();
+                        }
+                    }
+                    batch.clear();
+                } catch (InterruptedException e) {
+                    return;
+                } finally {
+                    closeQuietly(link);
+                    socket = null;
+                }
+                if (closed) {
+                    return;
+                }
+                try {
+                    TimeUnit.MILLISECONDS.sleep(ThreadLocalRandom.current().nextLong(retryMillis / 2, retryMillis + 1));
+                } catch (InterruptedException e) {
+                    return;
+                }
+                retryMillis = Math.min(RETRY_MAX_MILLIS, retryMillis * 2);
+            }
+        }
+    }
+}
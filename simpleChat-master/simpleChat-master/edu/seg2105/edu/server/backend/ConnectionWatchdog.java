@@ -0,0 +1,218 @@
+package edu.seg2105.edu.server.backend;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import edu.seg2105.client.common.ChatFrame;
+
+/**
+ * Closes connections that have gone quiet.  A connection that has not
+ * logged in within the login timeout is reaped, whether or not it has
+ * sent anything, so sockets opened and left idle cannot pile up.  Once
+ * logged in, a connection is reaped after the idle timeout without a
+ * message, or after twice the interval it promised with #heartbeat.
+ * <p>
+ * Each connection holds at most one timeout on a shared TimerWheel.
+ * Messages only stamp the time they arrived; the timeout is not moved
+ * for each one.  When it fires it checks the stamp and either reaps the
+ * connection or waits again for what is left, so a busy connection costs
+ * one timer event per idle period rather than one per message.
+ */
+final class ConnectionWatchdog {
+
+    /**
+     * Info key under which a connection's watch is kept.
+     */
+    private static final String WATCH_KEY = "watch";
+
+    private final TimerWheel wheel;
+    private final ServerMetrics metrics;
+    private final long loginNanos;
+    private final long idleNanos;
+
+    /**
+     * Creates a watchdog with the configured timeouts and starts its
+     * wheel.
+     *
+     * @param metrics Where reaped connections are counted.
+     */
+    ConnectionWatchdog(ServerMetrics metrics) {
+        this.metrics = metrics;
+        this.loginNanos = TimeUnit.MILLISECONDS.toNanos(ServerConfig.loginTimeoutMillis());
+        this.idleNanos = TimeUnit.MILLISECONDS.toNanos(ServerConfig.idleTimeoutMillis());
+        this.wheel = new TimerWheel("connection-timeouts", ServerConfig.timerTickMillis());
+    }
+
+    /**
+     * Starts watching a new connection for its login.  Engines call this
+     * when they accept a socket, before its wire format is known; calling
+     * it again for the same connection does nothing.
+     *
+     * @param client The connection.
+     */
+    void accepted(ChatConnection client) {
+        synchronized (client) {
+            if (client.getInfo(WATCH_KEY) != null) {
+                return;
+            }
+            Watch watch = new Watch(client);
+            client.setInfo(WATCH_KEY, watch);
+            if (loginNanos > 0) {
+                watch.arm(loginNanos);
+            }
+        }
+    }
+
+    /**
+     * Records that a message arrived on a connection.
+     *
+     * @param client The connection.
+     */
+    void active(ChatConnection client) {
+        Watch watch = (Watch) client.getInfo(WATCH_KEY);
+        if (watch != null) {
+            watch.lastActive = System.nanoTime();
+        }
+    }
+
+    /**
+     * Ends a connection's login timeout and starts its idle timeout, if
+     * one is configured.
+     *
+     * @param client The connection that logged in.
+     */
+    void loggedIn(ChatConnection client) {
+        Watch watch = (Watch) client.getInfo(WATCH_KEY);
+        if (watch != null) {
+            watch.loggedIn(idleNanos);
+        }
+    }
+
+    /**
+     * Expects a message from a logged-in connection at least every
+     * interval, reaping it after two intervals without one.  This replaces
+     * the idle timeout for that connection.
+     *
+     * @param client The connection.
+     * @param intervalMillis The interval the client promised.
+     */
+    void heartbeat(ChatConnection client, long intervalMillis) {
+        Watch watch = (Watch) client.getInfo(WATCH_KEY);
+        if (watch != null) {
+            watch.loggedIn(2 * TimeUnit.MILLISECONDS.toNanos(intervalMillis));
+        }
+    }
+
+    /**
+     * Stops watching a connection that has closed.
+     *
+     * @param client The connection.
+     */
+    void closed(ChatConnection client) {
+        Watch watch = (Watch) client.getInfo(WATCH_KEY);
+        if (watch != null) {
+            watch.disarm();
+        }
+    }
+
+    /**
+     * Stops the wheel.  No further connections are reaped.
+     */
+    void stop() {
+        wheel.stop();
+    }
+
+    /**
+     * Tells a connection why it is being closed and closes it.
+     */
+    private static void reap(ChatConnection client, String reason) {
+        try {
+            client.sendToClient(ChatFrame.serverMessage(reason));
+        } catch (IOException e) {
+            // Not negotiated yet, or already going: close regardless
+        }
+        try {
+            client.close();
+        } catch (IOException e) {
+            // Already gone
+        }
+    }
+
+    /**
+     * The timeout state of one connection.
+     */
+    private final class Watch implements Runnable {
+
+        private final ChatConnection client;
+        private volatile long lastActive = System.nanoTime();
+        private long limitNanos;
+        private boolean loggedIn;
+        private boolean closed;
+        private TimerWheel.Timeout timeout;
+
+        Watch(ChatConnection client) {
+            this.client = client;
+        }
+
+        synchronized void arm(long delayNanos) {
+            if (closed) {
+                return;
+            }
+            if (timeout != null) {
+                timeout.cancel();
+            }
+            timeout = wheel.schedule(this, delayNanos, TimeUnit.NANOSECONDS);
+        }
+
+        synchronized void loggedIn(long limitNanos) {
+            this.loggedIn = true;
+            this.limitNanos = limitNanos;
+            if (timeout != null) {
+                timeout.cancel();
+                timeout = null;
+            }
+            if (limitNanos > 0) {
+                arm(lastActive + limitNanos - System.nanoTime());
+            }
+        }
+
+        synchronized void disarm() {
+            closed = true;
+            if (timeout != null) {
+                timeout.cancel();
+                timeout = null;
+            }
+        }
+
+        /**
+         * Called on the wheel thread when the timeout fires.
+         */
+        @Override
+        public void run() {
+            String reason;
+            String who;
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                if (!loggedIn) {
+                    metrics.loginTimedOut();
+                    reason = "Error: Login timed out.";
+                    who = "connection from " + client.getInetAddress();
+                } else {
+                    long left = lastActive + limitNanos - System.nanoTime();
+                    if (left > 0) {
+                        arm(left);
+                        return;
+                    }
+                    metrics.idleTimedOut();
+                    reason = "Error: Idle timeout. Disconnecting.";
+                    who = "idle client " + client.getInfo("loginId");
+                }
+                closed = true;
+            }
+            ServerLog.info("Reaping " + who + ".");
+            reap(client, reason);
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package edu.seg2105.edu.server.backend;
+
+/**
+ * What the server does when a client logs in with an ID that another
+ * connection is already using.
+ */
+public enum DuplicateLoginPolicy {
+
+    /**
+     * Refuse the new login and close the new connection.
+     */
+    REJECT,
+
+    /**
+     * Accept the new login and close the connection that held the ID, as
+     * when a user reconnects before the old connection has timed out.
+     */
+    KICK_OLD;
+
+    /**
+     * Parses a policy name such as "kick-old" or "KICK_OLD".
+     *
+     * @param name The policy name.
+     * @return The policy.
+     * @throws IllegalArgumentException If the name is unknown.
+     */
+    public static DuplicateLoginPolicy parse(String name) {
+        return valueOf(name.trim().toUpperCase().replace('-', '_'));
+    }
+}
@@ -4,7 +4,22 @@ package edu.seg2105.edu.server.backend;
 // license found at www.lloseng.com 
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
+import edu.seg2105.client.common.BinaryMessageCodec;
+import edu.seg2105.client.common.ChatFrame;
+import edu.seg2105.client.common.CommandTable;
+import edu.seg2105.client.common.CompressingMessageCodec;
+import edu.seg2105.client.common.FrameView;
+import edu.seg2105.client.common.TlsConfig;
 import ocsf.server.*;
 
 /**
@@ -16,7 +31,7 @@ import ocsf.server.*;
  * @author Fran&ccedil;ois B&eacute;langer
  * @author Paul Holden
  */
-public class EchoServer extends AbstractServer 
+public class EchoServer extends AbstractServer implements ServerEngine
 {
   //Class variables *************************************************
   
@@ -24,17 +39,187 @@ public class EchoServer extends AbstractServer
    * The default port to listen on.
    */
   final public static int DEFAULT_PORT = 5556;
+
+  /**
+   * The start of the notice naming the journal whose sequence numbers a
+   * client is sent, followed by its ID.
+   */
+  final private static String JOURNAL_ANNOUNCEMENT = "#journal ";
+  
+  //Instance variables **********************************************
+  
+  /**
+   * The server's counters and latency histograms.
+   */
+  private final ServerMetrics metrics = new ServerMetrics();
+
+  /**
+   * The engine that carries client connections.  This is the server itself
+   * for the OCSF thread-per-connection engine.
+   */
+  private final ServerEngine engine;
+
+  /**
+   * Splits broadcasts between worker threads when this server is its own
+   * (OCSF) engine, or null for the other engines, which have their own.
+   */
+  private final ShardedFanOut ocsfFanOut;
+
+  /**
+   * The OCSF connections' outbound queue counters, or null for the other
+   * engines, which keep their own.
+   */
+  private final OutboundMetrics ocsfOutbound;
+
+  /**
+   * The stages every received message goes through.
+   */
+  private final MessagePipeline pipeline;
+
+  /**
+   * The commands that log a client in.
+   */
+  private final CommandTable<LoginCommand> loginCommands;
+
+  /**
+   * The commands a logged-in client may send.
+   */
+  private final CommandTable<ServerCommand> commands;
+
+  /**
+   * The logged-in clients by login ID.
+   */
+  private final SessionRegistry sessions = new SessionRegistry();
+
+  /**
+   * Private messages for logged-off users.
+   */
+  private final Mailboxes mailboxes =
+    new Mailboxes(ServerConfig.mailboxMaxMessages(), ServerConfig.mailboxMaxUsers());
+
+  /**
+   * Per-login and per-address flood protection.
+   */
+  private final RateLimiter rateLimiter = new RateLimiter(
+    ServerConfig.rateLoginPerSecond(), ServerConfig.rateLoginBurst(),
+    ServerConfig.rateAddressPerSecond(), ServerConfig.rateAddressBurst());
+
+  /**
+   * What to do with a message over the rate limit.
+   */
+  private final RateLimitPolicy rateLimitPolicy = ServerConfig.rateLimitPolicy();
+
+  /**
+   * What to do when a login ID is already in use.
+   */
+  private final DuplicateLoginPolicy duplicateLogins = ServerConfig.duplicateLoginPolicy();
+
+  /**
+   * Which clients are in which chat room.
+   */
+  private final RoomIndex rooms = new RoomIndex();
+
+  /**
+   * The on-disk log of chat lines, or null if journaling is disabled or
+   * the journal could not be opened.
+   */
+  private final MessageJournal journal;
+
+  /**
+   * The most recent chat lines of each room, for #history.
+   */
+  private final HistoryCache history = HistoryCache.configured(metrics);
+
+  /**
+   * The relay to the other nodes of the cluster, or null if this server
+   * runs alone.
+   */
+  private final ClusterRelay cluster;
+
+  /**
+   * Closes connections that do not log in, or go quiet, in time.
+   */
+  private final ConnectionWatchdog watchdog = new ConnectionWatchdog(metrics);
+
+  /**
+   * The metrics scrape endpoint, or null if it is disabled.
+   */
+  private final MetricsEndpoint metricsEndpoint;
+
+  /**
+   * Where each client that has logged off left the conversation, so that
+   * it can be caught up when it logs in again.  Bounded: the clients that
+   * left longest ago are forgotten first.
+   */
+  private final Map<String, LastSeen> lastSeen =
+    Collections.synchronizedMap(newLastSeenMap(ServerConfig.journalMaxLoggedOffUsers()));
+
+  /**
+   * Held while a chat line is numbered and handed to its recipients, and
+   * while a client joins and its catch-up starts, so that every client
+   * receives sequence numbers in increasing order, each line exactly once.
+   */
+  private final Object sequenceLock = new Object();
   
   //Constructors ****************************************************
   
   /**
-   * Constructs an instance of the echo server.
+   * Constructs an instance of the echo server using the engine named by
+   * the simplechat.engine system property.
    *
    * @param port The port number to connect on.
    */
   public EchoServer(int port) 
+  {
+    this(port, ServerConfig.engine());
+  }
+
+  /**
+   * Constructs an instance of the echo server on the given engine.
+   *
+   * @param port The port number to connect on.
+   * @param engineName "ocsf" for one thread per client, "nio" for the
+   *                   non-blocking selector engine, or "virtual" or
+   *                   "platform" for the thread-per-client engine on
+   *                   virtual or platform threads.  With TLS on, the
+   *                   nio engine is used whatever the name.
+   * @throws IllegalStateException If "virtual" is asked for on a JVM
+   *         without virtual threads.
+   */
+  public EchoServer(int port, String engineName) 
   {
     super(port);
+    if (TlsConfig.enabled() && !ServerConfig.ENGINE_NIO.equalsIgnoreCase(engineName)) {
+      ServerLog.warn("TLS is only carried by the nio engine. Using nio.");
+      engineName = ServerConfig.ENGINE_NIO;
+    }
+    if (ServerConfig.ENGINE_NIO.equalsIgnoreCase(engineName)) {
+      engine = new NioServer(port, this, ServerConfig.eventLoops());
+    } else if (ServerConfig.ENGINE_VIRTUAL.equalsIgnoreCase(engineName)) {
+      ThreadFactory threads = BlockingServer.virtualThreadFactory();
+      if (threads == null) {
+        throw new IllegalStateException("Virtual threads need Java 21 or later; use the platform engine on "
+          + System.getProperty("java.version") + ".");
+      }
+      engine = new BlockingServer(port, this, threads);
+    } else if (ServerConfig.ENGINE_PLATFORM.equalsIgnoreCase(engineName)) {
+      engine = new BlockingServer(port, this, BlockingServer.platformThreadFactory());
+    } else {
+      engine = this;
+    }
+    ocsfFanOut = engine == this
+      ? ShardedFanOut.withWorkers("ocsf-fanout", ServerConfig.fanOutShards(),
+          ServerConfig.fanOutQueueSize(), EchoServer::sendOcsf, metrics)
+      : null;
+    ocsfOutbound = engine == this ? new OutboundMetrics() : null;
+    loginCommands = new CommandTable<LoginCommand>()
+      .register("#login", this::login)
+      .register("#resume", this::resume);
+    commands = buildCommands();
+    pipeline = buildPipeline();
+    journal = openJournal();
+    metricsEndpoint = startMetricsEndpoint();
+    cluster = startCluster(port);
   }
 
 
@@ -42,50 +227,725 @@ public class EchoServer extends AbstractServer
   //Instance methods ************************************************
   
   /**
-   * This method handles any messages received from the client.
+   * Returns the engine that carries client connections.  Console commands
+   * such as #start and #close must go through the engine.
+   */
+  public ServerEngine getEngine() {
+      return engine;
+  }
+
+  /**
+   * Returns the server's counters and latency histograms.
+   */
+  public ServerMetrics getMetrics() {
+      return metrics;
+  }
+
+  /**
+   * Returns the logged-in clients by login ID.
+   */
+  public SessionRegistry getSessions() {
+      return sessions;
+  }
+
+  /**
+   * Returns the login and idle timeouts, for engines to start watching
+   * connections as soon as they are accepted.
+   */
+  ConnectionWatchdog getWatchdog() {
+      return watchdog;
+  }
+
+  /**
+   * Sends a message to every OCSF client through the fan-out, so that it
+   * keeps its place among the other messages each client is sent.
+   * Binary frames are turned back into the plain Strings the OCSF object
+   * streams carry.
+   *
+   * @param msg The message to send.
+   */
+  @Override
+  public void sendToAllClients(Object msg) {
+      if (ocsfFanOut == null) {
+          super.sendToAllClients(ChatFrame.toLegacy(msg));
+          return;
+      }
+      Thread[] connections = getClientConnections();
+      List<ChatConnection> clients = new ArrayList<ChatConnection>(connections.length);
+      for (Thread connection : connections) {
+          clients.add(ocsf((ConnectionToClient) connection));
+      }
+      sendToClients(clients, msg);
+  }
+
+  /**
+   * Sends a message to the given OCSF clients.  The clients are split
+   * between the fan-out workers, which add the message to each client's
+   * outbound queue for its writer thread.
+   *
+   * @param clients The recipients.
+   * @param msg The message to send, possibly an EncodedMessage.
+   */
+  @Override
+  public void sendToClients(Collection<? extends ChatConnection> clients, Object msg) {
+      ocsfFanOut.send(clients, msg instanceof EncodedMessage ? (EncodedMessage) msg : new EncodedMessage(msg));
+  }
+
+  /**
+   * Returns the OCSF connections' outbound queue counters, or null when
+   * another engine carries the clients.
+   */
+  @Override
+  public OutboundMetrics getOutboundMetrics() {
+      return ocsfOutbound;
+  }
+
+  /**
+   * Returns the adapter for an OCSF connection.
+   */
+  private OcsfConnection ocsf(ConnectionToClient client) {
+      return OcsfConnection.of(client, ocsfFanOut, ocsfOutbound);
+  }
+
+  private static void sendOcsf(ChatConnection client, EncodedMessage message) throws IOException {
+      if (client instanceof OcsfConnection) {
+          ((OcsfConnection) client).sendEncoded(message);
+      } else {
+          client.sendToClient(message.message());
+      }
+  }
+
+  /**
+   * This method handles any messages received from an OCSF client.
    *
    * @param msg The message received from the client.
    * @param client The connection from which the message originated.
    */
   @Override
   protected void handleMessageFromClient(Object msg, ConnectionToClient client) {
-      String message = msg.toString();
+      handleMessageFromClient(msg, ocsf(client));
+  }
+
+  /**
+   * This method handles any messages received from the client,
+   * whichever engine carried them, by passing them through the message
+   * pipeline.  The NIO engine hands over binary messages as a FrameView,
+   * which is only valid until this call returns.
+   *
+   * @param msg The message received from the client.
+   * @param client The connection from which the message originated.
+   */
+  protected void handleMessageFromClient(Object msg, ChatConnection client) {
+      pipeline.handle(client, msg);
+  }
+
+  /**
+   * Builds the pipeline every received message goes through: decode,
+   * filter (rate limits), auth (login) and route (commands and chat).
+   * Decode and filter run on the thread that read the message, since
+   * the filter may pause reading; auth and route may be given workers
+   * of their own.
+   */
+  private MessagePipeline buildPipeline() {
+      int queueSize = ServerConfig.pipelineQueueSize();
+      return new MessagePipeline(metrics)
+        .stage("decode", this::decode)
+        .stage("filter", this::filter)
+        .stage("auth", this::authenticate, ServerConfig.pipelineThreads("auth"), queueSize)
+        .stage("route", this::route, ServerConfig.pipelineThreads("route"), queueSize);
+  }
+
+  /**
+   * Builds the table of commands a logged-in client may send.
+   */
+  private CommandTable<ServerCommand> buildCommands() {
+      return new CommandTable<ServerCommand>()
+        .register("#join", (client, loginId, args) -> joinRoom(client, loginId, args))
+        .register("#leave", (client, loginId, args) -> joinRoom(client, loginId, RoomIndex.LOBBY))
+        .register("#who", (client, loginId, args) -> listRoom(client))
+        .register("#history", (client, loginId, args) -> sendHistory(client, args))
+        .register("#msg", this::sendPrivate)
+        .register("#compress", (client, loginId, args) -> enableCompression(client, args))
+        .register("#heartbeat", (client, loginId, args) -> enableHeartbeat(client, args))
+        .register("#ping", (client, loginId, args) -> client.sendToClient(ChatFrame.serverMessage("#pong")));
+  }
+
+  /**
+   * Decode stage: counts the message.  Its text is only decoded by the
+   * stages that need it.
+   */
+  private boolean decode(MessagePipeline.Message message) {
+      metrics.messageReceived();
+      watchdog.active(message.client);
+      return true;
+  }
+
+  /**
+   * Filter stage: applies the rate limits, if any.
+   */
+  private boolean filter(MessagePipeline.Message message) throws IOException {
+      return !rateLimiter.isEnabled() || admit(message.client);
+  }
+
+  /**
+   * Auth stage: handles #login and #resume, and stops anything else from
+   * a client that has not logged in.
+   */
+  private boolean authenticate(MessagePipeline.Message message) throws IOException {
+      ChatConnection client = message.client;
+      LoginCommand login = message.isCommand() ? loginCommands.lookup(message.text()) : null;
+      if (login != null) {
+          // Ensure #login is the first command received
+          if (client.getInfo("loginId") != null) {
+              client.sendToClient(ChatFrame.serverMessage("Error: Already logged in."));
+              client.close();
+              return false;
+          }
+          login.logIn(client, CommandTable.arguments(message.text()));
+          return false;
+      }
+
+      // Ensure client has logged in before sending messages
+      message.loginId = (String) client.getInfo("loginId");
+      if (message.loginId == null) {
+          client.sendToClient(ChatFrame.serverMessage("Error: Login required."));
+          client.close();
+          return false;
+      }
+      return true;
+  }
+
+  /**
+   * Route stage: runs the command the message names, or says it in the
+   * sender's room if it is not a command.
+   */
+  private boolean route(MessagePipeline.Message message) throws IOException {
+      ServerCommand command = message.isCommand() ? commands.lookup(message.text()) : null;
+      if (command != null) {
+          command.handle(message.client, message.loginId, CommandTable.arguments(message.text()));
+      } else if (message.received instanceof FrameView) {
+          // Copied from the frame as it was read, without decoding it
+          chat(message.client, BinaryMessageCodec.chat(message.loginId, (FrameView) message.received));
+      } else {
+          chat(message.client, ChatFrame.chat(message.loginId, message.text()));
+      }
+      return true;
+  }
+
+  /**
+   * Handles #login: logs a new client in under the given ID.
+   */
+  private void login(ChatConnection client, String loginId) throws IOException {
+      if (loginId.isEmpty()) {
+          client.sendToClient(ChatFrame.serverMessage("Error: Usage: #login <loginId>"));
+          client.close();
+          return;
+      }
+      logIn(client, loginId, -1);
+  }
+
+  /**
+   * Handles #resume: logs a reconnecting client in, which says which
+   * sequence number it saw last and, optionally, in which journal.  A
+   * number from another journal means nothing here, so the client is
+   * caught up as if it had sent #login.
+   */
+  private void resume(ChatConnection client, String args) throws IOException {
+      String[] parts = args.split(" ", 2);
+      int at = parts[0].indexOf('@');
+      String journalId = at >= 0 ? parts[0].substring(at + 1) : null;
+      long since;
+      try {
+          since = Long.parseLong(at >= 0 ? parts[0].substring(0, at) : parts[0]);
+      } catch (NumberFormatException e) {
+          since = -1;
+      }
+      if (since < 0 || parts.length < 2 || parts[1].trim().isEmpty()) {
+          client.sendToClient(ChatFrame.serverMessage(
+              "Error: Usage: #resume <sequence>[@<journal>] <loginId>"));
+          client.close();
+          return;
+      }
+      if (journalId != null && (journal == null || !journalId.equals(journal.id()))) {
+          since = -1;
+      }
+      logIn(client, parts[1].trim(), since);
+  }
+
+  /**
+   * Logs a client in, catching it up on its room if it says, or the
+   * server remembers, where it left off.
+   *
+   * @param client The client.
+   * @param loginId The login ID it asked for.
+   * @param since The last sequence number it saw, or -1.
+   */
+  private void logIn(ChatConnection client, String loginId, long since) throws IOException {
+      // Claim the login ID, or take it from the connection holding it
+      ChatConnection displaced = null;
+      if (duplicateLogins == DuplicateLoginPolicy.KICK_OLD) {
+          displaced = sessions.takeOver(loginId, client);
+      } else if (!sessions.claim(loginId, client)) {
+          client.sendToClient(ChatFrame.serverMessage(
+              "Error: " + loginId + " is already logged in."));
+          client.close();
+          return;
+      }
+
+      // Set login ID and notify successful login
+      client.setInfo("loginId", loginId);
+      // New clients start in the lobby, returning ones where they left
+      // off, and a takeover in the room of the session it replaced
+      LastSeen seen = lastSeen.remove(loginId);
+      String room = seen != null ? seen.room : RoomIndex.LOBBY;
+      if (displaced != null) {
+          room = currentRoom(displaced);
+          logOut(displaced, loginId);
+      }
+      if (since < 0 && seen != null) {
+          since = seen.sequence;
+      }
+      metrics.loggedIn();
+      watchdog.loggedIn(client);
+      ServerLog.info("Client " + loginId + " has logged in.");
+      synchronized (sequenceLock) {
+          rooms.join(client, room);
+          client.sendToClient(ChatFrame.serverMessage("Login successful as " + loginId));
+          if (journal != null) {
+              // Sequence numbers that follow belong to this journal
+              client.sendToClient(ChatFrame.serverMessage(JOURNAL_ANNOUNCEMENT + journal.id()));
+          }
+          if (since >= 0) {
+              catchUp(client, room, since);
+          }
+      }
+      deliverMail(client, loginId);
+  }
+
+  /**
+   * Says a chat line in the sender's room, and on the other nodes of the
+   * cluster.
+   */
+  private void chat(ChatConnection client, ChatFrame line) {
+      // Kept as sender and text: binary recipients and the
+      // journal encode the line without building "loginId: text"
+      String room = currentRoom(client);
+
+      if (ServerLog.isEnabled(ServerLog.Level.DEBUG)) {
+          ServerLog.debug("Message received from " + line);
+      }
+      synchronized (sequenceLock) {
+          // Deliver to the sender's room only
+          deliver(rooms.members(room), remember(room, journal(room, line)));
+      }
+      if (cluster != null) {
+          cluster.publish(room, line.toString());
+      }
+  }
+
+  /**
+   * Checks a message against the client's rate limits and applies the
+   * configured policy if it is over them.
+   *
+   * @param client The client that sent the message.
+   * @return true to handle the message now, false if it was dropped, the
+   *         client disconnected, or the connection will redeliver it.
+   */
+  private boolean admit(ChatConnection client) throws IOException {
+      long wait;
+      while ((wait = rateLimiter.acquire((String) client.getInfo("loginId"), client.getInetAddress())) > 0) {
+          metrics.rateLimited();
+          if (rateLimitPolicy == RateLimitPolicy.DROP) {
+              return false;
+          }
+          if (rateLimitPolicy == RateLimitPolicy.DISCONNECT) {
+              ServerLog.warn("Client " + client.getInfo("loginId") + " exceeded its rate limit and was disconnected.");
+              client.sendToClient(ChatFrame.serverMessage("Error: Rate limit exceeded. Disconnecting."));
+              client.close();
+              return false;
+          }
+          if (!client.delayReading(wait)) {
+              return false;
+          }
+      }
+      return true;
+  }
+
+  /**
+   * Delivers a chat line said on another node of the cluster to the
+   * members of its room here, numbering it in this node's journal so that
+   * returning clients catch up on it too.
+   *
+   * @param room The line's room.
+   * @param line The line, with its sender's prefix.
+   */
+  void relayed(String room, String line) {
+      synchronized (sequenceLock) {
+          deliver(rooms.members(room), remember(room, journal(room, line)));
+      }
+  }
+
+  /**
+   * Hands a message to the engine for a set of recipients, timing the
+   * fan-out.
+   */
+  private void deliver(Collection<ChatConnection> recipients, Object msg) {
+      long start = System.nanoTime();
+      engine.sendToClients(recipients, msg);
+      metrics.fannedOut(recipients.size(), System.nanoTime() - start);
+  }
+
+  /**
+   * Sends a private message to one user, found by login ID, or leaves it
+   * in the user's mailbox if they are logged off.
+   *
+   * @param client The sender's connection.
+   * @param loginId The sender's login ID.
+   * @param command The rest of the #msg command: recipient and text.
+   */
+  private void sendPrivate(ChatConnection client, String loginId, String command) throws IOException {
+      String[] parts = command.trim().split(" ", 2);
+      if (parts.length < 2 || parts[0].isEmpty() || parts[1].trim().isEmpty()) {
+          client.sendToClient(ChatFrame.serverMessage("Error: Usage: #msg <loginId> <message>"));
+          return;
+      }
+      String recipient = parts[0];
+      String line = loginId + " (private): " + parts[1].trim();
+      ChatConnection to = sessions.lookup(recipient);
+      long start = System.nanoTime();
+      if (to != null && sendQuietly(to, line)) {
+          metrics.fannedOut(1, System.nanoTime() - start);
+          return;
+      }
+      if (!mailboxes.deposit(recipient, line)) {
+          client.sendToClient(ChatFrame.serverMessage(
+              "Error: " + recipient + "'s mailbox is full. Message not sent."));
+          return;
+      }
+      // The recipient may have logged in since the lookup
+      to = sessions.lookup(recipient);
+      if (to != null) {
+          deliverMail(to, recipient);
+      }
+      client.sendToClient(ChatFrame.serverMessage(
+          recipient + " is not logged in. The message will be delivered at their next login."));
+  }
+
+  /**
+   * Sends a client the private messages left for it while it was logged
+   * off.  Any that cannot be sent are put back for its next login.
+   *
+   * @param client The client's connection.
+   * @param loginId The client's login ID.
+   */
+  private void deliverMail(ChatConnection client, String loginId) {
+      List<String> mail = mailboxes.take(loginId);
+      if (mail.isEmpty()) {
+          return;
+      }
+      int sent = 0;
+      if (sendQuietly(client, ChatFrame.serverMessage(
+              "You have " + mail.size() + " private message(s) sent while you were away."))) {
+          while (sent < mail.size() && sendQuietly(client, mail.get(sent))) {
+              sent++;
+          }
+      }
+      for (String line : mail.subList(sent, mail.size())) {
+          mailboxes.deposit(loginId, line);
+      }
+  }
+
+  /**
+   * Sends a message to one client, returning false instead of throwing if
+   * its connection has gone.
+   */
+  private static boolean sendQuietly(ChatConnection client, Object msg) {
+      try {
+          client.sendToClient(msg);
+          return true;
+      } catch (IOException e) {
+          return false;
+      }
+  }
 
+  /**
+   * Turns on compression of what is sent to a client, in the mode it
+   * asked for, and confirms it with "Compression enabled: &lt;mode&gt;", which
+   * tells the client it may compress what it sends too.
+   *
+   * @param client The client asking.
+   * @param mode The mode name.
+   */
+  private void enableCompression(ChatConnection client, String mode) throws IOException {
+      CompressingMessageCodec.Mode parsed;
       try {
-          // Check if the message is a login command
-          if (message.startsWith("#login ")) {
-              // Ensure #login is the first command received
-              if (client.getInfo("loginId") != null) {
-                  client.sendToClient("Error: Already logged in.");
-                  client.close();
-                  return;
-              }
-
-              // Set login ID and notify successful login
-              String loginId = message.substring(7).trim();
-              client.setInfo("loginId", loginId);
-              System.out.println("Client " + loginId + " has logged in.");
-              client.sendToClient("Login successful as " + loginId);
-          } else {
-              // Ensure client has logged in before sending messages
-              if (client.getInfo("loginId") == null) {
-                  client.sendToClient("Error: Login required.");
-                  client.close();
-                  return;
-              }
-
-              // Retrieve login ID for message prefix
-              String loginId = client.getInfo("loginId").toString();
-              String prefixedMessage = loginId + ": " + message;
-
-              System.out.println("Message received from " + loginId + ": " + message);
-              sendToAllClients(prefixedMessage); // Broadcast prefixed message
+          parsed = CompressingMessageCodec.Mode.parse(mode);
+      } catch (IllegalArgumentException e) {
+          client.sendToClient(ChatFrame.serverMessage("Error: Unknown compression mode " + mode.trim()));
+          return;
+      }
+      if (!ServerConfig.compressionAllowed()) {
+          client.sendToClient(ChatFrame.serverMessage("Error: Compression is disabled on this server."));
+      } else if (client.enableCompression(parsed)) {
+          client.sendToClient(ChatFrame.serverMessage(
+              "Compression enabled: " + parsed.name().toLowerCase()));
+      } else {
+          client.sendToClient(ChatFrame.serverMessage("Error: Compression is not available on this connection."));
+      }
+  }
+
+  /**
+   * Holds a client to the heartbeat interval it promised: it is closed
+   * after two intervals without sending anything.  Confirmed with
+   * "Heartbeat enabled: &lt;millis&gt;".
+   *
+   * @param client The client asking.
+   * @param interval The interval in milliseconds.
+   */
+  private void enableHeartbeat(ChatConnection client, String interval) throws IOException {
+      long millis;
+      try {
+          millis = Long.parseLong(interval.trim());
+      } catch (NumberFormatException e) {
+          client.sendToClient(ChatFrame.serverMessage("Error: Usage: #heartbeat <millis>"));
+          return;
+      }
+      if (millis < ServerConfig.heartbeatMinMillis()) {
+          client.sendToClient(ChatFrame.serverMessage(
+              "Error: Heartbeat interval must be at least " + ServerConfig.heartbeatMinMillis() + " ms."));
+          return;
+      }
+      watchdog.heartbeat(client, millis);
+      client.sendToClient(ChatFrame.serverMessage("Heartbeat enabled: " + millis));
+  }
+
+  /**
+   * Closes a session whose login ID was taken by a new connection.
+   *
+   * @param client The displaced connection.
+   * @param loginId Its login ID.
+   */
+  private void logOut(ChatConnection client, String loginId) {
+      ServerLog.info("Client " + loginId + " logged in again; closing the old connection.");
+      try {
+          client.sendToClient(ChatFrame.serverMessage(
+              "Logged out: " + loginId + " has logged in from another connection."));
+          client.close();
+      } catch (IOException e) {
+          // Already gone
+      }
+  }
+
+  /**
+   * Moves a client to another room and tells both rooms.
+   *
+   * @param client The client changing rooms.
+   * @param loginId The client's login ID.
+   * @param room The room to join.
+   */
+  private void joinRoom(ChatConnection client, String loginId, String room) throws IOException {
+      if (room.isEmpty()) {
+          client.sendToClient(ChatFrame.serverMessage("Error: Room name required."));
+          return;
+      }
+      String previous = rooms.join(client, room);
+      if (previous != null && !previous.equals(room)) {
+          deliver(rooms.members(previous),
+              ChatFrame.serverMessage(loginId + " has left room " + previous));
+      }
+      deliver(rooms.members(room),
+          ChatFrame.serverMessage(loginId + " has joined room " + room));
+  }
+
+  /**
+   * Tells a client who is in its room.
+   *
+   * @param client The client asking.
+   */
+  private void listRoom(ChatConnection client) throws IOException {
+      String room = currentRoom(client);
+      StringBuilder names = new StringBuilder();
+      for (ChatConnection member : rooms.members(room)) {
+          if (names.length() > 0) {
+              names.append(", ");
           }
+          names.append(member.getInfo("loginId"));
+      }
+      client.sendToClient(ChatFrame.serverMessage("Users in room " + room + ": " + names));
+  }
+
+  /**
+   * Sends a client the most recent lines of its room, 20 unless it asks
+   * for a number, as they were first sent: numbered if they were
+   * journaled, and already encoded.  Lines said meanwhile wait until
+   * they have all been handed over, so none arrives out of order.
+   *
+   * @param client The client asking.
+   * @param count The number of lines wanted, or empty.
+   */
+  private void sendHistory(ChatConnection client, String count) throws IOException {
+      int wanted;
+      try {
+          wanted = count.isEmpty() ? 20 : Integer.parseInt(count);
+      } catch (NumberFormatException e) {
+          wanted = 0;
+      }
+      if (wanted <= 0) {
+          client.sendToClient(ChatFrame.serverMessage("Error: Usage: #history [<n>]"));
+          return;
+      }
+      String room = currentRoom(client);
+      synchronized (sequenceLock) {
+          List<EncodedMessage> lines = history.recent(room, wanted);
+          if (lines.isEmpty()) {
+              client.sendToClient(ChatFrame.serverMessage("No recent messages in room " + room + "."));
+              return;
+          }
+          client.sendToClient(ChatFrame.serverMessage(
+              "Last " + lines.size() + " message(s) in room " + room + ":"));
+          List<ChatConnection> recipient = Collections.singletonList(client);
+          for (EncodedMessage line : lines) {
+              engine.sendToClients(recipient, line);
+          }
+      }
+  }
+
+  /**
+   * Keeps a chat line for #history.
+   *
+   * @return The line.
+   */
+  private EncodedMessage remember(String room, EncodedMessage line) {
+      history.add(room, line);
+      return line;
+  }
+
+  /**
+   * Appends a chat line to the journal, if there is one.  A journal
+   * failure is reported but does not stop delivery.
+   *
+   * @return The line ready to deliver: numbered and already encoded for
+   *         binary clients by the journal, or msg itself if it was not
+   *         journaled.
+   */
+  private EncodedMessage journal(String room, Object msg) {
+      if (journal == null) {
+          return new EncodedMessage(msg);
+      }
+      try {
+          return journal.appendEncoded(room, msg);
       } catch (IOException e) {
-          System.out.println("Error: Could not send message to client.");
+          ServerLog.error("Error: Could not journal message: " + e.getMessage());
+          return new EncodedMessage(msg);
       }
   }
 
+  /**
+   * Sends a returning client the lines of its room after the last one it
+   * saw.
+   *
+   * @param client The client that logged in again.
+   * @param room The client's room.
+   * @param since The last sequence number the client saw.
+   */
+  private void catchUp(ChatConnection client, String room, long since) throws IOException {
+      if (journal == null || journal.lastSequence() <= since) {
+          return;
+      }
+      client.sendToClient(ChatFrame.serverMessage(
+          "Replaying messages in room " + room + " since you left."));
+      client.replay(journal.cursor(since, room));
+  }
+
+  /**
+   * Opens the configured journal, or returns null if it is disabled or
+   * cannot be opened.
+   */
+  private static MessageJournal openJournal() {
+      try {
+          return MessageJournal.openConfigured();
+      } catch (IOException e) {
+          ServerLog.error("Error: Could not open message journal: " + e.getMessage()
+              + ". Message history is disabled.");
+          return null;
+      }
+  }
+
+  /**
+   * Starts the metrics scrape endpoint if one is configured, or returns
+   * null.
+   */
+  private MetricsEndpoint startMetricsEndpoint() {
+      int port = ServerConfig.metricsPort();
+      if (port == 0) {
+          return null;
+      }
+      try {
+          MetricsEndpoint endpoint = MetricsEndpoint.start(port, metrics, this);
+          ServerLog.info("Metrics available at http://127.0.0.1:" + port + "/metrics");
+          return endpoint;
+      } catch (IOException e) {
+          ServerLog.error("Error: Could not start metrics endpoint on port " + port + ": " + e.getMessage());
+          return null;
+      }
+  }
+
+  /**
+   * Starts the cluster relay if peers or a relay port are configured, or
+   * returns null.  Unless set, the relay port is the chat port plus 1000,
+   * so nodes started on different chat ports need no further settings.
+   *
+   * @param chatPort The port clients connect on.
+   */
+  private ClusterRelay startCluster(int chatPort) {
+      List<InetSocketAddress> peers;
+      try {
+          peers = ServerConfig.clusterPeers();
+      } catch (IllegalArgumentException e) {
+          ServerLog.error("Error: " + e.getMessage() + ". Clustering is disabled.");
+          return null;
+      }
+      int port = ServerConfig.clusterPort();
+      if (port == 0 && peers.isEmpty()) {
+          return null;
+      }
+      if (port == 0) {
+          port = chatPort + 1000;
+      }
+      String bindAddress = ServerConfig.clusterBindAddress();
+      ClusterRelay relay = new ClusterRelay(this, metrics, bindAddress, port, ServerConfig.clusterSecret(), peers);
+      try {
+          relay.start();
+          ServerLog.info("Cluster relay listening on " + bindAddress + ":" + port + " with " + peers.size() + " peer(s).");
+          return relay;
+      } catch (IOException e) {
+          ServerLog.error("Error: Could not start cluster relay on port " + port + ": " + e.getMessage());
+          relay.close();
+          return null;
+      }
+  }
+
+  /**
+   * Creates a map of logged-off clients that holds at most maxUsers,
+   * dropping the one that logged off longest ago.
+   */
+  private static Map<String, LastSeen> newLastSeenMap(int maxUsers) {
+      return new LinkedHashMap<String, LastSeen>() {
+          @Override
+          protected boolean removeEldestEntry(Map.Entry<String, LastSeen> eldest) {
+              return size() > maxUsers;
+          }
+      };
+  }
+
+  /**
+   * Returns the room a client is in, the lobby if it has not joined one.
+   */
+  private String currentRoom(ChatConnection client) {
+      String room = rooms.roomOf(client);
+      return room != null ? room : RoomIndex.LOBBY;
+  }
+
     
   /**
    * This method overrides the one in the superclass.  Called
@@ -93,8 +953,8 @@ public class EchoServer extends AbstractServer
    */
   protected void serverStarted()
   {
-    System.out.println
-      ("Server listening for connections on port " + getPort());
+    ServerLog.info
+      ("Server listening for connections on port " + engine.getPort());
   }
   
   /**
@@ -103,7 +963,7 @@ public class EchoServer extends AbstractServer
    */
   protected void serverStopped()
   {
-    System.out.println
+    ServerLog.info
       ("Server has stopped listening for connections.");
   }
   
@@ -117,7 +977,18 @@ public class EchoServer extends AbstractServer
    */
   @Override
   protected void clientConnected(ConnectionToClient client) {
-	  System.out.println("Client connected:" + client.getInetAddress().getHostAddress()); // InetAddress class provides methods to get the IP address of any hostname
+      clientConnected(ocsf(client));
+  }
+
+  /**
+   * Engine-neutral version of clientConnected.
+   *
+   * @param client The client that connected.
+   */
+  protected void clientConnected(ChatConnection client) {
+	  watchdog.accepted(client);
+	  metrics.connectionOpened();
+	  ServerLog.info("Client connected:" + client.getInetAddress().getHostAddress()); // InetAddress class provides methods to get the IP address of any hostname
   }
   
   /**
@@ -131,13 +1002,94 @@ public class EchoServer extends AbstractServer
    */
   @Override
   protected void clientDisconnected(ConnectionToClient client) {
+      OcsfConnection connection = ocsf(client);
+      connection.disconnected();
+      clientDisconnected(connection);
+  }
+
+  /**
+   * OCSF reports a client that drops its connection through
+   * clientException rather than clientDisconnected.  Treat both the same
+   * so that per-client state such as room membership is released.
+   *
+   * @param client The client whose connection failed.
+   * @param exception The exception raised.
+   */
+  @Override
+  protected void clientException(ConnectionToClient client, Throwable exception) {
+      OcsfConnection connection = ocsf(client);
+      connection.disconnected();
+      clientDisconnected(connection);
+  }
+
+  /**
+   * Engine-neutral version of clientDisconnected.
+   *
+   * @param client The client that disconnected.
+   */
+  protected void clientDisconnected(ChatConnection client) {
+      watchdog.closed(client);
       String loginId = (String) client.getInfo("loginId");
-      System.out.println("Client " + (loginId != null ? loginId : "unknown") + " has disconnected.");
+      String room = rooms.roomOf(client);
+      // A session that was taken over leaves its place to its successor
+      boolean released = loginId != null && sessions.release(loginId, client);
+      if (released && room != null && journal != null) {
+          lastSeen.put(loginId, new LastSeen(journal.lastSequence(), room));
+      }
+      rooms.leave(client);
+      metrics.connectionClosed();
+      ServerLog.info("Client " + (loginId != null ? loginId : "unknown") + " has disconnected.");
   }
 
 
   
 
+  /**
+   * Shuts the server down without a reconnect stampede.  It stops
+   * accepting connections and tells each logged-in client to reconnect
+   * after its own share of the window ("Server restarting: reconnect in
+   * N ms"), so that they reach the replacement server spread out rather
+   * than all at once.  Each connection is closed once its queued messages
+   * have been written; when they are all gone, or the drain timeout has
+   * passed, the server quits.
+   *
+   * @param windowMillis The time the clients' reconnects are spread over.
+   */
+  public void drain(long windowMillis) {
+      engine.stopListening();
+      OutboundMetrics outbound = engine.getOutboundMetrics();
+      metrics.drainStarted(outbound != null ? outbound.queuedMessages() : 0);
+      ServerLog.info("Draining " + sessions.size() + " clients over " + windowMillis + " ms.");
+
+      List<String> loginIds = new ArrayList<String>(sessions.loginIds());
+      for (int i = 0; i < loginIds.size(); i++) {
+          ChatConnection client = sessions.lookup(loginIds.get(i));
+          if (client == null) {
+              continue;
+          }
+          long delay = windowMillis * (i + 1) / loginIds.size();
+          try {
+              client.sendToClient(ChatFrame.serverMessage("Server restarting: reconnect in " + delay + " ms"));
+              client.close();
+          } catch (IOException e) {
+              // Already gone
+          }
+      }
+
+      long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(ServerConfig.drainTimeoutMillis());
+      try {
+          while (sessions.size() > 0 && System.nanoTime() - deadline < 0) {
+              Thread.sleep(10);
+          }
+      } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+      }
+      metrics.drainFinished();
+      ServerLog.info(String.format("Drain finished in %.3f s; %d messages were in flight, %d clients left.",
+          metrics.drainSeconds(), metrics.drainInFlight(), sessions.size()));
+      quit();
+  }
+
   /**
    * Gracefully shuts down the server.
    * Stops listening for new clients, disconnects all current clients,
@@ -146,20 +1098,69 @@ public class EchoServer extends AbstractServer
   public void quit() {
       try {
           // Stop listening for new clients and close the server socket
-          if (isListening()) {
-              stopListening(); // Stop accepting new connections
+          if (engine.isListening()) {
+              engine.stopListening(); // Stop accepting new connections
           }
           
           // Disconnect all clients connected to this server
-          close(); // This will disconnect all clients and close the server
+          engine.close(); // This will disconnect all clients and close the server
+          if (journal != null) {
+              journal.close();
+          }
+          if (metricsEndpoint != null) {
+              metricsEndpoint.stop();
+          }
+          if (cluster != null) {
+              cluster.close();
+          }
+          watchdog.stop();
+          pipeline.shutdown();
+          if (ocsfFanOut != null) {
+              ocsfFanOut.shutdown();
+          }
 
-          System.out.println("Server is shutting down.");
+          ServerLog.info("Server is shutting down.");
       } catch (IOException e) {
-          System.out.println("Error closing the server: " + e.getMessage());
+          ServerLog.error("Error closing the server: " + e.getMessage());
       } finally {
           // Exit the application gracefully
+          ServerLog.flush();
           System.exit(0);
       }
   }
+
+  //Inner classes ***************************************************
+
+  /**
+   * Handles a command that logs a client in.
+   */
+  private interface LoginCommand
+  {
+    void logIn(ChatConnection client, String args) throws IOException;
+  }
+
+  /**
+   * Handles a command from a logged-in client.
+   */
+  private interface ServerCommand
+  {
+    void handle(ChatConnection client, String loginId, String args) throws IOException;
+  }
+
+  /**
+   * The last journal sequence number a client had been sent, and its
+   * room, when it logged off.
+   */
+  private static final class LastSeen
+  {
+    final long sequence;
+    final String room;
+
+    LastSeen(long sequence, String room)
+    {
+      this.sequence = sequence;
+      this.room = room;
+    }
+  }
 }
 //End of EchoServer class
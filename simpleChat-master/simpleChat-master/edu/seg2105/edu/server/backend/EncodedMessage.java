@@ -0,0 +1,94 @@
+package edu.seg2105.edu.server.backend;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import edu.seg2105.client.common.MessageCodec;
+
+/**
+ * A message that is encoded at most once per wire format.  Broadcasts
+ * wrap their message in one of these so that every recipient using the
+ * same codec is handed one shared, read-only buffer instead of a private
+ * copy encoded just for it.
+ * <p>
+ * Nearly every broadcast uses one or two formats, so the first is held in
+ * fields and a map is only created for a third.
+ */
+final class EncodedMessage {
+
+    private final Object msg;
+    private Object firstKey;
+    private ByteBuffer first;
+    private Object secondKey;
+    private ByteBuffer second;
+    private Map<Object, ByteBuffer> others;
+
+    /**
+     * Wraps a message for encoding.
+     *
+     * @param msg The message to send.
+     */
+    EncodedMessage(Object msg) {
+        this.msg = msg;
+    }
+
+    /**
+     * Wraps a message whose encoding in one format is already known.
+     *
+     * @param msg The message to send.
+     * @param formatKey The formatKey of the codec that produced the encoding.
+     * @param encoded The encoding, read-only.
+     */
+    EncodedMessage(Object msg, Object formatKey, ByteBuffer encoded) {
+        this.msg = msg;
+        this.firstKey = formatKey;
+        this.first = encoded;
+    }
+
+    /**
+     * Returns the message.
+     */
+    Object message() {
+        return msg;
+    }
+
+    /**
+     * Returns the read-only buffer holding the message in the given codec's
+     * format, encoding it only on the first request for that format.  The
+     * buffer is shared by every recipient: callers must not move its
+     * position or limit, and should take a duplicate to consume it.
+     * Synchronized because the fan-out shards of a broadcast, and later
+     * #history requests for it, may ask at the same time.
+     *
+     * @param codec The codec of the recipient.
+     * @throws IOException If the message cannot be encoded.
+     */
+    synchronized ByteBuffer bufferFor(MessageCodec codec) throws IOException {
+        Object key = codec.formatKey();
+        if (key == firstKey) {
+            return first;
+        }
+        if (key == secondKey) {
+            return second;
+        }
+        ByteBuffer shared = others != null ? others.get(key) : null;
+        if (shared == null) {
+            shared = codec.encode(msg).asReadOnlyBuffer();
+            if (first == null) {
+                firstKey = key;
+                first = shared;
+            } else if (second == null) {
+                secondKey = key;
+                second = shared;
+            } else {
+                if (others == null) {
+                    others = new IdentityHashMap<Object, ByteBuffer>(4);
+                }
+                others.put(key, shared);
+            }
+        }
+        return shared;
+    }
+}
@@ -0,0 +1,177 @@
+package edu.seg2105.edu.server.backend;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import edu.seg2105.client.common.BinaryMessageCodec;
+import edu.seg2105.client.common.ChatFrame;
+
+/**
+ * The most recent chat lines of each room, kept in memory for #history.
+ * Lines are kept as the EncodedMessages they were broadcast as, so a
+ * client asking for them is sent the buffers already encoded for the
+ * room rather than lines encoded again.
+ * <p>
+ * Each room keeps at most a fixed number of lines, dropping its oldest
+ * as new ones arrive.  All rooms together are also held to a byte
+ * budget, counted as the lines' binary encoding: when it is exceeded the
+ * least recently used rooms, by lines said or asked for, are forgotten
+ * first, and only then the oldest lines of the room being added to.
+ */
+final class HistoryCache {
+
+    private final int maxMessages;
+    private final long maxBytes;
+    private final ServerMetrics metrics;
+    private final Map<String, Ring> rooms = new LinkedHashMap<String, Ring>(16, 0.75f, true);
+    private long messages;
+    private long bytes;
+
+    /**
+     * Creates an empty cache.
+     *
+     * @param maxMessages The most lines kept for each room, or 0 to keep
+     *                    none.
+     * @param maxBytes The most bytes kept across all rooms.
+     * @param metrics Where hits, misses and evictions are counted.
+     */
+    HistoryCache(int maxMessages, long maxBytes, ServerMetrics metrics) {
+        this.maxMessages = maxMessages;
+        this.maxBytes = maxBytes;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Creates a cache bounded by the configured limits.
+     *
+     * @param metrics Where hits, misses and evictions are counted.
+     */
+    static HistoryCache configured(ServerMetrics metrics) {
+        return new HistoryCache(ServerConfig.historyMaxMessages(), ServerConfig.historyMaxBytes(), metrics);
+    }
+
+    /**
+     * Adds a line said in a room, making room for it if need be.  A line
+     * larger than the whole budget is not kept.
+     *
+     * @param room The room.
+     * @param line The line as it was broadcast.
+     */
+    synchronized void add(String room, EncodedMessage line) {
+        if (maxMessages == 0) {
+            return;
+        }
+        int size = BinaryMessageCodec.encodedLength(ChatFrame.of(line.message()));
+        if (size > maxBytes) {
+            return;
+        }
+        Ring ring = rooms.get(room);
+        if (ring == null) {
+            ring = new Ring(maxMessages);
+            rooms.put(room, ring);
+        }
+        int evicted = 0;
+        if (ring.isFull()) {
+            evicted += drop(ring);
+        }
+        Iterator<Ring> eldest = rooms.values().iterator();
+        while (bytes + size > maxBytes) {
+            Ring victim = eldest.next();
+            if (victim == ring) {
+                break;
+            }
+            evicted += victim.count;
+            messages -= victim.count;
+            bytes -= victim.bytes;
+            eldest.remove();
+        }
+        while (bytes + size > maxBytes) {
+            evicted += drop(ring);
+        }
+        ring.add(line, size);
+        messages++;
+        bytes += size;
+        metrics.historySize(messages, bytes, evicted);
+    }
+
+    /**
+     * Returns the most recent lines of a room, oldest first, counting the
+     * request as a hit or a miss.
+     *
+     * @param room The room.
+     * @param count The most lines to return.
+     */
+    synchronized List<EncodedMessage> recent(String room, int count) {
+        Ring ring = rooms.get(room);
+        List<EncodedMessage> lines = ring != null ? ring.newest(count) : new ArrayList<EncodedMessage>(0);
+        if (lines.isEmpty()) {
+            metrics.historyMiss();
+        } else {
+            metrics.historyHit();
+        }
+        return lines;
+    }
+
+    /**
+     * Drops the oldest line of a room.
+     *
+     * @return 1, the number of lines dropped.
+     */
+    private int drop(Ring ring) {
+        messages--;
+        bytes -= ring.removeOldest();
+        return 1;
+    }
+
+    /**
+     * One room's lines, in a circular array.
+     */
+    private static final class Ring {
+        final EncodedMessage[] lines;
+        final int[] sizes;
+        int head;
+        int count;
+        long bytes;
+
+        Ring(int capacity) {
+            lines = new EncodedMessage[capacity];
+            sizes = new int[capacity];
+        }
+
+        boolean isFull() {
+            return count == lines.length;
+        }
+
+        void add(EncodedMessage line, int size) {
+            int tail = (head + count) % lines.length;
+            lines[tail] = line;
+            sizes[tail] = size;
+            count++;
+            bytes += size;
+        }
+
+        /**
+         * Removes the oldest line, returning its size.
+         */
+        int removeOldest() {
+            int size = sizes[head];
+            lines[head] = null;
+            head = (head + 1) % lines.length;
+            count--;
+            bytes -= size;
+            return size;
+        }
+
+        List<EncodedMessage> newest(int wanted) {
+            int n = Math.min(wanted, count);
+            List<EncodedMessage> newest = new ArrayList<EncodedMessage>(n);
+            for (int i = count - n; i < count; i++) {
+                newest.add(lines[(head + i) % lines.length]);
+            }
+            return newest;
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package edu.seg2105.edu.server.backend;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import edu.seg2105.client.common.BinaryMessageCodec;
+import edu.seg2105.client.common.CompressingMessageCodec;
+import edu.seg2105.client.common.MessageCodec;
+
+/**
+ * A forward-only read of a MessageJournal, from just after a sequence
+ * number up to the last message that existed when the cursor was made,
+ * optionally limited to one room.  Records are read from the journal's
+ * memory mappings; for binary clients next() returns each frame as a
+ * read-only slice of the mapping, so replay does not copy it onto the
+ * heap.  Clients that asked for compression get the same slice for
+ * frames too short to compress, and a compressed copy of the others.
+ * <p>
+ * A cursor is used by one thread at a time.
+ */
+public final class JournalCursor {
+
+    /**
+     * The records of one segment to read.
+     */
+    static final class Range {
+        final ByteBuffer records;
+        final int start;
+        final int end;
+
+        Range(ByteBuffer records, int start, int end) {
+            this.records = records;
+            this.start = start;
+            this.end = end;
+        }
+    }
+
+    private final List<Range> ranges;
+    private final long afterSequence;
+    private final long lastSequence;
+    private final byte[] room;
+    private final BinaryMessageCodec decoder = new BinaryMessageCodec();
+    private final List<Object> decoded = new ArrayList<Object>(1);
+    private int rangeIndex;
+    private int position;
+    private long delivered;
+    private boolean decoderPrimed;
+
+    JournalCursor(List<Range> ranges, long afterSequence, long lastSequence, byte[] room) {
+        this.ranges = ranges;
+        this.afterSequence = afterSequence;
+        this.lastSequence = lastSequence;
+        this.room = room;
+        position = ranges.isEmpty() ? 0 : ranges.get(0).start;
+    }
+
+    /**
+     * Returns the next message encoded for a connection, or null at the
+     * end.
+     *
+     * @param codec The connection's codec.
+     * @throws IOException If the message cannot be encoded.
+     */
+    public ByteBuffer next(MessageCodec codec) throws IOException {
+        ByteBuffer frame = nextFrame();
+        if (frame == null || codec.getClass() == BinaryMessageCodec.class) {
+            return frame;
+        }
+        if (codec instanceof CompressingMessageCodec && frame.remaining() < CompressingMessageCodec.THRESHOLD) {
+            // Too short to be compressed: the stored frame is what it would send
+            return frame;
+        }
+        return codec.encode(decode(frame));
+    }
+
+    /**
+     * Returns the next message, or null at the end.
+     *
+     * @throws IOException If the record cannot be decoded.
+     */
+    public Object nextMessage() throws IOException {
+        ByteBuffer frame = nextFrame();
+        return frame != null ? decode(frame) : null;
+    }
+
+    /**
+     * Returns the number of messages returned so far.
+     */
+    public long delivered() {
+        return delivered;
+    }
+
+    /**
+     * Returns the sequence number of the last message the cursor can
+     * return.
+     */
+    public long lastSequence() {
+        return lastSequence;
+    }
+
+    /**
+     * Returns the binary frame of the next matching record, or null.
+     */
+    private ByteBuffer nextFrame() {
+        while (rangeIndex < ranges.size()) {
+            Range range = ranges.get(rangeIndex);
+            if (position >= range.end) {
+                rangeIndex++;
+                position = rangeIndex < ranges.size() ? ranges.get(rangeIndex).start : 0;
+                continue;
+            }
+            ByteBuffer records = range.records;
+            int record = position;
+            int end = record + 4 + records.getInt(record);
+            long sequence = records.getLong(record + MessageJournal.SEQUENCE_OFFSET);
+            if (sequence > lastSequence) {
+                rangeIndex = ranges.size();
+                return null;
+            }
+            position = end;
+            int roomLength = records.getShort(record + MessageJournal.ROOM_OFFSET) & 0xFFFF;
+            int frameStart = record + MessageJournal.HEADER_BYTES + roomLength;
+            if (sequence > afterSequence && roomMatches(records, record + MessageJournal.HEADER_BYTES, roomLength)) {
+                delivered++;
+                return records.slice(frameStart, end - frameStart);
+            }
+        }
+        return null;
+    }
+
+    private boolean roomMatches(ByteBuffer records, int offset, int length) {
+        if (room == null) {
+            return true;
+        }
+        if (length != room.length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (records.get(offset + i) != room[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private Object decode(ByteBuffer frame) throws IOException {
+        if (!decoderPrimed) {
+            // The decoder expects the protocol preamble before any frame
+            decoder.decode(decoder.streamHeader(), decoded);
+            decoderPrimed = true;
+        }
+        decoder.decode(frame, decoded);
+        if (decoded.isEmpty()) {
+            throw new IOException("Corrupt journal record");
+        }
+        return decoded.remove(0);
+    }
+}
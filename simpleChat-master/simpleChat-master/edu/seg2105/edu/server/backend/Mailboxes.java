@@ -0,0 +1,86 @@
+package edu.seg2105.edu.server.backend;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Private messages waiting for users who are logged off, delivered on
+ * their next login.  Both limits are fixed: a user's mailbox holds at
+ * most maxMessages lines and at most maxUsers mailboxes exist at once,
+ * so that messages to mistyped or abandoned IDs cannot grow the heap
+ * without bound.  A message that does not fit is refused, and its
+ * sender told, rather than silently displacing an older one.
+ * <p>
+ * Deposits and the removal of a mailbox on login are atomic per user, so
+ * a message deposited while its recipient logs in is either taken with
+ * the mailbox or left in a new one; it is never lost.
+ */
+public final class Mailboxes {
+
+    private final ConcurrentHashMap<String, ArrayDeque<String>> boxes =
+        new ConcurrentHashMap<String, ArrayDeque<String>>();
+    private final AtomicInteger count = new AtomicInteger();
+    private final int maxMessages;
+    private final int maxUsers;
+
+    /**
+     * @param maxMessages The most messages one user's mailbox holds.
+     * @param maxUsers The most mailboxes held at once.
+     */
+    public Mailboxes(int maxMessages, int maxUsers) {
+        this.maxMessages = maxMessages;
+        this.maxUsers = maxUsers;
+    }
+
+    /**
+     * Leaves a message for a user.
+     *
+     * @param loginId The recipient.
+     * @param line The message as it will be displayed.
+     * @return false if the recipient's mailbox is full, or a new mailbox
+     *         would exceed the limit on mailboxes.
+     */
+    public boolean deposit(String loginId, String line) {
+        boolean[] stored = new boolean[1];
+        boxes.compute(loginId, (id, box) -> {
+            if (box == null) {
+                if (count.get() >= maxUsers) {
+                    return null;
+                }
+                count.incrementAndGet();
+                box = new ArrayDeque<String>();
+            }
+            if (box.size() < maxMessages) {
+                box.add(line);
+                stored[0] = true;
+            }
+            return box;
+        });
+        return stored[0];
+    }
+
+    /**
+     * Removes and returns a user's messages, oldest first.
+     *
+     * @param loginId The user.
+     * @return The messages, empty if there were none.
+     */
+    public List<String> take(String loginId) {
+        ArrayDeque<String> box = boxes.remove(loginId);
+        if (box == null) {
+            return Collections.emptyList();
+        }
+        count.decrementAndGet();
+        return List.copyOf(box);
+    }
+
+    /**
+     * Returns the number of users with messages waiting.
+     */
+    public int size() {
+        return boxes.size();
+    }
+}
@@ -0,0 +1,559 @@
+package edu.seg2105.edu.server.backend;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.zip.CRC32C;
+
+import edu.seg2105.client.common.BinaryMessageCodec;
+import edu.seg2105.client.common.ChatFrame;
+
+/**
+ * An append-only, segmented on-disk log of the chat lines the server
+ * delivers, so that a client can be sent what it missed.
+ * <p>
+ * Every message gets the next sequence number and is appended as one
+ * record to the active segment, a memory-mapped file named after the
+ * sequence number of its first record:
+ * <pre>
+ *   [length: int][crc32c: int][sequence: long][time millis: long]
+ *   [room length: unsigned short][room: UTF-8][frame]
+ * </pre>
+ * where frame is the message in the binary protocol's wire format, with
+ * its sequence number, and
+ * length covers everything after itself.  The length is written last, so
+ * a reader never sees a half-written record; on startup each segment is
+ * scanned up to the first record whose length, checksum or sequence is
+ * wrong, which drops a record torn by a crash.
+ * <p>
+ * Replay reads records straight from the mapped segments through a
+ * JournalCursor; frames for binary clients are handed to the socket as
+ * slices of the mapping without being copied onto the heap.  Each segment
+ * keeps a sparse in-memory index of every 64th record's sequence number,
+ * time and position, rebuilt by the startup scan, to find where a replay
+ * starts, by sequence number or by time.  Record times also drive
+ * retention by age.
+ * <p>
+ * Numbering starts again from 1 when the directory holds no segments,
+ * so the journal is given a new random ID, kept in journal.id, whenever
+ * that happens.  Clients are told the ID and can tell a sequence number
+ * of this journal from one of an earlier journal.
+ * <p>
+ * A segment is closed once the next record does not fit.  Closed
+ * segments are deleted, oldest first, while their total size exceeds the
+ * configured limit or once their last message is older than the maximum
+ * age; this is checked when a segment is closed and at most once a minute
+ * on append.  Records reach the page cache as soon as they are appended,
+ * so they survive the process crashing but not the machine.
+ */
+public final class MessageJournal implements Closeable {
+
+    /**
+     * Bytes of a record before the room name.
+     */
+    static final int HEADER_BYTES = 4 + 4 + 8 + 8 + 2;
+
+    /**
+     * Offsets of the record fields.
+     */
+    static final int CRC_OFFSET = 4;
+    static final int SEQUENCE_OFFSET = 8;
+    static final int TIME_OFFSET = 16;
+    static final int ROOM_OFFSET = 24;
+
+    /**
+     * Records between two entries of a segment's sparse index.
+     */
+    private static final int INDEX_INTERVAL = 64;
+
+    private static final String SUFFIX = ".log";
+    private static final String ID_FILE = "journal.id";
+    private static final long RETENTION_CHECK_MILLIS = 60 * 1000;
+
+    private final Path dir;
+    private final int segmentBytes;
+    private final long maxBytes;
+    private final long maxAgeMillis;
+    private final FileChannel lockChannel;
+    private final TreeMap<Long, Segment> segments = new TreeMap<Long, Segment>();
+    private final BinaryMessageCodec encoder = new BinaryMessageCodec();
+    private final CRC32C crc = new CRC32C();
+    private Segment active;
+    private String id;
+    private volatile long lastSequence;
+    private long lastTime;
+    private long lastRetentionCheck;
+    private boolean closed;
+
+    private MessageJournal(Path dir, int segmentBytes, long maxBytes, long maxAgeMillis,
+        FileChannel lockChannel) {
+        this.dir = dir;
+        this.segmentBytes = segmentBytes;
+        this.maxBytes = maxBytes;
+        this.maxAgeMillis = maxAgeMillis;
+        this.lockChannel = lockChannel;
+    }
+
+    /**
+     * Opens the journal in a directory, creating it if needed and
+     * recovering the segments already there.
+     *
+     * @param dir The directory holding the segment files.
+     * @param segmentBytes The size at which a new segment is started.
+     * @param maxBytes The most bytes of closed segments to keep.
+     * @param maxAgeMillis How long to keep a closed segment after its last message.
+     * @throws IOException If the directory cannot be used or another
+     *         server already has it open.
+     */
+    public static MessageJournal open(Path dir, int segmentBytes, long maxBytes, long maxAgeMillis)
+        throws IOException {
+        Files.createDirectories(dir);
+        FileChannel lockChannel = FileChannel.open(dir.resolve("journal.lock"),
+            StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        FileLock lock = lockChannel.tryLock();
+        if (lock == null) {
+            lockChannel.close();
+            throw new IOException("Journal " + dir + " is in use by another server");
+        }
+        MessageJournal journal = new MessageJournal(dir, segmentBytes, maxBytes, maxAgeMillis, lockChannel);
+        try {
+            journal.recover();
+        } catch (IOException e) {
+            lockChannel.close();
+            throw e;
+        }
+        return journal;
+    }
+
+    /**
+     * Opens the journal configured by the simplechat.journal.* properties.
+     *
+     * @return The journal, or null if journaling is disabled.
+     */
+    public static MessageJournal openConfigured() throws IOException {
+        String dir = ServerConfig.journalDir();
+        if (dir == null) {
+            return null;
+        }
+        return open(Paths.get(dir), ServerConfig.journalSegmentBytes(),
+            ServerConfig.journalMaxBytes(), ServerConfig.journalMaxAgeMillis());
+    }
+
+    /**
+     * Appends a message delivered to a room.
+     *
+     * @param room The room the message was sent to.
+     * @param msg The message.
+     * @return The message as a frame carrying its sequence number.
+     * @throws IOException If the journal is closed or a segment cannot be created.
+     */
+    public ChatFrame append(String room, Object msg) throws IOException {
+        return (ChatFrame) appendEncoded(room, msg).message();
+    }
+
+    /**
+     * Appends a message delivered to a room, encoding it straight into the
+     * mapped segment.
+     *
+     * @param room The room the message was sent to.
+     * @param msg The message.
+     * @return The message as a frame carrying its sequence number, whose
+     *         binary encoding is the record's frame, read in place from
+     *         the mapping.
+     * @throws IOException If the journal is closed or a segment cannot be created.
+     */
+    synchronized EncodedMessage appendEncoded(String room, Object msg) throws IOException {
+        if (closed) {
+            throw new IOException("Journal is closed");
+        }
+        int roomLength = BinaryMessageCodec.utf8Length(room);
+        if (roomLength > 0xFFFF) {
+            throw new IOException("Room name too long to journal");
+        }
+        long sequence = lastSequence + 1;
+        ChatFrame numbered = ChatFrame.of(msg).withSequence(sequence);
+        int frameLength = BinaryMessageCodec.encodedLength(numbered);
+        int recordBytes = HEADER_BYTES + roomLength + frameLength;
+
+        long now = System.currentTimeMillis();
+        if (active.committed + recordBytes > active.map.capacity()) {
+            roll(recordBytes);
+        } else if (now - lastRetentionCheck >= RETENTION_CHECK_MILLIS) {
+            applyRetention();
+        }
+
+        long time = Math.max(now, lastTime);
+        int start = active.committed;
+        ByteBuffer out = active.map;
+        out.position(start + SEQUENCE_OFFSET);
+        out.putLong(sequence);
+        out.putLong(time);
+        out.putShort((short) roomLength);
+        BinaryMessageCodec.putUtf8(out, room);
+        BinaryMessageCodec.encode(numbered, out);
+        crc.reset();
+        out.limit(start + recordBytes).position(start + SEQUENCE_OFFSET);
+        crc.update(out);
+        out.limit(out.capacity());
+        out.putInt(start + CRC_OFFSET, (int) crc.getValue());
+        out.putInt(start, recordBytes - 4);
+
+        active.recordAppended(sequence, time, start);
+        active.committed = start + recordBytes;
+        lastTime = time;
+        lastSequence = sequence;
+        return new EncodedMessage(numbered, encoder.formatKey(),
+            active.readOnly.slice(start + recordBytes - frameLength, frameLength));
+    }
+
+    /**
+     * Returns the ID of this journal, which changes whenever numbering
+     * starts again.
+     */
+    public String id() {
+        return id;
+    }
+
+    /**
+     * Returns the sequence number of the last message appended, or 0.
+     */
+    public long lastSequence() {
+        return lastSequence;
+    }
+
+    /**
+     * Returns the sequence number of the first message appended at or
+     * after a time, or one past the last sequence number if there is none.
+     *
+     * @param timeMillis The time, in milliseconds since the epoch.
+     */
+    public synchronized long sequenceAt(long timeMillis) {
+        for (Segment segment : segments.values()) {
+            if (segment.count > 0 && segment.lastTime >= timeMillis) {
+                ByteBuffer records = segment.map.duplicate();
+                int position = segment.indexedPositionAtTime(timeMillis);
+                while (position < segment.committed) {
+                    if (records.getLong(position + TIME_OFFSET) >= timeMillis) {
+                        return records.getLong(position + SEQUENCE_OFFSET);
+                    }
+                    position += 4 + records.getInt(position);
+                }
+            }
+        }
+        return lastSequence + 1;
+    }
+
+    /**
+     * Returns a cursor over the messages after a sequence number, up to
+     * the last one appended so far.
+     *
+     * @param afterSequence The sequence number the reader already has.
+     * @param room The room whose messages to return, or null for all.
+     */
+    public synchronized JournalCursor cursor(long afterSequence, String room) {
+        List<JournalCursor.Range> ranges = new ArrayList<JournalCursor.Range>();
+        Map.Entry<Long, Segment> first = segments.floorEntry(afterSequence + 1);
+        Segment start = first != null ? first.getValue() : null;
+        Long from = first != null ? first.getKey() : segments.isEmpty() ? null : segments.firstKey();
+        if (from != null) {
+            for (Segment segment : segments.tailMap(from, true).values()) {
+                int position = segment == start ? segment.indexedPositionAtSequence(afterSequence + 1) : 0;
+                ranges.add(new JournalCursor.Range(segment.map.asReadOnlyBuffer(), position, segment.committed));
+            }
+        }
+        byte[] roomBytes = room != null ? room.getBytes(StandardCharsets.UTF_8) : null;
+        return new JournalCursor(ranges, afterSequence, lastSequence, roomBytes);
+    }
+
+    /**
+     * Returns the number of bytes of records held, across all segments.
+     */
+    public synchronized long sizeBytes() {
+        long total = 0;
+        for (Segment segment : segments.values()) {
+            total += segment.committed;
+        }
+        return total;
+    }
+
+    /**
+     * Returns the number of segment files.
+     */
+    public synchronized int segmentCount() {
+        return segments.size();
+    }
+
+    /**
+     * Trims the active segment to its records and releases the directory.
+     * Cursors already handed out remain readable.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            active.seal();
+        } finally {
+            lockChannel.close();
+        }
+    }
+
+    /**
+     * Returns a one-line summary for the console.
+     */
+    @Override
+    public synchronized String toString() {
+        return "journal segments=" + segments.size() + " bytes=" + sizeBytes()
+            + " lastSequence=" + lastSequence;
+    }
+
+    /**
+     * Maps every segment in the directory, rebuilding its index, and
+     * reopens the newest one for appending.
+     */
+    private void recover() throws IOException {
+        List<Path> files = new ArrayList<Path>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "*" + SUFFIX)) {
+            for (Path file : stream) {
+                if (file.getFileName().toString().matches("\\d{20}\\" + SUFFIX)) {
+                    files.add(file);
+                }
+            }
+        }
+        files.sort(null);
+        id = readOrCreateId(files.isEmpty());
+
+        for (Iterator<Path> it = files.iterator(); it.hasNext();) {
+            Path file = it.next();
+            long baseSequence = Long.parseLong(file.getFileName().toString().replace(SUFFIX, ""));
+            Segment segment = it.hasNext()
+                ? Segment.openSealed(file)
+                : Segment.openActive(file, segmentBytes);
+            scan(segment);
+            segments.put(baseSequence, segment);
+            if (segment.count > 0) {
+                lastSequence = segment.lastSequence;
+                lastTime = segment.lastTime;
+            }
+            if (!it.hasNext()) {
+                active = segment;
+            }
+        }
+        if (active == null) {
+            roll(0);
+        }
+        applyRetention();
+    }
+
+    /**
+     * Returns the journal's ID from its file, writing a new one if the
+     * journal is starting afresh or has none yet.
+     */
+    private String readOrCreateId(boolean fresh) throws IOException {
+        Path file = dir.resolve(ID_FILE);
+        if (!fresh && Files.exists(file)) {
+            String existing = new String(Files.readAllBytes(file), StandardCharsets.US_ASCII).trim();
+            if (!existing.isEmpty()) {
+                return existing;
+            }
+        }
+        String created = UUID.randomUUID().toString();
+        Files.write(file, created.getBytes(StandardCharsets.US_ASCII));
+        return created;
+    }
+
+    /**
+     * Indexes a segment's records, stopping at the first invalid one.
+     */
+    private void scan(Segment segment) {
+        ByteBuffer records = segment.map.duplicate();
+        int limit = records.capacity();
+        int position = 0;
+        long previous = lastSequence;
+        while (position + HEADER_BYTES <= limit) {
+            int length = records.getInt(position);
+            if (length < HEADER_BYTES - 4 || length > limit - position - 4) {
+                break;
+            }
+            crc.reset();
+            crc.update(records.duplicate().position(position + SEQUENCE_OFFSET).limit(position + 4 + length));
+            long sequence = records.getLong(position + SEQUENCE_OFFSET);
+            if (records.getInt(position + CRC_OFFSET) != (int) crc.getValue() || sequence <= previous) {
+                break;
+            }
+            segment.recordAppended(sequence, records.getLong(position + TIME_OFFSET), position);
+            previous = sequence;
+            position += 4 + length;
+        }
+        segment.committed = position;
+    }
+
+    /**
+     * Closes the active segment and starts a new one large enough for a
+     * record of the given size.
+     */
+    private void roll(int recordBytes) throws IOException {
+        if (active != null) {
+            active.seal();
+        }
+        long baseSequence = lastSequence + 1;
+        Path file = dir.resolve(String.format("%020d%s", baseSequence, SUFFIX));
+        active = Segment.openActive(file, Math.max(segmentBytes, recordBytes));
+        segments.put(baseSequence, active);
+        applyRetention();
+    }
+
+    /**
+     * Deletes the oldest closed segments while over the size limit or past
+     * the maximum age.
+     */
+    private void applyRetention() {
+        long now = System.currentTimeMillis();
+        lastRetentionCheck = now;
+        long closedBytes = sizeBytes() - active.committed;
+        Iterator<Segment> it = segments.values().iterator();
+        while (it.hasNext()) {
+            Segment segment = it.next();
+            if (segment == active) {
+                break;
+            }
+            boolean expired = segment.count == 0 || now - segment.lastTime > maxAgeMillis;
+            if (closedBytes <= maxBytes && !expired) {
+                break;
+            }
+            try {
+                Files.deleteIfExists(segment.file);
+            } catch (IOException e) {
+                ServerLog.warn("Error: Could not delete journal segment " + segment.file + ": " + e);
+                break;
+            }
+            closedBytes -= segment.committed;
+            it.remove();
+        }
+    }
+
+    /**
+     * One segment file and its sparse index.  Fields other than committed
+     * are only used under the journal's lock.
+     */
+    private static final class Segment {
+        final Path file;
+        final MappedByteBuffer map;
+        final ByteBuffer readOnly;
+        FileChannel channel;
+        volatile int committed;
+        int count;
+        long lastSequence;
+        long lastTime;
+        long[] indexSequence = new long[16];
+        long[] indexTime = new long[16];
+        int[] indexPosition = new int[16];
+        int indexSize;
+
+        private Segment(Path file, MappedByteBuffer map, FileChannel channel) {
+            this.file = file;
+            this.map = map;
+            this.readOnly = map.asReadOnlyBuffer();
+            this.channel = channel;
+        }
+
+        static Segment openSealed(Path file) throws IOException {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                return new Segment(file, map, null);
+            }
+        }
+
+        static Segment openActive(Path file, int capacity) throws IOException {
+            FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+            try {
+                long size = Math.max(capacity, channel.size());
+                MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+                return new Segment(file, map, channel);
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+        }
+
+        void recordAppended(long sequence, long time, int position) {
+            if (count % INDEX_INTERVAL == 0) {
+                if (indexSize == indexPosition.length) {
+                    indexSequence = Arrays.copyOf(indexSequence, indexSize * 2);
+                    indexTime = Arrays.copyOf(indexTime, indexSize * 2);
+                    indexPosition = Arrays.copyOf(indexPosition, indexSize * 2);
+                }
+                indexSequence[indexSize] = sequence;
+                indexTime[indexSize] = time;
+                indexPosition[indexSize] = position;
+                indexSize++;
+            }
+            count++;
+            lastSequence = sequence;
+            lastTime = time;
+        }
+
+        /**
+         * Returns the position of the last indexed record at or before a
+         * sequence number.
+         */
+        int indexedPositionAtSequence(long sequence) {
+            int i = Arrays.binarySearch(indexSequence, 0, indexSize, sequence);
+            return positionAt(i);
+        }
+
+        /**
+         * Returns the position of the last indexed record before a time.
+         */
+        int indexedPositionAtTime(long timeMillis) {
+            int i = Arrays.binarySearch(indexTime, 0, indexSize, timeMillis);
+            if (i >= 0) {
+                // Several records may share a millisecond: back up to the first
+                while (i > 0 && indexTime[i - 1] == timeMillis) {
+                    i--;
+                }
+                i = -i - 1;
+            }
+            return positionAt(i);
+        }
+
+        private int positionAt(int searchResult) {
+            int i = searchResult >= 0 ? searchResult : -searchResult - 2;
+            return i >= 0 ? indexPosition[i] : 0;
+        }
+
+        /**
+         * Trims the file to its records and releases the channel.  The
+         * mapping stays valid for readers.
+         */
+        void seal() throws IOException {
+            if (channel != null) {
+                try {
+                    channel.truncate(committed);
+                } finally {
+                    channel.close();
+                    channel = null;
+                }
+            }
+        }
+    }
+}
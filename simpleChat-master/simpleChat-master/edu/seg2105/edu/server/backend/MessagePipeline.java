@@ -0,0 +1,236 @@
+package edu.seg2105.edu.server.backend;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import edu.seg2105.client.common.FrameView;
+
+/**
+ * The stages a received message passes through, in order.  Each stage
+ * may stop the message, for instance because the client is over its rate
+ * limit or not logged in, or pass it on to the next.
+ * <p>
+ * A stage runs on the thread that finished the stage before it unless it
+ * was given workers of its own.  Then the message is handed to one of
+ * them through a bounded queue, chosen by connection so that one
+ * client's messages are always handled by the same worker, in the order
+ * they arrived.  When the queue is full the handing thread waits, which
+ * slows reading from the clients rather than letting work pile up.
+ * Stages that pause reading from the client must run on the thread that
+ * reads it, with no workers.
+ * <p>
+ * A message the NIO engine read as a FrameView is only valid during the
+ * call that handed it over, so it is copied into a ChatFrame before it
+ * is handed to a worker.
+ */
+final class MessagePipeline {
+
+    /**
+     * One stage of the pipeline.
+     */
+    interface Stage {
+
+        /**
+         * Processes a message.
+         *
+         * @param message The message.
+         * @return true to pass it to the next stage, false to stop here.
+         * @throws IOException If a reply could not be sent; the message
+         *         goes no further.
+         */
+        boolean process(Message message) throws IOException;
+    }
+
+    /**
+     * A message on its way through the pipeline, with what the stages
+     * have learned about it.
+     */
+    static final class Message {
+
+        final ChatConnection client;
+        Object received;
+        final long startNanos = System.nanoTime();
+
+        /**
+         * The message as text, decoded on first use.
+         */
+        private String text;
+
+        /**
+         * The sender's login ID, set once it is known to be logged in.
+         */
+        String loginId;
+
+        Message(ChatConnection client, Object received) {
+            this.client = client;
+            this.received = received;
+        }
+
+        /**
+         * Returns the message as text.
+         */
+        String text() {
+            if (text == null) {
+                text = received.toString();
+            }
+            return text;
+        }
+
+        /**
+         * Returns true if the message is a command, which is only decoded
+         * into text once that is known.
+         */
+        boolean isCommand() {
+            if (received instanceof FrameView) {
+                return ((FrameView) received).startsWith('#');
+            }
+            return text().startsWith("#");
+        }
+
+        /**
+         * Copies a FrameView into a ChatFrame that stays valid after the
+         * call that handed it over returns.
+         */
+        void detach() {
+            if (received instanceof FrameView) {
+                received = ((FrameView) received).toFrame();
+            }
+        }
+    }
+
+    private final ServerMetrics metrics;
+    private final List<Step> steps = new ArrayList<Step>();
+
+    /**
+     * Creates an empty pipeline.
+     *
+     * @param metrics Where the time taken by each message is recorded.
+     */
+    MessagePipeline(ServerMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Adds a stage that runs on the thread that finished the one before.
+     *
+     * @param name The stage's name, for its worker threads.
+     * @param stage The stage.
+     * @return This pipeline, for chaining.
+     */
+    MessagePipeline stage(String name, Stage stage) {
+        return stage(name, stage, 0, 0);
+    }
+
+    /**
+     * Adds a stage with workers of its own.
+     *
+     * @param name The stage's name, for its worker threads.
+     * @param stage The stage.
+     * @param threads The number of workers, or 0 to run it on the thread
+     *                that finished the stage before.
+     * @param queueSize The most messages waiting for each worker.
+     * @return This pipeline, for chaining.
+     */
+    MessagePipeline stage(String name, Stage stage, int threads, int queueSize) {
+        ExecutorService[] workers = null;
+        if (threads > 0) {
+            workers = new ExecutorService[threads];
+            for (int i = 0; i < threads; i++) {
+                workers[i] = newWorker("pipeline-" + name + "-" + i, Math.max(1, queueSize));
+            }
+        }
+        steps.add(new Step(stage, workers));
+        return this;
+    }
+
+    /**
+     * Passes a received message through the stages.
+     *
+     * @param client The connection it came from.
+     * @param received The decoded message.
+     */
+    void handle(ChatConnection client, Object received) {
+        run(new Message(client, received), 0, false);
+    }
+
+    /**
+     * Stops the stage workers once the messages already handed to them
+     * have been handled.
+     */
+    void shutdown() {
+        for (Step step : steps) {
+            if (step.workers != null) {
+                for (ExecutorService worker : step.workers) {
+                    worker.shutdown();
+                }
+            }
+        }
+    }
+
+    /**
+     * Runs the stages from the given one on, handing the message over
+     * where a stage has workers.
+     */
+    private void run(Message message, int from, boolean handedOver) {
+        for (int i = from; i < steps.size(); i++) {
+            Step step = steps.get(i);
+            if (step.workers != null && !(handedOver && i == from)) {
+                int index = i;
+                message.detach();
+                int shard = Math.floorMod(System.identityHashCode(message.client), step.workers.length);
+                step.workers[shard].execute(() -> run(message, index, true));
+                return;
+            }
+            try {
+                if (!step.stage.process(message)) {
+                    break;
+                }
+            } catch (IOException e) {
+                ServerLog.warn("Error: Could not send message to client.");
+                break;
+            }
+        }
+        metrics.handled(System.nanoTime() - message.startNanos);
+    }
+
+    /**
+     * Creates a single worker whose queue makes the caller wait when full.
+     */
+    private static ExecutorService newWorker(String name, int queueSize) {
+        return new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<Runnable>(queueSize),
+            task -> {
+                Thread thread = new Thread(task, name);
+                thread.setDaemon(true);
+                return thread;
+            },
+            (task, executor) -> {
+                if (executor.isShutdown()) {
+                    return;
+                }
+                try {
+                    executor.getQueue().put(task);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+    }
+
+    /**
+     * A stage and its workers, if it has any.
+     */
+    private static final class Step {
+        final Stage stage;
+        final ExecutorService[] workers;
+
+        Step(Stage stage, ExecutorService[] workers) {
+            this.stage = stage;
+            this.workers = workers;
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package edu.seg2105.edu.server.backend;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Serves a server's metrics at http://127.0.0.1:port/metrics in the
+ * Prometheus text format.  It only listens on the loopback interface, so
+ * a scraper must run on the same machine or reach it through a tunnel.
+ */
+final class MetricsEndpoint {
+
+    private final HttpServer http;
+
+    private MetricsEndpoint(HttpServer http) {
+        this.http = http;
+    }
+
+    /**
+     * Starts the endpoint.
+     *
+     * @param port The loopback port to listen on.
+     * @param metrics The metrics to serve.
+     * @param server The server whose engine supplies the live gauges.
+     * @throws IOException If the port cannot be opened.
+     */
+    static MetricsEndpoint start(int port, ServerMetrics metrics, EchoServer server) throws IOException {
+        HttpServer http = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        http.createContext("/metrics", exchange -> respond(exchange, metrics.scrape(server.getEngine())));
+        http.start();
+        return new MetricsEndpoint(http);
+    }
+
+    /**
+     * Stops serving.
+     */
+    void stop() {
+        http.stop(0);
+    }
+
+    private static void respond(HttpExchange exchange, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+        exchange.sendResponseHeaders(200, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+}
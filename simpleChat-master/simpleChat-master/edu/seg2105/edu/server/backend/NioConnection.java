@@ -0,0 +1,659 @@
+package edu.seg2105.edu.server.backend;
+
+import java.io.IOException;
+import java.io.ObjectStreamConstants;
+import java.io.StreamCorruptedException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import edu.seg2105.client.common.BinaryMessageCodec;
+import edu.seg2105.client.common.ChatFrame;
+import edu.seg2105.client.common.CompressingMessageCodec;
+import edu.seg2105.client.common.FlushStats;
+import edu.seg2105.client.common.FrameView;
+import edu.seg2105.client.common.MessageCodec;
+import edu.seg2105.client.common.SerializedMessageCodec;
+
+/**
+ * A client connection carried by the NIO engine.  Reads, decoding and
+ * writes happen on the owning event loop; sendToClient may be called from
+ * any thread and only adds the encoded bytes to a bounded outbound queue,
+ * so a slow reader never holds up the sender.  With sharded broadcasts
+ * the bytes are added on the loop, behind the broadcasts already handed
+ * to it, so a reply never overtakes an earlier broadcast.
+ * <p>
+ * The wire format is negotiated from the first byte the client sends: a
+ * Java serialization stream header selects the legacy OCSF format, the
+ * binary preamble selects the compact binary protocol.
+ * <p>
+ * Writes are batched: a flush is deferred to the end of the loop cycle, or
+ * by up to the configured batching delay, unless enough bytes are already
+ * waiting.  A flush copies waiting frames into the loop's direct write
+ * buffer and writes that, so frames shared with other connections are
+ * read in place instead of each recipient taking its own view of them;
+ * only bytes left over when the socket is full are copied for later.
+ * <p>
+ * With TLS, the socket is read and written through a TlsChannel and the
+ * wire format is negotiated from the first decrypted byte.
+ * <p>
+ * Reads go into the loop's read buffer.  Binary frames are handed to the
+ * server as a FrameView into that buffer as they are decoded, so a chat
+ * line is never copied into a String on its way in; only bytes of a
+ * frame that has not fully arrived are copied into a buffer of the
+ * connection's own, which is given back once the frame is complete.
+ */
+final class NioConnection implements ChatConnection {
+
+    /**
+     * Initial size of the buffer a connection keeps the start of a frame
+     * in until the rest arrives.
+     */
+    private static final int PENDING_BUFFER_SIZE = 8 * 1024;
+
+    /**
+     * Size above which the pending buffer is given back once the large
+     * message that grew it has been decoded.
+     */
+    private static final int SHRINK_ABOVE_BYTES = 64 * 1024;
+
+    private final NioServer server;
+    private final NioEventLoop loop;
+    private final SocketChannel channel;
+    private final TlsChannel tls;
+    private volatile MessageCodec codec;
+    private volatile MessageCodec encoder;
+    private final InetAddress address;
+    private final Map<String, Object> info = new ConcurrentHashMap<String, Object>();
+    private final OutboundQueue<ByteBuffer> outbound;
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private final AtomicBoolean flushRequested = new AtomicBoolean();
+    private final long maxDelayNanos = ServerConfig.batchMaxDelayNanos();
+    private final int maxBytes = ServerConfig.batchMaxBytes();
+    private final int maxReadBytes = ServerConfig.maxMessageBytes();
+    private final AtomicBoolean closed = new AtomicBoolean();
+    private final List<Object> decoded = new ArrayList<Object>();
+    private final FrameView view = new FrameView();
+
+    /**
+     * Bytes read but not handed over yet, such as the start of a frame
+     * whose rest has not arrived, ready for the next read to add to; null
+     * when there are none.
+     */
+    private ByteBuffer pending;
+    private SelectionKey key;
+    private ByteBuffer current;
+    private int copied;
+    private ByteBuffer unwritten;
+    private boolean writeBlocked;
+    private boolean closeWhenFlushed;
+    private int dispatched;
+    private boolean readPaused;
+    private JournalCursor replay;
+    private int queuedBeforeReplay;
+
+    NioConnection(NioServer server, NioEventLoop loop, SocketChannel channel, TlsChannel tls,
+            OutboundQueue<ByteBuffer> outbound) {
+        this.server = server;
+        this.loop = loop;
+        this.channel = channel;
+        this.tls = tls;
+        this.outbound = outbound;
+        InetSocketAddress remote = (InetSocketAddress) channel.socket().getRemoteSocketAddress();
+        this.address = remote != null ? remote.getAddress() : null;
+    }
+
+    /**
+     * Returns the event loop that owns the connection.
+     */
+    NioEventLoop loop() {
+        return loop;
+    }
+
+    /**
+     * Registers the channel with the loop's selector.  Must run on the loop
+     * thread.
+     */
+    void register() throws IOException {
+        key = channel.register(loop.selector(), SelectionKey.OP_READ, this);
+    }
+
+    @Override
+    public void sendToClient(Object msg) throws IOException {
+        MessageCodec codec = checkOpen();
+        ByteBuffer buffer = codec.encode(msg);
+        server.execute(this, () -> enqueue(buffer));
+    }
+
+    /**
+     * Sends a message whose encoding may be shared with other connections.
+     *
+     * @param message The message to send.
+     * @throws IOException If the connection is closed or encoding fails.
+     */
+    void sendEncoded(EncodedMessage message) throws IOException {
+        MessageCodec codec = checkOpen();
+        enqueue(message.bufferFor(codec));
+    }
+
+    /**
+     * Queues a buffer for writing, disconnecting the client if its queue
+     * is full and the slow-consumer policy says so.
+     */
+    private void enqueue(ByteBuffer buffer) {
+        if (outbound.offer(buffer)) {
+            scheduleFlush();
+        } else if (loop.inLoop()) {
+            closeNow();
+        } else {
+            loop.execute(this::closeNow);
+        }
+    }
+
+    /**
+     * Returns the codec to encode with, or fails if the connection cannot
+     * be written to.
+     */
+    private MessageCodec checkOpen() throws SocketException {
+        MessageCodec encoder = this.encoder;
+        if (closed.get() || encoder == null) {
+            throw new SocketException("socket does not exist");
+        }
+        return encoder;
+    }
+
+    /**
+     * Switches encoding to a compressing codec.  Decoding goes on with the
+     * negotiated codec, which reads compressed frames too.
+     */
+    @Override
+    public boolean enableCompression(CompressingMessageCodec.Mode mode) {
+        if (!(codec instanceof BinaryMessageCodec)) {
+            return false;
+        }
+        // The client only compresses once it has our reply
+        ((BinaryMessageCodec) codec).acceptCompressed();
+        encoder = new CompressingMessageCodec(mode);
+        return true;
+    }
+
+    /**
+     * Closes the connection once the messages already queued for it have
+     * been written.  A client that stops reading keeps it open until the
+     * engine shuts down.
+     */
+    @Override
+    public void close() throws IOException {
+        server.execute(this, () -> {
+            if (loop.inLoop()) {
+                closeWhenFlushed();
+            } else {
+                loop.execute(this::closeWhenFlushed);
+            }
+        });
+    }
+
+    private void closeWhenFlushed() {
+        closeWhenFlushed = true;
+        if (key == null) {
+            closeNow();
+        } else {
+            flush();
+        }
+    }
+
+    @Override
+    public InetAddress getInetAddress() {
+        return address;
+    }
+
+    @Override
+    public void setInfo(String infoType, Object value) {
+        if (value == null) {
+            info.remove(infoType);
+        } else {
+            info.put(infoType, value);
+        }
+    }
+
+    @Override
+    public Object getInfo(String infoType) {
+        return info.get(infoType);
+    }
+
+    /**
+     * Called by the loop when the socket has data to read.
+     */
+    void onReadable() {
+        try {
+            int read;
+            do {
+                ByteBuffer in = readTarget();
+                read = read(in);
+                if (read < 0) {
+                    closeNow();
+                    return;
+                }
+                server.bytesReceived(read);
+                in.flip();
+                if (codec == null) {
+                    if (!in.hasRemaining()) {
+                        keep(in);
+                        break;
+                    }
+                    codec = negotiate(in.get(in.position()));
+                    encoder = codec;
+                    current = codec.streamHeader();
+                    flush();
+                    server.connectionReady(this);
+                }
+                if (codec instanceof BinaryMessageCodec) {
+                    dispatchFrames(in);
+                } else {
+                    codec.decode(in, decoded);
+                }
+                keep(in);
+                // Decrypted records may be left over that the selector will
+                // not report again
+            } while (read > 0 && tls != null && tls.hasBufferedInput() && !readPaused && !closed.get());
+            if (tls != null && tls.hasPendingOutput() && !writeBlocked && key.isValid()) {
+                // A handshake message did not fit in the socket
+                writeBlocked = true;
+                key.interestOps(interestOps());
+            }
+        } catch (IOException e) {
+            closeNow();
+            return;
+        }
+
+        dispatchDecoded();
+    }
+
+    /**
+     * Returns the buffer to read into: the connection's own while it holds
+     * part of a frame, grown if the frame fills it, otherwise the loop's.
+     * With TLS either has room for a whole decrypted record.
+     */
+    private ByteBuffer readTarget() throws IOException {
+        int room = tls != null ? tls.applicationBufferSize() : 1;
+        if (pending == null) {
+            return loop.readBuffer(room);
+        }
+        if (pending.remaining() < room) {
+            // A single message is larger than the buffer: grow it
+            resizePending(Math.max(pending.capacity() * 2, pending.position() + room));
+        }
+        return pending;
+    }
+
+    /**
+     * Reads what has arrived into a buffer, decrypting it with TLS.
+     *
+     * @return The number of bytes read, or -1 at the end of the stream.
+     */
+    private int read(ByteBuffer buffer) throws IOException {
+        return tls != null ? tls.read(buffer) : channel.read(buffer);
+    }
+
+    /**
+     * Moves the pending bytes into a buffer of the given size, or fails if
+     * the message still being read would take the buffer past the largest
+     * a client may send.  With TLS the buffer may exceed that by one
+     * record, which is what a read needs room for.
+     */
+    private void resizePending(int capacity) throws IOException {
+        if (pending.position() >= maxReadBytes) {
+            throw new StreamCorruptedException("Message larger than " + maxReadBytes + " bytes");
+        }
+        int limit = tls != null ? maxReadBytes + tls.applicationBufferSize() : maxReadBytes;
+        ByteBuffer resized = ByteBuffer.allocate(Math.min(capacity, limit));
+        pending.flip();
+        pending = resized.put(pending);
+    }
+
+    /**
+     * Keeps what is left of a buffer once its messages are handed over:
+     * the start of one that has not fully arrived, or those held back
+     * while reading is paused.  What is left in the loop's buffer is
+     * copied out, since the next read of any connection reuses it.
+     */
+    private void keep(ByteBuffer in) {
+        if (closed.get()) {
+            pending = null;
+        } else if (in == pending) {
+            if (!in.hasRemaining()) {
+                pending = null;
+            } else if (in.capacity() > SHRINK_ABOVE_BYTES && in.remaining() <= PENDING_BUFFER_SIZE) {
+                // The large message that grew the buffer is decoded
+                pending = ByteBuffer.allocate(PENDING_BUFFER_SIZE).put(in);
+            } else {
+                in.compact();
+            }
+        } else if (in.hasRemaining()) {
+            pending = ByteBuffer.allocate(Math.max(PENDING_BUFFER_SIZE, in.remaining())).put(in);
+        }
+    }
+
+    /**
+     * Writes as much of a buffer as the socket takes, encrypting it with
+     * TLS.
+     *
+     * @return The number of bytes taken from the buffer.
+     */
+    private int write(ByteBuffer buffer) throws IOException {
+        return tls != null ? tls.write(buffer) : channel.write(buffer);
+    }
+
+    /**
+     * Hands the binary frames in a buffer to the server as they are
+     * decoded, each as a view into the buffer, stopping early if reading
+     * is paused.  The frame being handled then is copied out, to be
+     * handed over again when reading resumes; the frames after it stay in
+     * the buffer.
+     */
+    private void dispatchFrames(ByteBuffer in) throws IOException {
+        BinaryMessageCodec binary = (BinaryMessageCodec) codec;
+        while (!readPaused && !closed.get() && binary.decodeNext(in, view)) {
+            server.messageReceived(view, this);
+            if (readPaused) {
+                decoded.add(view.toFrame());
+            }
+        }
+    }
+
+    /**
+     * Hands the decoded messages to the server in order, stopping early if
+     * reading is paused; the one being handled then and those after it
+     * are handed over when it resumes.
+     */
+    private void dispatchDecoded() {
+        while (dispatched < decoded.size() && !readPaused && !closed.get()) {
+            server.messageReceived(decoded.get(dispatched), this);
+            if (!readPaused) {
+                dispatched++;
+            }
+        }
+        if (dispatched == decoded.size() || closed.get()) {
+            decoded.clear();
+            dispatched = 0;
+        }
+    }
+
+    /**
+     * Stops selecting this channel for reads and holds back the message
+     * being handled, so that it and any read after it are handed to the
+     * server again when the time is up.  Must run on the loop thread,
+     * which it does when called while handling a message.
+     */
+    @Override
+    public boolean delayReading(long nanos) {
+        if (!readPaused && !closed.get() && key != null && key.isValid()) {
+            readPaused = true;
+            key.interestOps(interestOps());
+            loop.schedule(this::resumeReading, nanos);
+        }
+        return false;
+    }
+
+    /**
+     * Hands over the messages held back by delayReading and, unless one of
+     * them pauses reading again, selects the channel for reads.
+     */
+    private void resumeReading() {
+        readPaused = false;
+        dispatchDecoded();
+        if (pending != null && !readPaused && !closed.get() && codec instanceof BinaryMessageCodec) {
+            try {
+                pending.flip();
+                dispatchFrames(pending);
+                keep(pending);
+            } catch (IOException e) {
+                closeNow();
+                return;
+            }
+        }
+        if (readPaused || closed.get() || !key.isValid()) {
+            return;
+        }
+        key.interestOps(interestOps());
+        if (tls != null && tls.hasBufferedInput()) {
+            // Records decrypted before the pause are not reported again
+            onReadable();
+        }
+    }
+
+    /**
+     * Returns the operations to select for: reads unless they are paused,
+     * and writes while the socket is full.
+     */
+    private int interestOps() {
+        return (readPaused ? 0 : SelectionKey.OP_READ) | (writeBlocked ? SelectionKey.OP_WRITE : 0);
+    }
+
+    /**
+     * Picks the codec matching the first byte a client sent.
+     *
+     * @throws IOException If the byte matches no known protocol.
+     */
+    private static MessageCodec negotiate(byte firstByte) throws IOException {
+        if (firstByte == BinaryMessageCodec.FIRST_BYTE) {
+            return new BinaryMessageCodec();
+        }
+        if (firstByte == (byte) (ObjectStreamConstants.STREAM_MAGIC >> 8)) {
+            return new SerializedMessageCodec();
+        }
+        throw new StreamCorruptedException("Unknown protocol");
+    }
+
+    /**
+     * Called by the loop when the socket can accept more data.
+     */
+    void onWritable() {
+        flush();
+        if (tls != null && tls.hasBufferedInput() && !writeBlocked && !closed.get()) {
+            // The handshake was waiting for the socket with the peer's
+            // next message already read
+            onReadable();
+        }
+    }
+
+    /**
+     * Arranges for the queue to be flushed unless a flush is already
+     * pending.  With a batching delay, a pending flush is brought forward
+     * once the waiting bytes reach the threshold.
+     */
+    private void scheduleFlush() {
+        if (flushScheduled.compareAndSet(false, true)) {
+            if (loop.inLoop()) {
+                armFlush();
+            } else {
+                loop.execute(this::armFlush);
+            }
+        } else if (maxDelayNanos > 0 && outbound.bytes() >= maxBytes
+            && flushRequested.compareAndSet(false, true)) {
+            loop.execute(this::flush);
+        }
+    }
+
+    /**
+     * Defers the flush to the end of this loop cycle, or by the batching
+     * delay.  Must run on the loop thread.
+     */
+    private void armFlush() {
+        if (writeBlocked) {
+            // The socket is full: onWritable will drain the queue
+            flushScheduled.set(false);
+        } else if (maxDelayNanos == 0 || outbound.bytes() >= maxBytes) {
+            loop.flushAtEndOfCycle(this);
+        } else {
+            loop.schedule(this::flush, maxDelayNanos);
+        }
+    }
+
+    /**
+     * Writes as much queued data as the socket accepts, a write buffer at
+     * a time, closing the connection once everything is written if close
+     * was called.  Must run on the loop thread.
+     */
+    void flush() {
+        flushScheduled.set(false);
+        flushRequested.set(false);
+        if (key == null || !key.isValid()) {
+            return;
+        }
+        FlushStats stats = server.getOutboundMetrics().flushStats();
+        ByteBuffer out = loop.writeBuffer();
+        try {
+            while (true) {
+                out.clear();
+                if (unwritten != null) {
+                    out.put(unwritten);
+                    unwritten = null;
+                }
+                int frames = fill(out);
+                if (out.position() == 0) {
+                    break;
+                }
+                out.flip();
+                int written = write(out);
+                stats.recordFlush(frames, written);
+                if (out.hasRemaining()) {
+                    // The socket is full: keep what it did not take
+                    unwritten = ByteBuffer.allocate(out.remaining()).put(out).flip();
+                    writeBlocked = true;
+                    key.interestOps(interestOps());
+                    return;
+                }
+            }
+            if (tls != null && !tls.flush()) {
+                // Encrypted bytes or a handshake message are still waiting
+                writeBlocked = true;
+                key.interestOps(interestOps());
+                return;
+            }
+            writeBlocked = false;
+            if (closeWhenFlushed) {
+                closeNow();
+                return;
+            }
+            key.interestOps(interestOps());
+        } catch (IOException e) {
+            closeNow();
+        }
+    }
+
+    /**
+     * Copies waiting frames into the write buffer until it is full or
+     * nothing is waiting, without moving the frames' own positions, and
+     * returns how many were copied completely.  A frame that does not fit
+     * is finished by the next call.
+     */
+    private int fill(ByteBuffer out) throws IOException {
+        int frames = 0;
+        while (out.hasRemaining()) {
+            if (current == null) {
+                current = nextBuffer();
+                copied = 0;
+                if (current == null) {
+                    break;
+                }
+            }
+            int length = Math.min(out.remaining(), current.remaining() - copied);
+            out.put(out.position(), current, current.position() + copied, length);
+            out.position(out.position() + length);
+            copied += length;
+            if (copied == current.remaining()) {
+                current = null;
+                frames++;
+            }
+        }
+        return frames;
+    }
+
+    /**
+     * Returns the next buffer to write: a notice if messages were coalesced
+     * away, otherwise the messages queued before a replay started, then
+     * the replay, then the rest of the queue.
+     */
+    private ByteBuffer nextBuffer() throws IOException {
+        long skipped = outbound.takeSkipped();
+        if (skipped > 0) {
+            return encoder.encode(ChatFrame.serverMessage(
+                "Skipped " + skipped + " messages: connection too slow."));
+        }
+        if (replay != null) {
+            if (queuedBeforeReplay > 0) {
+                ByteBuffer buffer = outbound.poll();
+                if (buffer != null) {
+                    queuedBeforeReplay--;
+                    return buffer;
+                }
+                queuedBeforeReplay = 0;
+            }
+            ByteBuffer buffer = replay.next(encoder);
+            if (buffer != null) {
+                return buffer;
+            }
+            replay = null;
+        }
+        return outbound.poll();
+    }
+
+    /**
+     * Hands a replay to the loop, which sends it after the messages
+     * already queued and before any queued later, reading from the cursor
+     * only as fast as the socket drains.
+     */
+    @Override
+    public void replay(JournalCursor cursor) throws IOException {
+        checkOpen();
+        server.execute(this, () -> {
+            if (loop.inLoop()) {
+                startReplay(cursor);
+            } else {
+                loop.execute(() -> startReplay(cursor));
+            }
+        });
+    }
+
+    private void startReplay(JournalCursor cursor) {
+        queuedBeforeReplay = outbound.depth();
+        replay = cursor;
+        scheduleFlush();
+    }
+
+    /**
+     * Closes the socket and reports the disconnection exactly once.  Must
+     * run on the loop thread.
+     */
+    void closeNow() {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        if (key != null) {
+            key.cancel();
+        }
+        if (tls != null) {
+            tls.close();
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // The connection is going away regardless
+        }
+        current = null;
+        unwritten = null;
+        pending = null;
+        replay = null;
+        outbound.close();
+        server.connectionClosed(this);
+    }
+}
@@ -0,0 +1,303 @@
+package edu.seg2105.edu.server.backend;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+
+/**
+ * One selector thread of the NIO engine.  Every connection is owned by
+ * exactly one loop for its whole life, so its socket and buffers are only
+ * ever touched by that loop's thread; other threads hand work to the loop
+ * through execute().
+ * <p>
+ * The loop also runs timers (with the millisecond granularity of
+ * Selector.select) and flushes deferred writes once per cycle, after all
+ * reads of the cycle have been handled, so that replies produced by one
+ * batch of input leave in as few writes as possible.
+ */
+final class NioEventLoop implements Runnable, Executor {
+
+    /**
+     * Size of the loop's write buffer: the most bytes written at once.
+     */
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Size of the loop's read buffer: the most bytes read at once.
+     */
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private final int index;
+    private final Selector selector;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+    private final Thread thread;
+    private final PriorityQueue<Timer> timers = new PriorityQueue<Timer>();
+    private final ArrayDeque<NioConnection> pendingFlushes = new ArrayDeque<NioConnection>();
+
+    /**
+     * The buffer connections copy their outgoing frames into for each
+     * socket write.  Being direct, the channel writes it without copying
+     * it again, and because a loop runs one flush at a time, one buffer
+     * serves all of its connections.
+     */
+    private final ByteBuffer writeBuffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+
+    /**
+     * The buffer connections read into.  A connection decodes and hands
+     * over what it read before the read returns, copying out only a frame
+     * that has not fully arrived, so one buffer serves all of the loop's
+     * connections and an idle connection holds none.
+     */
+    private ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+    private volatile boolean running = true;
+
+    /**
+     * Opens the selector and starts the loop thread.
+     *
+     * @param index The position of the loop among the engine's loops.
+     * @param name The name of the loop thread.
+     * @throws IOException If the selector cannot be opened.
+     */
+    NioEventLoop(int index, String name) throws IOException {
+        this.index = index;
+        selector = Selector.open();
+        thread = new Thread(this, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Returns the position of the loop among the engine's loops.
+     */
+    int index() {
+        return index;
+    }
+
+    /**
+     * Returns the selector that connections of this loop register with.
+     */
+    Selector selector() {
+        return selector;
+    }
+
+    /**
+     * Returns the loop's write buffer.  Must be called on the loop thread,
+     * and the buffer must be fully written or copied out before the
+     * flush using it returns.
+     */
+    ByteBuffer writeBuffer() {
+        return writeBuffer;
+    }
+
+    /**
+     * Returns the loop's read buffer, cleared, with room for at least the
+     * given number of bytes.  Must be called on the loop thread, and what
+     * is read into it must be handled or copied out before the read using
+     * it returns.
+     *
+     * @param minimum The fewest bytes a read needs room for.
+     */
+    ByteBuffer readBuffer(int minimum) {
+        if (readBuffer.capacity() < minimum) {
+            readBuffer = ByteBuffer.allocateDirect(minimum);
+        }
+        readBuffer.clear();
+        return readBuffer;
+    }
+
+    /**
+     * Returns true if the caller is running on this loop's thread.
+     */
+    boolean inLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    /**
+     * Runs a task on the loop thread as soon as possible.
+     *
+     * @param task The task to run.
+     */
+    @Override
+    public void execute(Runnable task) {
+        tasks.add(task);
+        if (!inLoop()) {
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Runs a task on the loop thread after a delay.  Must be called on the
+     * loop thread.
+     *
+     * @param task The task to run.
+     * @param delayNanos The delay in nanoseconds.
+     */
+    void schedule(Runnable task, long delayNanos) {
+        timers.add(new Timer(System.nanoTime() + delayNanos, task));
+    }
+
+    /**
+     * Flushes a connection at the end of the current cycle.  Must be called
+     * on the loop thread.
+     *
+     * @param connection The connection to flush.
+     */
+    void flushAtEndOfCycle(NioConnection connection) {
+        pendingFlushes.add(connection);
+    }
+
+    /**
+     * Stops the loop once the tasks already queued have run.
+     */
+    void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+
+    /**
+     * Waits for the loop thread to finish.
+     */
+    void join() throws InterruptedException {
+        if (!inLoop()) {
+            thread.join();
+        }
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                long timeout = millisToNextTimer();
+                if (timeout < 0) {
+                    selector.select();
+                } else if (timeout == 0) {
+                    selector.selectNow();
+                } else {
+                    selector.select(timeout);
+                }
+            } catch (IOException e) {
+                ServerLog.error("Error: Selector failure in " + thread.getName());
+                break;
+            }
+            runTasks();
+
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                NioConnection connection = (NioConnection) key.attachment();
+                try {
+                    if (key.isValid() && key.isReadable()) {
+                        connection.onReadable();
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        connection.onWritable();
+                    }
+                } catch (RuntimeException e) {
+                    failed(connection, e);
+                }
+            }
+            runTimers();
+            runPendingFlushes();
+        }
+        runTasks();
+        runPendingFlushes();
+        // Connections still waiting to write go down with the loop
+        for (SelectionKey key : new ArrayList<SelectionKey>(selector.keys())) {
+            ((NioConnection) key.attachment()).closeNow();
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            // Nothing useful to do while shutting down
+        }
+    }
+
+    /**
+     * Returns the milliseconds until the next timer is due, 0 if one is
+     * already due, or -1 if there are none.
+     */
+    private long millisToNextTimer() {
+        if (!tasks.isEmpty() || !pendingFlushes.isEmpty()) {
+            return 0;
+        }
+        Timer next = timers.peek();
+        if (next == null) {
+            return -1;
+        }
+        long nanos = next.deadline - System.nanoTime();
+        return nanos <= 0 ? 0 : Math.max(1, (nanos + 999_999) / 1_000_000);
+    }
+
+    private void runTimers() {
+        long now = System.nanoTime();
+        while (!timers.isEmpty() && timers.peek().deadline - now <= 0) {
+            try {
+                timers.poll().task.run();
+            } catch (RuntimeException e) {
+                ServerLog.error("Error: Timer failed in " + thread.getName() + ": " + e);
+            }
+        }
+    }
+
+    private void runPendingFlushes() {
+        NioConnection connection;
+        while ((connection = pendingFlushes.poll()) != null) {
+            try {
+                connection.flush();
+            } catch (RuntimeException e) {
+                failed(connection, e);
+            }
+        }
+    }
+
+    /**
+     * Closes a connection whose handling threw, leaving the loop's other
+     * connections alone.
+     */
+    private void failed(NioConnection connection, RuntimeException e) {
+        ServerLog.error("Error: Connection failed in " + thread.getName() + ": " + e);
+        try {
+            connection.closeNow();
+        } catch (RuntimeException again) {
+            ServerLog.error("Error: Could not close connection in " + thread.getName() + ": " + again);
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                ServerLog.error("Error: Task failed in " + thread.getName() + ": " + e);
+            }
+        }
+    }
+
+    /**
+     * A task due at a point in System.nanoTime().
+     */
+    private static final class Timer implements Comparable<Timer> {
+        final long deadline;
+        final Runnable task;
+
+        Timer(long deadline, Runnable task) {
+            this.deadline = deadline;
+            this.task = task;
+        }
+
+        @Override
+        public int compareTo(Timer other) {
+            return Long.compare(deadline - other.deadline, 0);
+        }
+    }
+}
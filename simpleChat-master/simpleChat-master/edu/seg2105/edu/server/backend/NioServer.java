@@ -0,0 +1,336 @@
+package edu.seg2105.edu.server.backend;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+
+import edu.seg2105.client.common.TlsConfig;
+
+/**
+ * A non-blocking server engine built on java.nio selectors.  One acceptor
+ * thread hands new sockets round-robin to a small fixed set of event
+ * loops, each of which multiplexes thousands of connections, instead of
+ * dedicating a blocking thread to every client as OCSF does.
+ * <p>
+ * Each client chooses its wire format when it connects: unmodified OCSF
+ * clients use the Java serialization format, and clients configured for
+ * it use the compact binary protocol.  Events are reported to the same EchoServer hooks the OCSF
+ * engine calls: clientConnected, handleMessageFromClient and
+ * clientDisconnected.
+ * <p>
+ * With simplechat.tls, every connection is carried over TLS.  The engine
+ * keeps one SSLContext, and so one session cache, from its first listen
+ * on, so that reconnecting clients can resume their sessions.
+ */
+public class NioServer implements ServerEngine {
+
+    /**
+     * The longest the acceptor waits after failing to accept, in
+     * milliseconds.  It starts at one and doubles with each failure in a
+     * row.
+     */
+    private static final long MAX_ACCEPT_BACKOFF_MILLIS = 1000;
+
+    private final EchoServer server;
+    private final int loopCount;
+    private final Set<NioConnection> connections = ConcurrentHashMap.newKeySet();
+    private final OutboundMetrics outboundMetrics = new OutboundMetrics();
+    private int port;
+    private final AtomicInteger nextLoop = new AtomicInteger();
+    private volatile NioEventLoop[] loops;
+    private volatile ShardedFanOut fanOut;
+    private volatile ServerSocketChannel serverChannel;
+    private volatile SSLContext tlsContext;
+    private Thread acceptThread;
+
+    /**
+     * Constructs a NIO engine for the given server.
+     *
+     * @param port The port number to listen on.
+     * @param server The server whose hooks receive the engine's events.
+     * @param loopCount The number of event-loop threads.
+     */
+    public NioServer(int port, EchoServer server, int loopCount) {
+        this.port = port;
+        this.server = server;
+        this.loopCount = loopCount;
+    }
+
+    @Override
+    public synchronized void listen() throws IOException {
+        if (isListening()) {
+            return;
+        }
+        if (tlsContext == null && TlsConfig.enabled()) {
+            tlsContext = TlsConfig.serverContext();
+        }
+        if (loops == null) {
+            NioEventLoop[] started = new NioEventLoop[loopCount];
+            for (int i = 0; i < loopCount; i++) {
+                started[i] = new NioEventLoop(i, "nio-loop-" + i);
+            }
+            loops = started;
+            fanOut = ServerConfig.fanOutShards() > 1
+                ? ShardedFanOut.over(started, NioServer::loopOf, NioServer::send, server.getMetrics())
+                : ShardedFanOut.withWorkers("nio-fanout", 1, 0, NioServer::send, server.getMetrics());
+        }
+
+        ServerSocketChannel channel = ServerSocketChannel.open();
+        try {
+            channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            if (ServerConfig.reusePort() && channel.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+                channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            }
+            channel.bind(new InetSocketAddress(port), 1024);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+        serverChannel = channel;
+
+        acceptThread = new Thread(this::acceptLoop, "nio-acceptor");
+        acceptThread.start();
+        server.serverStarted();
+    }
+
+    @Override
+    public synchronized void stopListening() {
+        ServerSocketChannel channel = serverChannel;
+        if (channel == null) {
+            return;
+        }
+        serverChannel = null;
+        try {
+            channel.close();
+            acceptThread.join();
+        } catch (IOException e) {
+            // The acceptor is stopping regardless
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        server.serverStopped();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        stopListening();
+        for (NioConnection connection : new ArrayList<NioConnection>(connections)) {
+            connection.close();
+        }
+        if (loops != null) {
+            for (NioEventLoop loop : loops) {
+                loop.shutdown();
+            }
+            try {
+                for (NioEventLoop loop : loops) {
+                    loop.join();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            loops = null;
+            fanOut = null;
+        }
+    }
+
+    @Override
+    public boolean isListening() {
+        return serverChannel != null;
+    }
+
+    @Override
+    public synchronized int getPort() {
+        return port;
+    }
+
+    @Override
+    public synchronized void setPort(int port) {
+        this.port = port;
+    }
+
+    /**
+     * Sends a message to every connected client, encoding it once per
+     * wire format rather than once per client.
+     */
+    @Override
+    public void sendToAllClients(Object msg) {
+        sendToClients(connections, msg);
+    }
+
+    /**
+     * Sends a message to the given clients, sharing one encoding between
+     * them.  The message may already be an EncodedMessage.  Unless
+     * simplechat.fanout.shards is 1, each event loop sends to its own
+     * connections, in parallel.
+     */
+    @Override
+    public void sendToClients(Collection<? extends ChatConnection> clients, Object msg) {
+        ShardedFanOut current = fanOut;
+        if (current != null) {
+            current.send(clients, msg instanceof EncodedMessage ? (EncodedMessage) msg : new EncodedMessage(msg));
+        }
+    }
+
+    /**
+     * Runs a task for a connection after the broadcasts already handed to
+     * its loop, or at once if broadcasts are sent on the caller's thread.
+     */
+    void execute(NioConnection client, Runnable task) {
+        ShardedFanOut current = fanOut;
+        if (current != null) {
+            current.execute(client, task);
+        } else {
+            task.run();
+        }
+    }
+
+    /**
+     * Returns the index of the loop that owns a client, the shard that
+     * sends to it.
+     */
+    private static int loopOf(ChatConnection client) {
+        return client instanceof NioConnection ? ((NioConnection) client).loop().index() : -1;
+    }
+
+    private static void send(ChatConnection client, EncodedMessage message) throws IOException {
+        if (client instanceof NioConnection) {
+            ((NioConnection) client).sendEncoded(message);
+        } else {
+            client.sendToClient(message.message());
+        }
+    }
+
+    @Override
+    public int getNumberOfClients() {
+        return connections.size();
+    }
+
+    @Override
+    public OutboundMetrics getOutboundMetrics() {
+        return outboundMetrics;
+    }
+
+    /**
+     * Accepts sockets until the server channel is closed.
+     */
+    private void acceptLoop() {
+        ServerSocketChannel channel = serverChannel;
+        long backoffMillis = 0;
+        while (channel != null && channel.isOpen()) {
+            SocketChannel socket = null;
+            try {
+                socket = channel.accept();
+                socket.configureBlocking(false);
+                socket.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                assign(socket);
+                backoffMillis = 0;
+            } catch (ClosedChannelException e) {
+                return;
+            } catch (IOException e) {
+                closeQuietly(socket);
+                // Out of file descriptors, say: wait for some to be freed
+                // rather than failing again at once
+                if (backoffMillis == 0) {
+                    ServerLog.warn("Error: Could not accept connection: " + e.getMessage());
+                }
+                backoffMillis = Math.min(MAX_ACCEPT_BACKOFF_MILLIS, Math.max(1, backoffMillis * 2));
+                try {
+                    Thread.sleep(backoffMillis);
+                } catch (InterruptedException interrupted) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private static void closeQuietly(SocketChannel socket) {
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Nothing more to do with it
+            }
+        }
+    }
+
+    /**
+     * Hands a freshly accepted socket to the next event loop.
+     */
+    private void assign(SocketChannel socket) {
+        NioEventLoop[] current = loops;
+        NioEventLoop loop = current[Math.floorMod(nextLoop.getAndIncrement(), current.length)];
+        OutboundQueue<ByteBuffer> queue = OutboundQueue.configured(outboundMetrics, ByteBuffer::remaining);
+        NioConnection connection = new NioConnection(this, loop, socket, newTlsChannel(socket), queue);
+        // The login timeout runs from here, so a socket that never sends
+        // enough to pick a wire format is reaped too
+        server.getWatchdog().accepted(connection);
+        loop.execute(() -> {
+            try {
+                connection.register();
+            } catch (IOException e) {
+                connection.closeNow();
+            }
+        });
+    }
+
+    /**
+     * Returns the TLS layer for a freshly accepted socket, or null if TLS
+     * is off.
+     */
+    private TlsChannel newTlsChannel(SocketChannel socket) {
+        SSLContext context = tlsContext;
+        if (context == null) {
+            return null;
+        }
+        SSLEngine engine = context.createSSLEngine();
+        engine.setUseClientMode(false);
+        engine.setSSLParameters(TlsConfig.parameters(context, false));
+        return new TlsChannel(socket, engine, server.getMetrics());
+    }
+
+    /**
+     * Called on an event loop once a connection has negotiated its wire
+     * format and can be sent messages.
+     */
+    void connectionReady(NioConnection connection) {
+        connections.add(connection);
+        server.clientConnected(connection);
+    }
+
+    /**
+     * Called on an event loop with the number of bytes a connection read.
+     */
+    void bytesReceived(int count) {
+        server.getMetrics().bytesReceived(count);
+    }
+
+    /**
+     * Called on an event loop for every message a connection decodes.
+     */
+    void messageReceived(Object msg, NioConnection connection) {
+        server.handleMessageFromClient(msg, connection);
+    }
+
+    /**
+     * Called on an event loop when a connection has been closed.
+     */
+    void connectionClosed(NioConnection connection) {
+        if (connections.remove(connection)) {
+            server.clientDisconnected(connection);
+        } else {
+            server.getWatchdog().closed(connection);
+        }
+    }
+}
@@ -0,0 +1,293 @@
+package edu.seg2105.edu.server.backend;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.SocketException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import edu.seg2105.client.common.ChatFrame;
+import ocsf.server.ConnectionToClient;
+
+/**
+ * Adapts an OCSF ConnectionToClient to the engine-neutral ChatConnection
+ * interface.  One adapter is created per connection and cached in the
+ * connection's info map, so the same ChatConnection instance is seen by
+ * every hook.
+ * <p>
+ * OCSF writes to the socket on the calling thread, so the adapter gives
+ * each connection a bounded outbound queue and a writer thread of its
+ * own, as the thread-per-client engines do: senders and the fan-out
+ * workers only enqueue, and a slow reader is dealt with by the
+ * slow-consumer policy instead of holding them up.  The cost is a second
+ * thread per client on top of OCSF's reader, and its stack; with
+ * simplechat.ocsf.writerThreads=false there is neither writer nor queue,
+ * and the fan-out worker that sends a message writes it, as OCSF alone
+ * would.
+ */
+final class OcsfConnection implements ChatConnection {
+
+    /**
+     * Info key under which the adapter is cached.
+     */
+    private static final String ADAPTER_KEY = "chatConnection";
+
+    private static final AtomicInteger WRITERS = new AtomicInteger();
+
+    private final ConnectionToClient client;
+    private final ShardedFanOut fanOut;
+    private final OutboundQueue<EncodedMessage> outbound; // Null without a writer
+    private volatile boolean closed;
+    private final AtomicReference<PendingReplay> requestedReplay = new AtomicReference<PendingReplay>();
+    // Writer thread only
+    private JournalCursor replay;
+    private int queuedBeforeReplay;
+
+    private OcsfConnection(ConnectionToClient client, ShardedFanOut fanOut, OutboundQueue<EncodedMessage> outbound) {
+        this.client = client;
+        this.fanOut = fanOut;
+        this.outbound = outbound;
+    }
+
+    /**
+     * Returns the adapter for the given OCSF connection, creating it and
+     * starting its writer, if writers are configured, on first use.
+     *
+     * @param client The OCSF connection.
+     * @param fanOut The fan-out whose shard sends to the connection.
+     * @param metrics The engine's outbound counters.
+     * @return The adapter for that connection.
+     */
+    static OcsfConnection of(ConnectionToClient client, ShardedFanOut fanOut, OutboundMetrics metrics) {
+        synchronized (client) {
+            Object adapter = client.getInfo(ADAPTER_KEY);
+            if (adapter == null) {
+                OcsfConnection created;
+                if (ServerConfig.ocsfWriterThreads()) {
+                    created = new OcsfConnection(client, fanOut,
+                        OutboundQueue.configured(metrics, OcsfConnection::sizeOf));
+                    Thread writer = new Thread(created::writeLoop, "ocsf-writer-" + WRITERS.getAndIncrement());
+                    writer.setDaemon(true);
+                    writer.start();
+                } else {
+                    created = new OcsfConnection(client, fanOut, null);
+                }
+                client.setInfo(ADAPTER_KEY, created);
+                adapter = created;
+            }
+            return (OcsfConnection) adapter;
+        }
+    }
+
+    @Override
+    public void sendToClient(Object msg) throws IOException {
+        checkOpen();
+        EncodedMessage message = new EncodedMessage(msg);
+        fanOut.execute(this, () -> enqueue(message));
+    }
+
+    /**
+     * Sends a message whose encoding may be shared with other connections.
+     *
+     * @param message The message to send.
+     * @throws IOException If the connection is closed.
+     */
+    void sendEncoded(EncodedMessage message) throws IOException {
+        checkOpen();
+        enqueue(message);
+    }
+
+    private void checkOpen() throws SocketException {
+        if (closed) {
+            throw new SocketException("socket does not exist");
+        }
+    }
+
+    /**
+     * Queues a message for the writer, disconnecting the client if its
+     * queue is full and the slow-consumer policy says so.  OCSF reports
+     * the close, and the client's departure is broadcast, on the closing
+     * thread, so the close is left to the fan-out to run off its workers.
+     * Without a writer the message is written at once.
+     */
+    private void enqueue(EncodedMessage message) {
+        if (outbound == null) {
+            write(message.message());
+        } else if (!outbound.offer(message)) {
+            fanOut.close(this::closeQuietly);
+        }
+    }
+
+    /**
+     * Hands a replay to the writer, which sends it after the messages
+     * already queued and before any queued later, reading from the
+     * cursor only as fast as the socket drains.  Without a writer, the
+     * fan-out worker writes the whole replay once it reaches it.
+     */
+    @Override
+    public void replay(JournalCursor cursor) throws IOException {
+        checkOpen();
+        if (outbound == null) {
+            fanOut.execute(this, () -> {
+                try {
+                    for (Object msg = cursor.nextMessage(); msg != null && !closed; msg = cursor.nextMessage()) {
+                        write(msg);
+                    }
+                } catch (IOException e) {
+                    // The journal could not be read: the client misses the rest
+                }
+            });
+            return;
+        }
+        fanOut.execute(this, () -> {
+            requestedReplay.set(new PendingReplay(cursor, outbound.depth()));
+            outbound.wakeup();
+        });
+    }
+
+    /**
+     * Closes the connection once the messages already queued for it have
+     * been written.
+     */
+    @Override
+    public void close() throws IOException {
+        if (outbound == null) {
+            fanOut.execute(this, () -> fanOut.close(this::closeQuietly));
+        } else {
+            fanOut.execute(this, outbound::finish);
+        }
+    }
+
+    /**
+     * Called once OCSF has reported the connection closed: discards what
+     * is still queued and stops the writer.
+     */
+    void disconnected() {
+        closed = true;
+        requestedReplay.set(null);
+        if (outbound != null) {
+            outbound.close();
+        }
+    }
+
+    /**
+     * Writes a message on the calling thread, for connections without a
+     * writer.
+     */
+    private void write(Object msg) {
+        if (closed) {
+            return;
+        }
+        try {
+            client.sendToClient(ChatFrame.toLegacy(msg));
+        } catch (IOException e) {
+            // Peer went away: OCSF reports the closure
+        }
+    }
+
+    private void closeQuietly() {
+        try {
+            client.close();
+        } catch (IOException e) {
+            // The connection is going away regardless
+        }
+    }
+
+    @Override
+    public InetAddress getInetAddress() {
+        return client.getInetAddress();
+    }
+
+    @Override
+    public void setInfo(String infoType, Object info) {
+        client.setInfo(infoType, info);
+    }
+
+    @Override
+    public Object getInfo(String infoType) {
+        return client.getInfo(infoType);
+    }
+
+    /**
+     * Writes queued messages until the queue is closed, or finished and
+     * drained, in which case the connection is closed.
+     */
+    private void writeLoop() {
+        try {
+            while (true) {
+                long skipped = outbound.takeSkipped();
+                if (skipped > 0) {
+                    client.sendToClient(ChatFrame.toLegacy(ChatFrame.serverMessage(
+                        "Skipped " + skipped + " messages: connection too slow.")));
+                }
+                Object msg = pollNext();
+                if (msg == null) {
+                    EncodedMessage message = outbound.take();
+                    if (message == null) {
+                        if (requestedReplay.get() != null) {
+                            continue; // Woken to start a replay
+                        }
+                        break;
+                    }
+                    msg = message.message();
+                }
+                client.sendToClient(ChatFrame.toLegacy(msg));
+            }
+            if (!closed) {
+                client.close();
+            }
+        } catch (IOException e) {
+            // Peer went away: OCSF reports the closure
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Returns the next message to write without waiting: messages queued
+     * before a replay started, then the replay, then the queue.
+     */
+    private Object pollNext() throws IOException {
+        startRequestedReplay();
+        JournalCursor cursor = replay;
+        if (cursor != null && !closed) {
+            if (queuedBeforeReplay > 0) {
+                EncodedMessage message = outbound.poll();
+                if (message != null) {
+                    queuedBeforeReplay--;
+                    return message.message();
+                }
+                queuedBeforeReplay = 0;
+            }
+            Object msg = cursor.nextMessage();
+            if (msg != null) {
+                return msg;
+            }
+            replay = null;
+        }
+        EncodedMessage message = outbound.poll();
+        return message != null ? message.message() : null;
+    }
+
+    /**
+     * Takes over a replay handed to the writer, if there is one.
+     */
+    private void startRequestedReplay() {
+        PendingReplay request = requestedReplay.get() != null ? requestedReplay.getAndSet(null) : null;
+        if (request != null) {
+            replay = request.cursor;
+            queuedBeforeReplay = request.queuedBefore;
+        }
+    }
+
+    /**
+     * Estimates the bytes a queued message takes in the legacy wire
+     * format from its length: a String's tag and length, then a byte per
+     * character, which is exact for ASCII.  Encoding it to measure would
+     * serialize every message twice, since OCSF serializes it again to
+     * write it.
+     */
+    private static int sizeOf(EncodedMessage message) {
+        return 3 + String.valueOf(ChatFrame.toLegacy(message.message())).length();
+    }
+}
@@ -0,0 +1,106 @@
+package edu.seg2105.edu.server.backend;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import edu.seg2105.client.common.FlushStats;
+import edu.seg2105.client.common.LatencyHistogram;
+
+/**
+ * Counters for the outbound queues of one engine: current depth across
+ * all live queues, how many messages and clients the slow-consumer
+ * policy has dropped, and how well writes are being batched.
+ */
+public final class OutboundMetrics {
+
+    private final Set<OutboundQueue<?>> queues = ConcurrentHashMap.newKeySet();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder disconnects = new LongAdder();
+    private final FlushStats flushStats = new FlushStats();
+    private final LatencyHistogram depths = new LatencyHistogram();
+
+    void register(OutboundQueue<?> queue) {
+        queues.add(queue);
+    }
+
+    void unregister(OutboundQueue<?> queue) {
+        queues.remove(queue);
+    }
+
+    void messageDropped() {
+        dropped.increment();
+    }
+
+    void slowConsumerDisconnected() {
+        disconnects.increment();
+    }
+
+    void messageQueued(int depth) {
+        depths.record(depth);
+    }
+
+    /**
+     * Returns the number of messages waiting in all queues.
+     */
+    public long queuedMessages() {
+        long total = 0;
+        for (OutboundQueue<?> queue : queues) {
+            total += queue.depth();
+        }
+        return total;
+    }
+
+    /**
+     * Returns the depth of the fullest queue.
+     */
+    public int maxQueueDepth() {
+        int max = 0;
+        for (OutboundQueue<?> queue : queues) {
+            max = Math.max(max, queue.depth());
+        }
+        return max;
+    }
+
+    /**
+     * Returns the distribution of the depth of a client's queue each time
+     * a message was added to it.
+     */
+    public LatencyHistogram queueDepths() {
+        return depths;
+    }
+
+    /**
+     * Returns the number of messages discarded because a queue was full.
+     */
+    public long droppedMessages() {
+        return dropped.sum();
+    }
+
+    /**
+     * Returns the number of clients disconnected for reading too slowly.
+     */
+    public long slowConsumerDisconnects() {
+        return disconnects.sum();
+    }
+
+    /**
+     * Returns the counters of the engine's socket writes.
+     */
+    public FlushStats flushStats() {
+        return flushStats;
+    }
+
+    /**
+     * Returns the counters as one console line.
+     */
+    @Override
+    public String toString() {
+        return "queues=" + queues.size()
+            + " queued=" + queuedMessages()
+            + " maxDepth=" + maxQueueDepth()
+            + " dropped=" + droppedMessages()
+            + " slowDisconnects=" + slowConsumerDisconnects()
+            + " " + flushStats;
+    }
+}
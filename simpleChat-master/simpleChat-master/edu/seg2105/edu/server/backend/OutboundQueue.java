@@ -0,0 +1,253 @@
+package edu.seg2105.edu.server.backend;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.ToIntFunction;
+
+/**
+ * The bounded queue of messages waiting to be written to one client:
+ * encoded messages for the engines that write bytes, or EncodedMessages
+ * for OCSF, which writes objects.  Any thread may offer; the connection's
+ * I/O side takes messages off the head.  A message that has been taken is
+ * never dropped, so a partially written message cannot be cut short.
+ * <p>
+ * Uses a ReentrantLock rather than synchronized so that virtual threads
+ * waiting in take() do not pin their carriers.
+ *
+ * @param <T> The type of the queued messages.
+ */
+final class OutboundQueue<T> {
+
+    private final ArrayDeque<T> messages = new ArrayDeque<T>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final int maxMessages;
+    private final long maxBytes;
+    private final SlowConsumerPolicy policy;
+    private final OutboundMetrics metrics;
+    private final ToIntFunction<? super T> sizeOf;
+    private long queuedBytes;
+    private long skipped;
+    private boolean closed;
+    private boolean finishing;
+    private boolean woken;
+
+    /**
+     * Constructs a queue and registers it with the engine's metrics.
+     *
+     * @param maxMessages The most messages that may wait.
+     * @param maxBytes The most bytes that may wait.
+     * @param policy What to do when a new message does not fit.
+     * @param metrics The engine's counters.
+     * @param sizeOf The number of bytes a message takes on the wire.  It
+     *               must not change while the message is queued.
+     */
+    OutboundQueue(int maxMessages, long maxBytes, SlowConsumerPolicy policy, OutboundMetrics metrics,
+            ToIntFunction<? super T> sizeOf) {
+        this.maxMessages = maxMessages;
+        this.maxBytes = maxBytes;
+        this.policy = policy;
+        this.metrics = metrics;
+        this.sizeOf = sizeOf;
+        metrics.register(this);
+    }
+
+    /**
+     * Creates a queue bounded by the configured limits and policy.
+     *
+     * @param metrics The engine's counters.
+     * @param sizeOf The number of bytes a message takes on the wire.
+     */
+    static <T> OutboundQueue<T> configured(OutboundMetrics metrics, ToIntFunction<? super T> sizeOf) {
+        return new OutboundQueue<T>(ServerConfig.outboundMaxMessages(), ServerConfig.outboundMaxBytes(),
+            ServerConfig.slowConsumerPolicy(), metrics, sizeOf);
+    }
+
+    /**
+     * Adds a message, applying the slow-consumer policy if the queue is
+     * full.  Messages offered after the queue is closed are silently
+     * discarded.
+     *
+     * @param message The message.
+     * @return false if the policy requires the client to be disconnected.
+     */
+    boolean offer(T message) {
+        int size = sizeOf.applyAsInt(message);
+        lock.lock();
+        try {
+            if (closed) {
+                return true;
+            }
+            while (!messages.isEmpty()
+                && (messages.size() >= maxMessages || queuedBytes + size > maxBytes)) {
+                if (policy == SlowConsumerPolicy.DISCONNECT) {
+                    // Later offers are ignored while the connection closes
+                    closed = true;
+                    metrics.slowConsumerDisconnected();
+                    return false;
+                }
+                queuedBytes -= sizeOf.applyAsInt(messages.poll());
+                metrics.messageDropped();
+                if (policy == SlowConsumerPolicy.COALESCE) {
+                    skipped++;
+                }
+            }
+            messages.add(message);
+            queuedBytes += size;
+            metrics.messageQueued(messages.size());
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes and returns the head message, or null if the queue is empty.
+     */
+    T poll() {
+        lock.lock();
+        try {
+            T head = messages.poll();
+            if (head != null) {
+                queuedBytes -= sizeOf.applyAsInt(head);
+            }
+            return head;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes and returns the head message, waiting for one to arrive.
+     *
+     * @return The head message, or null once the queue is closed, or is
+     *         finishing and has been drained, or after wakeup().
+     */
+    T take() throws InterruptedException {
+        lock.lock();
+        try {
+            while (messages.isEmpty() && !closed && !finishing && !woken) {
+                notEmpty.await();
+            }
+            woken = false;
+            T head = messages.poll();
+            if (head != null) {
+                queuedBytes -= sizeOf.applyAsInt(head);
+            }
+            return head;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes and returns the head message, waiting at most the given time
+     * for one to arrive.
+     *
+     * @param nanos The longest time to wait, in nanoseconds.
+     * @return The head message, or null on timeout, once closed or
+     *         finishing, or after wakeup().
+     */
+    T poll(long nanos) throws InterruptedException {
+        lock.lock();
+        try {
+            while (messages.isEmpty() && !closed && !finishing && !woken && nanos > 0) {
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            woken = false;
+            T head = messages.poll();
+            if (head != null) {
+                queuedBytes -= sizeOf.applyAsInt(head);
+            }
+            return head;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns how many messages were coalesced away since the last call,
+     * and resets the count.
+     */
+    long takeSkipped() {
+        lock.lock();
+        try {
+            long count = skipped;
+            skipped = 0;
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of waiting messages.
+     */
+    int depth() {
+        lock.lock();
+        try {
+            return messages.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of waiting bytes.
+     */
+    long bytes() {
+        lock.lock();
+        try {
+            return queuedBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Makes the current or next wait in take() or poll(long) return
+     * without a buffer, so the taker can look at other work.
+     */
+    void wakeup() {
+        lock.lock();
+        try {
+            woken = true;
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Lets a waiting taker return once the queue has been drained, so the
+     * connection can close after its last messages are written.
+     */
+    void finish() {
+        lock.lock();
+        try {
+            finishing = true;
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Discards everything, wakes any waiting taker and unregisters from
+     * the metrics.
+     */
+    void close() {
+        lock.lock();
+        try {
+            closed = true;
+            messages.clear();
+            queuedBytes = 0;
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        metrics.unregister(this);
+    }
+}
@@ -0,0 +1,18 @@
+package edu.seg2105.edu.server.backend;
+
+/**
+ * A replay handed from a connection's fan-out worker to its writer
+ * thread: the cursor, and how many messages were already queued when the
+ * replay was asked for and so go out before it.  The writer takes the
+ * request and keeps both values to itself from then on.
+ */
+final class PendingReplay {
+
+    final JournalCursor cursor;
+    final int queuedBefore;
+
+    PendingReplay(JournalCursor cursor, int queuedBefore) {
+        this.cursor = cursor;
+        this.queuedBefore = queuedBefore;
+    }
+}
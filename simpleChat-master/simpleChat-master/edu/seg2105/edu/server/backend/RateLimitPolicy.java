@@ -0,0 +1,35 @@
+package edu.seg2105.edu.server.backend;
+
+/**
+ * What the server does with a message from a client that has exceeded
+ * its rate limit.
+ */
+public enum RateLimitPolicy {
+
+    /**
+     * Discard the message.
+     */
+    DROP,
+
+    /**
+     * Stop reading from the client until it is within its limit again,
+     * then handle the message, so that TCP pushes back on the sender.
+     */
+    DELAY,
+
+    /**
+     * Tell the client why and disconnect it.
+     */
+    DISCONNECT;
+
+    /**
+     * Parses a policy name such as "delay" or "DELAY".
+     *
+     * @param name The policy name.
+     * @return The policy.
+     * @throws IllegalArgumentException If the name is unknown.
+     */
+    public static RateLimitPolicy parse(String name) {
+        return valueOf(name.trim().toUpperCase().replace('-', '_'));
+    }
+}
@@ -0,0 +1,116 @@
+package edu.seg2105.edu.server.backend;
+
+import java.net.InetAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Flood protection: a token bucket per login ID and another per client
+ * address, checked for every message received.  The per-address bucket
+ * also limits clients that have not logged in yet, and survives
+ * reconnecting, as does the per-login one.
+ * <p>
+ * Checking is a lock-free map lookup and a CAS per bucket.  Buckets are
+ * created on first use and forgotten once they have refilled, by a sweep
+ * run at most every ten seconds by whichever thread checks first after
+ * that, so the maps hold only the clients active recently and do not grow
+ * with connection churn.
+ */
+public final class RateLimiter {
+
+    private static final long SWEEP_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    private final int loginPerSecond;
+    private final int loginBurst;
+    private final int addressPerSecond;
+    private final int addressBurst;
+    private final ConcurrentHashMap<String, TokenBucket> logins =
+        new ConcurrentHashMap<String, TokenBucket>();
+    private final ConcurrentHashMap<InetAddress, TokenBucket> addresses =
+        new ConcurrentHashMap<InetAddress, TokenBucket>();
+    private final AtomicLong nextSweep = new AtomicLong(System.nanoTime() + SWEEP_INTERVAL_NANOS);
+
+    /**
+     * @param loginPerSecond Messages per second allowed per login ID, or 0
+     *                       for no limit.
+     * @param loginBurst Messages a login ID may send at once.
+     * @param addressPerSecond Messages per second allowed per client
+     *                         address, or 0 for no limit.
+     * @param addressBurst Messages an address may send at once.
+     */
+    public RateLimiter(int loginPerSecond, int loginBurst, int addressPerSecond, int addressBurst) {
+        this.loginPerSecond = loginPerSecond;
+        this.loginBurst = loginBurst;
+        this.addressPerSecond = addressPerSecond;
+        this.addressBurst = addressBurst;
+    }
+
+    /**
+     * Returns true if either limit is enabled.
+     */
+    public boolean isEnabled() {
+        return loginPerSecond > 0 || addressPerSecond > 0;
+    }
+
+    /**
+     * Takes a token for one message from both of a client's buckets, or
+     * from neither.
+     *
+     * @param loginId The client's login ID, or null before it logs in.
+     * @param address The client's address, or null if unknown.
+     * @return 0 if the message is within the limits, otherwise the
+     *         nanoseconds until it would be.
+     */
+    public long acquire(String loginId, InetAddress address) {
+        long now = System.nanoTime();
+        sweepIfDue(now);
+        TokenBucket login = null;
+        if (loginId != null && loginPerSecond > 0) {
+            login = bucket(logins, loginId, loginPerSecond, loginBurst, now);
+            long wait = login.tryTake(now);
+            if (wait > 0) {
+                return wait;
+            }
+        }
+        if (address != null && addressPerSecond > 0) {
+            long wait = bucket(addresses, address, addressPerSecond, addressBurst, now).tryTake(now);
+            if (wait > 0) {
+                if (login != null) {
+                    login.refund();
+                }
+                return wait;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Returns the number of buckets held, for both kinds together.
+     */
+    public int size() {
+        return logins.size() + addresses.size();
+    }
+
+    private static <K> TokenBucket bucket(ConcurrentHashMap<K, TokenBucket> buckets, K key,
+        int perSecond, int burst, long now) {
+        TokenBucket bucket = buckets.get(key);
+        if (bucket == null) {
+            bucket = buckets.computeIfAbsent(key, k -> new TokenBucket(perSecond, burst, now));
+        }
+        return bucket;
+    }
+
+    /**
+     * Forgets the buckets that have refilled, if a sweep is due and no
+     * other thread has started it.
+     */
+    private void sweepIfDue(long now) {
+        long due = nextSweep.get();
+        if (now - due < 0 || !nextSweep.compareAndSet(due, now + SWEEP_INTERVAL_NANOS)) {
+            return;
+        }
+        logins.values().removeIf(bucket -> bucket.isFull(now));
+        addresses.values().removeIf(bucket -> bucket.isFull(now));
+    }
+}
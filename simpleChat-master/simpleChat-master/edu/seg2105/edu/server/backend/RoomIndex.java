@@ -0,0 +1,94 @@
+package edu.seg2105.edu.server.backend;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The room-to-members index behind #join, #leave and #who.  Each room
+ * maps to a concurrent set of connections, so a chat line is delivered
+ * to its room's members only.  Membership changes lock only the hash bin
+ * of the room involved, never the whole index, and empty rooms are
+ * removed atomically.
+ * <p>
+ * A connection's current room is also kept in its info map under "room".
+ */
+public final class RoomIndex {
+
+    /**
+     * The room every client enters when it logs in, and returns to on #leave.
+     */
+    public static final String LOBBY = "lobby";
+
+    /**
+     * Info key holding a connection's current room.
+     */
+    public static final String ROOM_KEY = "room";
+
+    private final ConcurrentHashMap<String, Set<ChatConnection>> rooms =
+        new ConcurrentHashMap<String, Set<ChatConnection>>();
+
+    /**
+     * Moves a connection into a room, leaving its previous room.
+     *
+     * @param client The connection.
+     * @param room The room to join.
+     * @return The room the connection was in before, or null.
+     */
+    public String join(ChatConnection client, String room) {
+        String previous = leave(client);
+        rooms.compute(room, (name, members) -> {
+            if (members == null) {
+                members = ConcurrentHashMap.newKeySet();
+            }
+            members.add(client);
+            return members;
+        });
+        client.setInfo(ROOM_KEY, room);
+        return previous;
+    }
+
+    /**
+     * Removes a connection from its current room.
+     *
+     * @param client The connection.
+     * @return The room it left, or null if it was in none.
+     */
+    public String leave(ChatConnection client) {
+        String room = roomOf(client);
+        if (room == null) {
+            return null;
+        }
+        rooms.computeIfPresent(room, (name, members) -> {
+            members.remove(client);
+            return members.isEmpty() ? null : members;
+        });
+        client.setInfo(ROOM_KEY, null);
+        return room;
+    }
+
+    /**
+     * Returns the room a connection is in, or null.
+     */
+    public String roomOf(ChatConnection client) {
+        return (String) client.getInfo(ROOM_KEY);
+    }
+
+    /**
+     * Returns a live, read-only view of a room's members.
+     *
+     * @param room The room.
+     * @return The members, empty if the room does not exist.
+     */
+    public Set<ChatConnection> members(String room) {
+        Set<ChatConnection> members = rooms.get(room);
+        return members != null ? Collections.unmodifiableSet(members) : Collections.<ChatConnection>emptySet();
+    }
+
+    /**
+     * Returns the number of non-empty rooms.
+     */
+    public int size() {
+        return rooms.size();
+    }
+}
@@ -0,0 +1,433 @@
+package edu.seg2105.edu.server.backend;
+
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Central place for the server's tunable settings.  Every setting is read
+ * from a "simplechat.*" system property so it can be changed with -D on
+ * the command line without touching the console arguments.
+ */
+public final class ServerConfig {
+
+    /**
+     * Name of the default OCSF thread-per-connection engine.
+     */
+    public static final String ENGINE_OCSF = "ocsf";
+
+    /**
+     * Name of the non-blocking selector engine.
+     */
+    public static final String ENGINE_NIO = "nio";
+
+    /**
+     * Name of the thread-per-connection engine running on virtual threads.
+     */
+    public static final String ENGINE_VIRTUAL = "virtual";
+
+    /**
+     * Name of the thread-per-connection engine running on platform
+     * threads, the baseline the virtual-thread engine is measured against.
+     */
+    public static final String ENGINE_PLATFORM = "platform";
+
+    private ServerConfig() {
+    }
+
+    /**
+     * Returns the engine to run (simplechat.engine, default "ocsf").
+     */
+    public static String engine() {
+        return System.getProperty("simplechat.engine", ENGINE_OCSF);
+    }
+
+    /**
+     * Returns the number of event-loop threads for the NIO engine
+     * (simplechat.nio.loops, default one per core).
+     */
+    public static int eventLoops() {
+        return Math.max(1, Integer.getInteger("simplechat.nio.loops",
+            Runtime.getRuntime().availableProcessors()));
+    }
+
+    /**
+     * Returns the number of shards a broadcast is split into and sent by in
+     * parallel (simplechat.fanout.shards, default one per core).  The NIO
+     * engine uses its event loops as the shards whatever the number; 1
+     * sends every broadcast on the thread that made it.
+     */
+    public static int fanOutShards() {
+        return Math.max(1, Integer.getInteger("simplechat.fanout.shards",
+            Runtime.getRuntime().availableProcessors()));
+    }
+
+    /**
+     * Returns the most broadcast parts and direct sends that may wait for
+     * each fan-out worker before the thread handing them over waits
+     * (simplechat.fanout.queueSize, default 1024).  The NIO engine's
+     * event loops do not use it.
+     */
+    public static int fanOutQueueSize() {
+        return Math.max(1, Integer.getInteger("simplechat.fanout.queueSize", 1024));
+    }
+
+    /**
+     * Returns the number of worker threads of a message pipeline stage
+     * (simplechat.pipeline.&lt;stage&gt;.threads, default 0: the stage runs
+     * on the thread that read the message).  Only the "auth" and "route"
+     * stages take workers.
+     *
+     * @param stage The stage name.
+     */
+    public static int pipelineThreads(String stage) {
+        return Math.max(0, Integer.getInteger("simplechat.pipeline." + stage + ".threads", 0));
+    }
+
+    /**
+     * Returns the most messages that may wait for each pipeline worker
+     * before the thread handing them over waits
+     * (simplechat.pipeline.queueSize, default 1024).
+     */
+    public static int pipelineQueueSize() {
+        return Math.max(1, Integer.getInteger("simplechat.pipeline.queueSize", 1024));
+    }
+
+    /**
+     * Returns the most messages that may wait for one client
+     * (simplechat.outbound.maxMessages, default 1024).
+     */
+    public static int outboundMaxMessages() {
+        return Math.max(1, Integer.getInteger("simplechat.outbound.maxMessages", 1024));
+    }
+
+    /**
+     * Returns the most bytes that may wait for one client
+     * (simplechat.outbound.maxBytes, default 4 MB).
+     */
+    public static long outboundMaxBytes() {
+        return Math.max(1, Long.getLong("simplechat.outbound.maxBytes", 4L * 1024 * 1024));
+    }
+
+    /**
+     * Returns the largest message a client may send, in bytes
+     * (simplechat.inbound.maxMessageBytes, default 1 MB).  A client that
+     * sends more is disconnected.
+     */
+    public static int maxMessageBytes() {
+        return Math.max(1024, Integer.getInteger("simplechat.inbound.maxMessageBytes", 1024 * 1024));
+    }
+
+    /**
+     * Returns what to do when a client's outbound queue is full
+     * (simplechat.outbound.policy: drop-oldest, disconnect or coalesce;
+     * default drop-oldest).
+     */
+    public static SlowConsumerPolicy slowConsumerPolicy() {
+        return SlowConsumerPolicy.parse(System.getProperty("simplechat.outbound.policy", "drop-oldest"));
+    }
+
+    /**
+     * Returns true to give every OCSF client a writer thread and an
+     * outbound queue of its own (simplechat.ocsf.writerThreads, default
+     * true).  That doubles the OCSF engine's threads, one reading and one
+     * writing per client, but a slow reader then only fills its own queue.
+     * With false, messages are written on the fan-out worker that sends
+     * them, as plain OCSF does, and a slow reader holds up every client
+     * of its worker; the slow-consumer policy does not apply.
+     */
+    public static boolean ocsfWriterThreads() {
+        return !"false".equalsIgnoreCase(System.getProperty("simplechat.ocsf.writerThreads"));
+    }
+
+    /**
+     * Returns what to do when a client logs in with an ID already in use
+     * (simplechat.login.duplicate: reject or kick-old; default reject).
+     */
+    public static DuplicateLoginPolicy duplicateLoginPolicy() {
+        return DuplicateLoginPolicy.parse(System.getProperty("simplechat.login.duplicate", "reject"));
+    }
+
+    /**
+     * Returns the most private messages kept for one logged-off user
+     * (simplechat.mailbox.maxMessages, default 100).
+     */
+    public static int mailboxMaxMessages() {
+        return Math.max(0, Integer.getInteger("simplechat.mailbox.maxMessages", 100));
+    }
+
+    /**
+     * Returns the most logged-off users with private messages kept for
+     * them (simplechat.mailbox.maxUsers, default 10000).
+     */
+    public static int mailboxMaxUsers() {
+        return Math.max(0, Integer.getInteger("simplechat.mailbox.maxUsers", 10000));
+    }
+
+    /**
+     * Returns the messages per second each login ID may send
+     * (simplechat.rate.login.perSecond, default 0: no limit).
+     */
+    public static int rateLoginPerSecond() {
+        return Math.max(0, Integer.getInteger("simplechat.rate.login.perSecond", 0));
+    }
+
+    /**
+     * Returns the messages a login ID may send in one burst
+     * (simplechat.rate.login.burst, default twice the per-second rate).
+     */
+    public static int rateLoginBurst() {
+        return Math.max(1, Integer.getInteger("simplechat.rate.login.burst", 2 * rateLoginPerSecond()));
+    }
+
+    /**
+     * Returns the messages per second each client address may send,
+     * whatever login IDs it uses (simplechat.rate.ip.perSecond, default 0:
+     * no limit).
+     */
+    public static int rateAddressPerSecond() {
+        return Math.max(0, Integer.getInteger("simplechat.rate.ip.perSecond", 0));
+    }
+
+    /**
+     * Returns the messages a client address may send in one burst
+     * (simplechat.rate.ip.burst, default twice the per-second rate).
+     */
+    public static int rateAddressBurst() {
+        return Math.max(1, Integer.getInteger("simplechat.rate.ip.burst", 2 * rateAddressPerSecond()));
+    }
+
+    /**
+     * Returns what to do with a message over a rate limit
+     * (simplechat.rate.policy: drop, delay or disconnect; default drop).
+     */
+    public static RateLimitPolicy rateLimitPolicy() {
+        return RateLimitPolicy.parse(System.getProperty("simplechat.rate.policy", "drop"));
+    }
+
+    /**
+     * Returns true if clients may ask for compression with #compress
+     * (simplechat.compression.allow, default true).
+     */
+    public static boolean compressionAllowed() {
+        return !"false".equalsIgnoreCase(System.getProperty("simplechat.compression.allow"));
+    }
+
+    /**
+     * Returns the port this node accepts cluster relay links on
+     * (simplechat.cluster.port), or 0, the default, for the chat port plus
+     * 1000 when peers are configured.
+     */
+    public static int clusterPort() {
+        return Math.max(0, Integer.getInteger("simplechat.cluster.port", 0));
+    }
+
+    /**
+     * Returns the relay ports of the other cluster nodes to send chat lines
+     * to (simplechat.cluster.peers: comma-separated host:port; default
+     * none).  A node with no peers and no cluster port runs alone.
+     *
+     * @throws IllegalArgumentException If an entry is not host:port.
+     */
+    public static List<InetSocketAddress> clusterPeers() {
+        List<InetSocketAddress> peers = new ArrayList<InetSocketAddress>();
+        for (String peer : System.getProperty("simplechat.cluster.peers", "").split(",")) {
+            peer = peer.trim();
+            if (peer.isEmpty()) {
+                continue;
+            }
+            int colon = peer.lastIndexOf(':');
+            if (colon <= 0) {
+                throw new IllegalArgumentException("Cluster peer is not host:port: " + peer);
+            }
+            peers.add(new InetSocketAddress(peer.substring(0, colon), Integer.parseInt(peer.substring(colon + 1))));
+        }
+        return peers;
+    }
+
+    /**
+     * Returns the address the cluster relay port is bound to
+     * (simplechat.cluster.bind, default 127.0.0.1).  Nodes on other hosts
+     * can only link to one bound to a reachable address, which needs a
+     * cluster secret.
+     */
+    public static String clusterBindAddress() {
+        return System.getProperty("simplechat.cluster.bind", "127.0.0.1").trim();
+    }
+
+    /**
+     * Returns the secret every node of the cluster shares
+     * (simplechat.cluster.secret, default none), or null.  A link is only
+     * read from or written to once the node at the other end has proved
+     * it knows the same secret; without one, the relay port may only be
+     * bound to a loopback address.
+     */
+    public static byte[] clusterSecret() {
+        String secret = System.getProperty("simplechat.cluster.secret", "");
+        return secret.isEmpty() ? null : secret.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Returns true to bind the chat port with SO_REUSEPORT where the engine
+     * and platform support it (simplechat.reusePort, default false), so
+     * that a replacement server can listen on the port while this one
+     * drains.
+     */
+    public static boolean reusePort() {
+        return Boolean.getBoolean("simplechat.reusePort");
+    }
+
+    /**
+     * Returns how long a drain spreads the clients' reconnects over, in
+     * milliseconds (simplechat.drain.windowMillis, default 10 s).
+     */
+    public static long drainWindowMillis() {
+        return Math.max(0, Long.getLong("simplechat.drain.windowMillis", 10 * 1000));
+    }
+
+    /**
+     * Returns how long a drain waits for the outbound queues to empty
+     * before closing what is left, in milliseconds
+     * (simplechat.drain.timeoutMillis, default 30 s).
+     */
+    public static long drainTimeoutMillis() {
+        return Math.max(0, Long.getLong("simplechat.drain.timeoutMillis", 30 * 1000));
+    }
+
+    /**
+     * Returns how long a new connection has to log in before it is closed,
+     * in milliseconds (simplechat.timeout.loginMillis, default 10 s; 0 to
+     * wait forever).
+     */
+    public static long loginTimeoutMillis() {
+        return Math.max(0, Long.getLong("simplechat.timeout.loginMillis", 10 * 1000));
+    }
+
+    /**
+     * Returns how long a logged-in client may send nothing before it is
+     * closed, in milliseconds (simplechat.timeout.idleMillis, default 0:
+     * never).  A client that asked for a heartbeat is held to that instead.
+     */
+    public static long idleTimeoutMillis() {
+        return Math.max(0, Long.getLong("simplechat.timeout.idleMillis", 0));
+    }
+
+    /**
+     * Returns the shortest heartbeat interval a client may ask for, in
+     * milliseconds (simplechat.heartbeat.minMillis, default 1 s).
+     */
+    public static long heartbeatMinMillis() {
+        return Math.max(1, Long.getLong("simplechat.heartbeat.minMillis", 1000));
+    }
+
+    /**
+     * Returns the resolution of connection timeouts, in milliseconds
+     * (simplechat.timeout.tickMillis, default 100).
+     */
+    public static long timerTickMillis() {
+        return Math.max(1, Long.getLong("simplechat.timeout.tickMillis", 100));
+    }
+
+    /**
+     * Returns the longest time a queued message may wait for others to be
+     * batched into the same write, in nanoseconds
+     * (simplechat.batch.maxDelayMicros, default 0: write at the end of the
+     * current event-loop cycle, adding no delay).
+     */
+    public static long batchMaxDelayNanos() {
+        return Math.max(0, Long.getLong("simplechat.batch.maxDelayMicros", 0)) * 1000;
+    }
+
+    /**
+     * Returns the number of waiting bytes that triggers a write without
+     * waiting for the batching delay (simplechat.batch.maxBytes, default
+     * 64 KB).
+     */
+    public static int batchMaxBytes() {
+        return Math.max(1, Integer.getInteger("simplechat.batch.maxBytes", 64 * 1024));
+    }
+
+    /**
+     * Returns the most recent chat lines kept in memory for #history in
+     * each room (simplechat.history.maxMessages, default 100), or 0 to
+     * keep none.
+     */
+    public static int historyMaxMessages() {
+        return Math.max(0, Integer.getInteger("simplechat.history.maxMessages", 100));
+    }
+
+    /**
+     * Returns the most bytes of chat lines kept for #history across all
+     * rooms (simplechat.history.maxBytes, default 8 MB).
+     */
+    public static long historyMaxBytes() {
+        return Math.max(0, Long.getLong("simplechat.history.maxBytes", 8L * 1024 * 1024));
+    }
+
+    /**
+     * Returns the directory of the message journal (simplechat.journal.dir),
+     * or null if it is unset or empty, which leaves journaling off.
+     */
+    public static String journalDir() {
+        String dir = System.getProperty("simplechat.journal.dir", "").trim();
+        return dir.isEmpty() ? null : dir;
+    }
+
+    /**
+     * Returns the most logged-off users whose place in the journal is
+     * remembered for catching them up when they log in again
+     * (simplechat.journal.maxLoggedOffUsers, default 10000).  Beyond it the
+     * users who logged off longest ago are forgotten first.
+     */
+    public static int journalMaxLoggedOffUsers() {
+        return Math.max(0, Integer.getInteger("simplechat.journal.maxLoggedOffUsers", 10000));
+    }
+
+    /**
+     * Returns the size at which the journal starts a new segment file
+     * (simplechat.journal.segmentBytes, default 64 MB).
+     */
+    public static int journalSegmentBytes() {
+        return Math.max(64 * 1024, Integer.getInteger("simplechat.journal.segmentBytes", 64 * 1024 * 1024));
+    }
+
+    /**
+     * Returns the most bytes of closed segments the journal keeps
+     * (simplechat.journal.maxBytes, default 1 GB).
+     */
+    public static long journalMaxBytes() {
+        return Math.max(0, Long.getLong("simplechat.journal.maxBytes", 1024L * 1024 * 1024));
+    }
+
+    /**
+     * Returns how long the journal keeps a closed segment after its last
+     * message, in milliseconds (simplechat.journal.maxAgeHours, default
+     * one week).
+     */
+    public static long journalMaxAgeMillis() {
+        return Math.max(0, Long.getLong("simplechat.journal.maxAgeHours", 7 * 24)) * 60 * 60 * 1000;
+    }
+
+    /**
+     * Returns the least severe level the server logs
+     * (simplechat.log.level: debug, info, warn or error; default info).
+     * Every received message is logged at debug.
+     */
+    public static ServerLog.Level logLevel() {
+        String level = System.getProperty("simplechat.log.level", "info");
+        try {
+            return ServerLog.Level.valueOf(level.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            return ServerLog.Level.INFO;
+        }
+    }
+
+    /**
+     * Returns the loopback port of the metrics scrape endpoint
+     * (simplechat.metrics.port), or 0 if it is disabled, the default.
+     */
+    public static int metricsPort() {
+        return Math.max(0, Integer.getInteger("simplechat.metrics.port", 0));
+    }
+}
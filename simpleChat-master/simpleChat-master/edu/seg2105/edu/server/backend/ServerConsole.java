@@ -1,9 +1,13 @@
 package edu.seg2105.edu.server.backend;
 
+import edu.seg2105.client.common.AsyncConsole;
+import edu.seg2105.client.common.ChatFrame;
 import edu.seg2105.client.common.ChatIF;
+import edu.seg2105.client.common.CommandTable;
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
 import java.io.IOException;
+import java.util.function.Consumer;
 
 
 /**
@@ -14,6 +18,7 @@ import java.io.IOException;
 public class ServerConsole implements ChatIF {
     private EchoServer server;
     private BufferedReader fromConsole;
+    private final CommandTable<Consumer<String>> commands = buildCommands();
 
     /**
      * Constructor for ServerConsole. Sets up the console reader and links to the server instance.
@@ -25,25 +30,42 @@ public class ServerConsole implements ChatIF {
         fromConsole = new BufferedReader(new InputStreamReader(System.in));
     }
     
+    /**
+     * Starts the server.  args[0] is the port (optional) and args[1] the
+     * engine, "ocsf", "nio", "virtual" or "platform" (optional, defaults to
+     * the simplechat.engine system property).
+     */
     public static void main(String[] args) {
         int port = 5556; // Default port
+        String engine = ServerConfig.engine();
 
         if (args.length > 0) {
             try {
                 port = Integer.parseInt(args[0]); // Parse port from arguments
             } catch (NumberFormatException e) {
-                System.out.println("Invalid port number. Using default port " + port);
+                ServerLog.warn("Invalid port number. Using default port " + port);
             }
         }
 
-        EchoServer server = new EchoServer(port);
+        if (args.length > 1) {
+            engine = args[1];
+        }
+
+        EchoServer server;
+        try {
+            server = new EchoServer(port, engine);
+        } catch (IllegalStateException e) {
+            ServerLog.error("Error: " + e.getMessage());
+            ServerLog.flush();
+            return;
+        }
         ServerConsole serverConsole = new ServerConsole(server);
         
         try {
-            server.listen();
+            server.getEngine().listen();
             serverConsole.accept(); // Start reading console input for commands
         } catch (IOException e) {
-            System.out.println("Error: Could not listen for clients on port " + port);
+            serverConsole.display("Error: Could not listen for clients on port " + port);
         }
     }
 
@@ -68,11 +90,11 @@ public class ServerConsole implements ChatIF {
                     display(serverMessage);
                     
                     // Send the message to all connected clients
-                    server.sendToAllClients(serverMessage);
+                    server.getEngine().sendToAllClients(ChatFrame.serverMessage(serverMessage));
                 }
             }
         } catch (IOException e) {
-            System.out.println("Unexpected error while reading from console!");
+            display("Unexpected error while reading from console!");
         }
     }
 
@@ -81,49 +103,101 @@ public class ServerConsole implements ChatIF {
      * Processes server commands starting with '#'.
      */
     private void processCommand(String command) {
-        if (command.equalsIgnoreCase("#quit")) {
-            server.quit();
-        } else if (command.equalsIgnoreCase("#stop")) {
-            server.stopListening();
-            display("Server has stopped listening for clients.");
-        } else if (command.equalsIgnoreCase("#close")) {
+        Consumer<String> handler = commands.lookup(command);
+        if (handler == null) {
+            display("Unknown command.");
+            return;
+        }
+        handler.accept(CommandTable.arguments(command));
+    }
+
+    /**
+     * Builds the table of console commands.  Each handler is given the
+     * command's arguments.
+     */
+    private CommandTable<Consumer<String>> buildCommands() {
+        return new CommandTable<Consumer<String>>()
+            .register("#quit", args -> server.quit())
+            .register("#drain", this::drain)
+            .register("#stop", args -> {
+                server.getEngine().stopListening();
+                display("Server has stopped listening for clients.");
+            })
+            .register("#close", args -> {
+                try {
+                    server.getEngine().close();
+                    display("Server has closed all connections.");
+                } catch (IOException e) {
+                    display("Error: Unable to close server connections.");
+                }
+            })
+            .register("#setport", this::setPort)
+            .register("#start", args -> start())
+            .register("#getport", args -> display("Current port: " + server.getEngine().getPort()))
+            .register("#stats", args -> display(server.getMetrics().report(server.getEngine())))
+            .register("#queues", args -> {
+                OutboundMetrics metrics = server.getEngine().getOutboundMetrics();
+                display(metrics != null ? metrics.toString() : "This engine has no outbound queues.");
+            });
+    }
+
+    /**
+     * Handles #drain [seconds].
+     */
+    private void drain(String args) {
+        long windowMillis = ServerConfig.drainWindowMillis();
+        if (!args.isEmpty()) {
             try {
-                server.close();
-                display("Server has closed all connections.");
-            } catch (IOException e) {
-                display("Error: Unable to close server connections.");
+                windowMillis = Math.max(0, Long.parseLong(args) * 1000);
+            } catch (NumberFormatException e) {
+                display("Error: #drain takes the reconnect window in seconds.");
+                return;
             }
-        } else if (command.startsWith("#setport ")) {
-            if (!server.isListening() && server.getClientConnections().length == 0) {
-                int port = Integer.parseInt(command.substring(9));
-                server.setPort(port);
+        }
+        server.drain(windowMillis);
+    }
+
+    /**
+     * Handles #setport &lt;port&gt;.
+     */
+    private void setPort(String args) {
+        ServerEngine engine = server.getEngine();
+        if (!engine.isListening() && engine.getNumberOfClients() == 0) {
+            try {
+                int port = Integer.parseInt(args);
+                engine.setPort(port);
                 display("Port set to " + port);
-            } else {
-                display("Error: Cannot change port while server is open.");
+            } catch (NumberFormatException e) {
+                display("Invalid port number.");
             }
-        } else if (command.equalsIgnoreCase("#start")) {
-            if (!server.isListening()) {
-                try {
-                    server.listen();
-                    display("Server is now listening for clients.");
-                } catch (IOException e) {
-                    display("Error: Could not start server.");
-                }
-            } else {
-                display("Error: Server is already listening.");
+        } else {
+            display("Error: Cannot change port while server is open.");
+        }
+    }
+
+    /**
+     * Handles #start.
+     */
+    private void start() {
+        ServerEngine engine = server.getEngine();
+        if (!engine.isListening()) {
+            try {
+                engine.listen();
+                display("Server is now listening for clients.");
+            } catch (IOException e) {
+                display("Error: Could not start server.");
             }
-        } else if (command.equalsIgnoreCase("#getport")) {
-            display("Current port: " + server.getPort());
         } else {
-            display("Unknown command.");
+            display("Error: Server is already listening.");
         }
     }
 
     /**
-     * Displays a message on the server console.
+     * Displays a message on the server console, through the AsyncConsole
+     * so that the console thread never waits on the terminal.
      */
     @Override
     public void display(String message) {
-        System.out.println(message);
+        AsyncConsole.out().println(message);
     }
 }
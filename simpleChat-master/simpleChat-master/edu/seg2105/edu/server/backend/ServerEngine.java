@@ -0,0 +1,91 @@
+package edu.seg2105.edu.server.backend;
+
+import java.io.IOException;
+import java.util.Collection;
+
+/**
+ * This interface describes the transport that accepts client connections
+ * for EchoServer.  Its methods mirror the public API of
+ * ocsf.server.AbstractServer, so EchoServer itself is the default
+ * (thread-per-connection) engine and alternative engines can be swapped in
+ * by configuration.
+ */
+public interface ServerEngine {
+
+    /**
+     * Starts accepting connections on the current port.
+     *
+     * @throws IOException If the port cannot be opened.
+     */
+    void listen() throws IOException;
+
+    /**
+     * Stops accepting new connections.  Existing connections stay open.
+     */
+    void stopListening();
+
+    /**
+     * Stops listening and disconnects every client.
+     *
+     * @throws IOException If an error occurs while closing.
+     */
+    void close() throws IOException;
+
+    /**
+     * Returns true if the engine is accepting connections.
+     */
+    boolean isListening();
+
+    /**
+     * Returns the port the engine listens on.
+     */
+    int getPort();
+
+    /**
+     * Sets the port to listen on the next time listen() is called.
+     *
+     * @param port The port number.
+     */
+    void setPort(int port);
+
+    /**
+     * Sends a message to every connected client.
+     *
+     * @param msg The message to send.
+     */
+    void sendToAllClients(Object msg);
+
+    /**
+     * Sends a message to the given clients only.  Engines that can share
+     * one encoding between recipients override this; the default sends to
+     * each client in turn.
+     *
+     * @param clients The recipients.
+     * @param msg The message to send, possibly an EncodedMessage.
+     */
+    default void sendToClients(Collection<? extends ChatConnection> clients, Object msg) {
+        if (msg instanceof EncodedMessage) {
+            msg = ((EncodedMessage) msg).message();
+        }
+        for (ChatConnection client : clients) {
+            try {
+                client.sendToClient(msg);
+            } catch (IOException e) {
+                // Ignore, as sendToAllClients does
+            }
+        }
+    }
+
+    /**
+     * Returns the number of connected clients.
+     */
+    int getNumberOfClients();
+
+    /**
+     * Returns the counters of the engine's per-client outbound queues, or
+     * null if the engine writes synchronously (OCSF).
+     */
+    default OutboundMetrics getOutboundMetrics() {
+        return null;
+    }
+}
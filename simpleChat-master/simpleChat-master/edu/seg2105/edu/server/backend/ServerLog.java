@@ -0,0 +1,70 @@
+package edu.seg2105.edu.server.backend;
+
+import edu.seg2105.client.common.AsyncConsole;
+
+/**
+ * The server's event log.  Lines below the configured level
+ * (simplechat.log.level) are discarded before they are built, if the
+ * caller checks isEnabled first, and the rest go to the AsyncConsole,
+ * in order with the server console's own output, so that a slow console
+ * does not hold up the thread that logged them.
+ */
+public final class ServerLog {
+
+    /**
+     * Log levels, least severe first.
+     */
+    public enum Level {
+        DEBUG, INFO, WARN, ERROR
+    }
+
+    private static final Level THRESHOLD = ServerConfig.logLevel();
+
+    private ServerLog() {
+    }
+
+    /**
+     * Returns true if lines at a level are written.
+     */
+    public static boolean isEnabled(Level level) {
+        return level.compareTo(THRESHOLD) >= 0;
+    }
+
+    public static void debug(String line) {
+        log(Level.DEBUG, line);
+    }
+
+    public static void info(String line) {
+        log(Level.INFO, line);
+    }
+
+    public static void warn(String line) {
+        log(Level.WARN, line);
+    }
+
+    public static void error(String line) {
+        log(Level.ERROR, line);
+    }
+
+    /**
+     * Returns the number of console lines dropped because the writer was
+     * behind.
+     */
+    public static long dropped() {
+        return AsyncConsole.out().dropped();
+    }
+
+    /**
+     * Waits up to a second for the lines already logged to be written,
+     * so that they are not lost when the process exits.
+     */
+    public static void flush() {
+        AsyncConsole.out().flush(1000);
+    }
+
+    private static void log(Level level, String line) {
+        if (isEnabled(level)) {
+            AsyncConsole.out().println(line);
+        }
+    }
+}
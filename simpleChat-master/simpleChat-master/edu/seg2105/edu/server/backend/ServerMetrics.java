@@ -0,0 +1,500 @@
+package edu.seg2105.edu.server.backend;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import edu.seg2105.client.common.CompressingMessageCodec;
+import edu.seg2105.client.common.CompressionStats;
+import edu.seg2105.client.common.FlushStats;
+import edu.seg2105.client.common.LatencyHistogram;
+
+/**
+ * The server's hot-path counters and latency histograms.  Recording is a
+ * LongAdder increment or a lock-free histogram update, cheap enough to
+ * do for every message on every engine; the totals are only summed when
+ * they are read by #stats or the scrape endpoint.
+ * <p>
+ * Outgoing messages are counted as deliveries handed to the engine;
+ * bytes in and out are counted by the engines that do their own socket
+ * I/O (nio, virtual and platform) and stay at zero on OCSF.
+ */
+public final class ServerMetrics {
+
+    private final long startNanos = System.nanoTime();
+    private final LongAdder messagesIn = new LongAdder();
+    private final LongAdder messagesOut = new LongAdder();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder logins = new LongAdder();
+    private final LongAdder rateLimited = new LongAdder();
+    private final LongAdder loginTimeouts = new LongAdder();
+    private final LongAdder idleTimeouts = new LongAdder();
+    private final LongAdder relayedOut = new LongAdder();
+    private final LongAdder relayedIn = new LongAdder();
+    private final LongAdder relayDuplicates = new LongAdder();
+    private final LongAdder relayDropped = new LongAdder();
+    private final LongAdder relayLinks = new LongAdder();
+    private final LongAdder tlsHandshakes = new LongAdder();
+    private final LongAdder tlsResumed = new LongAdder();
+    private final LongAdder historyHits = new LongAdder();
+    private final LongAdder historyMisses = new LongAdder();
+    private final LongAdder historyEvicted = new LongAdder();
+    private volatile long historyMessages;
+    private volatile long historyBytes;
+    private volatile long drainStartNanos;
+    private volatile long drainEndNanos;
+    private volatile long drainInFlight;
+    private final LongAdder connectionsOpened = new LongAdder();
+    private final LongAdder connectionsClosed = new LongAdder();
+    private final LatencyHistogram fanOut = new LatencyHistogram();
+    private final LatencyHistogram fanOutComplete = new LatencyHistogram();
+    private final LatencyHistogram handle = new LatencyHistogram();
+    private final LatencyHistogram tlsHandshake = new LatencyHistogram();
+
+    void messageReceived() {
+        messagesIn.increment();
+    }
+
+    void bytesReceived(long count) {
+        bytesIn.add(count);
+    }
+
+    void loggedIn() {
+        logins.increment();
+    }
+
+    void rateLimited() {
+        rateLimited.increment();
+    }
+
+    void loginTimedOut() {
+        loginTimeouts.increment();
+    }
+
+    void idleTimedOut() {
+        idleTimeouts.increment();
+    }
+
+    void tlsHandshake(long nanos, boolean resumed) {
+        tlsHandshakes.increment();
+        if (resumed) {
+            tlsResumed.increment();
+        }
+        tlsHandshake.record(nanos);
+    }
+
+    void historyHit() {
+        historyHits.increment();
+    }
+
+    void historyMiss() {
+        historyMisses.increment();
+    }
+
+    /**
+     * Records the size of the history cache after a change.
+     *
+     * @param messages The lines it holds.
+     * @param bytes Their encoded size.
+     * @param evicted The lines dropped by the change to stay in bounds.
+     */
+    void historySize(long messages, long bytes, int evicted) {
+        historyMessages = messages;
+        historyBytes = bytes;
+        historyEvicted.add(evicted);
+    }
+
+    void linesRelayed(int lines) {
+        relayedOut.add(lines);
+    }
+
+    void relayReceived() {
+        relayedIn.increment();
+    }
+
+    void relayDuplicate() {
+        relayDuplicates.increment();
+    }
+
+    void relayOverflowed() {
+        relayDropped.increment();
+    }
+
+    void relayLinkUp() {
+        relayLinks.increment();
+    }
+
+    void relayLinkDown() {
+        relayLinks.decrement();
+    }
+
+    void drainStarted(long inFlight) {
+        drainInFlight = inFlight;
+        drainStartNanos = System.nanoTime();
+    }
+
+    void drainFinished() {
+        drainEndNanos = System.nanoTime();
+    }
+
+    void connectionOpened() {
+        connectionsOpened.increment();
+    }
+
+    void connectionClosed() {
+        connectionsClosed.increment();
+    }
+
+    /**
+     * Records one message handed to a set of recipients.
+     *
+     * @param recipients The number of recipients.
+     * @param nanos How long handing it over took.
+     */
+    void fannedOut(int recipients, long nanos) {
+        messagesOut.add(recipients);
+        fanOut.record(nanos);
+    }
+
+    /**
+     * Records how long a broadcast took to reach its last recipient's
+     * queue, which may be after it was handed over.
+     */
+    void fanOutCompleted(long nanos) {
+        fanOutComplete.record(nanos);
+    }
+
+    /**
+     * Records how long handling one received message took.
+     */
+    void handled(long nanos) {
+        handle.record(nanos);
+    }
+
+    public long messagesIn() {
+        return messagesIn.sum();
+    }
+
+    public long messagesOut() {
+        return messagesOut.sum();
+    }
+
+    public long bytesIn() {
+        return bytesIn.sum();
+    }
+
+    public long logins() {
+        return logins.sum();
+    }
+
+    /**
+     * Returns the number of times a message was found over a rate limit,
+     * whatever was then done with it.
+     */
+    public long rateLimitedMessages() {
+        return rateLimited.sum();
+    }
+
+    /**
+     * Returns the number of connections closed for not logging in in time.
+     */
+    public long loginTimeouts() {
+        return loginTimeouts.sum();
+    }
+
+    /**
+     * Returns the number of logged-in clients closed for going quiet,
+     * including those that missed their heartbeat.
+     */
+    public long idleTimeouts() {
+        return idleTimeouts.sum();
+    }
+
+    /**
+     * Returns the number of lines written to cluster peers, counting each
+     * peer.
+     */
+    public long relayedOut() {
+        return relayedOut.sum();
+    }
+
+    /**
+     * Returns the number of lines from other nodes delivered here.
+     */
+    public long relayedIn() {
+        return relayedIn.sum();
+    }
+
+    /**
+     * Returns the number of relayed lines dropped as already seen.
+     */
+    public long relayDuplicates() {
+        return relayDuplicates.sum();
+    }
+
+    /**
+     * Returns the number of lines dropped because a peer's queue was full.
+     */
+    public long relayDropped() {
+        return relayDropped.sum();
+    }
+
+    /**
+     * Returns true once a drain has started.
+     */
+    public boolean draining() {
+        return drainStartNanos != 0;
+    }
+
+    /**
+     * Returns the seconds the drain took, or has taken so far, or 0 if
+     * none has started.
+     */
+    public double drainSeconds() {
+        long start = drainStartNanos;
+        if (start == 0) {
+            return 0;
+        }
+        long end = drainEndNanos;
+        return ((end != 0 ? end : System.nanoTime()) - start) / 1e9;
+    }
+
+    /**
+     * Returns the number of messages waiting in outbound queues when the
+     * drain started.
+     */
+    public long drainInFlight() {
+        return drainInFlight;
+    }
+
+    /**
+     * Returns the number of links to cluster peers that are up.
+     */
+    public long relayLinks() {
+        return relayLinks.sum();
+    }
+
+    /**
+     * Returns the number of TLS handshakes completed, full or resumed.
+     */
+    public long tlsHandshakes() {
+        return tlsHandshakes.sum();
+    }
+
+    /**
+     * Returns the number of TLS handshakes that resumed an earlier session.
+     */
+    public long tlsResumed() {
+        return tlsResumed.sum();
+    }
+
+    /**
+     * Returns the time from accepting each TLS connection until its
+     * handshake finished.
+     */
+    public LatencyHistogram tlsHandshakeTime() {
+        return tlsHandshake;
+    }
+
+    /**
+     * Returns the number of #history requests that found recent lines.
+     */
+    public long historyHits() {
+        return historyHits.sum();
+    }
+
+    /**
+     * Returns the number of #history requests for a room with none cached.
+     */
+    public long historyMisses() {
+        return historyMisses.sum();
+    }
+
+    /**
+     * Returns the number of lines dropped from the history cache to keep
+     * it within its bounds.
+     */
+    public long historyEvicted() {
+        return historyEvicted.sum();
+    }
+
+    /**
+     * Returns the number of lines in the history cache.
+     */
+    public long historyMessages() {
+        return historyMessages;
+    }
+
+    /**
+     * Returns the encoded size of the lines in the history cache.
+     */
+    public long historyBytes() {
+        return historyBytes;
+    }
+
+    public long connectionsOpened() {
+        return connectionsOpened.sum();
+    }
+
+    public long connectionsClosed() {
+        return connectionsClosed.sum();
+    }
+
+    /**
+     * Returns the time taken to hand each broadcast to its recipients.
+     */
+    public LatencyHistogram fanOutTime() {
+        return fanOut;
+    }
+
+    /**
+     * Returns the time from the start of each broadcast until the message
+     * was queued for its last recipient.
+     */
+    public LatencyHistogram fanOutCompleteTime() {
+        return fanOutComplete;
+    }
+
+    /**
+     * Returns the time taken to handle each received message, including
+     * its broadcast.
+     */
+    public LatencyHistogram handleTime() {
+        return handle;
+    }
+
+    /**
+     * Returns the seconds since the server started.
+     */
+    public double uptimeSeconds() {
+        return (System.nanoTime() - startNanos) / (double) TimeUnit.SECONDS.toNanos(1);
+    }
+
+    /**
+     * Returns the metrics as console lines.
+     *
+     * @param engine The engine, for its connection count and queues.
+     */
+    public String report(ServerEngine engine) {
+        double uptime = uptimeSeconds();
+        OutboundMetrics outbound = engine.getOutboundMetrics();
+        StringBuilder out = new StringBuilder();
+        out.append(String.format("uptime=%.0fs connections=%d opened=%d closed=%d logins=%d (%.2f/s)%n",
+            uptime, engine.getNumberOfClients(), connectionsOpened(), connectionsClosed(),
+            logins(), logins() / uptime));
+        out.append(String.format("messagesIn=%d (%.1f/s) messagesOut=%d (%.1f/s) bytesIn=%d",
+            messagesIn(), messagesIn() / uptime, messagesOut(), messagesOut() / uptime, bytesIn()));
+        if (outbound != null) {
+            out.append(" bytesOut=").append(outbound.flushStats().bytes());
+        }
+        out.append(System.lineSeparator());
+        out.append("handle: ").append(handle).append(System.lineSeparator());
+        out.append("fanOut: ").append(fanOut).append(System.lineSeparator());
+        out.append("lastRecipient: ").append(fanOutComplete).append(System.lineSeparator());
+        if (outbound != null) {
+            LatencyHistogram depth = outbound.queueDepths();
+            out.append(String.format("queueDepth: p50=%d p99=%d max=%d; %s%n",
+                depth.percentile(50), depth.percentile(99), depth.max(), outbound));
+        }
+        out.append("compression: ").append(CompressingMessageCodec.stats()).append(System.lineSeparator());
+        out.append(String.format("cluster: links=%d relayedOut=%d relayedIn=%d duplicates=%d dropped=%d%n",
+            relayLinks(), relayedOut(), relayedIn(), relayDuplicates(), relayDropped()));
+        if (draining()) {
+            out.append(String.format("drain: inFlight=%d took=%.3fs%s%n", drainInFlight(), drainSeconds(),
+                drainEndNanos != 0 ? "" : " (running)"));
+        }
+        if (tlsHandshakes() > 0) {
+            out.append(String.format("tls: handshakes=%d resumed=%d time: %s%n",
+                tlsHandshakes(), tlsResumed(), tlsHandshake));
+        }
+        out.append(String.format("history: hits=%d misses=%d evicted=%d messages=%d bytes=%d%n",
+            historyHits(), historyMisses(), historyEvicted(), historyMessages(), historyBytes()));
+        out.append(String.format("timeouts: login=%d idle=%d%n", loginTimeouts(), idleTimeouts()));
+        out.append("rateLimited=").append(rateLimitedMessages());
+        out.append(" logDropped=").append(ServerLog.dropped());
+        return out.toString();
+    }
+
+    /**
+     * Returns the metrics in the Prometheus text exposition format.
+     *
+     * @param engine The engine, for its connection count and queues.
+     */
+    public String scrape(ServerEngine engine) {
+        StringBuilder out = new StringBuilder();
+        gauge(out, "simplechat_uptime_seconds", uptimeSeconds());
+        gauge(out, "simplechat_connections", engine.getNumberOfClients());
+        counter(out, "simplechat_connections_opened_total", connectionsOpened());
+        counter(out, "simplechat_connections_closed_total", connectionsClosed());
+        counter(out, "simplechat_logins_total", logins());
+        counter(out, "simplechat_messages_in_total", messagesIn());
+        counter(out, "simplechat_messages_out_total", messagesOut());
+        counter(out, "simplechat_bytes_in_total", bytesIn());
+        counter(out, "simplechat_rate_limited_total", rateLimitedMessages());
+        counter(out, "simplechat_login_timeouts_total", loginTimeouts());
+        counter(out, "simplechat_idle_timeouts_total", idleTimeouts());
+        summary(out, "simplechat_handle_seconds", handle, 1e9);
+        summary(out, "simplechat_fanout_seconds", fanOut, 1e9);
+        summary(out, "simplechat_fanout_last_recipient_seconds", fanOutComplete, 1e9);
+        counter(out, "simplechat_tls_handshakes_total", tlsHandshakes());
+        counter(out, "simplechat_tls_resumed_total", tlsResumed());
+        summary(out, "simplechat_tls_handshake_seconds", tlsHandshake, 1e9);
+        counter(out, "simplechat_history_hits_total", historyHits());
+        counter(out, "simplechat_history_misses_total", historyMisses());
+        counter(out, "simplechat_history_evicted_total", historyEvicted());
+        gauge(out, "simplechat_history_messages", historyMessages());
+        gauge(out, "simplechat_history_bytes", historyBytes());
+        OutboundMetrics outbound = engine.getOutboundMetrics();
+        if (outbound != null) {
+            FlushStats flushes = outbound.flushStats();
+            counter(out, "simplechat_bytes_out_total", flushes.bytes());
+            counter(out, "simplechat_flushes_total", flushes.flushes());
+            gauge(out, "simplechat_queued_messages", outbound.queuedMessages());
+            gauge(out, "simplechat_queue_depth_max", outbound.maxQueueDepth());
+            counter(out, "simplechat_dropped_messages_total", outbound.droppedMessages());
+            counter(out, "simplechat_slow_consumer_disconnects_total", outbound.slowConsumerDisconnects());
+            summary(out, "simplechat_queue_depth", outbound.queueDepths(), 1);
+        }
+        gauge(out, "simplechat_cluster_links", relayLinks());
+        counter(out, "simplechat_cluster_relayed_out_total", relayedOut());
+        counter(out, "simplechat_cluster_relayed_in_total", relayedIn());
+        counter(out, "simplechat_cluster_duplicates_total", relayDuplicates());
+        counter(out, "simplechat_cluster_dropped_total", relayDropped());
+        gauge(out, "simplechat_drain_seconds", drainSeconds());
+        gauge(out, "simplechat_drain_in_flight_messages", drainInFlight());
+        CompressionStats compression = CompressingMessageCodec.stats();
+        counter(out, "simplechat_compressed_messages_total", compression.compressed());
+        counter(out, "simplechat_compression_skipped_total", compression.skipped());
+        counter(out, "simplechat_compression_bytes_before_total", compression.bytesBefore());
+        counter(out, "simplechat_compression_bytes_after_total", compression.bytesAfter());
+        gauge(out, "simplechat_compression_ratio", compression.ratio());
+        counter(out, "simplechat_compression_deflate_seconds_total", compression.deflateNanos() / 1e9);
+        counter(out, "simplechat_compression_inflate_seconds_total", compression.inflateNanos() / 1e9);
+        counter(out, "simplechat_log_dropped_total", ServerLog.dropped());
+        return out.toString();
+    }
+
+    private static void counter(StringBuilder out, String name, long value) {
+        out.append("# TYPE ").append(name).append(" counter\n");
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void counter(StringBuilder out, String name, double value) {
+        out.append("# TYPE ").append(name).append(" counter\n");
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void gauge(StringBuilder out, String name, double value) {
+        out.append("# TYPE ").append(name).append(" gauge\n");
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void summary(StringBuilder out, String name, LatencyHistogram histogram, double scale) {
+        out.append("# TYPE ").append(name).append(" summary\n");
+        for (String quantile : new String[] {"0.5", "0.99", "0.999"}) {
+            double value = histogram.percentile(Double.parseDouble(quantile) * 100) / scale;
+            out.append(name).append("{quantile=\"").append(quantile).append("\"} ").append(value).append('\n');
+        }
+        out.append(name).append("_count ").append(histogram.count()).append('\n');
+        out.append(name).append("_sum ").append(histogram.mean() * histogram.count() / scale).append('\n');
+    }
+}
@@ -0,0 +1,76 @@
+package edu.seg2105.edu.server.backend;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The logged-in clients, keyed by login ID, so that finding a user is one
+ * hash lookup instead of a scan over every connection.  An ID is claimed
+ * atomically on login and released on disconnect; a release only removes
+ * the entry if the releasing connection still holds it, so a session
+ * that was taken over cannot evict its successor when it finally closes.
+ */
+public final class SessionRegistry {
+
+    private final ConcurrentHashMap<String, ChatConnection> sessions =
+        new ConcurrentHashMap<String, ChatConnection>();
+
+    /**
+     * Claims a login ID for a connection if no other connection holds it.
+     *
+     * @param loginId The login ID.
+     * @param client The connection logging in.
+     * @return true if the ID was claimed, false if it is already in use.
+     */
+    public boolean claim(String loginId, ChatConnection client) {
+        ChatConnection holder = sessions.putIfAbsent(loginId, client);
+        return holder == null || holder == client;
+    }
+
+    /**
+     * Claims a login ID for a connection, taking it from any connection
+     * that holds it.
+     *
+     * @param loginId The login ID.
+     * @param client The connection logging in.
+     * @return The connection that held the ID, which the caller should
+     *         close, or null.
+     */
+    public ChatConnection takeOver(String loginId, ChatConnection client) {
+        ChatConnection previous = sessions.put(loginId, client);
+        return previous != client ? previous : null;
+    }
+
+    /**
+     * Releases a login ID if the connection still holds it.
+     *
+     * @param loginId The login ID.
+     * @param client The connection logging off.
+     * @return true if the connection held the ID and it was released.
+     */
+    public boolean release(String loginId, ChatConnection client) {
+        return sessions.remove(loginId, client);
+    }
+
+    /**
+     * Returns the connection logged in with an ID, or null.
+     */
+    public ChatConnection lookup(String loginId) {
+        return sessions.get(loginId);
+    }
+
+    /**
+     * Returns a live, read-only view of the logged-in IDs.
+     */
+    public Set<String> loginIds() {
+        return Collections.unmodifiableSet(sessions.keySet());
+    }
+
+    /**
+     * Returns the number of logged-in clients.
+     */
+    public int size() {
+        return sessions.size();
+    }
+}
@@ -0,0 +1,277 @@
+package edu.seg2105.edu.server.backend;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hands a broadcast to its recipients in parallel.  Every connection
+ * belongs to one shard, and every shard is a single-threaded executor:
+ * a broadcast is split by shard on the caller's thread and each part is
+ * queued to its shard, so the last recipient waits for its own shard's
+ * share of the work rather than for all of it.
+ * <p>
+ * A recipient is only ever sent to by its shard, and each shard runs its
+ * parts in the order they were queued, so every recipient sees the
+ * broadcasts in the order they were made: a sender's lines stay in
+ * order, and so do the journal's sequence numbers, which are assigned
+ * and handed over under one lock.  Direct sends, replays and closes are
+ * handed to the client's shard through execute() for the same reason,
+ * so a reply cannot overtake a broadcast made before it.
+ * <p>
+ * The shards may be threads of their own or, for the NIO engine, the
+ * event loops that already own the connections.  A worker only moves
+ * messages onto its clients' bounded outbound queues, so it never waits
+ * for a socket; its own queue of tasks is bounded too, and any thread
+ * that finds it full waits for room, workers included.  A worker must
+ * therefore never broadcast, or two workers could each wait for the
+ * other: a client the slow-consumer policy disconnects is closed through
+ * close(), on a thread of its own, since closing it broadcasts its
+ * departure.  With one shard the broadcast is sent on the caller's
+ * thread, as before.
+ */
+final class ShardedFanOut {
+
+    /**
+     * Sends an encoded message to one client.
+     */
+    interface Delivery {
+        void send(ChatConnection client, EncodedMessage message) throws IOException;
+    }
+
+    /**
+     * Returns the shard a client belongs to, or -1 to send to it on the
+     * caller's thread.
+     */
+    interface Sharding {
+        int shardOf(ChatConnection client);
+    }
+
+    private final Executor[] shards;
+    private final ExecutorService[] workers;
+    private final ExecutorService closer;
+    private final Sharding sharding;
+    private final Delivery delivery;
+    private final ServerMetrics metrics;
+
+    private ShardedFanOut(Executor[] shards, ExecutorService[] workers, ExecutorService closer,
+            Sharding sharding, Delivery delivery, ServerMetrics metrics) {
+        this.shards = shards;
+        this.workers = workers;
+        this.closer = closer;
+        this.sharding = sharding;
+        this.delivery = delivery;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Creates a fan-out over executors the caller owns and shuts down.
+     *
+     * @param shards The shards.  Each must run its tasks one at a time, in
+     *               order.
+     * @param sharding Which shard each client belongs to.
+     * @param delivery How to send to one client.
+     * @param metrics Where completed broadcasts are timed.
+     */
+    static ShardedFanOut over(Executor[] shards, Sharding sharding, Delivery delivery, ServerMetrics metrics) {
+        return new ShardedFanOut(shards, null, null, sharding, delivery, metrics);
+    }
+
+    /**
+     * Creates a fan-out with its own worker threads, assigning clients to
+     * them by identity hash.
+     *
+     * @param name The prefix of the worker thread names.
+     * @param count The number of workers; 1 sends on the caller's thread
+     *              and starts none.
+     * @param queueSize The most tasks that may wait for each worker before
+     *                  the thread handing them over waits.
+     * @param delivery How to send to one client.  It must not block.
+     * @param metrics Where completed broadcasts are timed.
+     */
+    static ShardedFanOut withWorkers(String name, int count, int queueSize, Delivery delivery,
+            ServerMetrics metrics) {
+        int shardCount = Math.max(1, count);
+        ExecutorService[] workers = new ExecutorService[shardCount > 1 ? shardCount : 0];
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = newWorker(name + "-" + i, Math.max(1, queueSize));
+        }
+        ExecutorService closer = workers.length > 0
+            ? new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(),
+                daemon(name + "-closer"))
+            : null;
+        Sharding sharding = client -> Math.floorMod(System.identityHashCode(client), shardCount);
+        return new ShardedFanOut(workers, workers, closer, sharding, delivery, metrics);
+    }
+
+    /**
+     * Sends a message to a set of clients.  Which clients receive it is
+     * settled before this returns; sending to them may still be going on.
+     *
+     * @param clients The recipients.
+     * @param message The message.
+     */
+    void send(Collection<? extends ChatConnection> clients, EncodedMessage message) {
+        long start = System.nanoTime();
+        if (shards.length == 0) {
+            deliver(clients, message);
+            metrics.fanOutCompleted(System.nanoTime() - start);
+            return;
+        }
+
+        List<List<ChatConnection>> parts = new ArrayList<List<ChatConnection>>(shards.length);
+        for (int i = 0; i < shards.length; i++) {
+            parts.add(null);
+        }
+        int used = 0;
+        for (ChatConnection client : clients) {
+            int shard = sharding.shardOf(client);
+            if (shard < 0) {
+                sendQuietly(client, message);
+                continue;
+            }
+            List<ChatConnection> part = parts.get(shard);
+            if (part == null) {
+                part = new ArrayList<ChatConnection>();
+                parts.set(shard, part);
+                used++;
+            }
+            part.add(client);
+        }
+        if (used == 0) {
+            metrics.fanOutCompleted(System.nanoTime() - start);
+            return;
+        }
+
+        // The last shard to finish times the whole broadcast
+        AtomicInteger remaining = new AtomicInteger(used);
+        for (int i = 0; i < shards.length; i++) {
+            List<ChatConnection> part = parts.get(i);
+            if (part == null) {
+                continue;
+            }
+            try {
+                shards[i].execute(() -> {
+                    deliver(part, message);
+                    if (remaining.decrementAndGet() == 0) {
+                        metrics.fanOutCompleted(System.nanoTime() - start);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // Shut down: the server is closing these connections
+            }
+        }
+    }
+
+    /**
+     * Runs a task for one client on the client's shard, after the
+     * broadcasts already handed to that shard, so that what the task
+     * sends keeps its place among them.  With no shards, or for a client
+     * that is sent to on the caller's thread, the task runs at once.
+     *
+     * @param client The client the task is for.
+     * @param task The task.  It must not block.
+     */
+    void execute(ChatConnection client, Runnable task) {
+        int shard = shards.length == 0 ? -1 : sharding.shardOf(client);
+        if (shard < 0) {
+            task.run();
+            return;
+        }
+        try {
+            shards[shard].execute(task);
+        } catch (RejectedExecutionException e) {
+            // Shut down: the server is closing this connection
+        }
+    }
+
+    /**
+     * Closes a client from a delivery or a task this fan-out runs.  With
+     * worker threads, the close is handed to a thread that is not one of
+     * them, since closing reports the client's departure to its rooms and
+     * a worker must not wait for room in another worker's queue.  The
+     * closes waiting for that thread are not bounded, but each client is
+     * closed at most once by the slow-consumer policy.
+     *
+     * @param close The close.
+     */
+    void close(Runnable close) {
+        if (closer == null) {
+            close.run();
+            return;
+        }
+        try {
+            closer.execute(close);
+        } catch (RejectedExecutionException e) {
+            // Shut down: the server is closing every connection
+        }
+    }
+
+    /**
+     * Stops the worker threads, if this fan-out started any, once the
+     * broadcasts already queued have been sent.
+     */
+    void shutdown() {
+        if (workers == null) {
+            return;
+        }
+        for (ExecutorService worker : workers) {
+            worker.shutdown();
+        }
+        if (closer != null) {
+            closer.shutdown();
+        }
+    }
+
+    /**
+     * Creates a single worker thread with a bounded queue.  A thread that
+     * finds the queue full waits for room, in the order the tasks were
+     * handed over.
+     */
+    private static ExecutorService newWorker(String name, int queueSize) {
+        return new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<Runnable>(queueSize), daemon(name),
+            (task, executor) -> {
+                if (executor.isShutdown()) {
+                    return;
+                }
+                try {
+                    executor.getQueue().put(task);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+    }
+
+    private void deliver(Collection<? extends ChatConnection> clients, EncodedMessage message) {
+        for (ChatConnection client : clients) {
+            sendQuietly(client, message);
+        }
+    }
+
+    private void sendQuietly(ChatConnection client, EncodedMessage message) {
+        try {
+            delivery.send(client, message);
+        } catch (IOException e) {
+            // Ignore, as OCSF does: the connection reports its own closure
+        }
+    }
+
+    private static ThreadFactory daemon(String name) {
+        return task -> {
+            Thread thread = new Thread(task, name);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
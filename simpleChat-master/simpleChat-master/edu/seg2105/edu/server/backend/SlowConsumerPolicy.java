@@ -0,0 +1,35 @@
+package edu.seg2105.edu.server.backend;
+
+/**
+ * What a connection does when a client reads so slowly that its bounded
+ * outbound queue fills up.
+ */
+public enum SlowConsumerPolicy {
+
+    /**
+     * Discard the oldest queued messages to make room for new ones.
+     */
+    DROP_OLDEST,
+
+    /**
+     * Disconnect the client.
+     */
+    DISCONNECT,
+
+    /**
+     * Discard the oldest queued messages, but tell the client how many it
+     * missed with a single notice once it catches up.
+     */
+    COALESCE;
+
+    /**
+     * Parses a policy name such as "drop-oldest" or "DROP_OLDEST".
+     *
+     * @param name The policy name.
+     * @return The policy.
+     * @throws IllegalArgumentException If the name is unknown.
+     */
+    public static SlowConsumerPolicy parse(String name) {
+        return valueOf(name.trim().toUpperCase().replace('-', '_'));
+    }
+}
@@ -0,0 +1,201 @@
+package edu.seg2105.edu.server.backend;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A hashed timer wheel for the many coarse deadlines a server keeps, one
+ * or more per connection, that are nearly always cancelled or pushed back
+ * before they fire.  Time is cut into ticks and a deadline goes into the
+ * bucket of the tick it falls in, modulo the wheel size, with a count of
+ * the whole turns still to wait.  Scheduling and cancelling are O(1) and
+ * lock-free for the caller; each tick the wheel thread visits one bucket,
+ * so its cost depends on the deadlines falling in that tick, not on how
+ * many are pending.
+ * <p>
+ * Deadlines are only as precise as the tick.  Tasks run on the wheel
+ * thread and must be short; a task that throws is logged and the wheel
+ * goes on.
+ */
+final class TimerWheel {
+
+    /**
+     * Number of buckets.  A power of two, so the bucket of a tick is a mask.
+     */
+    private static final int WHEEL_SIZE = 512;
+
+    private final long tickNanos;
+    private final Timeout[] buckets = new Timeout[WHEEL_SIZE];
+    private final Queue<Timeout> added = new ConcurrentLinkedQueue<Timeout>();
+    private final Queue<Timeout> cancelled = new ConcurrentLinkedQueue<Timeout>();
+    private final long startNanos = System.nanoTime();
+    private final Thread thread;
+    private volatile boolean running = true;
+    private long tick;
+
+    /**
+     * Creates a wheel and starts its thread.
+     *
+     * @param name The thread name.
+     * @param tickMillis The length of a tick, in milliseconds.
+     */
+    TimerWheel(String name, long tickMillis) {
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, tickMillis));
+        thread = new Thread(this::run, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Runs a task once the delay has passed, on the wheel thread.
+     *
+     * @param task The task.
+     * @param delay The delay.
+     * @param unit The unit of the delay.
+     * @return The handle that cancels the task.
+     */
+    Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        Timeout timeout = new Timeout(task, System.nanoTime() + unit.toNanos(Math.max(0, delay)));
+        added.add(timeout);
+        return timeout;
+    }
+
+    /**
+     * Stops the wheel thread.  Pending tasks are dropped.
+     */
+    void stop() {
+        running = false;
+        LockSupport.unpark(thread);
+    }
+
+    private void run() {
+        while (running) {
+            long deadline = startNanos + (tick + 1) * tickNanos;
+            long now;
+            while (running && (now = System.nanoTime()) - deadline < 0) {
+                LockSupport.parkNanos(this, deadline - now);
+            }
+            if (!running) {
+                return;
+            }
+            removeCancelled();
+            transferAdded();
+            expire(buckets[(int) (tick & (WHEEL_SIZE - 1))]);
+            tick++;
+        }
+    }
+
+    /**
+     * Unlinks the tasks cancelled since the last tick from their buckets.
+     */
+    private void removeCancelled() {
+        Timeout timeout;
+        while ((timeout = cancelled.poll()) != null) {
+            if (timeout.bucket >= 0) {
+                unlink(timeout);
+            }
+        }
+    }
+
+    /**
+     * Puts the tasks scheduled since the last tick into their buckets: that
+     * of the first tick that ends at or after the deadline, or the current
+     * one for a task already due.
+     */
+    private void transferAdded() {
+        Timeout timeout;
+        while ((timeout = added.poll()) != null) {
+            if (timeout.done.get()) {
+                continue;
+            }
+            long due = Math.max(tick, (timeout.deadline - startNanos + tickNanos - 1) / tickNanos - 1);
+            timeout.rounds = (due - tick) / WHEEL_SIZE;
+            link(timeout, (int) (due & (WHEEL_SIZE - 1)));
+        }
+    }
+
+    /**
+     * Runs the tasks in a bucket that are due this turn and counts the rest
+     * down by one turn.
+     */
+    private void expire(Timeout head) {
+        Timeout timeout = head;
+        while (timeout != null) {
+            Timeout next = timeout.next;
+            if (timeout.rounds > 0) {
+                timeout.rounds--;
+            } else {
+                unlink(timeout);
+                if (timeout.done.compareAndSet(false, true)) {
+                    try {
+                        timeout.task.run();
+                    } catch (Throwable t) {
+                        ServerLog.error("Error: Timer task failed: " + t);
+                    }
+                }
+            }
+            timeout = next;
+        }
+    }
+
+    private void link(Timeout timeout, int bucket) {
+        timeout.bucket = bucket;
+        timeout.prev = null;
+        timeout.next = buckets[bucket];
+        if (timeout.next != null) {
+            timeout.next.prev = timeout;
+        }
+        buckets[bucket] = timeout;
+    }
+
+    private void unlink(Timeout timeout) {
+        if (timeout.prev != null) {
+            timeout.prev.next = timeout.next;
+        } else {
+            buckets[timeout.bucket] = timeout.next;
+        }
+        if (timeout.next != null) {
+            timeout.next.prev = timeout.prev;
+        }
+        timeout.prev = null;
+        timeout.next = null;
+        timeout.bucket = -1;
+    }
+
+    /**
+     * A scheduled task.  Its links and round count belong to the wheel
+     * thread; any thread may cancel it.
+     */
+    final class Timeout {
+
+        private final Runnable task;
+        private final long deadline;
+        private final AtomicBoolean done = new AtomicBoolean();
+        private Timeout prev;
+        private Timeout next;
+        private int bucket = -1;
+        private long rounds;
+
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Stops the task from running if it has not started.  The wheel
+         * unlinks it on its next tick.
+         *
+         * @return true if this call cancelled it.
+         */
+        boolean cancel() {
+            if (!done.compareAndSet(false, true)) {
+                return false;
+            }
+            cancelled.add(this);
+            return true;
+        }
+    }
+}
@@ -0,0 +1,268 @@
+package edu.seg2105.edu.server.backend;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSession;
+
+/**
+ * TLS over a non-blocking socket channel, for the NIO engine.  Reads and
+ * writes take and give plaintext and never block: whatever the socket
+ * will not take yet waits here, as encrypted records, until the next
+ * write, and handshake messages are exchanged as part of reading and
+ * writing.  Must only be used on the connection's event loop, which also
+ * runs the handshake's delegated tasks.
+ * <p>
+ * A reconnecting client that offers a session from the server's cache
+ * skips the key exchange and certificate checks; such handshakes are
+ * counted separately from full ones.
+ */
+final class TlsChannel {
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final SocketChannel channel;
+    private final SSLEngine engine;
+    private final ServerMetrics metrics;
+    private final long startNanos = System.nanoTime();
+    private final long startMillis = System.currentTimeMillis();
+    private ByteBuffer netIn;
+    private ByteBuffer netOut;
+    private boolean handshaking = true;
+
+    /**
+     * Wraps a channel whose handshake has yet to start.
+     *
+     * @param channel The non-blocking channel.
+     * @param engine The server-mode engine for the connection.
+     * @param metrics Where the handshake is counted and timed.
+     */
+    TlsChannel(SocketChannel channel, SSLEngine engine, ServerMetrics metrics) {
+        this.channel = channel;
+        this.engine = engine;
+        this.metrics = metrics;
+        SSLSession session = engine.getSession();
+        netIn = ByteBuffer.allocate(session.getPacketBufferSize());
+        netOut = ByteBuffer.allocate(session.getPacketBufferSize()).flip();
+    }
+
+    /**
+     * Returns the room a read needs in its buffer.
+     */
+    int applicationBufferSize() {
+        return engine.getSession().getApplicationBufferSize();
+    }
+
+    /**
+     * Reads and decrypts what has arrived, stopping early when the buffer
+     * has less room left than a record may hold.
+     *
+     * @param dst The buffer to decrypt into.
+     * @return The number of bytes decrypted, possibly 0 while the
+     *         handshake is going on, or -1 at the end of the stream.
+     * @throws IOException If the socket fails or the peer breaks the
+     *         protocol.
+     */
+    int read(ByteBuffer dst) throws IOException {
+        int produced = 0;
+        while (true) {
+            if (!handshake()) {
+                return produced;
+            }
+            netIn.flip();
+            SSLEngineResult result;
+            try {
+                result = engine.unwrap(netIn, dst);
+            } finally {
+                netIn.compact();
+            }
+            produced += result.bytesProduced();
+            finished(result);
+            switch (result.getStatus()) {
+            case OK:
+                if (dst.remaining() < applicationBufferSize()) {
+                    return produced;
+                }
+                break;
+            case BUFFER_UNDERFLOW:
+                if (!netIn.hasRemaining()) {
+                    netIn = grow(netIn, engine.getSession().getPacketBufferSize());
+                }
+                int read = channel.read(netIn);
+                if (read < 0) {
+                    return produced > 0 ? produced : -1;
+                }
+                if (read == 0) {
+                    return produced;
+                }
+                break;
+            case BUFFER_OVERFLOW:
+                return produced;
+            default:
+                return produced > 0 ? produced : -1;
+            }
+        }
+    }
+
+    /**
+     * Returns true if bytes read from the socket are waiting to be
+     * decrypted, which the selector will not signal again.
+     */
+    boolean hasBufferedInput() {
+        return netIn.position() > 0;
+    }
+
+    /**
+     * Encrypts and writes as much of a buffer as the socket will take.
+     *
+     * @param src The plaintext to send.
+     * @return The number of bytes taken from the buffer.
+     * @throws IOException If the socket fails or the session is closed.
+     */
+    int write(ByteBuffer src) throws IOException {
+        int consumed = 0;
+        while (src.hasRemaining() && flush()) {
+            netOut.clear();
+            SSLEngineResult result;
+            try {
+                result = engine.wrap(src, netOut);
+            } finally {
+                netOut.flip();
+            }
+            consumed += result.bytesConsumed();
+            finished(result);
+            if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                netOut = ByteBuffer.allocate(netOut.capacity() + engine.getSession().getPacketBufferSize()).flip();
+            } else if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                throw new EOFException("TLS session closed");
+            } else if (result.bytesConsumed() == 0 && !netOut.hasRemaining()) {
+                // Still handshaking: nothing can be sent until it is done
+                break;
+            }
+        }
+        return consumed;
+    }
+
+    /**
+     * Writes what is waiting and goes on with the handshake, if one is
+     * going on.
+     *
+     * @return true if nothing is left waiting for the socket.
+     * @throws IOException If the socket fails.
+     */
+    boolean flush() throws IOException {
+        return writePending() && handshake();
+    }
+
+    /**
+     * Returns true if there are encrypted bytes the socket has not taken.
+     */
+    boolean hasPendingOutput() {
+        return netOut.hasRemaining();
+    }
+
+    /**
+     * Sends close_notify if the socket will take it.  The channel is left
+     * for the caller to close.
+     */
+    void close() {
+        engine.closeOutbound();
+        try {
+            while (netOut.hasRemaining() && channel.write(netOut) > 0) {
+                // Drain what was waiting first
+            }
+            netOut.clear();
+            engine.wrap(EMPTY, netOut);
+            netOut.flip();
+            channel.write(netOut);
+        } catch (IOException e) {
+            // Closing regardless
+        }
+    }
+
+    /**
+     * Runs the handshake steps that need no input from the peer: delegated
+     * tasks and handshake messages to send.
+     *
+     * @return false if a handshake message is waiting for the socket.
+     */
+    private boolean handshake() throws IOException {
+        while (true) {
+            switch (engine.getHandshakeStatus()) {
+            case NEED_TASK:
+                Runnable task;
+                while ((task = engine.getDelegatedTask()) != null) {
+                    task.run();
+                }
+                break;
+            case NEED_WRAP:
+                if (!writePending()) {
+                    return false;
+                }
+                netOut.clear();
+                SSLEngineResult result;
+                try {
+                    result = engine.wrap(EMPTY, netOut);
+                } finally {
+                    netOut.flip();
+                }
+                finished(result);
+                if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                    netOut = ByteBuffer.allocate(netOut.capacity() + engine.getSession().getPacketBufferSize()).flip();
+                } else if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                    throw new SSLException("TLS session closed during handshake");
+                }
+                break;
+            default:
+                return writePending();
+            }
+        }
+    }
+
+    /**
+     * Writes the encrypted bytes waiting for the socket.
+     *
+     * @return false if the socket would not take them all.
+     */
+    private boolean writePending() throws IOException {
+        while (netOut.hasRemaining()) {
+            if (channel.write(netOut) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Counts the initial handshake once an operation reports it finished.
+     */
+    private void finished(SSLEngineResult result) {
+        if (handshaking && result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.FINISHED) {
+            handshaking = false;
+            metrics.tlsHandshake(System.nanoTime() - startNanos, resumed(engine.getSession()));
+        }
+    }
+
+    /**
+     * Returns true if a session was resumed rather than newly negotiated:
+     * it was created before this handshake started.
+     */
+    private boolean resumed(SSLSession session) {
+        return session.getCreationTime() < startMillis;
+    }
+
+    /**
+     * Returns a buffer at least the given size larger, holding the same
+     * bytes, ready to take more.
+     */
+    private static ByteBuffer grow(ByteBuffer buffer, int by) {
+        ByteBuffer larger = ByteBuffer.allocate(buffer.capacity() + by);
+        buffer.flip();
+        return larger.put(buffer);
+    }
+}
@@ -0,0 +1,69 @@
+package edu.seg2105.edu.server.backend;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A token bucket kept as a single timestamp, in the manner of the
+ * generic cell rate algorithm: rather than counting tokens and refilling
+ * them, it records when the bucket would next be full ("theoretical
+ * arrival time").  A take that finds the bucket empty is told how long
+ * until a token arrives.  Both the check and the take are one CAS, so
+ * the bucket may be shared by any number of threads without a lock.
+ */
+final class TokenBucket {
+
+    private final long interval;
+    private final long tolerance;
+    private final AtomicLong full;
+
+    /**
+     * Creates a full bucket.
+     *
+     * @param perSecond Tokens added per second.
+     * @param burst Tokens the bucket holds.
+     * @param now The current System.nanoTime().
+     */
+    TokenBucket(int perSecond, int burst, long now) {
+        this.interval = Math.max(1, 1000000000L / perSecond);
+        this.tolerance = (Math.max(1, burst) - 1) * interval;
+        this.full = new AtomicLong(now);
+    }
+
+    /**
+     * Takes a token if there is one.
+     *
+     * @param now The current System.nanoTime().
+     * @return 0 if a token was taken, otherwise the nanoseconds until one
+     *         will be available.
+     */
+    long tryTake(long now) {
+        while (true) {
+            long current = full.get();
+            long start = current - now > 0 ? current : now;
+            long wait = start - tolerance - now;
+            if (wait > 0) {
+                return wait;
+            }
+            if (full.compareAndSet(current, start + interval)) {
+                return 0;
+            }
+        }
+    }
+
+    /**
+     * Gives back a token taken by tryTake.
+     */
+    void refund() {
+        full.addAndGet(-interval);
+    }
+
+    /**
+     * Returns true if the bucket is full, so that forgetting it loses
+     * nothing.
+     *
+     * @param now The current System.nanoTime().
+     */
+    boolean isFull(long now) {
+        return full.get() - now <= 0;
+    }
+}
@@ -0,0 +1,163 @@
+package edu.seg2105.client.common;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+public class BinaryMessageCodecTest {
+
+    @Test
+    public void roundTripsEveryFrameType() throws Exception {
+        BinaryMessageCodec encoder = new BinaryMessageCodec();
+        List<Object> decoded = decode(encoder.streamHeader(),
+            encoder.encode("#login alice"),
+            encoder.encode("hello there"),
+            encoder.encode("#join lobby"),
+            encoder.encode(ChatFrame.serverMessage("Welcome")));
+
+        assertFrame(decoded.get(0), ChatFrame.LOGIN, "#login alice", 0);
+        assertFrame(decoded.get(1), ChatFrame.CHAT, "hello there", 0);
+        assertFrame(decoded.get(2), ChatFrame.COMMAND, "#join lobby", 0);
+        assertFrame(decoded.get(3), ChatFrame.SERVER_MESSAGE, "Welcome", 0);
+        assertEquals(4, decoded.size());
+    }
+
+    @Test
+    public void writesAChatLineFromItsParts() throws Exception {
+        BinaryMessageCodec encoder = new BinaryMessageCodec();
+        ChatFrame line = ChatFrame.chat("bob", "hi \u00e9\u20ac\ud83d\ude00");
+        ByteBuffer encoded = encoder.encode(line);
+        assertEquals(BinaryMessageCodec.encodedLength(line), encoded.remaining());
+
+        List<Object> decoded = decode(encoder.streamHeader(), encoded);
+        assertFrame(decoded.get(0), ChatFrame.CHAT, "bob: hi \u00e9\u20ac\ud83d\ude00", 0);
+    }
+
+    @Test
+    public void carriesSequenceNumbers() throws Exception {
+        BinaryMessageCodec encoder = new BinaryMessageCodec();
+        List<Object> decoded = decode(encoder.streamHeader(),
+            encoder.encode(ChatFrame.chat("a", "one").withSequence(1)),
+            encoder.encode(ChatFrame.chat("a", "two").withSequence(Long.MAX_VALUE)));
+
+        assertFrame(decoded.get(0), ChatFrame.CHAT, "a: one", 1);
+        assertFrame(decoded.get(1), ChatFrame.CHAT, "a: two", Long.MAX_VALUE);
+    }
+
+    @Test
+    public void waitsForTheRestOfAPartialFrame() throws Exception {
+        BinaryMessageCodec encoder = new BinaryMessageCodec();
+        ByteBuffer header = encoder.streamHeader();
+        ByteBuffer frame = encoder.encode(ChatFrame.chat("carol", "x".repeat(300)).withSequence(1000));
+        ByteBuffer all = ByteBuffer.allocate(header.remaining() + frame.remaining()).put(header).put(frame);
+        all.flip();
+
+        BinaryMessageCodec decoder = new BinaryMessageCodec();
+        List<Object> out = new ArrayList<Object>();
+        ByteBuffer in = ByteBuffer.allocate(all.remaining());
+        while (all.hasRemaining()) {
+            in.put(all.get());
+            in.flip();
+            decoder.decode(in, out);
+            assertEquals(all.hasRemaining() ? 0 : 1, out.size());
+            in.compact();
+        }
+        assertFrame(out.get(0), ChatFrame.CHAT, "carol: " + "x".repeat(300), 1000);
+        assertEquals(0, in.position());
+    }
+
+    @Test
+    public void decodesInPlaceFromADirectBuffer() throws Exception {
+        BinaryMessageCodec encoder = new BinaryMessageCodec();
+        ByteBuffer in = ByteBuffer.allocateDirect(256);
+        in.put(encoder.streamHeader()).put(encoder.encode("#join lobby")).put(encoder.encode("h\u00e9llo"));
+        in.flip();
+
+        BinaryMessageCodec decoder = new BinaryMessageCodec();
+        FrameView view = new FrameView();
+        assertTrue(decoder.decodeNext(in, view));
+        assertEquals(ChatFrame.COMMAND, view.getType());
+        assertTrue(view.startsWith('#'));
+        assertEquals("#join lobby", view.toString());
+        assertTrue(decoder.decodeNext(in, view));
+        assertFalse(view.startsWith('#'));
+        assertEquals(6, view.length());
+        assertFrame(view.toFrame(), ChatFrame.CHAT, "h\u00e9llo", 0);
+        assertFalse(decoder.decodeNext(in, view));
+        assertEquals(0, in.remaining());
+    }
+
+    @Test
+    public void buildsAChatLineFromAView() throws Exception {
+        BinaryMessageCodec encoder = new BinaryMessageCodec();
+        ByteBuffer in = ByteBuffer.allocate(64).put(encoder.streamHeader()).put(encoder.encode("hi \u20ac"));
+        in.flip();
+        FrameView view = new FrameView();
+        assertTrue(new BinaryMessageCodec().decodeNext(in, view));
+
+        ChatFrame line = BinaryMessageCodec.chat("bob", view);
+        assertEquals(ChatFrame.chat("bob", "hi \u20ac").toString(), line.toString());
+        assertEquals(encoder.encode(ChatFrame.chat("bob", "hi \u20ac")), encoder.encode(line));
+        assertEquals(encoder.encode(ChatFrame.chat("bob", "hi \u20ac").withSequence(7)),
+            encoder.encode(line.withSequence(7)));
+    }
+
+    @Test
+    public void rejectsABadPreamble() {
+        ByteBuffer in = ByteBuffer.wrap(new byte[] {'S', 'C', 'X', 2});
+        assertThrows(StreamCorruptedException.class, () -> new BinaryMessageCodec().decode(in, new ArrayList<Object>()));
+    }
+
+    @Test
+    public void rejectsAnUnknownFrameType() throws Exception {
+        BinaryMessageCodec decoder = new BinaryMessageCodec();
+        List<Object> out = new ArrayList<Object>();
+        decoder.decode(decoder.streamHeader(), out);
+        ByteBuffer frame = ByteBuffer.wrap(new byte[] {9, 1, 'x'});
+        assertThrows(StreamCorruptedException.class, () -> decoder.decode(frame, out));
+        assertTrue(out.isEmpty());
+    }
+
+    @Test
+    public void rejectsAnOversizedLength() throws Exception {
+        BinaryMessageCodec decoder = new BinaryMessageCodec();
+        List<Object> out = new ArrayList<Object>();
+        decoder.decode(decoder.streamHeader(), out);
+        ByteBuffer frame = ByteBuffer.allocate(8).put(ChatFrame.CHAT);
+        BinaryMessageCodec.putVarint(frame, BinaryMessageCodec.MAX_PAYLOAD_BYTES + 1);
+        frame.flip();
+        assertThrows(StreamCorruptedException.class, () -> decoder.decode(frame, out));
+    }
+
+    static List<Object> decode(ByteBuffer... buffers) throws IOException {
+        int size = 0;
+        for (ByteBuffer buffer : buffers) {
+            size += buffer.remaining();
+        }
+        ByteBuffer in = ByteBuffer.allocate(size);
+        for (ByteBuffer buffer : buffers) {
+            in.put(buffer);
+        }
+        in.flip();
+        List<Object> out = new ArrayList<Object>();
+        new BinaryMessageCodec().decode(in, out);
+        assertEquals(0, in.remaining());
+        return out;
+    }
+
+    static void assertFrame(Object decoded, byte type, String text, long sequence) {
+        ChatFrame frame = (ChatFrame) decoded;
+        assertEquals(type, frame.getType());
+        assertEquals(text, frame.toString());
+        assertEquals(sequence, frame.getSequence());
+    }
+}
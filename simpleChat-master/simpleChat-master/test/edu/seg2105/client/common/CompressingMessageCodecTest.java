@@ -0,0 +1,124 @@
+package edu.seg2105.client.common;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.Deflater;
+
+import org.junit.jupiter.api.Test;
+
+public class CompressingMessageCodecTest {
+
+    @Test
+    public void roundTripsInBothModes() throws Exception {
+        for (CompressingMessageCodec.Mode mode : CompressingMessageCodec.Mode.values()) {
+            CompressingMessageCodec encoder = new CompressingMessageCodec(mode);
+            for (int length : new int[] {10, 600, 5_000, 300_000}) {
+                String text = chatText(length);
+                ByteBuffer frame = encoder.encode(ChatFrame.chat("alice", text).withSequence(length));
+                if (length >= 600) {
+                    assertTrue(frame.remaining() < length / 2, mode + " " + length);
+                }
+                List<Object> out = decode(accepting(), frame);
+                BinaryMessageCodecTest.assertFrame(out.get(0), ChatFrame.CHAT, "alice: " + text, length);
+            }
+        }
+    }
+
+    @Test
+    public void sendsShortTextAsIs() throws Exception {
+        String text = chatText(CompressingMessageCodec.THRESHOLD - 1);
+        ByteBuffer frame = new CompressingMessageCodec(CompressingMessageCodec.Mode.DEFLATE).encode(text);
+        // Readable without compression having been negotiated
+        assertEquals(text, decode(new BinaryMessageCodec(), frame).get(0).toString());
+    }
+
+    @Test
+    public void refusesCompressedFramesUntilAccepted() throws Exception {
+        ByteBuffer frame = new CompressingMessageCodec(CompressingMessageCodec.Mode.DICTIONARY)
+            .encode(chatText(5000));
+        assertThrows(StreamCorruptedException.class, () -> decode(new BinaryMessageCodec(), frame.duplicate()));
+        assertEquals(chatText(5000), decode(accepting(), frame).get(0).toString());
+    }
+
+    @Test
+    public void refusesADeclaredLengthOverTheLimit() {
+        ByteBuffer frame = forged(BinaryMessageCodec.MAX_INFLATED_BYTES + 1, new byte[100]);
+        StreamCorruptedException e = assertThrows(StreamCorruptedException.class, () -> decode(accepting(), frame));
+        assertTrue(e.getMessage().contains("too large"), e.getMessage());
+    }
+
+    @Test
+    public void refusesTextShorterThanDeclared() {
+        ByteBuffer frame = forged(BinaryMessageCodec.MAX_INFLATED_BYTES, new byte[100]);
+        assertThrows(StreamCorruptedException.class, () -> decode(accepting(), frame));
+    }
+
+    @Test
+    public void refusesTextLongerThanDeclared() {
+        ByteBuffer frame = forged(50, new byte[100]);
+        assertThrows(StreamCorruptedException.class, () -> decode(accepting(), frame));
+    }
+
+    @Test
+    public void growsTheBufferToTheDeclaredLength() throws Exception {
+        // Highly compressible, so the text is far larger than the first guess
+        byte[] text = "x".repeat(500_000).getBytes(StandardCharsets.UTF_8);
+        List<Object> out = decode(accepting(), forged(text.length, text));
+        assertEquals("x".repeat(500_000), out.get(0).toString());
+    }
+
+    @Test
+    public void refusesCorruptData() {
+        ByteBuffer frame = forged(1000, chatText(1000).getBytes(StandardCharsets.UTF_8));
+        int at = frame.limit() - 6;
+        frame.put(at, (byte) (frame.get(at) ^ 0x55));
+        assertThrows(StreamCorruptedException.class, () -> decode(accepting(), frame));
+    }
+
+    private static String chatText(int length) {
+        StringBuilder text = new StringBuilder(length);
+        while (text.length() < length) {
+            text.append("has joined room lobby, what do you think? ");
+        }
+        return text.substring(0, length);
+    }
+
+    private static BinaryMessageCodec accepting() {
+        BinaryMessageCodec decoder = new BinaryMessageCodec();
+        decoder.acceptCompressed();
+        return decoder;
+    }
+
+    private static List<Object> decode(BinaryMessageCodec decoder, ByteBuffer frame) throws IOException {
+        List<Object> out = new ArrayList<Object>();
+        decoder.decode(decoder.streamHeader(), out);
+        decoder.decode(frame, out);
+        return out;
+    }
+
+    /**
+     * Builds a compressed chat frame by hand, declaring any text length.
+     */
+    private static ByteBuffer forged(int declaredLength, byte[] text) {
+        Deflater deflater = new Deflater();
+        deflater.setInput(text);
+        deflater.finish();
+        byte[] deflated = new byte[text.length + 64];
+        int size = deflater.deflate(deflated);
+        deflater.end();
+
+        ByteBuffer payload = ByteBuffer.allocate(size + 5);
+        BinaryMessageCodec.putVarint(payload, declaredLength);
+        payload.put(deflated, 0, size);
+        return BinaryMessageCodec.frame(ChatFrame.CHAT | BinaryMessageCodec.COMPRESSED, 0,
+            payload.array(), payload.position());
+    }
+}
@@ -0,0 +1,144 @@
+package edu.seg2105.client.common;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks SerializedMessageCodec against the JDK's own object streams,
+ * which is what unmodified OCSF peers use.
+ */
+public class SerializedMessageCodecTest {
+
+    private static final String LONG_TEXT = "x".repeat(70_000);
+
+    @Test
+    public void encodedStringsReadBackThroughObjectInputStream() throws Exception {
+        SerializedMessageCodec codec = new SerializedMessageCodec();
+        List<String> lines = Arrays.asList("hello", "", "caf\u00e9 \u20ac \ud83d\ude00", "nul\u0000byte", LONG_TEXT);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        write(bytes, codec.streamHeader());
+        for (String line : lines) {
+            write(bytes, codec.encode(line));
+        }
+
+        try (ObjectInputStream input = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            for (String line : lines) {
+                assertEquals(line, input.readObject());
+            }
+        }
+    }
+
+    @Test
+    public void chatFramesAreSentAsTheirText() throws Exception {
+        SerializedMessageCodec codec = new SerializedMessageCodec();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        write(bytes, codec.streamHeader());
+        write(bytes, codec.encode(ChatFrame.chat("alice", "hi")));
+
+        try (ObjectInputStream input = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            assertEquals("alice: hi", input.readObject());
+        }
+    }
+
+    @Test
+    public void decodesWhatObjectOutputStreamWrites() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream output = new ObjectOutputStream(bytes)) {
+            String repeated = "again";
+            output.writeObject(repeated);
+            output.writeObject(repeated); // Sent as a back reference
+            output.writeObject(null);
+            output.reset();
+            output.writeObject("after reset");
+            output.writeObject("\u00e9\u20ac");
+            output.writeObject(LONG_TEXT);
+        }
+
+        List<Object> decoded = decodeAll(new SerializedMessageCodec(), bytes.toByteArray());
+        assertEquals(Arrays.asList("again", "again", "after reset", "\u00e9\u20ac", LONG_TEXT), decoded);
+    }
+
+    @Test
+    public void waitsForTheRestOfAPartialMessage() throws Exception {
+        SerializedMessageCodec codec = new SerializedMessageCodec();
+        ByteBuffer header = codec.streamHeader();
+        ByteBuffer message = codec.encode("split across reads");
+        byte[] all = new byte[header.remaining() + message.remaining()];
+        ByteBuffer.wrap(all).put(header).put(message);
+
+        SerializedMessageCodec decoder = new SerializedMessageCodec();
+        List<Object> out = new ArrayList<Object>();
+        ByteBuffer in = ByteBuffer.allocate(all.length);
+        for (byte b : all) {
+            in.put(b);
+            in.flip();
+            decoder.decode(in, out);
+            in.compact();
+        }
+        assertEquals(Arrays.asList("split across reads"), out);
+        assertEquals(0, in.position());
+    }
+
+    @Test
+    public void rejectsABadStreamHeader() {
+        byte[] bad = {0x12, 0x34, 0x00, 0x05};
+        assertThrows(StreamCorruptedException.class, () -> decodeAll(new SerializedMessageCodec(), bad));
+    }
+
+    @Test
+    public void rejectsObjectsOtherThanStrings() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream output = new ObjectOutputStream(bytes)) {
+            output.writeObject(Integer.valueOf(42));
+        }
+        StreamCorruptedException e = assertThrows(StreamCorruptedException.class,
+            () -> decodeAll(new SerializedMessageCodec(), bytes.toByteArray()));
+        assertTrue(e.getMessage().startsWith("Unsupported type code"));
+    }
+
+    @Test
+    public void rejectsAReferenceToAnUnknownHandle() throws Exception {
+        SerializedMessageCodec codec = new SerializedMessageCodec();
+        ByteBuffer in = ByteBuffer.allocate(16);
+        in.put(codec.streamHeader());
+        in.put((byte) 0x71).putInt(0x7E0000 + 3); // TC_REFERENCE to handle 3
+        in.flip();
+        assertThrows(StreamCorruptedException.class, () -> codec.decode(in, new ArrayList<Object>()));
+    }
+
+    @Test
+    public void rejectsAnOversizedLength() {
+        SerializedMessageCodec codec = new SerializedMessageCodec();
+        ByteBuffer in = ByteBuffer.allocate(16);
+        in.put(codec.streamHeader());
+        in.put((byte) 0x7C).putLong(SerializedMessageCodec.MAX_MESSAGE_BYTES + 1L); // TC_LONGSTRING
+        in.flip();
+        assertThrows(StreamCorruptedException.class, () -> codec.decode(in, new ArrayList<Object>()));
+    }
+
+    private static List<Object> decodeAll(MessageCodec codec, byte[] bytes) throws IOException {
+        List<Object> out = new ArrayList<Object>();
+        codec.decode(ByteBuffer.wrap(bytes), out);
+        return out;
+    }
+
+    private static void write(ByteArrayOutputStream out, ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        out.write(bytes, 0, bytes.length);
+    }
+}
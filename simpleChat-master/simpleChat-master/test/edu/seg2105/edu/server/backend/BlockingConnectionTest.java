@@ -0,0 +1,116 @@
+package edu.seg2105.edu.server.backend;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectOutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Checks what the thread-per-client engine accepts from a client's
+ * object stream.
+ */
+public class BlockingConnectionTest {
+
+    private static final String MAX_BYTES_PROPERTY = "simplechat.inbound.maxMessageBytes";
+
+    private RecordingServer server;
+    private Socket socket;
+    private ObjectOutputStream output;
+
+    @BeforeEach
+    public void start() throws Exception {
+        System.setProperty(MAX_BYTES_PROPERTY, "4096");
+        int port;
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        server = new RecordingServer(port);
+        server.getEngine().listen();
+        socket = new Socket("localhost", port);
+        socket.setSoTimeout(5000);
+        output = new ObjectOutputStream(socket.getOutputStream());
+        output.flush();
+    }
+
+    @AfterEach
+    public void stop() throws Exception {
+        System.clearProperty(MAX_BYTES_PROPERTY);
+        socket.close();
+        server.getEngine().close();
+    }
+
+    @Test
+    public void readsStrings() throws Exception {
+        output.writeObject("#login alice");
+        output.writeObject("hello");
+        output.flush();
+        assertEquals("#login alice", server.received.poll(5, TimeUnit.SECONDS));
+        assertEquals("hello", server.received.poll(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void closesOnAnythingButAString() throws Exception {
+        sendAndAssertClosed(new ArrayList<String>());
+        assertNull(server.received.poll());
+    }
+
+    @Test
+    public void closesOnAnOversizedMessage() throws Exception {
+        sendAndAssertClosed("x".repeat(20_000));
+        assertNull(server.received.poll());
+    }
+
+    private void sendAndAssertClosed(Object msg) throws IOException {
+        try {
+            output.writeObject(msg);
+            output.flush();
+        } catch (IOException e) {
+            return; // Closed before we finished writing
+        }
+        InputStream input = socket.getInputStream();
+        byte[] buffer = new byte[1024];
+        try {
+            while (input.read(buffer) >= 0) {
+                // Skip the stream header
+            }
+        } catch (SocketTimeoutException e) {
+            throw new AssertionError("connection still open");
+        } catch (IOException e) {
+            // Reset by the server: closed as well
+        }
+    }
+
+    private static final class RecordingServer extends EchoServer {
+        final BlockingQueue<Object> received = new LinkedBlockingQueue<Object>();
+
+        RecordingServer(int port) {
+            super(port, ServerConfig.ENGINE_PLATFORM);
+        }
+
+        @Override
+        protected void clientConnected(ChatConnection client) {
+        }
+
+        @Override
+        protected void clientDisconnected(ChatConnection client) {
+        }
+
+        @Override
+        protected void handleMessageFromClient(Object msg, ChatConnection client) {
+            received.add(msg);
+        }
+    }
+}
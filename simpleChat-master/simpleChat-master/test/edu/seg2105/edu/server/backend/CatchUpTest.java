@@ -0,0 +1,161 @@
+package edu.seg2105.edu.server.backend;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import edu.seg2105.client.common.BinaryMessageCodec;
+import edu.seg2105.client.common.ChatFrame;
+
+/**
+ * Checks that a reconnecting binary client is caught up from the journal,
+ * and only from the journal its sequence number belongs to.
+ */
+public class CatchUpTest {
+
+    private static final String JOURNAL_PROPERTY = "simplechat.journal.dir";
+
+    private Path dir;
+    private EchoServer server;
+    private int port;
+    private final List<Client> clients = new ArrayList<Client>();
+
+    @BeforeEach
+    public void start() throws Exception {
+        dir = Files.createTempDirectory("catch-up-test");
+        System.setProperty(JOURNAL_PROPERTY, dir.toString());
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        server = new EchoServer(port, ServerConfig.ENGINE_NIO);
+        server.getEngine().listen();
+    }
+
+    @AfterEach
+    public void stop() throws Exception {
+        System.clearProperty(JOURNAL_PROPERTY);
+        for (Client client : clients) {
+            client.socket.close();
+        }
+        server.getEngine().close();
+        server.close();
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+        }
+    }
+
+    @Test
+    public void replaysWhatAResumingClientMissed() throws Exception {
+        Client alice = connect("#login alice");
+        String journalId = journalId(alice);
+        for (int i = 1; i <= 3; i++) {
+            alice.send("line " + i);
+            assertEquals(i, alice.nextChat().getSequence());
+        }
+
+        Client bob = connect("#resume 1@" + journalId + " bob");
+        journalId(bob);
+        assertEquals("alice: line 2", bob.nextChat().toString());
+        assertEquals("alice: line 3", bob.nextChat().toString());
+    }
+
+    @Test
+    public void ignoresASequenceNumberFromAnotherJournal() throws Exception {
+        Client alice = connect("#login alice");
+        journalId(alice);
+        for (int i = 1; i <= 3; i++) {
+            alice.send("line " + i);
+            alice.nextChat();
+        }
+
+        Client bob = connect("#resume 1@another-journal bob");
+        journalId(bob);
+        bob.send("#ping");
+        assertEquals("#pong", bob.nextServerMessage());
+    }
+
+    private Client connect(String login) throws IOException {
+        Client client = new Client(port);
+        clients.add(client);
+        client.send(login);
+        assertTrue(client.nextServerMessage().startsWith("Login successful"));
+        return client;
+    }
+
+    private static String journalId(Client client) throws IOException {
+        String announcement = client.nextServerMessage();
+        assertTrue(announcement.startsWith("#journal "), announcement);
+        return announcement.substring("#journal ".length());
+    }
+
+    /**
+     * A binary protocol client reading frames on the test thread.
+     */
+    private static final class Client {
+        final Socket socket;
+        final BinaryMessageCodec codec = new BinaryMessageCodec();
+        final ByteBuffer in = ByteBuffer.allocate(64 * 1024);
+        final ArrayDeque<Object> frames = new ArrayDeque<Object>();
+
+        Client(int port) throws IOException {
+            socket = new Socket("localhost", port);
+            socket.setSoTimeout(5000);
+            write(codec.streamHeader());
+        }
+
+        void send(String text) throws IOException {
+            write(codec.encode(text));
+        }
+
+        ChatFrame next() throws IOException {
+            InputStream input = socket.getInputStream();
+            while (frames.isEmpty()) {
+                int read = input.read(in.array(), in.position(), in.remaining());
+                if (read < 0) {
+                    throw new IOException("closed");
+                }
+                in.position(in.position() + read);
+                in.flip();
+                List<Object> out = new ArrayList<Object>();
+                codec.decode(in, out);
+                in.compact();
+                frames.addAll(out);
+            }
+            return (ChatFrame) frames.poll();
+        }
+
+        ChatFrame nextChat() throws IOException {
+            ChatFrame frame;
+            do {
+                frame = next();
+            } while (frame.getType() != ChatFrame.CHAT);
+            return frame;
+        }
+
+        String nextServerMessage() throws IOException {
+            ChatFrame frame = next();
+            assertEquals(ChatFrame.SERVER_MESSAGE, frame.getType(), frame.toString());
+            return frame.toString();
+        }
+
+        private void write(ByteBuffer buffer) throws IOException {
+            socket.getOutputStream().write(buffer.array(), buffer.position(), buffer.remaining());
+        }
+    }
+}
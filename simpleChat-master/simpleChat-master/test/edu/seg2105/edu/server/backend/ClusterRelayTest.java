@@ -0,0 +1,194 @@
+package edu.seg2105.edu.server.backend;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Links relays over loopback and checks how lines spread between them.
+ */
+public class ClusterRelayTest {
+
+    private static final String LOOPBACK = "127.0.0.1";
+
+    private final List<Node> nodes = new ArrayList<Node>();
+
+    @AfterEach
+    public void stop() throws Exception {
+        for (Node node : nodes) {
+            node.relay.close();
+            node.server.close();
+        }
+    }
+
+    @Test
+    public void deliversALineOnceAcrossAFullMesh() throws Exception {
+        int[] ports = freePorts(3);
+        for (int i = 0; i < 3; i++) {
+            List<Integer> others = new ArrayList<Integer>();
+            for (int j = 0; j < 3; j++) {
+                if (j != i) {
+                    others.add(ports[j]);
+                }
+            }
+            start(ports[i], null, others);
+        }
+
+        nodes.get(0).relay.publish("lobby", "alice: hi");
+        assertEquals("lobby alice: hi", nodes.get(1).next());
+        assertEquals("lobby alice: hi", nodes.get(2).next());
+        // Each of the two receivers passes the line to the other, which drops it
+        awaitDuplicates(1);
+        TimeUnit.MILLISECONDS.sleep(200);
+        for (Node node : nodes) {
+            assertTrue(node.lines.isEmpty(), node.lines.toString());
+        }
+        assertEquals(0, nodes.get(0).server.getMetrics().relayedIn());
+    }
+
+    @Test
+    public void stopsPassingALineOnAfterMaxHops() throws Exception {
+        int count = ClusterRelay.MAX_HOPS + 2;
+        int[] ports = freePorts(count);
+        for (int i = 0; i < count; i++) {
+            start(ports[i], null, i + 1 < count
+                ? Collections.singletonList(ports[i + 1]) : Collections.<Integer>emptyList());
+        }
+
+        nodes.get(0).relay.publish("lobby", "alice: far");
+        for (int i = 1; i <= ClusterRelay.MAX_HOPS; i++) {
+            assertEquals("lobby alice: far", nodes.get(i).next(), "node " + i);
+        }
+        TimeUnit.MILLISECONDS.sleep(300);
+        assertTrue(nodes.get(count - 1).lines.isEmpty());
+        assertEquals(0, nodes.get(count - 2).server.getMetrics().relayedOut());
+    }
+
+    @Test
+    public void relaysOnlyBetweenNodesWithTheSameSecret() throws Exception {
+        int[] ports = freePorts(3);
+        Node target = start(ports[0], "right", Collections.<Integer>emptyList());
+        Node wrong = start(ports[1], "wrong", Collections.singletonList(ports[0]));
+        Node none = start(ports[2], null, Collections.singletonList(ports[0]));
+        wrong.relay.publish("lobby", "mallory: wrong");
+        none.relay.publish("lobby", "mallory: none");
+        TimeUnit.MILLISECONDS.sleep(300);
+        Node right = start(freePorts(1)[0], "right", Collections.singletonList(ports[0]));
+        right.relay.publish("lobby", "alice: right");
+
+        assertEquals("lobby alice: right", target.next());
+        TimeUnit.MILLISECONDS.sleep(200);
+        assertTrue(target.lines.isEmpty(), target.lines.toString());
+        assertEquals(0, wrong.server.getMetrics().relayLinks());
+        assertEquals(0, none.server.getMetrics().relayLinks());
+    }
+
+    @Test
+    public void closesALinkThatDoesNotStartWithAHello() throws Exception {
+        int port = freePorts(1)[0];
+        Node target = start(port, "secret", Collections.<Integer>emptyList());
+        try (Socket link = new Socket(LOOPBACK, port)) {
+            link.setSoTimeout(10_000);
+            link.getOutputStream().write("lobby alice: not a relay".repeat(10).getBytes(StandardCharsets.UTF_8));
+            InputStream in = link.getInputStream();
+            try {
+                while (in.read() >= 0) {
+                    // The relay's own hello
+                }
+            } catch (IOException e) {
+                // Reset rather than closed cleanly
+            }
+        }
+        assertNull(target.lines.poll(100, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void needsASecretToBindAnAddressOtherThanLoopback() throws Exception {
+        Node node = new Node("0.0.0.0", freePorts(1)[0], null, Collections.<Integer>emptyList());
+        nodes.add(node);
+        assertThrows(IOException.class, node.relay::start);
+    }
+
+    private Node start(int port, String secret, List<Integer> peerPorts) throws IOException {
+        Node node = new Node(LOOPBACK, port, secret, peerPorts);
+        nodes.add(node);
+        node.relay.start();
+        return node;
+    }
+
+    private void awaitDuplicates(long expected) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (true) {
+            long duplicates = 0;
+            for (Node node : nodes) {
+                duplicates += node.server.getMetrics().relayDuplicates();
+            }
+            if (duplicates >= expected) {
+                return;
+            }
+            assertTrue(System.nanoTime() < deadline, "duplicates: " + duplicates);
+            TimeUnit.MILLISECONDS.sleep(10);
+        }
+    }
+
+    private static int[] freePorts(int count) throws IOException {
+        List<ServerSocket> probes = new ArrayList<ServerSocket>();
+        int[] ports = new int[count];
+        try {
+            for (int i = 0; i < count; i++) {
+                ServerSocket probe = new ServerSocket(0);
+                probes.add(probe);
+                ports[i] = probe.getLocalPort();
+            }
+        } finally {
+            for (ServerSocket probe : probes) {
+                probe.close();
+            }
+        }
+        return ports;
+    }
+
+    /**
+     * A server that records the lines relayed to it, and its relay.
+     */
+    private static final class Node {
+        final LinkedBlockingQueue<String> lines = new LinkedBlockingQueue<String>();
+        final EchoServer server;
+        final ClusterRelay relay;
+
+        Node(String bindAddress, int port, String secret, List<Integer> peerPorts) {
+            server = new EchoServer(0, ServerConfig.ENGINE_NIO) {
+                @Override
+                void relayed(String room, String line) {
+                    lines.add(room + " " + line);
+                }
+            };
+            List<InetSocketAddress> peers = new ArrayList<InetSocketAddress>();
+            for (int peerPort : peerPorts) {
+                peers.add(new InetSocketAddress(LOOPBACK, peerPort));
+            }
+            relay = new ClusterRelay(server, server.getMetrics(), bindAddress, port,
+                secret == null ? null : secret.getBytes(StandardCharsets.UTF_8), peers);
+        }
+
+        String next() throws InterruptedException {
+            return lines.poll(10, TimeUnit.SECONDS);
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package edu.seg2105.edu.server.backend;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+public class HistoryCacheTest {
+
+    /**
+     * Bytes of each line used here: a CHAT frame of eight characters.
+     */
+    private static final int LINE_BYTES = 1 + 1 + 8;
+
+    private final ServerMetrics metrics = new ServerMetrics();
+
+    private static EncodedMessage line(String room, int n) {
+        return new EncodedMessage(String.format("%s%04d", room, n).substring(0, 8));
+    }
+
+    private static List<String> texts(List<EncodedMessage> lines) {
+        List<String> texts = new ArrayList<String>();
+        for (EncodedMessage line : lines) {
+            texts.add(line.message().toString());
+        }
+        return texts;
+    }
+
+    @Test
+    public void keepsTheNewestLinesOfEachRoom() {
+        HistoryCache cache = new HistoryCache(3, Long.MAX_VALUE, metrics);
+        for (int i = 1; i <= 5; i++) {
+            cache.add("room", line("room", i));
+        }
+        assertEquals(List.of("room0003", "room0004", "room0005"), texts(cache.recent("room", 10)));
+        assertEquals(List.of("room0004", "room0005"), texts(cache.recent("room", 2)));
+        assertEquals(3, metrics.historyMessages());
+        assertEquals(2, metrics.historyEvicted());
+    }
+
+    @Test
+    public void countsHitsAndMisses() {
+        HistoryCache cache = new HistoryCache(3, Long.MAX_VALUE, metrics);
+        cache.add("room", line("room", 1));
+        cache.recent("room", 5);
+        cache.recent("empty", 5);
+        assertEquals(1, metrics.historyHits());
+        assertEquals(1, metrics.historyMisses());
+    }
+
+    @Test
+    public void forgetsTheLeastRecentlyUsedRoomFirst() {
+        HistoryCache cache = new HistoryCache(10, 4 * LINE_BYTES, metrics);
+        cache.add("aaaa", line("aaaa", 1));
+        cache.add("aaaa", line("aaaa", 2));
+        cache.add("bbbb", line("bbbb", 1));
+        cache.add("cccc", line("cccc", 1));
+        cache.recent("aaaa", 1); // aaaa is now used more recently than bbbb
+
+        cache.add("dddd", line("dddd", 1));
+        assertTrue(cache.recent("bbbb", 10).isEmpty());
+        assertEquals(2, cache.recent("aaaa", 10).size());
+        assertEquals(4 * LINE_BYTES, metrics.historyBytes());
+    }
+
+    @Test
+    public void dropsItsOwnOldestLinesWhenAloneOverBudget() {
+        HistoryCache cache = new HistoryCache(10, 3 * LINE_BYTES, metrics);
+        for (int i = 1; i <= 5; i++) {
+            cache.add("room", line("room", i));
+        }
+        assertEquals(List.of("room0003", "room0004", "room0005"), texts(cache.recent("room", 10)));
+    }
+
+    @Test
+    public void skipsALineLargerThanTheBudget() {
+        HistoryCache cache = new HistoryCache(10, LINE_BYTES, metrics);
+        cache.add("room", line("room", 1));
+        cache.add("room", new EncodedMessage("much longer than the budget"));
+        assertEquals(List.of("room0001"), texts(cache.recent("room", 10)));
+    }
+
+    @Test
+    public void keepsNothingWithNoLinesAllowed() {
+        HistoryCache cache = new HistoryCache(0, Long.MAX_VALUE, metrics);
+        cache.add("room", line("room", 1));
+        assertTrue(cache.recent("room", 10).isEmpty());
+    }
+}
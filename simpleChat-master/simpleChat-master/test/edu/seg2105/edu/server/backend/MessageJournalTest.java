@@ -0,0 +1,208 @@
+package edu.seg2105.edu.server.backend;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import edu.seg2105.client.common.ChatFrame;
+
+public class MessageJournalTest {
+
+    private static final long DAY_MILLIS = 24 * 60 * 60 * 1000L;
+
+    private Path dir;
+    private MessageJournal journal;
+
+    @BeforeEach
+    public void createDirectory() throws IOException {
+        dir = Files.createTempDirectory("journal-test");
+    }
+
+    @AfterEach
+    public void deleteDirectory() throws IOException {
+        if (journal != null) {
+            journal.close();
+        }
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+        }
+    }
+
+    @Test
+    public void numbersAndReadsBackMessagesInOrder() throws IOException {
+        journal = MessageJournal.open(dir, 1 << 20, Long.MAX_VALUE, DAY_MILLIS);
+        for (int i = 1; i <= 200; i++) {
+            assertEquals(i, journal.append("lobby", ChatFrame.chat("alice", "line " + i)).getSequence());
+        }
+        assertEquals(200, journal.lastSequence());
+
+        JournalCursor cursor = journal.cursor(150, null);
+        for (int i = 151; i <= 200; i++) {
+            ChatFrame frame = (ChatFrame) cursor.nextMessage();
+            assertEquals(i, frame.getSequence());
+            assertEquals("alice: line " + i, frame.toString());
+        }
+        assertNull(cursor.nextMessage());
+        assertEquals(50, cursor.delivered());
+    }
+
+    @Test
+    public void cursorStopsAtTheLastMessageWhenItWasMade() throws IOException {
+        journal = MessageJournal.open(dir, 1 << 20, Long.MAX_VALUE, DAY_MILLIS);
+        journal.append("lobby", "one");
+        JournalCursor cursor = journal.cursor(0, null);
+        journal.append("lobby", "two");
+        assertEquals("one", cursor.nextMessage().toString());
+        assertNull(cursor.nextMessage());
+    }
+
+    @Test
+    public void filtersByRoom() throws IOException {
+        journal = MessageJournal.open(dir, 1 << 20, Long.MAX_VALUE, DAY_MILLIS);
+        for (int i = 1; i <= 10; i++) {
+            journal.append(i % 2 == 0 ? "even" : "odd", "m" + i);
+        }
+        JournalCursor cursor = journal.cursor(0, "even");
+        for (int i = 2; i <= 10; i += 2) {
+            assertEquals("m" + i, cursor.nextMessage().toString());
+        }
+        assertNull(cursor.nextMessage());
+    }
+
+    @Test
+    public void rollsSegmentsAndReadsAcrossThem() throws IOException {
+        journal = MessageJournal.open(dir, 4096, Long.MAX_VALUE, DAY_MILLIS);
+        for (int i = 1; i <= 500; i++) {
+            journal.append("lobby", "message number " + i);
+        }
+        assertTrue(journal.segmentCount() > 1, journal.toString());
+
+        JournalCursor cursor = journal.cursor(0, null);
+        for (int i = 1; i <= 500; i++) {
+            assertEquals("message number " + i, cursor.nextMessage().toString());
+        }
+        assertNull(cursor.nextMessage());
+    }
+
+    @Test
+    public void deletesTheOldestSegmentsOverTheSizeLimit() throws IOException {
+        journal = MessageJournal.open(dir, 4096, 8192, DAY_MILLIS);
+        for (int i = 1; i <= 2000; i++) {
+            journal.append("lobby", "message number " + i);
+        }
+        assertTrue(journal.sizeBytes() <= 8192 + 4096, journal.toString());
+
+        JournalCursor cursor = journal.cursor(0, null);
+        ChatFrame first = (ChatFrame) cursor.nextMessage();
+        assertTrue(first.getSequence() > 1);
+        assertEquals("message number " + first.getSequence(), first.toString());
+    }
+
+    @Test
+    public void deletesSegmentsPastTheMaximumAge() throws Exception {
+        journal = MessageJournal.open(dir, 4096, Long.MAX_VALUE, 1);
+        while (journal.segmentCount() < 2) {
+            journal.append("lobby", "old message " + (journal.lastSequence() + 1));
+        }
+        long lastOld = journal.lastSequence() - 1;
+        Thread.sleep(10);
+        while (journal.segmentCount() < 3 && journal.lastSequence() < 10_000) {
+            journal.append("lobby", "new message " + (journal.lastSequence() + 1));
+        }
+
+        // Rolling to a new segment applies retention to the expired one
+        ChatFrame first = (ChatFrame) journal.cursor(0, null).nextMessage();
+        assertTrue(first.getSequence() > lastOld, first.getSequence() + " <= " + lastOld);
+    }
+
+    @Test
+    public void findsTheFirstMessageAtOrAfterATime() throws Exception {
+        journal = MessageJournal.open(dir, 4096, Long.MAX_VALUE, DAY_MILLIS);
+        for (int i = 1; i <= 300; i++) {
+            journal.append("lobby", "before " + i);
+        }
+        Thread.sleep(5);
+        long time = System.currentTimeMillis();
+        Thread.sleep(5);
+        for (int i = 1; i <= 300; i++) {
+            journal.append("lobby", "after " + i);
+        }
+
+        assertEquals(1, journal.sequenceAt(0));
+        assertEquals(301, journal.sequenceAt(time));
+        assertEquals(601, journal.sequenceAt(System.currentTimeMillis() + DAY_MILLIS));
+    }
+
+    @Test
+    public void recoversItsRecordsOnReopen() throws IOException {
+        journal = MessageJournal.open(dir, 4096, Long.MAX_VALUE, DAY_MILLIS);
+        for (int i = 1; i <= 300; i++) {
+            journal.append("lobby", "message number " + i);
+        }
+        journal.close();
+
+        journal = MessageJournal.open(dir, 4096, Long.MAX_VALUE, DAY_MILLIS);
+        assertEquals(300, journal.lastSequence());
+        assertEquals(301, journal.append("lobby", "after reopening").getSequence());
+        JournalCursor cursor = journal.cursor(299, null);
+        assertEquals("message number 300", cursor.nextMessage().toString());
+        assertEquals("after reopening", cursor.nextMessage().toString());
+    }
+
+    @Test
+    public void keepsItsIdUntilNumberingStartsAgain() throws IOException {
+        journal = MessageJournal.open(dir, 4096, Long.MAX_VALUE, DAY_MILLIS);
+        String id = journal.id();
+        journal.append("lobby", "numbered");
+        journal.close();
+
+        journal = MessageJournal.open(dir, 4096, Long.MAX_VALUE, DAY_MILLIS);
+        assertEquals(id, journal.id());
+        journal.close();
+        journal = null;
+
+        try (Stream<Path> files = Files.list(dir)) {
+            files.filter(file -> file.toString().endsWith(".log")).forEach(file -> file.toFile().delete());
+        }
+        journal = MessageJournal.open(dir, 4096, Long.MAX_VALUE, DAY_MILLIS);
+        assertNotEquals(id, journal.id());
+        assertEquals(0, journal.lastSequence());
+    }
+
+    @Test
+    public void dropsACorruptTailOnReopen() throws IOException {
+        journal = MessageJournal.open(dir, 1 << 20, Long.MAX_VALUE, DAY_MILLIS);
+        journal.append("lobby", "kept");
+        journal.append("lobby", "corrupted");
+        journal.close();
+        journal = null;
+
+        Path segment;
+        try (Stream<Path> files = Files.list(dir)) {
+            segment = files.filter(file -> file.toString().endsWith(".log")).findFirst().get();
+        }
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[] {'X'}), channel.size() - 1);
+        }
+
+        journal = MessageJournal.open(dir, 1 << 20, Long.MAX_VALUE, DAY_MILLIS);
+        assertEquals(1, journal.lastSequence());
+        JournalCursor cursor = journal.cursor(0, null);
+        assertEquals("kept", cursor.nextMessage().toString());
+        assertNull(cursor.nextMessage());
+    }
+}
@@ -0,0 +1,176 @@
+package edu.seg2105.edu.server.backend;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import edu.seg2105.client.common.BinaryMessageCodec;
+
+/**
+ * Checks how the non-blocking engine reads from a binary client.
+ */
+public class NioConnectionTest {
+
+    private static final String MAX_BYTES_PROPERTY = "simplechat.inbound.maxMessageBytes";
+
+    private RecordingServer server;
+    private Socket socket;
+    private OutputStream output;
+    private final BinaryMessageCodec codec = new BinaryMessageCodec();
+
+    @BeforeEach
+    public void start() throws Exception {
+        System.setProperty(MAX_BYTES_PROPERTY, "200000");
+        int port;
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        server = new RecordingServer(port);
+        server.getEngine().listen();
+        socket = new Socket("localhost", port);
+        socket.setSoTimeout(5000);
+        output = socket.getOutputStream();
+        write(codec.streamHeader());
+    }
+
+    @AfterEach
+    public void stop() throws Exception {
+        System.clearProperty(MAX_BYTES_PROPERTY);
+        socket.close();
+        server.getEngine().close();
+    }
+
+    @Test
+    public void readsMessagesLargerThanTheInitialBuffer() throws Exception {
+        String large = "x".repeat(150_000);
+        write(codec.encode("#login alice"));
+        write(codec.encode(large));
+        write(codec.encode("small"));
+        assertEquals("#login alice", next());
+        assertEquals(large, next());
+        assertEquals("small", next());
+    }
+
+    @Test
+    public void readsFramesSplitAcrossReads() throws Exception {
+        ByteBuffer frames = concat(codec.encode("#login alice"), codec.encode("h\u00e9llo"), codec.encode("x".repeat(20_000)));
+        for (int i = 0; i < frames.limit(); i++) {
+            output.write(frames.get(i));
+            if (i % 997 == 0 || i < 40) {
+                output.flush();
+                Thread.sleep(1);
+            }
+        }
+        output.flush();
+        assertEquals("#login alice", next());
+        assertEquals("h\u00e9llo", next());
+        assertEquals("x".repeat(20_000), next());
+    }
+
+    @Test
+    public void readsManyFramesFromOneRead() throws Exception {
+        ByteBuffer[] frames = new ByteBuffer[500];
+        for (int i = 0; i < frames.length; i++) {
+            frames[i] = codec.encode("message " + i);
+        }
+        write(concat(frames));
+        for (int i = 0; i < frames.length; i++) {
+            assertEquals("message " + i, next());
+        }
+    }
+
+    @Test
+    public void handsOverAHeldBackFrameAgain() throws Exception {
+        server.delayOn = "slow";
+        write(concat(codec.encode("first"), codec.encode("slow"), codec.encode("after")));
+        assertEquals("first", next());
+        assertEquals("slow", next());
+        assertEquals("slow", next());
+        assertEquals("after", next());
+    }
+
+    @Test
+    public void closesOnAMessageOverTheLimit() throws Exception {
+        try {
+            write(codec.encode("x".repeat(300_000)));
+        } catch (IOException e) {
+            return; // Closed before we finished writing
+        }
+        InputStream input = socket.getInputStream();
+        byte[] buffer = new byte[1024];
+        try {
+            while (input.read(buffer) >= 0) {
+                // Skip the preamble
+            }
+        } catch (SocketTimeoutException e) {
+            throw new AssertionError("connection still open");
+        } catch (IOException e) {
+            // Reset by the server: closed as well
+        }
+        assertNull(server.received.poll());
+    }
+
+    private String next() throws InterruptedException {
+        Object msg = server.received.poll(5, TimeUnit.SECONDS);
+        return msg == null ? null : msg.toString();
+    }
+
+    private static ByteBuffer concat(ByteBuffer... buffers) {
+        int length = 0;
+        for (ByteBuffer buffer : buffers) {
+            length += buffer.remaining();
+        }
+        ByteBuffer all = ByteBuffer.allocate(length);
+        for (ByteBuffer buffer : buffers) {
+            all.put(buffer.duplicate());
+        }
+        return all.flip();
+    }
+
+    private void write(ByteBuffer buffer) throws IOException {
+        output.write(buffer.array(), buffer.position(), buffer.remaining());
+        output.flush();
+    }
+
+    private static final class RecordingServer extends EchoServer {
+        final BlockingQueue<Object> received = new LinkedBlockingQueue<Object>();
+        volatile String delayOn;
+
+        RecordingServer(int port) {
+            super(port, ServerConfig.ENGINE_NIO);
+        }
+
+        @Override
+        protected void clientConnected(ChatConnection client) {
+        }
+
+        @Override
+        protected void clientDisconnected(ChatConnection client) {
+        }
+
+        @Override
+        protected void handleMessageFromClient(Object msg, ChatConnection client) {
+            // A FrameView is only valid during this call
+            String text = msg.toString();
+            received.add(text);
+            if (text.equals(delayOn)) {
+                delayOn = null;
+                client.delayReading(TimeUnit.MILLISECONDS.toNanos(50));
+            }
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package edu.seg2105.edu.server.backend;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class NioEventLoopTest {
+
+    private NioEventLoop loop;
+
+    @BeforeEach
+    public void start() throws Exception {
+        loop = new NioEventLoop(0, "test-loop");
+    }
+
+    @AfterEach
+    public void stop() throws Exception {
+        loop.shutdown();
+        loop.join();
+    }
+
+    @Test
+    public void runsTasksInOrderOnItsThread() throws Exception {
+        StringBuilder order = new StringBuilder();
+        CountDownLatch done = new CountDownLatch(1);
+        for (int i = 0; i < 5; i++) {
+            int n = i;
+            loop.execute(() -> order.append(loop.inLoop() ? n : -1));
+        }
+        loop.execute(done::countDown);
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertTrue("01234".contentEquals(order), order.toString());
+    }
+
+    @Test
+    public void keepsRunningAfterATaskThrows() throws Exception {
+        CountDownLatch done = new CountDownLatch(1);
+        loop.execute(() -> {
+            throw new IllegalStateException("task bug");
+        });
+        loop.execute(done::countDown);
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void keepsRunningTimersAfterOneThrows() throws Exception {
+        CountDownLatch done = new CountDownLatch(1);
+        loop.execute(() -> {
+            loop.schedule(() -> {
+                throw new IllegalStateException("timer bug");
+            }, 0);
+            loop.schedule(done::countDown, TimeUnit.MILLISECONDS.toNanos(20));
+        });
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void firesTimersInDeadlineOrder() throws Exception {
+        StringBuilder order = new StringBuilder();
+        CountDownLatch done = new CountDownLatch(3);
+        loop.execute(() -> {
+            loop.schedule(() -> { order.append('c'); done.countDown(); }, TimeUnit.MILLISECONDS.toNanos(60));
+            loop.schedule(() -> { order.append('a'); done.countDown(); }, TimeUnit.MILLISECONDS.toNanos(10));
+            loop.schedule(() -> { order.append('b'); done.countDown(); }, TimeUnit.MILLISECONDS.toNanos(30));
+        });
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertTrue("abc".contentEquals(order), order.toString());
+    }
+}
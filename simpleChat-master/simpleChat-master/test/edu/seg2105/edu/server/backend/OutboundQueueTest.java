@@ -0,0 +1,114 @@
+package edu.seg2105.edu.server.backend;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+public class OutboundQueueTest {
+
+    private final OutboundMetrics metrics = new OutboundMetrics();
+
+    private OutboundQueue<String> queue(int maxMessages, long maxBytes, SlowConsumerPolicy policy) {
+        return new OutboundQueue<String>(maxMessages, maxBytes, policy, metrics, String::length);
+    }
+
+    @Test
+    public void dropsTheOldestWhenFull() {
+        OutboundQueue<String> queue = queue(2, 1000, SlowConsumerPolicy.DROP_OLDEST);
+        assertTrue(queue.offer("a"));
+        assertTrue(queue.offer("b"));
+        assertTrue(queue.offer("c"));
+        assertEquals(2, queue.depth());
+        assertEquals(1, metrics.droppedMessages());
+        assertEquals("b", queue.poll());
+        assertEquals("c", queue.poll());
+        assertNull(queue.poll());
+    }
+
+    @Test
+    public void boundsTheQueuedBytes() {
+        OutboundQueue<String> queue = queue(100, 10, SlowConsumerPolicy.DROP_OLDEST);
+        queue.offer("12345");
+        queue.offer("6789");
+        assertEquals(9, queue.bytes());
+        queue.offer("abc");
+        assertEquals(2, queue.depth());
+        assertEquals(7, queue.bytes());
+        assertEquals("6789", queue.poll());
+    }
+
+    @Test
+    public void takesAMessageLargerThanTheLimitWhenEmpty() {
+        OutboundQueue<String> queue = queue(100, 4, SlowConsumerPolicy.DROP_OLDEST);
+        assertTrue(queue.offer("too long"));
+        assertEquals("too long", queue.poll());
+    }
+
+    @Test
+    public void asksForADisconnectAndIgnoresLaterOffers() {
+        OutboundQueue<String> queue = queue(1, 1000, SlowConsumerPolicy.DISCONNECT);
+        assertTrue(queue.offer("a"));
+        assertFalse(queue.offer("b"));
+        assertEquals(1, metrics.slowConsumerDisconnects());
+        assertTrue(queue.offer("c"));
+        assertEquals(1, queue.depth());
+    }
+
+    @Test
+    public void countsCoalescedMessages() {
+        OutboundQueue<String> queue = queue(1, 1000, SlowConsumerPolicy.COALESCE);
+        queue.offer("a");
+        queue.offer("b");
+        queue.offer("c");
+        assertEquals(2, queue.takeSkipped());
+        assertEquals(0, queue.takeSkipped());
+        assertEquals("c", queue.poll());
+    }
+
+    @Test
+    public void drainsThenEndsOnceFinished() throws Exception {
+        OutboundQueue<String> queue = queue(10, 1000, SlowConsumerPolicy.DROP_OLDEST);
+        queue.offer("a");
+        queue.finish();
+        assertEquals("a", queue.take());
+        assertNull(queue.take());
+    }
+
+    @Test
+    public void discardsEverythingOnClose() throws Exception {
+        OutboundQueue<String> queue = queue(10, 1000, SlowConsumerPolicy.DROP_OLDEST);
+        queue.offer("a");
+        queue.close();
+        assertNull(queue.take());
+        assertEquals(0, queue.bytes());
+        assertTrue(queue.offer("b"));
+        assertNull(queue.poll());
+    }
+
+    @Test
+    public void wakesAWaitingTaker() throws Exception {
+        OutboundQueue<String> queue = queue(10, 1000, SlowConsumerPolicy.DROP_OLDEST);
+        Thread waker = new Thread(() -> {
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                return;
+            }
+            queue.wakeup();
+        });
+        waker.start();
+        assertNull(queue.take());
+        waker.join();
+        queue.offer("a");
+        assertEquals("a", queue.take());
+    }
+
+    @Test
+    public void timesOutAWaitingPoll() throws Exception {
+        OutboundQueue<String> queue = queue(10, 1000, SlowConsumerPolicy.DROP_OLDEST);
+        assertNull(queue.poll(1_000_000));
+    }
+}
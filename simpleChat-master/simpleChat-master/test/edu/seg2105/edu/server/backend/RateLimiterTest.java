@@ -0,0 +1,65 @@
+package edu.seg2105.edu.server.backend;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.net.InetAddress;
+
+import org.junit.jupiter.api.Test;
+
+public class RateLimiterTest {
+
+    private static InetAddress address(int last) throws Exception {
+        return InetAddress.getByAddress(new byte[] {10, 0, 0, (byte) last});
+    }
+
+    @Test
+    public void letsEverythingThroughWhenDisabled() throws Exception {
+        RateLimiter limiter = new RateLimiter(0, 1, 0, 1);
+        assertFalse(limiter.isEnabled());
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(0, limiter.acquire("alice", address(1)));
+        }
+        assertEquals(0, limiter.size());
+    }
+
+    @Test
+    public void limitsEachLoginIdSeparately() throws Exception {
+        RateLimiter limiter = new RateLimiter(1, 2, 0, 1);
+        assertTrue(limiter.isEnabled());
+        assertEquals(0, limiter.acquire("alice", address(1)));
+        assertEquals(0, limiter.acquire("alice", address(1)));
+        assertTrue(limiter.acquire("alice", address(1)) > 0);
+        assertEquals(0, limiter.acquire("bob", address(1)));
+        assertEquals(2, limiter.size());
+    }
+
+    @Test
+    public void limitsAnAddressWhateverLoginIdsItUses() throws Exception {
+        RateLimiter limiter = new RateLimiter(0, 1, 1, 2);
+        assertEquals(0, limiter.acquire("alice", address(1)));
+        assertEquals(0, limiter.acquire("bob", address(1)));
+        assertTrue(limiter.acquire("carol", address(1)) > 0);
+        assertTrue(limiter.acquire(null, address(1)) > 0);
+        assertEquals(0, limiter.acquire("carol", address(2)));
+    }
+
+    @Test
+    public void refundsTheLoginTokenWhenTheAddressIsOverItsLimit() throws Exception {
+        RateLimiter limiter = new RateLimiter(1, 2, 1, 1);
+        assertEquals(0, limiter.acquire("alice", address(1)));
+        assertTrue(limiter.acquire("alice", address(1)) > 0);
+        // The rejected message cost alice nothing: one token is left
+        assertEquals(0, limiter.acquire("alice", address(2)));
+        assertTrue(limiter.acquire("alice", address(3)) > 0);
+    }
+
+    @Test
+    public void saysHowLongToWait() throws Exception {
+        RateLimiter limiter = new RateLimiter(2, 1, 0, 1);
+        limiter.acquire("alice", null);
+        long wait = limiter.acquire("alice", null);
+        assertTrue(wait > 0 && wait <= 500_000_000L, Long.toString(wait));
+    }
+}
@@ -0,0 +1,124 @@
+package edu.seg2105.edu.server.backend;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.jupiter.api.Test;
+
+public class SessionRegistryTest {
+
+    private final SessionRegistry sessions = new SessionRegistry();
+    private final ChatConnection first = new Connection();
+    private final ChatConnection second = new Connection();
+
+    @Test
+    public void claimsAnIdOnce() {
+        assertTrue(sessions.claim("alice", first));
+        assertTrue(sessions.claim("alice", first));
+        assertFalse(sessions.claim("alice", second));
+        assertSame(first, sessions.lookup("alice"));
+        assertEquals(1, sessions.size());
+    }
+
+    @Test
+    public void takeOverReturnsTheDisplacedConnection() {
+        assertNull(sessions.takeOver("alice", first));
+        assertSame(first, sessions.takeOver("alice", second));
+        assertSame(second, sessions.lookup("alice"));
+        assertNull(sessions.takeOver("alice", second));
+    }
+
+    @Test
+    public void aDisplacedConnectionCannotReleaseTheId() {
+        sessions.claim("alice", first);
+        sessions.takeOver("alice", second);
+        assertFalse(sessions.release("alice", first));
+        assertSame(second, sessions.lookup("alice"));
+        assertTrue(sessions.release("alice", second));
+        assertNull(sessions.lookup("alice"));
+        assertEquals(0, sessions.size());
+    }
+
+    @Test
+    public void loginIdsIsALiveReadOnlyView() {
+        sessions.claim("alice", first);
+        sessions.claim("bob", second);
+        assertEquals(2, sessions.loginIds().size());
+        assertThrows(UnsupportedOperationException.class, () -> sessions.loginIds().remove("alice"));
+        sessions.release("bob", second);
+        assertFalse(sessions.loginIds().contains("bob"));
+    }
+
+    @Test
+    public void concurrentTakeOversLeaveOneHolder() throws Exception {
+        int racers = 8;
+        List<ChatConnection> connections = new ArrayList<ChatConnection>();
+        List<ChatConnection> displaced = new ArrayList<ChatConnection>();
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < racers; i++) {
+            ChatConnection connection = new Connection();
+            connections.add(connection);
+            Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                ChatConnection previous = sessions.takeOver("alice", connection);
+                if (previous != null) {
+                    synchronized (displaced) {
+                        displaced.add(previous);
+                    }
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        // Every connection but the holder was displaced exactly once
+        ChatConnection holder = sessions.lookup("alice");
+        assertEquals(racers - 1, displaced.size());
+        assertFalse(displaced.contains(holder));
+        for (ChatConnection connection : connections) {
+            assertTrue(connection == holder || displaced.contains(connection));
+        }
+    }
+
+    private static final class Connection implements ChatConnection {
+        @Override
+        public void sendToClient(Object msg) {
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public InetAddress getInetAddress() {
+            return InetAddress.getLoopbackAddress();
+        }
+
+        @Override
+        public void setInfo(String infoType, Object info) {
+        }
+
+        @Override
+        public Object getInfo(String infoType) {
+            return null;
+        }
+    }
+}
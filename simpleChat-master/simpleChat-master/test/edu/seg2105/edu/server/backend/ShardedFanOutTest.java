@@ -0,0 +1,134 @@
+package edu.seg2105.edu.server.backend;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+public class ShardedFanOutTest {
+
+    private final ServerMetrics metrics = new ServerMetrics();
+    private ShardedFanOut fanOut;
+
+    @AfterEach
+    public void stop() {
+        if (fanOut != null) {
+            fanOut.shutdown();
+        }
+    }
+
+    @Test
+    public void sendsToEachClientInOrderOnItsOwnWorker() throws Exception {
+        List<Client> clients = clients(10);
+        int messages = 200;
+        CountDownLatch delivered = new CountDownLatch(clients.size() * messages);
+        fanOut = ShardedFanOut.withWorkers("test-fanout", 3, 1, (client, message) -> {
+            ((Client) client).received(message.message());
+            delivered.countDown();
+        }, metrics);
+
+        for (int i = 0; i < messages; i++) {
+            fanOut.send(clients, new EncodedMessage(i));
+        }
+        assertTrue(delivered.await(10, TimeUnit.SECONDS));
+        for (Client client : clients) {
+            assertEquals(messages, client.messages.size());
+            for (int i = 0; i < messages; i++) {
+                assertEquals(i, client.messages.get(i));
+            }
+            // A full queue made the sender wait, never another thread run the part
+            assertEquals(1, client.threads.size(), client.threads.toString());
+        }
+    }
+
+    @Test
+    public void closesOffTheWorkers() throws Exception {
+        List<Client> clients = clients(4);
+        Set<String> closers = ConcurrentHashMap.newKeySet();
+        CountDownLatch closed = new CountDownLatch(clients.size());
+        fanOut = ShardedFanOut.withWorkers("test-fanout", 2, 1, (client, message) -> fanOut.close(() -> {
+            closers.add(Thread.currentThread().getName());
+            closed.countDown();
+        }), metrics);
+
+        fanOut.send(clients, new EncodedMessage("hello"));
+        assertTrue(closed.await(10, TimeUnit.SECONDS));
+        assertEquals(Collections.singleton("test-fanout-closer"), closers);
+    }
+
+    @Test
+    public void survivesClosesThatBroadcastWhileEveryQueueIsFull() throws Exception {
+        List<Client> clients = clients(20);
+        int messages = 500;
+        CountDownLatch departures = new CountDownLatch(clients.size());
+        fanOut = ShardedFanOut.withWorkers("test-fanout", 4, 1, (client, message) -> {
+            ((Client) client).received(message.message());
+            if (message.message().equals(messages / 2)) {
+                // The slow-consumer policy closing a client: its departure goes to everyone
+                fanOut.close(() -> {
+                    fanOut.send(clients, new EncodedMessage("left"));
+                    departures.countDown();
+                });
+            }
+        }, metrics);
+
+        for (int i = 0; i < messages; i++) {
+            fanOut.send(clients, new EncodedMessage(i));
+        }
+        assertTrue(departures.await(10, TimeUnit.SECONDS));
+    }
+
+    private static List<Client> clients(int count) {
+        List<Client> clients = new ArrayList<Client>();
+        for (int i = 0; i < count; i++) {
+            clients.add(new Client());
+        }
+        return clients;
+    }
+
+    /**
+     * A connection that records what it is sent and on which threads.
+     */
+    private static final class Client implements ChatConnection {
+        final List<Object> messages = Collections.synchronizedList(new ArrayList<Object>());
+        final Set<String> threads = ConcurrentHashMap.newKeySet();
+
+        void received(Object msg) {
+            messages.add(msg);
+            threads.add(Thread.currentThread().getName());
+        }
+
+        @Override
+        public void sendToClient(Object msg) {
+            received(msg);
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public InetAddress getInetAddress() {
+            return InetAddress.getLoopbackAddress();
+        }
+
+        @Override
+        public void setInfo(String infoType, Object info) {
+        }
+
+        @Override
+        public Object getInfo(String infoType) {
+            return null;
+        }
+    }
+}
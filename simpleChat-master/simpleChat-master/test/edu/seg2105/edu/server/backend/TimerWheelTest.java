@@ -0,0 +1,98 @@
+package edu.seg2105.edu.server.backend;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+public class TimerWheelTest {
+
+    private final TimerWheel wheel = new TimerWheel("test-wheel", 5);
+
+    @AfterEach
+    public void stop() {
+        wheel.stop();
+    }
+
+    @Test
+    public void firesNoEarlierThanTheDelay() throws Exception {
+        CountDownLatch fired = new CountDownLatch(1);
+        AtomicLong firedAt = new AtomicLong();
+        long start = System.nanoTime();
+        wheel.schedule(() -> {
+            firedAt.set(System.nanoTime());
+            fired.countDown();
+        }, 50, TimeUnit.MILLISECONDS);
+
+        assertTrue(fired.await(5, TimeUnit.SECONDS));
+        assertTrue(firedAt.get() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+    }
+
+    @Test
+    public void firesDeadlinesMoreThanOneTurnAway() throws Exception {
+        // 512 buckets of 5 ms: 3 s is more than one turn of the wheel
+        CountDownLatch fired = new CountDownLatch(1);
+        long start = System.nanoTime();
+        wheel.schedule(fired::countDown, 3, TimeUnit.SECONDS);
+        assertFalse(fired.await(2, TimeUnit.SECONDS));
+        assertTrue(fired.await(5, TimeUnit.SECONDS));
+        assertTrue(System.nanoTime() - start >= TimeUnit.SECONDS.toNanos(3));
+    }
+
+    @Test
+    public void cancelledTasksDoNotRun() throws Exception {
+        AtomicInteger runs = new AtomicInteger();
+        TimerWheel.Timeout timeout = wheel.schedule(runs::incrementAndGet, 30, TimeUnit.MILLISECONDS);
+        assertTrue(timeout.cancel());
+        assertFalse(timeout.cancel());
+
+        CountDownLatch later = new CountDownLatch(1);
+        wheel.schedule(later::countDown, 100, TimeUnit.MILLISECONDS);
+        assertTrue(later.await(5, TimeUnit.SECONDS));
+        assertEquals(0, runs.get());
+    }
+
+    @Test
+    public void aFiredTaskCannotBeCancelled() throws Exception {
+        CountDownLatch fired = new CountDownLatch(1);
+        TimerWheel.Timeout timeout = wheel.schedule(fired::countDown, 0, TimeUnit.MILLISECONDS);
+        assertTrue(fired.await(5, TimeUnit.SECONDS));
+        assertFalse(timeout.cancel());
+    }
+
+    @Test
+    public void keepsGoingAfterATaskThrows() throws Exception {
+        CountDownLatch fired = new CountDownLatch(1);
+        wheel.schedule(() -> {
+            throw new IllegalStateException("timer bug");
+        }, 0, TimeUnit.MILLISECONDS);
+        wheel.schedule(fired::countDown, 20, TimeUnit.MILLISECONDS);
+        assertTrue(fired.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void firesManyTimersExactlyOnce() throws Exception {
+        int count = 10_000;
+        AtomicInteger runs = new AtomicInteger();
+        CountDownLatch fired = new CountDownLatch(count / 2);
+        for (int i = 0; i < count; i++) {
+            TimerWheel.Timeout timeout = wheel.schedule(() -> {
+                runs.incrementAndGet();
+                fired.countDown();
+            }, i % 200, TimeUnit.MILLISECONDS);
+            if (i % 2 == 1) {
+                timeout.cancel();
+            }
+        }
+        assertTrue(fired.await(5, TimeUnit.SECONDS));
+        Thread.sleep(50);
+        assertEquals(count / 2, runs.get());
+    }
+}
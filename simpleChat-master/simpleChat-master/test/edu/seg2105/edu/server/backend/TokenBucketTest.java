@@ -0,0 +1,57 @@
+package edu.seg2105.edu.server.backend;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+public class TokenBucketTest {
+
+    private static final long SECOND = 1_000_000_000L;
+
+    @Test
+    public void allowsABurstThenOneTokenPerInterval() {
+        long now = 5 * SECOND;
+        TokenBucket bucket = new TokenBucket(10, 3, now);
+        assertEquals(0, bucket.tryTake(now));
+        assertEquals(0, bucket.tryTake(now));
+        assertEquals(0, bucket.tryTake(now));
+        assertEquals(SECOND / 10, bucket.tryTake(now));
+
+        assertEquals(SECOND / 20, bucket.tryTake(now + SECOND / 20));
+        assertEquals(0, bucket.tryTake(now + SECOND / 10));
+        assertTrue(bucket.tryTake(now + SECOND / 10) > 0);
+    }
+
+    @Test
+    public void refillsNoFurtherThanTheBurst() {
+        long now = 0;
+        TokenBucket bucket = new TokenBucket(10, 2, now);
+        now += 60 * SECOND;
+        assertTrue(bucket.isFull(now));
+        assertEquals(0, bucket.tryTake(now));
+        assertEquals(0, bucket.tryTake(now));
+        assertTrue(bucket.tryTake(now) > 0);
+    }
+
+    @Test
+    public void refundGivesATokenBack() {
+        TokenBucket bucket = new TokenBucket(1, 1, 0);
+        assertEquals(0, bucket.tryTake(0));
+        assertFalse(bucket.isFull(0));
+        bucket.refund();
+        assertTrue(bucket.isFull(0));
+        assertEquals(0, bucket.tryTake(0));
+    }
+
+    @Test
+    public void aRejectedTakeTakesNothing() {
+        TokenBucket bucket = new TokenBucket(1, 1, 0);
+        bucket.tryTake(0);
+        for (int i = 0; i < 100; i++) {
+            assertTrue(bucket.tryTake(0) > 0);
+        }
+        assertEquals(0, bucket.tryTake(SECOND));
+    }
+}